@@ -0,0 +1,175 @@
+import java.awt.image.BufferedImage;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+
+/**
+ * Runs operations and chains on an executor, returning a CompletableFuture instead of blocking the caller
+ *
+ * Every task runs in its own ExecutionContext, forked from the context given to the constructor, so it keeps that
+ * context's deadline, quality and progress listener. Cancelling a returned future, or completing it from outside as
+ * orTimeout does, cancels the task's context, and the operation stops at its next row, including the rows running in
+ * parallel bands. A task cancelled before it starts never runs its operations
+ *
+ * Tasks are independent and overlap as far as the executor allows; the executor only runs the task itself, and the
+ * parallel passes inside an operation still use ExecutionPolicy. An executor with a thread per task, such as
+ * Executors.newVirtualThreadPerTaskExecutor(), runs every submitted chain at once, a fixed pool queues them
+ *
+ * Example:
+ * <pre>
+ * AsyncOperations async = new AsyncOperations(executor);
+ * CompletableFuture&lt;BufferedImage&gt; thumbnail = async.apply(image, Operations.parseChain("scaleOut;blur:range=2"));
+ * CompletableFuture&lt;BufferedImage&gt; preview = async.apply(thumbnail, Operations.parseChain("greyScale"));
+ * CompletableFuture&lt;BufferedImage&gt; rotated = async.submit(() -&gt; ImageManipulation.rotateAny(image, 30));
+ * </pre>
+ */
+public class AsyncOperations {
+    private final Executor executor;
+    private final ExecutionContext context;
+
+    /**
+     * @param executor Executor running the tasks
+     */
+    public AsyncOperations(Executor executor) {
+        this(executor, new ExecutionContext());
+    }
+
+    /**
+     * @param executor Executor running the tasks
+     * @param context Context every task is forked from, cancelling it cancels every task
+     */
+    public AsyncOperations(Executor executor, ExecutionContext context) {
+        this.executor = executor;
+        this.context = context;
+    }
+
+    /**
+     * Runs an operation by name
+     * @param image Input image
+     * @param operation Name of the operation, as registered in Operations
+     * @param args Arguments in parameter order
+     * @return Future of the output
+     */
+    public CompletableFuture<BufferedImage> apply(BufferedImage image, String operation, Object... args) {
+        Operations.Operation found = Operations.get(operation);
+        return submit(() -> found.apply(image, args));
+    }
+
+    /**
+     * Runs a step
+     * @param image Input image
+     * @param step Step to run
+     * @return Future of the output
+     */
+    public CompletableFuture<BufferedImage> apply(BufferedImage image, Operations.Step step) {
+        return apply(image, Collections.singletonList(step));
+    }
+
+    /**
+     * Runs steps with Operations.apply
+     * @param image Input image
+     * @param steps Steps in order
+     * @return Future of the output of the last step
+     */
+    public CompletableFuture<BufferedImage> apply(BufferedImage image, List<Operations.Step> steps) {
+        return submit(() -> Operations.apply(image, steps));
+    }
+
+    /**
+     * Runs steps on the result of another future once it completes, without blocking a thread while it waits
+     * If the input fails or is cancelled the returned future fails with the same exception, cancelling the returned
+     * future does not cancel the input, which may have other readers
+     * @param image Future of the input image
+     * @param steps Steps in order
+     * @return Future of the output of the last step
+     */
+    public CompletableFuture<BufferedImage> apply(CompletableFuture<BufferedImage> image, List<Operations.Step> steps) {
+        Task task = new Task(context.fork());
+
+        image.whenComplete((input, failure) -> {
+            // Failures of earlier stages arrive wrapped
+            if(failure instanceof CompletionException && failure.getCause() != null) failure = failure.getCause();
+
+            if(failure != null) task.fail(failure);
+            else task.start(executor, () -> Operations.apply(input, steps));
+        });
+
+        return task;
+    }
+
+    /**
+     * Runs any operations, for example () -> ImageManipulation.blur(image, 5)
+     * @param operation Operations to run, checking the current ExecutionContext as the ImageManipulation methods do
+     * @return Future of the result
+     */
+    public CompletableFuture<BufferedImage> submit(Supplier<BufferedImage> operation) {
+        Task task = new Task(context.fork());
+        task.start(executor, operation);
+        return task;
+    }
+
+    /**
+     * Future of a task, cancelling the task's context when it is cancelled or completed from outside
+     */
+    private static class Task extends CompletableFuture<BufferedImage> {
+        private final ExecutionContext context;
+
+        private Task(ExecutionContext context) {
+            this.context = context;
+        }
+
+        private void start(Executor executor, Supplier<BufferedImage> operation) {
+            try {
+                executor.execute(() -> {
+                    // Cancelled while queued
+                    if(isDone()) return;
+
+                    try {
+                        super.complete(context.call(operation));
+                    }
+                    catch(RuntimeException | Error e) {
+                        super.completeExceptionally(e);
+                    }
+                });
+            }
+            catch(RejectedExecutionException e) {
+                super.completeExceptionally(e);
+            }
+        }
+
+        private void fail(Throwable failure) {
+            super.completeExceptionally(failure);
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            context.cancel();
+            return cancelled;
+        }
+
+        @Override
+        public boolean complete(BufferedImage value) {
+            boolean completed = super.complete(value);
+            context.cancel();
+            return completed;
+        }
+
+        @Override
+        public boolean completeExceptionally(Throwable failure) {
+            boolean completed = super.completeExceptionally(failure);
+            context.cancel();
+            return completed;
+        }
+
+        // Stages depending on a task are plain futures, cancelling them does not cancel the task
+        @Override
+        public <U> CompletableFuture<U> newIncompleteFuture() {
+            return new CompletableFuture<>();
+        }
+    }
+}
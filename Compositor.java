@@ -0,0 +1,266 @@
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Composites an ordered list of layers onto a base image in one pass
+ * Instead of one full read and write of the image per overlay (addWatermark, circleFade, mixAlpha...), each tile of
+ * the output is read once, every layer overlapping the tile is blended into it in order, and the tile is written once.
+ * A layer only visits the pixels inside its bounding rectangle, and the tiles are run in parallel by ExecutionPolicy
+ *
+ * Each layer has a colour and alpha per pixel, an opacity, a blend mode and an optional mask, and is blended with
+ * C = B * a + D * (1 - a), where D is the colour below, B the layer colour after the blend mode and a the product of
+ * the pixel alpha, the opacity and the mask. Blended pixels are opaque, as with the other operations. An image layer at
+ * full opacity in NORMAL mode gives the same result as addWatermark
+ */
+public class Compositor {
+    /**
+     * How the colour of a layer is combined with the colour below before the alpha mix
+     */
+    public enum BlendMode {
+        // The layer colour
+        NORMAL,
+        // Layer times the colour below, which only darkens
+        MULTIPLY,
+        // Inverse of multiplying the inverses, which only lightens
+        SCREEN,
+        // Sum of the two, clamped
+        ADD
+    }
+
+    /**
+     * Fills a row of a layer with ARGB colours
+     */
+    private interface Source {
+        /**
+         * @param width Width of the base image
+         * @param height Height of the base image
+         * @param x Image x of the first pixel
+         * @param y Image y of the row
+         * @param row Colours, written from index 0
+         * @param length Number of pixels
+         */
+        void row(int width, int height, int x, int y, int[] row, int length);
+    }
+
+    /**
+     * A layer to composite, created with one of the static methods
+     */
+    public static class Layer {
+        private final Source source;
+        // Bounds in image coordinates, or null for layers covering the whole image
+        private final Rectangle bounds;
+        private int opacity = 255;
+        private BlendMode mode = BlendMode.NORMAL;
+        private BufferedImage mask;
+
+        private Layer(Source source, Rectangle bounds) {
+            this.source = source;
+            this.bounds = bounds;
+        }
+
+        /**
+         * Creates a layer from an image, using its alpha channel, as addWatermark does
+         * @param image Layer image
+         * @param x Left of the layer in the base image
+         * @param y Top of the layer in the base image
+         * @return Layer
+         */
+        public static Layer image(BufferedImage image, int x, int y) {
+            return new Layer((width, height, sx, sy, row, length) -> Utils.readARGB(image, sx - x, sy - y, length, 1, row),
+                    new Rectangle(x, y, image.getWidth(), image.getHeight()));
+        }
+
+        /**
+         * Creates a layer of one colour over the whole image, a colour wash when given an opacity
+         * @param colour Colour of the layer, including its alpha
+         * @return Layer
+         */
+        public static Layer colour(Color colour) {
+            int argb = colour.getRGB();
+            return new Layer((width, height, sx, sy, row, length) -> Arrays.fill(row, 0, length, argb), null);
+        }
+
+        /**
+         * Creates a circular vignette over the whole image, with the alpha of circleFade clamped to 255
+         * @param colour Colour to fade into
+         * @param radius Radius of circle
+         * @param fadeLength Length of fade
+         * @return Layer
+         */
+        public static Layer circleFade(Color colour, int radius, int fadeLength) {
+            int rgb = colour.getRGB() & 0xFFFFFF;
+
+            return new Layer((width, height, sx, sy, row, length) -> {
+                ImageManipulation.RadialTable distances = ImageManipulation.RadialTable.of(width, height);
+
+                for(int i = 0; i < length; i++) {
+                    float alpha = distances.distance(sx + i, sy) / (radius + fadeLength) * 255f;
+                    row[i] = Math.min(255, (int) alpha) << 24 | rgb;
+                }
+            }, null);
+        }
+
+        /**
+         * Creates a square vignette over the whole image, with the alpha of squareFade clamped to 255
+         * @param colour Colour to fade into
+         * @param size Width of square
+         * @param fadeLength Length of fade
+         * @return Layer
+         */
+        public static Layer squareFade(Color colour, int size, int fadeLength) {
+            int rgb = colour.getRGB() & 0xFFFFFF;
+
+            return new Layer((width, height, sx, sy, row, length) -> {
+                for(int i = 0; i < length; i++) {
+                    float dist = Math.max(ImageManipulation.distance1d(sx + i, width / 2), ImageManipulation.distance1d(sy, height / 2));
+                    row[i] = Math.min(255, (int) (dist / (size + fadeLength) * 255f)) << 24 | rgb;
+                }
+            }, null);
+        }
+
+        /**
+         * Sets the opacity the layer is multiplied by
+         * @param opacity Opacity from 0 to 255
+         * @return This layer
+         */
+        public Layer setOpacity(int opacity) {
+            if(opacity < 0 || opacity > 255) throw new IllegalArgumentException("Invalid parameter for function setOpacity: opacity must be from 0 to 255");
+
+            this.opacity = opacity;
+            return this;
+        }
+
+        /**
+         * Sets the blend mode
+         * @param mode Blend mode
+         * @return This layer
+         */
+        public Layer setBlendMode(BlendMode mode) {
+            this.mode = mode;
+            return this;
+        }
+
+        /**
+         * Sets a mask the alpha of the layer is multiplied by, with a coverage of the mask's alpha times the largest
+         * of its red, green and blue, so opaque white shows the layer and black or transparent hides it
+         * @param mask Mask the size of the layer, or of the base image for layers covering the whole image
+         * @return This layer
+         */
+        public Layer setMask(BufferedImage mask) {
+            if(bounds != null && (mask.getWidth() != bounds.width || mask.getHeight() != bounds.height)) {
+                throw new IllegalArgumentException("Invalid parameter for function setMask: Mask must be the size of the layer");
+            }
+
+            this.mask = mask;
+            return this;
+        }
+
+        // Blends the part of the layer inside a rectangle of the tile, tile holding the pixels from (tileX, tileY)
+        private void blend(int width, int height, int[] tile, int tileX, int tileY, int tileWidth, Rectangle area, int[] colours, int[] coverage) {
+            int left = bounds == null ? 0 : bounds.x, top = bounds == null ? 0 : bounds.y;
+
+            for(int y = area.y; y < area.y + area.height; y++) {
+                source.row(width, height, area.x, y, colours, area.width);
+                if(mask != null) Utils.readARGB(mask, area.x - left, y - top, area.width, 1, coverage);
+
+                int at = (y - tileY) * tileWidth + area.x - tileX;
+
+                for(int i = 0; i < area.width; i++) {
+                    int colour = colours[i];
+                    double a = (colour >>> 24) / 255.0;
+
+                    if(opacity != 255) a *= opacity / 255.0;
+                    if(mask != null) {
+                        int m = coverage[i];
+                        a *= (m >>> 24) / 255.0 * Math.max(m >> 16 & 0xFF, Math.max(m >> 8 & 0xFF, m & 0xFF)) / 255.0;
+                    }
+
+                    if(a == 0) continue;
+
+                    int below = tile[at + i];
+
+                    tile[at + i] = 0xFF000000
+                            | mix(blend(colour >> 16 & 0xFF, below >> 16 & 0xFF), below >> 16 & 0xFF, a) << 16
+                            | mix(blend(colour >> 8 & 0xFF, below >> 8 & 0xFF), below >> 8 & 0xFF, a) << 8
+                            | mix(blend(colour & 0xFF, below & 0xFF), below & 0xFF, a);
+                }
+            }
+        }
+
+        private int blend(int colour, int below) {
+            switch(mode) {
+                case MULTIPLY: return colour * below / 255;
+                case SCREEN: return 255 - (255 - colour) * (255 - below) / 255;
+                case ADD: return Math.min(255, colour + below);
+                default: return colour;
+            }
+        }
+
+        // Same alpha compositing formula and rounding as addWatermark
+        private static int mix(int colour, int below, double a) {
+            return Utils.clamp((int) (colour * a + below * (1 - a)), 0, 255);
+        }
+    }
+
+    private final List<Layer> layers = new ArrayList<>();
+
+    /**
+     * Adds a layer on top of the layers already added
+     * @param layer Layer
+     * @return This compositor
+     */
+    public Compositor add(Layer layer) {
+        layers.add(layer);
+        return this;
+    }
+
+    /**
+     * Composites the layers onto an image
+     * @param image Base image, which is not modified
+     * @return Composited image, with the base pixels no layer covers left as they were
+     */
+    public BufferedImage composite(BufferedImage image) {
+        int width = image.getWidth(), height = image.getHeight();
+        Rectangle whole = new Rectangle(0, 0, width, height);
+
+        List<Layer> visible = new ArrayList<>();
+        List<Rectangle> areas = new ArrayList<>();
+
+        for(Layer layer : layers) {
+            if(layer.mask != null && layer.bounds == null && (layer.mask.getWidth() != width || layer.mask.getHeight() != height)) {
+                throw new IllegalArgumentException("Invalid parameter for function composite: Mask must be the size of the image");
+            }
+
+            Rectangle area = layer.bounds == null ? whole : layer.bounds.intersection(whole);
+            if(area.isEmpty() || layer.opacity == 0) continue;
+
+            visible.add(layer);
+            areas.add(area);
+        }
+
+        BufferedImage output = ExecutionContext.current().takeOutput(width, height);
+        BufferedImage composite = output != null ? output : new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+
+        ExecutionPolicy.run("composite", ExecutionPolicy.CostClass.POINT, composite, (x0, y0, x1, y1) -> {
+            int tileWidth = x1 - x0;
+            Rectangle region = new Rectangle(x0, y0, tileWidth, y1 - y0);
+
+            int[] tile = Utils.readARGB(image, x0, y0, tileWidth, y1 - y0, null);
+            int[] colours = new int[tileWidth], coverage = new int[tileWidth];
+
+            for(int i = 0; i < visible.size(); i++) {
+                Rectangle area = areas.get(i).intersection(region);
+                if(area.isEmpty()) continue;
+
+                visible.get(i).blend(width, height, tile, x0, y0, tileWidth, area, colours, coverage);
+            }
+
+            Utils.writeARGB(composite, x0, y0, tileWidth, y1 - y0, tile);
+        });
+
+        return composite;
+    }
+}
@@ -0,0 +1,268 @@
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Deadline, cancellation and progress reporting for ImageManipulation operations
+ * A context is installed for the current thread with call(), and every operation run inside it checks the context once
+ * per row (or per column for the operations that loop over columns), throwing a CancellationException as soon as it
+ * is cancelled or its deadline has passed
+ *
+ * Operations run outside of call() use a context that is never cancelled and reports no progress
+ *
+ * A context can also be clipped, so that every pass only computes some rectangles of its output, as used by
+ * IncrementalRenderer to recompute the parts of an image that changed, or given an output image that the next
+ * operation writes into instead of allocating its own, as used by PixelBuffer
+ *
+ * The quality of a context selects between the exact trigonometry of the warps and the faster approximations of
+ * FastMath, and whether Java2DOps may use Java2D implementations that are not exact, for previews where throughput
+ * matters more than exactness
+ */
+public class ExecutionContext {
+    /**
+     * Receives progress from the operations run in a context
+     */
+    public interface ProgressListener {
+        /**
+         * Called after each row (or column) of an operation pass has been checked in
+         * @param operation Name of the operation or internal pass, for example "blur" or "mixAlpha"
+         * @param done Rows finished in this pass
+         * @param total Rows in this pass
+         */
+        void progress(String operation, int done, int total);
+    }
+
+    /**
+     * How exactly the warps evaluate their maps
+     */
+    public enum Quality {
+        // Same result as always
+        EXACT,
+        // Trigonometry from FastMath, sampling positions within a hundredth of a pixel of the exact ones, and the Java2D
+        // implementations of Java2DOps wherever they are faster and close to the hand-rolled ones
+        DRAFT
+    }
+
+    private static final ExecutionContext NONE = new ExecutionContext();
+
+    private static final ThreadLocal<ExecutionContext> CURRENT = new ThreadLocal<>();
+
+    private volatile boolean cancelled;
+    private long deadline = Long.MAX_VALUE;
+    private boolean hasDeadline;
+    private ProgressListener listener;
+    private Quality quality = Quality.EXACT;
+    // Context this one was derived from, cancelling it cancels this one too
+    private final ExecutionContext parent;
+    private final List<Rectangle> clip;
+    // Image the next operation returns, cleared once an operation has taken it
+    private BufferedImage output;
+
+    /**
+     * Creates a context with no deadline and no progress listener
+     */
+    public ExecutionContext() {
+        this(null, null, null);
+    }
+
+    private ExecutionContext(ExecutionContext parent, List<Rectangle> clip, BufferedImage output) {
+        this.parent = parent;
+        this.clip = clip;
+        this.output = output;
+    }
+
+    /**
+     * Gets the context of the current thread
+     * @return Context installed with call(), or a context that is never cancelled
+     */
+    public static ExecutionContext current() {
+        ExecutionContext context = CURRENT.get();
+        return context == null ? NONE : context;
+    }
+
+    /**
+     * Sets a deadline relative to now
+     * @param timeout Time allowed
+     * @param unit Unit of the timeout
+     * @return This context
+     */
+    public ExecutionContext setTimeout(long timeout, TimeUnit unit) {
+        return setDeadline(System.nanoTime() + unit.toNanos(timeout));
+    }
+
+    /**
+     * Sets an absolute deadline
+     * @param nanoTime Deadline as a System.nanoTime() value
+     * @return This context
+     */
+    public ExecutionContext setDeadline(long nanoTime) {
+        this.deadline = nanoTime;
+        this.hasDeadline = true;
+        return this;
+    }
+
+    /**
+     * Sets the progress listener
+     * @param listener Listener, or null for none
+     * @return This context
+     */
+    public ExecutionContext setProgressListener(ProgressListener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    /**
+     * Sets the quality of the warps run in this context, read when a warp builds its map so a compiled WarpChain keeps
+     * the quality it was compiled with
+     * @param quality Quality
+     * @return This context
+     */
+    public ExecutionContext setQuality(Quality quality) {
+        this.quality = quality;
+        return this;
+    }
+
+    /**
+     * @return Quality of the warps run in this context
+     */
+    public Quality getQuality() {
+        return quality;
+    }
+
+    /**
+     * Creates a context in which every pass only computes the given rectangles of its output, the other pixels of the
+     * output are left blank (or, for the operations that start from a copy of the input, as they were in the input)
+     * The clipped context is cancelled along with this one and reports progress to the same listener at the same quality
+     * @param clip Rectangles in output coordinates, passes producing images of different sizes use the same rectangles
+     * @return Clipped context
+     */
+    public ExecutionContext clip(List<Rectangle> clip) {
+        ExecutionContext clipped = new ExecutionContext(this, clip, null);
+        clipped.listener = listener;
+        clipped.quality = quality;
+        return clipped;
+    }
+
+    /**
+     * Creates a context in which the next operation writes its result into the given image instead of allocating one,
+     * if the result has the same size. Operations that cannot write into it return a new image as usual
+     * The image must not share pixels with the input of the operation
+     * The derived context is cancelled along with this one and reports progress to the same listener at the same quality
+     * @param output Image to write into
+     * @return Derived context
+     */
+    public ExecutionContext output(BufferedImage output) {
+        ExecutionContext derived = new ExecutionContext(this, clip, output);
+        derived.listener = listener;
+        derived.quality = quality;
+        return derived;
+    }
+
+    /**
+     * Creates a context that can be cancelled on its own, as used by AsyncOperations to give every task its own
+     * The derived context is cancelled along with this one, keeps its deadline and clip and reports progress to the
+     * same listener at the same quality
+     * @return Derived context
+     */
+    public ExecutionContext fork() {
+        ExecutionContext derived = new ExecutionContext(this, clip, null);
+        derived.listener = listener;
+        derived.quality = quality;
+        return derived;
+    }
+
+    /**
+     * Takes the output image, so that later operations allocate their own
+     * @param width Width of the result
+     * @param height Height of the result
+     * @return Output image, or null if there is none or it is not the given size
+     */
+    BufferedImage takeOutput(int width, int height) {
+        BufferedImage image = output;
+
+        if(image == null || image.getWidth() != width || image.getHeight() != height) return null;
+
+        output = null;
+        return image;
+    }
+
+    /**
+     * @return Whether the next operation has an output image to write into
+     */
+    boolean hasOutput() {
+        return output != null;
+    }
+
+    /**
+     * @return Rectangles each pass is limited to, or null when passes compute their whole output
+     */
+    public List<Rectangle> getClip() {
+        return clip;
+    }
+
+    /**
+     * Cancels every operation running in this context, they stop at their next row
+     * Can be called from any thread
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * @return Whether the context has been cancelled or its deadline has passed
+     */
+    public boolean isCancelled() {
+        return cancelled || hasDeadline && System.nanoTime() - deadline > 0 || parent != null && parent.isCancelled();
+    }
+
+    /**
+     * Runs operations on the current thread inside this context
+     * @param operation Operations to run, for example () -> ImageManipulation.blur(image, 5)
+     * @return Result of the operations
+     * @throws CancellationException If the context is cancelled or the deadline passes before the operations finish
+     */
+    public <T> T call(Supplier<T> operation) {
+        ExecutionContext previous = CURRENT.get();
+        CURRENT.set(this);
+
+        try {
+            checkpoint();
+            return operation.get();
+        }
+        finally {
+            if(previous == null) CURRENT.remove();
+            else CURRENT.set(previous);
+        }
+    }
+
+    /**
+     * Checks for cancellation between rows and reports progress
+     * @param operation Name of the operation or internal pass
+     * @param done Rows finished so far
+     * @param total Rows in the pass
+     * @throws CancellationException If the context is cancelled or the deadline has passed
+     */
+    public void checkpoint(String operation, int done, int total) {
+        checkpoint();
+
+        if(listener != null) listener.progress(operation, done, total);
+    }
+
+    /**
+     * Checks for cancellation without reporting progress
+     * @throws CancellationException If the context is cancelled or the deadline has passed
+     */
+    public void checkpoint() {
+        if(parent != null) parent.checkpoint();
+
+        if(cancelled) throw new CancellationException("Operation cancelled");
+
+        if(hasDeadline && System.nanoTime() - deadline > 0) {
+            cancelled = true;
+            throw new CancellationException("Operation deadline exceeded");
+        }
+    }
+}
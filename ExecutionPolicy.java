@@ -0,0 +1,447 @@
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BinaryOperator;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+
+/**
+ * Chooses how each ImageManipulation pass is run from the number of pixels and how expensive the operation is per pixel
+ * Small images run on the calling thread, larger ones in parallel bands of rows, and large geometric warps in parallel
+ * tiles so that the scattered source reads of a tile stay close together
+ *
+ * The pixel counts where parallel and tiled execution start paying off come from a short calibration the first time a
+ * pass is run. They can be overridden with the system properties imagemanipulation.threshold.[point|neighbourhood|warp]
+ * .[parallel|tiled] or with setThresholds
+ *
+ * Passes are counted by strategy, timed by OperationMetrics when it is on and recorded as TraceEvents phases
+ */
+public class ExecutionPolicy {
+    /**
+     * How a pass is run
+     */
+    public enum Strategy {
+        SEQUENTIAL,
+        PARALLEL_BANDS,
+        TILED
+    }
+
+    /**
+     * How expensive an operation is per pixel
+     */
+    public enum CostClass {
+        // Reads only the pixel being written, for example brighten
+        POINT,
+        // Reads a window around the pixel being written, for example blur
+        NEIGHBOURHOOD,
+        // Reads a pixel from anywhere in the image, for example rotateAny or bulge
+        WARP
+    }
+
+    /**
+     * Computes the pixels of a rectangle, from (x0, y0) inclusive to (x1, y1) exclusive
+     */
+    public interface RegionKernel {
+        void apply(int x0, int y0, int x1, int y1);
+    }
+
+    /**
+     * Computes a range of lines, from inclusive to exclusive
+     */
+    public interface LineKernel {
+        void apply(int from, int to);
+    }
+
+    /**
+     * Accumulates rows from y0 inclusive to y1 exclusive into an accumulator only used by one thread at a time
+     */
+    public interface RowAccumulator<T> {
+        void apply(T accumulator, int y0, int y1);
+    }
+
+    // Side of a square tile
+    private static final int TILE_SIZE = 64;
+
+    private static final int CORES = Runtime.getRuntime().availableProcessors();
+
+    // Pixel counts from which passes run in parallel bands and in tiles, indexed by CostClass
+    private static final long[] parallelThresholds = new long[3];
+    private static final long[] tiledThresholds = new long[3];
+    private static volatile boolean calibrated;
+
+    // Number of passes run with each strategy, by operation name
+    private static final Map<String, LongAdder[]> strategyCounts = new ConcurrentHashMap<>();
+
+    /**
+     * Runs a pass over the whole of an image
+     * @param operation Name of the operation, used for cancellation, progress and metrics
+     * @param cost Cost class of the operation
+     * @param image Image whose bounds are iterated, usually the output image
+     * @param kernel Computes a rectangle of the output, may be called from several threads at once
+     */
+    public static void run(String operation, CostClass cost, BufferedImage image, RegionKernel kernel) {
+        run(operation, cost, 0, 0, image.getWidth(), image.getHeight(), kernel);
+    }
+
+    /**
+     * Runs a pass over a rectangle, or over its intersection with the clip of the current ExecutionContext
+     * @param operation Name of the operation, used for cancellation, progress and metrics
+     * @param cost Cost class of the operation
+     * @param x0 Left edge, inclusive
+     * @param y0 Top edge, inclusive
+     * @param x1 Right edge, exclusive
+     * @param y1 Bottom edge, exclusive
+     * @param kernel Computes a rectangle of the output, may be called from several threads at once
+     */
+    public static void run(String operation, CostClass cost, int x0, int y0, int x1, int y1, RegionKernel kernel) {
+        ExecutionContext context = ExecutionContext.current();
+        List<Rectangle> clip = context.getClip();
+
+        if(clip == null) {
+            run(operation, cost, context, x0, y0, x1, y1, kernel);
+            return;
+        }
+
+        for(Rectangle r : clip) {
+            run(operation, cost, context, Math.max(x0, r.x), Math.max(y0, r.y), Math.min(x1, r.x + r.width), Math.min(y1, r.y + r.height), kernel);
+        }
+    }
+
+    private static void run(String operation, CostClass cost, ExecutionContext context, int x0, int y0, int x1, int y1, RegionKernel kernel) {
+        if(x1 <= x0 || y1 <= y0) return;
+
+        long pixels = (long) (x1 - x0) * (y1 - y0);
+        Strategy strategy = choose(cost, pixels);
+        record(operation, strategy);
+
+        try(OperationMetrics.Scope scope = OperationMetrics.open(operation, pixels);
+            TraceEvents.Span span = TraceEvents.phase(operation, strategy, x0, y0, x1 - x0, y1 - y0)) {
+            run(operation, strategy, context, x0, y0, x1, y1, kernel);
+            if(scope != null) scope.completed(null);
+            if(span != null) span.completed(null);
+        }
+    }
+
+    private static void run(String operation, Strategy strategy, ExecutionContext context, int x0, int y0, int x1, int y1, RegionKernel kernel) {
+        int height = y1 - y0;
+
+        switch(strategy) {
+            case SEQUENTIAL:
+                for(int y = y0; y < y1; y++) {
+                    context.checkpoint(operation, y - y0, height);
+                    kernel.apply(x0, y, x1, y + 1);
+                }
+                break;
+            case PARALLEL_BANDS: {
+                // More bands than cores so uneven rows (such as the edges of a warp) balance out
+                int bands = Math.min(height, CORES * 4);
+                AtomicInteger done = new AtomicInteger();
+
+                IntStream.range(0, bands).parallel().forEach(band -> {
+                    int from = y0 + (int) ((long) height * band / bands);
+                    int to = y0 + (int) ((long) height * (band + 1) / bands);
+
+                    for(int y = from; y < to; y++) {
+                        context.checkpoint(operation, done.getAndIncrement(), height);
+                        kernel.apply(x0, y, x1, y + 1);
+                    }
+                });
+                break;
+            }
+            case TILED: {
+                int columns = (x1 - x0 + TILE_SIZE - 1) / TILE_SIZE;
+                int rows = (height + TILE_SIZE - 1) / TILE_SIZE;
+                int tiles = columns * rows;
+                AtomicInteger done = new AtomicInteger();
+
+                IntStream.range(0, tiles).parallel().forEach(tile -> {
+                    // Progress is counted in tiles for tiled passes
+                    context.checkpoint(operation, done.getAndIncrement(), tiles);
+
+                    int tx = x0 + tile % columns * TILE_SIZE;
+                    int ty = y0 + tile / columns * TILE_SIZE;
+
+                    kernel.apply(tx, ty, Math.min(x1, tx + TILE_SIZE), Math.min(y1, ty + TILE_SIZE));
+                });
+                break;
+            }
+        }
+    }
+
+    /**
+     * Runs a pass made of independent lines, such as the row and column passes of a separable filter
+     * Lines are never split, so the pass runs either sequentially or in parallel bands of lines, and the whole pass is
+     * run even in a clipped context
+     * @param operation Name of the operation, used for cancellation, progress and metrics
+     * @param cost Cost class of the operation
+     * @param lines Number of lines
+     * @param pixelsPerLine Pixels in each line
+     * @param kernel Computes a range of lines, may be called from several threads at once
+     */
+    public static void runLines(String operation, CostClass cost, int lines, int pixelsPerLine, LineKernel kernel) {
+        if(lines <= 0) return;
+
+        ExecutionContext context = ExecutionContext.current();
+        Strategy strategy = choose(cost, (long) lines * pixelsPerLine) == Strategy.SEQUENTIAL ? Strategy.SEQUENTIAL : Strategy.PARALLEL_BANDS;
+        record(operation, strategy);
+
+        try(OperationMetrics.Scope scope = OperationMetrics.open(operation, (long) lines * pixelsPerLine);
+            TraceEvents.Span span = TraceEvents.phase(operation, strategy, 0, 0, pixelsPerLine, lines)) {
+            runLines(operation, strategy, context, lines, kernel);
+            if(scope != null) scope.completed(null);
+            if(span != null) span.completed(null);
+        }
+    }
+
+    private static void runLines(String operation, Strategy strategy, ExecutionContext context, int lines, LineKernel kernel) {
+        if(strategy == Strategy.SEQUENTIAL) {
+            for(int i = 0; i < lines; i++) {
+                context.checkpoint(operation, i, lines);
+                kernel.apply(i, i + 1);
+            }
+            return;
+        }
+
+        AtomicInteger done = new AtomicInteger();
+
+        IntStream.range(0, lines).parallel().forEach(i -> {
+            context.checkpoint(operation, done.getAndIncrement(), lines);
+            kernel.apply(i, i + 1);
+        });
+    }
+
+    /**
+     * Runs a pass that accumulates a result over the rows of an image, such as a histogram
+     * Each band of rows accumulates into its own accumulator and the accumulators are merged at the end, so threads
+     * never write to shared state. Clipping is ignored since the result is not an image
+     * @param operation Name of the operation, used for cancellation, progress and metrics
+     * @param cost Cost class of the operation
+     * @param width Width of the image
+     * @param height Height of the image
+     * @param create Creates an empty accumulator
+     * @param kernel Accumulates rows
+     * @param merge Merges two accumulators, may return either of them
+     * @return Accumulated result
+     */
+    public static <T> T reduce(String operation, CostClass cost, int width, int height, Supplier<T> create, RowAccumulator<T> kernel, BinaryOperator<T> merge) {
+        ExecutionContext context = ExecutionContext.current();
+        Strategy strategy = height <= 0 || choose(cost, (long) width * height) == Strategy.SEQUENTIAL ? Strategy.SEQUENTIAL : Strategy.PARALLEL_BANDS;
+        record(operation, strategy);
+
+        try(OperationMetrics.Scope scope = OperationMetrics.open(operation, (long) width * Math.max(0, height));
+            TraceEvents.Span span = TraceEvents.phase(operation, strategy, 0, 0, width, height)) {
+            T result = reduce(operation, strategy, context, height, create, kernel, merge);
+            if(scope != null) scope.completed(null);
+            if(span != null) span.completed(null);
+            return result;
+        }
+    }
+
+    private static <T> T reduce(String operation, Strategy strategy, ExecutionContext context, int height, Supplier<T> create, RowAccumulator<T> kernel, BinaryOperator<T> merge) {
+        if(strategy == Strategy.SEQUENTIAL) {
+            T accumulator = create.get();
+
+            for(int y = 0; y < height; y++) {
+                context.checkpoint(operation, y, height);
+                kernel.apply(accumulator, y, y + 1);
+            }
+
+            return accumulator;
+        }
+
+        int bands = Math.min(height, CORES * 4);
+        AtomicInteger done = new AtomicInteger();
+
+        return IntStream.range(0, bands).parallel().mapToObj(band -> {
+            T accumulator = create.get();
+            int from = (int) ((long) height * band / bands);
+            int to = (int) ((long) height * (band + 1) / bands);
+
+            for(int y = from; y < to; y++) {
+                context.checkpoint(operation, done.getAndIncrement(), height);
+                kernel.apply(accumulator, y, y + 1);
+            }
+
+            return accumulator;
+        }).reduce(merge).get();
+    }
+
+    /**
+     * Chooses the strategy for a pass
+     * @param cost Cost class of the operation
+     * @param pixels Number of pixels written by the pass
+     * @return Strategy
+     */
+    public static Strategy choose(CostClass cost, long pixels) {
+        calibrate();
+
+        if(pixels < parallelThresholds[cost.ordinal()]) return Strategy.SEQUENTIAL;
+        if(pixels < tiledThresholds[cost.ordinal()]) return Strategy.PARALLEL_BANDS;
+        return Strategy.TILED;
+    }
+
+    /**
+     * Overrides the calibrated thresholds of a cost class
+     * @param cost Cost class
+     * @param parallel Pixel count from which passes run in parallel bands
+     * @param tiled Pixel count from which passes run in parallel tiles, Long.MAX_VALUE for never
+     */
+    public static synchronized void setThresholds(CostClass cost, long parallel, long tiled) {
+        calibrate();
+
+        parallelThresholds[cost.ordinal()] = parallel;
+        tiledThresholds[cost.ordinal()] = Math.max(parallel, tiled);
+    }
+
+    /**
+     * @param cost Cost class
+     * @return Pixel count from which passes of this class run in parallel
+     */
+    public static long getParallelThreshold(CostClass cost) {
+        calibrate();
+        return parallelThresholds[cost.ordinal()];
+    }
+
+    /**
+     * @param cost Cost class
+     * @return Pixel count from which passes of this class run in tiles
+     */
+    public static long getTiledThreshold(CostClass cost) {
+        calibrate();
+        return tiledThresholds[cost.ordinal()];
+    }
+
+    /**
+     * Gets how many passes of an operation have been run with a strategy
+     * @param operation Name of the operation
+     * @param strategy Strategy
+     * @return Number of passes
+     */
+    public static long getStrategyCount(String operation, Strategy strategy) {
+        LongAdder[] counts = strategyCounts.get(operation);
+        return counts == null ? 0 : counts[strategy.ordinal()].sum();
+    }
+
+    /**
+     * @return Number of passes run with each strategy, by operation name
+     */
+    public static Map<String, Map<Strategy, Long>> getStrategyCounts() {
+        Map<String, Map<Strategy, Long>> snapshot = new TreeMap<>();
+
+        strategyCounts.forEach((operation, counts) -> {
+            Map<Strategy, Long> byStrategy = new TreeMap<>();
+            for(Strategy strategy : Strategy.values()) byStrategy.put(strategy, counts[strategy.ordinal()].sum());
+            snapshot.put(operation, Collections.unmodifiableMap(byStrategy));
+        });
+
+        return Collections.unmodifiableMap(snapshot);
+    }
+
+    private static void record(String operation, Strategy strategy) {
+        strategyCounts.computeIfAbsent(operation, k -> {
+            LongAdder[] counts = new LongAdder[Strategy.values().length];
+            for(int i = 0; i < counts.length; i++) counts[i] = new LongAdder();
+            return counts;
+        })[strategy.ordinal()].increment();
+    }
+
+    // Measures how long a pixel of each cost class takes and how long it takes to start and join parallel work, then
+    // sets each threshold to twice the pixel count where a parallel pass would break even with a sequential one
+    private static void calibrate() {
+        if(calibrated) return;
+
+        synchronized(ExecutionPolicy.class) {
+            if(calibrated) return;
+
+            long overhead = CORES > 1 ? measureForkOverhead() : 0;
+
+            for(CostClass cost : CostClass.values()) {
+                String name = cost.name().toLowerCase();
+                Long parallel = Long.getLong("imagemanipulation.threshold." + name + ".parallel");
+                Long tiled = Long.getLong("imagemanipulation.threshold." + name + ".tiled");
+
+                if(parallel == null) {
+                    if(CORES == 1) {
+                        parallel = Long.MAX_VALUE;
+                    }
+                    else {
+                        double perPixel = measurePixelCost(cost);
+                        double breakEven = overhead / (perPixel * (1 - 1.0 / CORES));
+                        parallel = (long) Utils.clamp((float) (breakEven * 2), 1 << 12, 1 << 22);
+                    }
+                }
+
+                // Only warps read far enough from the pixel being written for tiles to help
+                if(tiled == null) tiled = cost == CostClass.WARP ? parallel : Long.MAX_VALUE;
+
+                parallelThresholds[cost.ordinal()] = parallel;
+                tiledThresholds[cost.ordinal()] = Math.max(parallel, tiled);
+            }
+
+            calibrated = true;
+        }
+    }
+
+    // Best time in nanoseconds to run and join one empty task per band on the common pool
+    private static long measureForkOverhead() {
+        long best = Long.MAX_VALUE;
+
+        for(int i = 0; i < 20; i++) {
+            long start = System.nanoTime();
+            IntStream.range(0, CORES * 4).parallel().forEach(band -> {});
+            best = Math.min(best, System.nanoTime() - start);
+        }
+
+        return best;
+    }
+
+    // Best time in nanoseconds per pixel of a small kernel typical of the cost class
+    private static double measurePixelCost(CostClass cost) {
+        int size = 64;
+        BufferedImage src = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+        BufferedImage dst = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+        long best = Long.MAX_VALUE;
+
+        for(int i = 0; i < 8; i++) {
+            long start = System.nanoTime();
+
+            for(int y = 0; y < size; y++) {
+                for(int x = 0; x < size; x++) {
+                    int rgb;
+
+                    if(cost == CostClass.POINT) {
+                        rgb = src.getRGB(x, y) ^ 0xFFFFFF;
+                    }
+                    else if(cost == CostClass.NEIGHBOURHOOD) {
+                        // 3 by 3 window
+                        rgb = 0;
+                        for(int yy = Math.max(0, y - 1); yy < Math.min(size, y + 2); yy++) {
+                            for(int xx = Math.max(0, x - 1); xx < Math.min(size, x + 2); xx++) {
+                                rgb += src.getRGB(xx, yy) & 0xFF;
+                            }
+                        }
+                    }
+                    else {
+                        // Rotation about the centre
+                        double angle = (x + y) * .01;
+                        int sx = (int) ((x - size / 2) * Math.cos(angle) - (y - size / 2) * Math.sin(angle)) + size / 2;
+                        int sy = (int) ((x - size / 2) * Math.sin(angle) + (y - size / 2) * Math.cos(angle)) + size / 2;
+                        rgb = src.getRGB(Utils.clamp(sx, 0, size - 1), Utils.clamp(sy, 0, size - 1));
+                    }
+
+                    dst.setRGB(x, y, rgb);
+                }
+            }
+
+            best = Math.min(best, System.nanoTime() - start);
+        }
+
+        return Math.max(1, best) / (double) (size * size);
+    }
+}
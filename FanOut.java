@@ -0,0 +1,302 @@
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.UnaryOperator;
+
+/**
+ * Produces several outputs from one source image, described as a tree of steps in which outputs share the steps they
+ * have in common
+ *
+ * The source is decoded once and every step runs once no matter how many outputs are built on it. Branches run
+ * concurrently on the common ForkJoinPool, and each intermediate image is released as soon as the last branch reading
+ * it has computed its own image from it, so a job never holds more than one image per running branch plus the
+ * outputs. A chain of steps with no branch in between runs through Operations.apply, so runs of warps are still fused
+ *
+ * Example:
+ * <pre>
+ * FanOut job = new FanOut();
+ * job.output("thumbnail", Operations.parseChain("scaleOut"));
+ * job.output("background", Operations.parseChain("greyScale;blur:range=8"));
+ * job.output("pixelated", Operations.parseChain("greyScale;pixel:pixelSize=12"));
+ * Map&lt;String, BufferedImage&gt; outputs = job.run(image);
+ * </pre>
+ */
+public class FanOut {
+    /**
+     * Receives the outputs of a job as they are finished
+     */
+    public interface OutputSink {
+        /**
+         * Called once per output, from several threads at once
+         * @param name Name of the output
+         * @param image Output image, which may also be read by other branches so must not be modified
+         * @throws IOException If the output could not be written
+         */
+        void accept(String name, BufferedImage image) throws IOException;
+    }
+
+    /**
+     * A step of the job and the image it produces
+     */
+    public static class Node {
+        private final Operations.Step step;
+        private final String name;
+        private final UnaryOperator<BufferedImage> function;
+        // Steps reading this node's image, keyed by step or by the name of a custom function
+        private final Map<Object, Node> children = new LinkedHashMap<>();
+        private final List<String> outputs = new ArrayList<>();
+
+        private Node(Operations.Step step, String name, UnaryOperator<BufferedImage> function) {
+            this.step = step;
+            this.name = name;
+            this.function = function;
+        }
+
+        /**
+         * Adds a step reading this node's image, or finds the same step if it was already added
+         * @param step Step to run
+         * @return Node of the step
+         */
+        public Node then(Operations.Step step) {
+            synchronized(children) {
+                return children.computeIfAbsent(step, key -> new Node(step, step.toString(), step::apply));
+            }
+        }
+
+        /**
+         * Adds steps one after another, sharing any that were already added
+         * @param steps Steps in order
+         * @return Node of the last step, or this node if there are none
+         */
+        public Node then(List<Operations.Step> steps) {
+            Node node = this;
+
+            for(Operations.Step step : steps) {
+                node = node.then(step);
+            }
+
+            return node;
+        }
+
+        /**
+         * Adds a function reading this node's image, for operations that are not registered in Operations such as the
+         * watermark operations
+         * @param name Name of the function, adding the same name again returns the same node
+         * @param function Function to run, which must not modify its input
+         * @return Node of the function
+         */
+        public Node then(String name, UnaryOperator<BufferedImage> function) {
+            synchronized(children) {
+                Node node = children.computeIfAbsent(name, key -> new Node(null, name, function));
+
+                if(node.function != function) {
+                    throw new IllegalArgumentException("Invalid parameter for function then: A different function is already named " + name);
+                }
+
+                return node;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    private final Node source = new Node(null, "source", UnaryOperator.identity());
+    private final Set<String> names = new LinkedHashSet<>();
+
+    /**
+     * @return Node of the decoded source image
+     */
+    public Node source() {
+        return source;
+    }
+
+    /**
+     * Marks a node as an output
+     * @param name Name of the output
+     * @param node Node whose image is the output
+     * @return This job
+     */
+    public synchronized FanOut output(String name, Node node) {
+        if(!names.add(name)) throw new IllegalArgumentException("Invalid parameter for function output: Output " + name + " already exists");
+
+        node.outputs.add(name);
+        return this;
+    }
+
+    /**
+     * Adds an output made by running steps on the source, sharing the steps it has in common with other outputs
+     * @param name Name of the output
+     * @param steps Steps in order
+     * @return This job
+     */
+    public FanOut output(String name, List<Operations.Step> steps) {
+        return output(name, source.then(steps));
+    }
+
+    /**
+     * Runs the job
+     * @param image Source image, which is not modified
+     * @return Outputs by name, in the order they were added
+     * @throws java.util.concurrent.CancellationException If the current ExecutionContext is cancelled
+     */
+    public Map<String, BufferedImage> run(BufferedImage image) {
+        Map<String, BufferedImage> outputs = new ConcurrentHashMap<>();
+
+        try {
+            run(image, outputs::put);
+        }
+        catch(IOException e) {
+            // Putting into a map does not throw
+            throw new UncheckedIOException(e);
+        }
+
+        Map<String, BufferedImage> ordered = new LinkedHashMap<>();
+        for(String name : names) ordered.put(name, outputs.get(name));
+
+        return ordered;
+    }
+
+    /**
+     * Runs the job, passing each output to a sink as soon as it is finished so it need not be kept
+     * @param image Source image, which is not modified
+     * @param sink Receives the outputs
+     * @throws IOException If the sink fails
+     * @throws java.util.concurrent.CancellationException If the current ExecutionContext is cancelled
+     */
+    public void run(BufferedImage image, OutputSink sink) throws IOException {
+        Shared input = new Shared(image, 1);
+        // Branches run inside the caller's context so cancelling it stops all of them
+        Branch root = new Branch(source, input, ExecutionContext.current(), sink);
+
+        try {
+            ForkJoinPool.commonPool().invoke(root);
+        }
+        catch(UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Decodes a source image once and runs the job on it
+     * @param in Encoded source image
+     * @param sink Receives the outputs
+     * @throws IOException If the input is not an image or the sink fails
+     */
+    public void run(InputStream in, OutputSink sink) throws IOException {
+        BufferedImage image = ImageIO.read(in);
+
+        if(image == null) throw new IOException("Invalid input for FanOut: Not a supported image");
+
+        run(image, sink);
+    }
+
+    /**
+     * An image read by several branches, dropped once the last of them has read it
+     */
+    private static class Shared {
+        private BufferedImage image;
+        private int readers;
+
+        Shared(BufferedImage image, int readers) {
+            this.image = image;
+            this.readers = readers;
+        }
+
+        synchronized BufferedImage get() {
+            return image;
+        }
+
+        synchronized void release() {
+            if(--readers == 0) image = null;
+        }
+    }
+
+    /**
+     * Computes a node and everything below it
+     */
+    private static class Branch extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Node node;
+        private final Shared input;
+        private final ExecutionContext context;
+        private final OutputSink sink;
+
+        Branch(Node node, Shared input, ExecutionContext context, OutputSink sink) {
+            this.node = node;
+            this.input = input;
+            this.context = context;
+            this.sink = sink;
+        }
+
+        @Override
+        protected void compute() {
+            // Follow the node down while nothing else reads its image, so the chain runs as one
+            List<Node> chain = new ArrayList<>();
+            Node last = node;
+            chain.add(last);
+
+            while(last.outputs.isEmpty() && last.children.size() == 1) {
+                last = last.children.values().iterator().next();
+                chain.add(last);
+            }
+
+            BufferedImage image;
+
+            try {
+                image = context.call(() -> apply(chain, input.get()));
+            }
+            finally {
+                input.release();
+            }
+
+            for(String name : last.outputs) {
+                try {
+                    sink.accept(name, image);
+                }
+                catch(IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            if(last.children.isEmpty()) return;
+
+            Shared output = new Shared(image, last.children.size());
+            // Only the branches keep the image from here, so it is dropped once they have all read it
+            image = null;
+            List<Branch> branches = new ArrayList<>();
+
+            for(Node child : last.children.values()) {
+                branches.add(new Branch(child, output, context, sink));
+            }
+
+            invokeAll(branches);
+        }
+
+        // Runs the steps of a chain, passing runs of registered steps to Operations.apply
+        private static BufferedImage apply(List<Node> chain, BufferedImage image) {
+            List<Operations.Step> steps = new ArrayList<>();
+
+            for(Node node : chain) {
+                if(node.step != null) {
+                    steps.add(node.step);
+                    continue;
+                }
+
+                image = node.function.apply(Operations.apply(image, steps));
+                steps.clear();
+            }
+
+            return Operations.apply(image, steps);
+        }
+    }
+}
@@ -0,0 +1,162 @@
+import java.io.PrintStream;
+import java.util.Random;
+
+/**
+ * Approximations of sin and cos for the warps run at ExecutionContext.Quality.DRAFT
+ *
+ * Values are interpolated linearly in a table of one turn in STEPS steps, so the error of sin and cos is at most
+ * (2 pi / STEPS)^2 / 8 plus the rounding of the floats, below MAX_ERROR for any argument a double holds to within a
+ * step, which covers every angle the warps use
+ *
+ * A warp rotating a point a distance r from the centre by an angle off by e moves the position it samples by at most
+ * r * e, so with both sin and cos off by MAX_ERROR the position is within r * MAX_ERROR * sqrt(2) of the exact one, and
+ * circleDisfigure, whose angle is itself a cosine, within r * MAX_ERROR * 3. The exact maps round their angle to float,
+ * which is off by up to r * ANGLE_ROUNDING more, and both positions are rounded to float, which adds up to 4 ulps of the
+ * largest coordinate. That rounding is all that separates the draft concaveDistort, which has no sin or cos. Measured,
+ * the draft maps stay within 0.003 pixel of the exact ones at 8192 pixels across. Positions are truncated to whole
+ * pixels, so the pixels whose exact position is closer than that to a pixel edge read the neighbouring pixel instead,
+ * never further away
+ *
+ * main() checks these bounds, see scripts/fastmath.sh
+ */
+public class FastMath {
+    /**
+     * Largest difference from Math.sin and Math.cos
+     */
+    public static final float MAX_ERROR = 4e-7f;
+
+    /**
+     * Rounding of a float angle, the warps turn by less than 16 radians
+     */
+    public static final float ANGLE_ROUNDING = Math.ulp(16f);
+
+    private static final int STEPS = 4096;
+    private static final double STEPS_PER_RADIAN = STEPS / (2 * Math.PI);
+
+    // sin of i steps for i from 0 to STEPS, the last entry saves a wrap when interpolating
+    private static final float[] SIN = new float[STEPS + 1];
+
+    static {
+        for(int i = 0; i <= STEPS; i++) {
+            SIN[i] = (float) Math.sin(i / STEPS_PER_RADIAN);
+        }
+    }
+
+    private FastMath() {}
+
+    /**
+     * @param radians Angle
+     * @return Sine of the angle, within MAX_ERROR
+     */
+    public static float sin(double radians) {
+        return lookup(radians * STEPS_PER_RADIAN, 0);
+    }
+
+    /**
+     * @param radians Angle
+     * @return Cosine of the angle, within MAX_ERROR
+     */
+    public static float cos(double radians) {
+        // A quarter turn ahead of sin
+        return lookup(radians * STEPS_PER_RADIAN, STEPS / 4);
+    }
+
+    private static float lookup(double steps, int offset) {
+        double floor = Math.floor(steps);
+        // Masking the whole number of steps wraps negative angles too
+        int i = (int) ((long) floor + offset & STEPS - 1);
+        float fraction = (float) (steps - floor);
+
+        return SIN[i] + (SIN[i + 1] - SIN[i]) * fraction;
+    }
+
+    /**
+     * Compares sin and cos with Math.sin and Math.cos, and the DRAFT maps of circleDisfigure, circleDistort and
+     * concaveDistort with their EXACT maps, and prints the largest difference of each against its bound as tab separated
+     * values
+     * Exits with 1 if any difference is over its bound
+     * @param args Unused
+     */
+    public static void main(String[] args) {
+        if(!check(System.out)) System.exit(1);
+    }
+
+    private static boolean check(PrintStream out) {
+        Random random = new Random(7);
+        boolean passed = true;
+
+        out.println("function\twidth\theight\tsamples\tmax_difference\tbound\tpassed");
+
+        double sin = 0, cos = 0;
+        int angles = 1000000;
+
+        for(int i = 0; i < angles; i++) {
+            // Wider than any angle the warps use, circleDistort turns by up to about 14 radians
+            double radians = (random.nextDouble() - .5) * 2000;
+
+            sin = Math.max(sin, Math.abs(sin(radians) - Math.sin(radians)));
+            cos = Math.max(cos, Math.abs(cos(radians) - Math.cos(radians)));
+        }
+
+        passed &= print(out, "sin", 0, 0, angles, sin, MAX_ERROR);
+        passed &= print(out, "cos", 0, 0, angles, cos, MAX_ERROR);
+
+        int[][] sizes = {{64, 48}, {500, 375}, {1920, 1080}, {8192, 6144}};
+        String[] names = {"circleDisfigure", "circleDistort", "concaveDistort"};
+        // Multiple of r * MAX_ERROR each map can be off by, see the class comment
+        double[] factors = {3, Math.sqrt(2), 0};
+
+        for(int[] size : sizes) {
+            int width = size[0], height = size[1];
+            // Every pixel of the smaller images, a random sample of the larger ones
+            int samples = Math.min(width * height, 500000);
+
+            for(int m = 0; m < names.length; m++) {
+                String name = names[m];
+                WarpMap exact = new ExecutionContext().call(() -> map(name, width, height));
+                WarpMap draft = new ExecutionContext().setQuality(ExecutionContext.Quality.DRAFT).call(() -> map(name, width, height));
+
+                float[] e = new float[2], d = new float[2];
+                double rounding = 4 * Math.ulp((float) Math.max(width, height));
+                double worst = 0, worstBound = 0, worstExcess = Double.NEGATIVE_INFINITY;
+
+                for(int i = 0; i < samples; i++) {
+                    int x = samples == width * height ? i % width : random.nextInt(width);
+                    int y = samples == width * height ? i / width : random.nextInt(height);
+
+                    exact.source(x, y, e);
+                    draft.source(x, y, d);
+
+                    double difference = Math.hypot(e[0] - d[0], e[1] - d[1]);
+                    double bound = Math.hypot(x - width / 2, y - height / 2) * (MAX_ERROR * factors[m] + ANGLE_ROUNDING) + rounding;
+
+                    if(difference > worst) worst = difference;
+                    if(difference - bound > worstExcess) {
+                        worstExcess = difference - bound;
+                        worstBound = bound;
+                    }
+                }
+
+                passed &= print(out, name, width, height, samples, worst, worstExcess > 0 ? worstBound : worst - worstExcess);
+            }
+        }
+
+        return passed;
+    }
+
+    // Prints one line of the check, with the bound of the sample closest to it, and returns whether it is within
+    private static boolean print(PrintStream out, String function, int width, int height, int samples, double difference, double bound) {
+        boolean passed = difference <= bound;
+
+        out.println(function + "\t" + width + "\t" + height + "\t" + samples + "\t" + String.format("%.3g", difference) + "\t" + String.format("%.3g", bound) + "\t" + passed);
+        return passed;
+    }
+
+    private static WarpMap map(String name, int width, int height) {
+        switch(name) {
+            case "circleDisfigure": return ImageManipulation.circleDisfigureMap(width, height);
+            case "circleDistort": return ImageManipulation.circleDistortMap(width, height);
+            default: return ImageManipulation.concaveDistortMap(width, height);
+        }
+    }
+}
@@ -1,20 +1,36 @@
 import java.awt.image.BufferedImage;
 import java.awt.*;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
 
 public class ImageManipulation {
+    // Each level divided by 255, the values alphaComposite works with
+    private static final float[] LEVELS = new float[256];
+
+    static {
+        for(int i = 0; i < 256; i++) LEVELS[i] = (float) i / 255f;
+    }
+
     /**
      * Reflects the image in the x axis
      * @param image Input image
      * @return Reflected image
      */
     public static BufferedImage reflectX(BufferedImage image) {
-        BufferedImage reflected = createBlankClone(image);
+        BufferedImage reflected = createOutput(image);
+
+        int last = image.getWidth() - 1;
 
-        for(int y = 0; y < image.getHeight(); y++) {
-            for(int x = 0, xr = image.getWidth() - 1; x < image.getWidth(); x++, xr--) {
-                reflected.setRGB(xr, y, image.getRGB(x, y));
+        ExecutionPolicy.run("reflectX", ExecutionPolicy.CostClass.POINT, reflected, (x0, y0, x1, y1) -> {
+            for(int y = y0; y < y1; y++) {
+                for(int x = x0; x < x1; x++) {
+                    reflected.setRGB(x, y, image.getRGB(last - x, y));
+                }
             }
-        }
+        });
 
         return reflected;
     }
@@ -25,13 +41,17 @@ public class ImageManipulation {
      * @return Reflected image
      */
     public static BufferedImage reflectY(BufferedImage image) {
-        BufferedImage reflected = createBlankClone(image);
+        BufferedImage reflected = createOutput(image);
 
-        for(int y = 0, yr = image.getHeight() - 1; y < image.getHeight(); y++, yr--) {
-            for(int x = 0; x < image.getWidth(); x++) {
-                reflected.setRGB(x, yr, image.getRGB(x, y));
+        int last = image.getHeight() - 1;
+
+        ExecutionPolicy.run("reflectY", ExecutionPolicy.CostClass.POINT, reflected, (x0, y0, x1, y1) -> {
+            for(int y = y0; y < y1; y++) {
+                for(int x = x0; x < x1; x++) {
+                    reflected.setRGB(x, y, image.getRGB(x, last - y));
+                }
             }
-        }
+        });
 
         return reflected;
     }
@@ -42,19 +62,20 @@ public class ImageManipulation {
      * @return Rotated image
      */
     public static BufferedImage rotateCCW(BufferedImage image) {
-        BufferedImage rotated = new BufferedImage(
-                image.getHeight(),
-                image.getWidth(),
-                BufferedImage.TYPE_INT_ARGB);
-
-        for(int y = 0; y < image.getHeight(); y++) {
-            for(int x = 0; x < image.getWidth(); x++) {
-                rotated.setRGB(y, x, image.getRGB(x, y));
+        BufferedImage rotated = createOutput(image.getHeight(), image.getWidth());
+
+        int last = image.getWidth() - 1;
+
+        // Transposes then reflects in the y axis in a single pass, (x, y) is sampled from (width - 1 - y, x)
+        ExecutionPolicy.run("rotateCCW", ExecutionPolicy.CostClass.WARP, rotated, (x0, y0, x1, y1) -> {
+            for(int y = y0; y < y1; y++) {
+                for(int x = x0; x < x1; x++) {
+                    rotated.setRGB(x, y, image.getRGB(last - y, x));
+                }
             }
-        }
+        });
 
-        // Algorithm assumes its in a cartesian coordinate system, which an image file is not (y increases down instead of up), so it needs to be reflected
-        return reflectY(rotated);
+        return rotated;
     }
 
     /**
@@ -63,21 +84,75 @@ public class ImageManipulation {
      * @return Rotated image
      */
     public static BufferedImage rotateCW(BufferedImage image) {
-        BufferedImage rotated = new BufferedImage(
-                image.getHeight(),
-                image.getWidth(),
-                BufferedImage.TYPE_INT_ARGB);
-
-        for(int y = 0, xx = image.getHeight() - 1; y < image.getHeight(); y++, xx--) {
-            for(int x = 0, yy = image.getWidth() - 1; x < image.getWidth(); x++, yy--) {
-                rotated.setRGB(xx, yy, image.getRGB(x, y));
+        BufferedImage rotated = createOutput(image.getHeight(), image.getWidth());
+
+        int last = image.getHeight() - 1;
+
+        // Transposes then reflects in the x axis in a single pass, (x, y) is sampled from (y, height - 1 - x)
+        ExecutionPolicy.run("rotateCW", ExecutionPolicy.CostClass.WARP, rotated, (x0, y0, x1, y1) -> {
+            for(int y = y0; y < y1; y++) {
+                for(int x = x0; x < x1; x++) {
+                    rotated.setRGB(x, y, image.getRGB(y, last - x));
+                }
             }
-        }
+        });
 
-        // Algorithm assumes its in a cartesian coordinate system, which an image file is not (y increases down instead of up), so it needs to be reflected
-        return reflectY(rotated);
+        return rotated;
     }
     
+    /**
+     * Reflects and rotates the image by quarter turns in one pass, optionally mapping each channel through a table in
+     * the same pass, used by PlanOptimiser in place of runs of reflections, rotations and per-channel colour operations
+     * @param image Input image
+     * @param orientation Quarter turns clockwise in the low two bits, plus 4 to reflect in the x axis before turning
+     * @param lut Table of 256 levels each for red, green then blue, or null to keep the pixels as they are
+     * @return Transformed image, opaque when a table is given
+     */
+    static BufferedImage orient(BufferedImage image, int orientation, int[] lut) {
+        int width = image.getWidth(), height = image.getHeight();
+        boolean transposed = (orientation & 1) == 1;
+        BufferedImage oriented = transposed ? createOutput(height, width) : createOutput(image);
+
+        // Output (x, y) is sampled from (ax * x + bx * y + cx, ay * x + by * y + cy)
+        int ax = 0, bx = 0, cx = 0, ay = 0, by = 0, cy = 0;
+
+        switch(orientation & 7) {
+            case 0: ax = 1; by = 1; break;
+            case 1: bx = 1; ay = -1; cy = height - 1; break;
+            case 2: ax = -1; cx = width - 1; by = -1; cy = height - 1; break;
+            case 3: bx = -1; cx = width - 1; ay = 1; break;
+            case 4: ax = -1; cx = width - 1; by = 1; break;
+            case 5: bx = -1; cx = width - 1; ay = -1; cy = height - 1; break;
+            case 6: ax = 1; by = -1; cy = height - 1; break;
+            case 7: bx = 1; ay = 1; break;
+        }
+
+        int[] pixels = Utils.readARGB(image, 0, 0, width, height, null);
+        // Source index of output (0, 0), and how far it moves for one output pixel right and one down
+        int origin = cy * width + cx, step = ay * width + ax, rowStep = by * width + bx;
+
+        ExecutionPolicy.run("orient", transposed ? ExecutionPolicy.CostClass.WARP : ExecutionPolicy.CostClass.POINT, oriented, (x0, y0, x1, y1) -> {
+            int[] row = new int[x1 - x0];
+
+            for(int y = y0; y < y1; y++) {
+                int index = origin + y * rowStep + x0 * step;
+
+                for(int i = 0; i < row.length; i++, index += step) {
+                    int argb = pixels[index];
+
+                    row[i] = lut == null ? argb : 0xFF000000
+                            | lut[argb >> 16 & 0xFF] << 16
+                            | lut[256 + (argb >> 8 & 0xFF)] << 8
+                            | lut[512 + (argb & 0xFF)];
+                }
+
+                Utils.writeARGB(oriented, x0, y, row.length, 1, row);
+            }
+        });
+
+        return oriented;
+    }
+
     /**
      * Rotates image at any angle
      * @param image Input image
@@ -109,28 +184,36 @@ public class ImageManipulation {
               tlX = (width - image.getWidth()) / 2f,
               tlY = (height - image.getHeight()) / 2f;
               
-        BufferedImage rotated = new BufferedImage(
-                (int) width,
-                (int) height,
-                BufferedImage.TYPE_INT_ARGB);
+        BufferedImage rotated = createOutput((int) width, (int) height);
 
-        // Apply translation in loop
-        for(int y = -(int) tlY; y < rotated.getHeight()  -(int) tlY; y++) {
-            for(int x =  -(int) tlX; x < rotated.getWidth()  -(int) tlX; x++) {
-                vec2 rot = vec2.rotate(centreX, centreY, x, y, angle);
+        int translateX = (int) tlX, translateY = (int) tlY;
 
-                // If rotated image out of original image bounds, do not try to assign a colour
-                if(rot.x < 0 || rot.x >= image.getWidth() || rot.y < 0 || rot.y >= image.getHeight()) continue;
+        if(rotated.getType() == BufferedImage.TYPE_INT_ARGB && Java2DOps.isPlain(rotated) && Java2DOps.use("rotateAny", image, degrees)) {
+            Java2DOps.rotate(image, rotated, angle, centreX, centreY, translateX, translateY);
+            return rotated;
+        }
 
-                Color cur = new Color(image.getRGB((int) rot.x, (int) rot.y));
+        // Apply translation in loop
+        ExecutionPolicy.run("rotateAny", ExecutionPolicy.CostClass.WARP, rotated, (x0, y0, x1, y1) -> {
+            for(int newY = y0; newY < y1; newY++) {
+                for(int newX = x0; newX < x1; newX++) {
+                    int x = newX - translateX;
+                    int y = newY - translateY;
+
+                    vec2 rot = vec2.rotate(centreX, centreY, x, y, angle);
+
+                    // If rotated image out of original image bounds, leave the pixel transparent
+                    if(rot.x < 0 || rot.x >= image.getWidth() || rot.y < 0 || rot.y >= image.getHeight()) {
+                        rotated.setRGB(newX, newY, 0);
+                        continue;
+                    }
 
-                // Undo translation when setting colour
-                int newX = x + (int) tlX;
-                int newY = y + (int) tlY;
+                    int cur = image.getRGB((int) rot.x, (int) rot.y);
 
-                rotated.setRGB(newX, newY, cur.getRGB());
+                    rotated.setRGB(newX, newY, opaque(cur));
+                }
             }
-        }
+        });
 
         return rotated;
     }
@@ -143,27 +226,28 @@ public class ImageManipulation {
      * @return Rotated image
      */
     public static BufferedImage rotateAnyNoResize(BufferedImage image, int degrees) {
-        BufferedImage rotated = createBlankClone(image);
-        
-        float angle = degrees * ((float) Math.PI / 180f);
-
-        int centreX = image.getWidth() / 2;
-        int centreY = image.getHeight() / 2;
-        
-        
-        for(int y = 0; y < image.getHeight(); y++) {
-            for(int x = 0; x < image.getWidth(); x++) {
-                vec2 rot = vec2.rotate(centreX, centreY, x, y, angle);
-
-                if(rot.x < 0 || rot.x >= image.getWidth() || rot.y < 0 || rot.y >= image.getHeight()) continue;
+        return warp("rotateAnyNoResize", image, rotateAnyNoResizeMap(image.getWidth(), image.getHeight(), degrees), createOutput(image));
+    }
 
-                Color cur = new Color(image.getRGB((int) rot.x, (int) rot.y));
+    /**
+     * Inverse map of rotateAnyNoResize
+     * Rotates about the centre by the given angle in degrees
+     * @param width Width of the image
+     * @param height Height of the image
+     * @param degrees Angle to rotate by
+     * @return Map from output pixels to source positions
+     */
+    static WarpMap rotateAnyNoResizeMap(int width, int height, int degrees) {
+        float angle = degrees * ((float) Math.PI / 180f);
 
-                rotated.setRGB(x, y, cur.getRGB());
-            }
-        }
+        int centreX = width / 2;
+        int centreY = height / 2;
 
-        return rotated;
+        return (x, y, source) -> {
+            vec2 rot = vec2.rotate(centreX, centreY, x, y, angle);
+            source[0] = rot.x;
+            source[1] = rot.y;
+        };
     }
 
     /**
@@ -172,20 +256,15 @@ public class ImageManipulation {
      * @return Greyscale image
      */
     public static BufferedImage greyScale(BufferedImage image) {
-        BufferedImage greyscale = createBlankClone(image);
+        BufferedImage greyscale = createOutput(image);
 
-        for(int y = 0; y < image.getHeight(); y++) {
-            for(int x = 0; x < image.getWidth(); x++) {
-                Color current = new Color(image.getRGB(x, y));
-
-                // Get max rgb value and set max for every rgb values
-                int colour = Math.max(current.getGreen(), current.getBlue());
-
-                colour = Math.max(current.getRed(), colour);
-
-                greyscale.setRGB(x, y, new Color(colour, colour, colour).getRGB());
+        ExecutionPolicy.run("greyScale", ExecutionPolicy.CostClass.POINT, greyscale, (x0, y0, x1, y1) -> {
+            for(int y = y0; y < y1; y++) {
+                for(int x = x0; x < x1; x++) {
+                    greyscale.setRGB(x, y, greyScalePixel(image.getRGB(x, y)));
+                }
             }
-        }
+        });
 
         return greyscale;
     }
@@ -196,18 +275,15 @@ public class ImageManipulation {
      * @return Inverted image
      */
     public static BufferedImage negative(BufferedImage image) {
-        BufferedImage inverted = createBlankClone(image);
-
-        for(int y = 0; y < image.getHeight(); y++) {
-            for(int x = 0; x < image.getWidth(); x++) {
-                Color current = new Color(image.getRGB(x, y));
-                inverted.setRGB(x, y, new Color(
-                        255 - current.getRed(),
-                        255 - current.getGreen(),
-                        255 - current.getBlue()
-                ).getRGB());
+        BufferedImage inverted = createOutput(image);
+
+        ExecutionPolicy.run("negative", ExecutionPolicy.CostClass.POINT, inverted, (x0, y0, x1, y1) -> {
+            for(int y = y0; y < y1; y++) {
+                for(int x = x0; x < x1; x++) {
+                    inverted.setRGB(x, y, negativePixel(image.getRGB(x, y)));
+                }
             }
-        }
+        });
 
         return inverted;
     }
@@ -220,42 +296,18 @@ public class ImageManipulation {
      * @return New image with colours added
      */
     public static BufferedImage rainbowWave(BufferedImage image, int intensity, float seed) {
-        BufferedImage wave = createBlankClone(image);
-
-        seed = (float) Math.cos(seed) * 20f; // Limits the magnitude of the seed to within 20 while keeping is pseudorandom because the algorithm breaks when the seed is too large
-
-        float period = 100f * ((float) Math.abs(Math.sin(seed)) + .5f);
-
-        for(int y = 0; y < image.getHeight(); y++) {
-            for(int x = 0; x < image.getWidth(); x++) {
-                Color current = new Color(image.getRGB(x, y));
-                // Use sine and cosine values on the x and y coordinates to generate an rgb value for each rgb values
-                int r = alphaComposite(
-                            alphaComposite(
-                                Math.max(0, (int) (Math.sin((float) x / period + seed) * 255f)),
-                                Math.max(0, (int) (Math.cos((float) y / period + seed * 23) * 255f)),
-                            128
-                            ),
-                        current.getRed(), intensity),
-
-                    g = alphaComposite(
-                            alphaComposite(
-                                Math.max(0, (int) (Math.cos((float) x / period + seed * 32) * 255f)),
-                                Math.max(0, (int) (Math.cos((float) y / period - Math.PI) * 255f)),
-                            128
-                            ),
-                        current.getGreen(), intensity),
-
-                    b = alphaComposite(
-                            alphaComposite(
-                            Math.max(0, (int) (Math.sin((float) x / period - Math.PI - seed * 12) * 255f)),
-                            Math.max(0, (int) (Math.sin((float) y / period + seed * 65) * 255f)),
-                            128
-                            ), current.getBlue(), intensity);
-
-                wave.setRGB(x, y, new Color(r, g, b).getRGB());
+        BufferedImage wave = createOutput(image);
+
+        float limitedSeed = rainbowWaveSeed(seed);
+        float period = rainbowWavePeriod(limitedSeed);
+
+        ExecutionPolicy.run("rainbowWave", ExecutionPolicy.CostClass.POINT, wave, (x0, y0, x1, y1) -> {
+            for(int y = y0; y < y1; y++) {
+                for(int x = x0; x < x1; x++) {
+                    wave.setRGB(x, y, rainbowWavePixel(image.getRGB(x, y), x, y, period, limitedSeed, intensity));
+                }
             }
-        }
+        });
 
         return wave;
     }
@@ -269,30 +321,19 @@ public class ImageManipulation {
     public static BufferedImage rainbowGradient(BufferedImage image, int amount, float seed) {
         BufferedImage rainbow = createBlankClone(image);
 
-        int seedx = (int) ((float) Math.cos(seed) * 20f),
-            seedy = (int) ((float) Math.sin(seed) * 20f);
+        RainbowGradient gradient = new RainbowGradient(image.getWidth(), image.getHeight(), seed);
 
-        // Set rgb x and y coordinates
-        int hw = image.getWidth() / 2,
-            hh = image.getHeight() / 2,
-            rx = hw + seedx, ry = 0 + seedy,
-            gx = 0 - seedx, gy = hh + hh / 2 + seedy,
-            bx = image.getWidth() - seedx, by = gy + seedy;
+        ExecutionPolicy.run("rainbowGradient", ExecutionPolicy.CostClass.POINT, rainbow, (x0, y0, x1, y1) -> {
+            int[] row = new int[x1 - x0];
 
-        float max = distance(hw, 0, hh, 0);
-
-        for(int y = 0; y < image.getHeight(); y++) {
-            for(int x = 0; x < image.getWidth(); x++) {
+            for(int y = y0; y < y1; y++) {
+                for(int x = x0; x < x1; x++) {
+                    row[x - x0] = gradient.pixel(x, y);
+                }
 
-                // Get the distance from x and y coordinate to the corresponding rgb value
-                // coordinates, then somewhat normalise it
-                rainbow.setRGB(x, y, new Color(
-                   clampRGB(distance(x, rx, y, ry) / max),
-                   clampRGB(distance(x, gx, y, gy) / max),
-                   clampRGB(distance(x, bx, y, by) / max)
-                ).getRGB());
+                Utils.writeARGB(rainbow, x0, y, row.length, 1, row);
             }
-        }
+        });
 
         return mixAlpha(rainbow, image, amount);
     }
@@ -304,15 +345,17 @@ public class ImageManipulation {
      * @return Image with red added
      */
     public static BufferedImage red(BufferedImage image, int amount) {
-        BufferedImage red = createBlankClone(image);
+        if(Java2DOps.use("red", image, amount)) return Java2DOps.lookup(image, "red", amount);
 
-        for(int y = 0; y < image.getHeight(); y++) {
-            for(int x = 0; x < image.getWidth(); x++) {
-                Color current = new Color(image.getRGB(x, y));
+        BufferedImage red = createBlankClone(image);
 
-                red.setRGB(x, y, new Color(clampRGB(current.getRed() + 1), 0, 0).getRGB());
+        ExecutionPolicy.run("red", ExecutionPolicy.CostClass.POINT, red, (x0, y0, x1, y1) -> {
+            for(int y = y0; y < y1; y++) {
+                for(int x = x0; x < x1; x++) {
+                    red.setRGB(x, y, redPixel(image.getRGB(x, y)));
+                }
             }
-        }
+        });
         // Mix red image with alpha input
         return mixAlpha(red, image, amount);
     }
@@ -324,15 +367,17 @@ public class ImageManipulation {
      * @return Image with green added
      */
     public static BufferedImage green(BufferedImage image, int amount) {
-        BufferedImage green = createBlankClone(image);
+        if(Java2DOps.use("green", image, amount)) return Java2DOps.lookup(image, "green", amount);
 
-        for(int y = 0; y < image.getHeight(); y++) {
-            for(int x = 0; x < image.getWidth(); x++) {
-                Color current = new Color(image.getRGB(x, y));
+        BufferedImage green = createBlankClone(image);
 
-                green.setRGB(x, y, new Color(0, clampRGB(current.getGreen() + 1), 0).getRGB());
+        ExecutionPolicy.run("green", ExecutionPolicy.CostClass.POINT, green, (x0, y0, x1, y1) -> {
+            for(int y = y0; y < y1; y++) {
+                for(int x = x0; x < x1; x++) {
+                    green.setRGB(x, y, greenPixel(image.getRGB(x, y)));
+                }
             }
-        }
+        });
         // Mix green image with alpha input
         return mixAlpha(green, image, amount);
     }
@@ -344,15 +389,17 @@ public class ImageManipulation {
      * @return Image with blue added
      */
     public static BufferedImage blue(BufferedImage image, int amount) {
-        BufferedImage blue = createBlankClone(image);
+        if(Java2DOps.use("blue", image, amount)) return Java2DOps.lookup(image, "blue", amount);
 
-        for(int y = 0; y < image.getHeight(); y++) {
-            for(int x = 0; x < image.getWidth(); x++) {
-                Color current = new Color(image.getRGB(x, y));
+        BufferedImage blue = createBlankClone(image);
 
-                blue.setRGB(x, y, new Color(0, 0, clampRGB(current.getBlue() + 1)).getRGB());
+        ExecutionPolicy.run("blue", ExecutionPolicy.CostClass.POINT, blue, (x0, y0, x1, y1) -> {
+            for(int y = y0; y < y1; y++) {
+                for(int x = x0; x < x1; x++) {
+                    blue.setRGB(x, y, bluePixel(image.getRGB(x, y)));
+                }
             }
-        }
+        });
         // Mix blue image with alpha input
         return mixAlpha(blue, image, amount);
     }
@@ -364,15 +411,17 @@ public class ImageManipulation {
      * @return Warm image
      */
     public static BufferedImage warm(BufferedImage image, int amount) {
-        BufferedImage warm = createBlankClone(image);
+        if(Java2DOps.use("warm", image, amount)) return Java2DOps.lookup(image, "warm", amount);
 
-        for(int y = 0; y < image.getHeight(); y++) {
-            for(int x = 0; x < image.getWidth(); x++) {
-                Color current = new Color(image.getRGB(x, y));
+        BufferedImage warm = createBlankClone(image);
 
-                warm.setRGB(x, y, new Color(255, current.getGreen(), 0).getRGB());
+        ExecutionPolicy.run("warm", ExecutionPolicy.CostClass.POINT, warm, (x0, y0, x1, y1) -> {
+            for(int y = y0; y < y1; y++) {
+                for(int x = x0; x < x1; x++) {
+                    warm.setRGB(x, y, warmPixel(image.getRGB(x, y)));
+                }
             }
-        }
+        });
         // Mix warm image with alpha input
         return mixAlpha(warm, image, amount);
     }
@@ -384,15 +433,17 @@ public class ImageManipulation {
      * @return Cool image
      */
     public static BufferedImage cool(BufferedImage image, int amount) {
-        BufferedImage blue = createBlankClone(image);
+        if(Java2DOps.use("cool", image, amount)) return Java2DOps.lookup(image, "cool", amount);
 
-        for(int y = 0; y < image.getHeight(); y++) {
-            for(int x = 0; x < image.getWidth(); x++) {
-                Color current = new Color(image.getRGB(x, y));
+        BufferedImage blue = createBlankClone(image);
 
-                blue.setRGB(x, y, new Color(0, current.getGreen(), 255).getRGB());
+        ExecutionPolicy.run("cool", ExecutionPolicy.CostClass.POINT, blue, (x0, y0, x1, y1) -> {
+            for(int y = y0; y < y1; y++) {
+                for(int x = x0; x < x1; x++) {
+                    blue.setRGB(x, y, coolPixel(image.getRGB(x, y)));
+                }
             }
-        }
+        });
         // Mix cooler image with alpha input
         return mixAlpha(blue, image, amount);
     }
@@ -404,23 +455,17 @@ public class ImageManipulation {
      * @return Brightened image
      */
     public static BufferedImage brighten(BufferedImage image, int amount) {
-        BufferedImage brighten = createBlankClone(image);
-
-        for(int y = 0; y < image.getHeight(); y++) {
-            for(int x = 0; x < image.getWidth(); x++) {
-                Color current = new Color(image.getRGB(x, y));
-
-                int r = current.getRed(),
-                    g = current.getGreen(),
-                    b = current.getBlue();
-                // Increase rgb values by amount
-                brighten.setRGB(x, y, new Color(
-                        clampRGB(r + amount),
-                        clampRGB(g + amount),
-                        clampRGB(b + amount)
-                ).getRGB());
+        if(Java2DOps.use("brighten", image, amount)) return Java2DOps.rescale(image, amount);
+
+        BufferedImage brighten = createOutput(image);
+
+        ExecutionPolicy.run("brighten", ExecutionPolicy.CostClass.POINT, brighten, (x0, y0, x1, y1) -> {
+            for(int y = y0; y < y1; y++) {
+                for(int x = x0; x < x1; x++) {
+                    brighten.setRGB(x, y, brightenPixel(image.getRGB(x, y), amount));
+                }
             }
-        }
+        });
 
         return brighten;
     }
@@ -432,27 +477,95 @@ public class ImageManipulation {
      * @return Darkened image
      */
     public static BufferedImage darken(BufferedImage image, int amount) {
-        BufferedImage darken = createBlankClone(image);
-
-        for(int y = 0; y < image.getHeight(); y++) {
-            for(int x = 0; x < image.getWidth(); x++) {
-                Color current = new Color(image.getRGB(x, y));
-
-                int r = current.getRed(),
-                    g = current.getGreen(),
-                    b = current.getBlue();
-                // Decrease rgb values by amount
-                darken.setRGB(x, y, new Color(
-                    clampRGB(r - amount),
-                    clampRGB(g - amount),
-                    clampRGB(b - amount)
-                ).getRGB());
+        if(Java2DOps.use("darken", image, amount)) return Java2DOps.rescale(image, -amount);
+
+        BufferedImage darken = createOutput(image);
+
+        ExecutionPolicy.run("darken", ExecutionPolicy.CostClass.POINT, darken, (x0, y0, x1, y1) -> {
+            for(int y = y0; y < y1; y++) {
+                for(int x = x0; x < x1; x++) {
+                    darken.setRGB(x, y, brightenPixel(image.getRGB(x, y), -amount));
+                }
             }
-        }
+        });
 
         return darken;
     }
 
+    /**
+     * Brightens or darkens the image so the mean of its red, green and blue channels is as close as possible to a target
+     * @param image Input image
+     * @param target Target mean from 0 to 255
+     * @return Brightened or darkened image
+     */
+    public static BufferedImage autoBrighten(BufferedImage image, int target) {
+        ImageStatistics statistics = ImageStatistics.of(image);
+
+        // The mean only grows with the amount, clamping just slows it down, so search for the closest amount
+        int low = -255, high = 255;
+
+        while(low < high) {
+            int middle = Math.floorDiv(low + high, 2);
+
+            if(statistics.getShiftedMean(middle) < target) low = middle + 1;
+            else high = middle;
+        }
+
+        int amount = low;
+        if(amount > -255 && target - statistics.getShiftedMean(amount - 1) < statistics.getShiftedMean(amount) - target) amount--;
+
+        return amount >= 0 ? brighten(image, amount) : darken(image, -amount);
+    }
+
+    /**
+     * Stretches the levels of the image so its darkest pixels become black and its brightest white
+     * The same stretch is applied to red, green and blue so colours keep their hue
+     * @param image Input image
+     * @param clip Percentage of pixels allowed to become fully black, and the same percentage fully white, so a few
+     *             outlying pixels do not stop the stretch
+     * @return Image with contrast stretched
+     */
+    public static BufferedImage autoContrast(BufferedImage image, float clip) {
+        if(clip < 0 || clip >= 50) throw new IllegalArgumentException("Invalid parameter for function autoContrast: clip must be from 0 to less than 50");
+
+        ImageStatistics statistics = ImageStatistics.of(image);
+
+        int low = 255, high = 0;
+
+        for(ImageStatistics.Channel channel : new ImageStatistics.Channel[]{ImageStatistics.Channel.RED, ImageStatistics.Channel.GREEN, ImageStatistics.Channel.BLUE}) {
+            low = Math.min(low, statistics.getPercentile(channel, clip));
+            high = Math.max(high, statistics.getPercentile(channel, 100 - clip));
+        }
+
+        // Flat images have nothing to stretch
+        if(high <= low) return brighten(image, 0);
+
+        // Table of the new level of each old level
+        int[] levels = new int[256];
+
+        for(int i = 0; i < 256; i++) {
+            levels[i] = clampRGB(Math.round((i - low) * 255f / (high - low)));
+        }
+
+        BufferedImage contrast = createOutput(image);
+
+        ExecutionPolicy.run("autoContrast", ExecutionPolicy.CostClass.POINT, contrast, (x0, y0, x1, y1) -> {
+            for(int y = y0; y < y1; y++) {
+                for(int x = x0; x < x1; x++) {
+                    int current = image.getRGB(x, y);
+
+                    contrast.setRGB(x, y, rgb(
+                            levels[redOf(current)],
+                            levels[greenOf(current)],
+                            levels[blueOf(current)]
+                    ));
+                }
+            }
+        });
+
+        return contrast;
+    }
+
     /**
      * Saturates the image
      * @param image Input image
@@ -462,18 +575,14 @@ public class ImageManipulation {
     public static BufferedImage saturate(BufferedImage image, int amount) {
         BufferedImage saturate = createBlankClone(image);
 
-        for(int y = 0; y < image.getHeight(); y++) {
-            for(int x = 0; x < image.getWidth(); x++) {
-                Color current = new Color(image.getRGB(x, y));
-
-                // Create a fully saturated image
-                saturate.setRGB(x, y, new Color(
-                        current.getRed() < 128 ? 0 : 255,
-                        current.getGreen() < 128 ? 0 : 255,
-                        current.getBlue() < 128 ? 0 : 255
-                ).getRGB());
+        ExecutionPolicy.run("saturate", ExecutionPolicy.CostClass.POINT, saturate, (x0, y0, x1, y1) -> {
+            for(int y = y0; y < y1; y++) {
+                for(int x = x0; x < x1; x++) {
+                    // Create a fully saturated image
+                    saturate.setRGB(x, y, saturatePixel(image.getRGB(x, y)));
+                }
             }
-        }
+        });
         // Mix fully saturated with original
         return mixAlpha(saturate, image, amount);
     }
@@ -485,32 +594,41 @@ public class ImageManipulation {
      * @return Blurred image
      */
     public static BufferedImage blur(BufferedImage image, int range) {
-        BufferedImage blur = createBlankClone(image);
-
-        for(int y = 0; y < image.getHeight(); y++) {
-            for(int x = 0; x < image.getWidth(); x++) {
-                int passes = 0;
-                int r = 0, g = 0, b = 0;
-
-                // Get average colour from neighbouring pixels
-                for(int xx = Utils.clamp(x - range, 0, image.getWidth()); xx < Utils.clamp(x + range + 1, 0, image.getWidth()); xx++) {
-                    for(int yy = Utils.clamp(y - range, 0, image.getHeight()); yy < Utils.clamp(y + range + 1, 0, image.getHeight()); yy++) {
-                        passes++;
-                        Color c = new Color(image.getRGB(xx, yy));
-                        r += c.getRed();
-                        g += c.getGreen();
-                        b += c.getBlue();
+        if(range < 0) throw new IllegalArgumentException("Invalid parameter for function blur: range must not be negative");
+
+        if(Java2DOps.use("blur", image, range)) return Java2DOps.blur(image, range);
+
+        return blur(image, range, createOutput(image));
+    }
+
+    // Blur into the given image
+    private static BufferedImage blur(BufferedImage image, int range, BufferedImage blur) {
+        ExecutionPolicy.run("blur", ExecutionPolicy.CostClass.NEIGHBOURHOOD, blur, (x0, y0, x1, y1) -> {
+            for(int y = y0; y < y1; y++) {
+                for(int x = x0; x < x1; x++) {
+                    int passes = 0;
+                    int r = 0, g = 0, b = 0;
+
+                    // Get average colour from neighbouring pixels
+                    for(int xx = Utils.clamp(x - range, 0, image.getWidth()); xx < Utils.clamp(x + range + 1, 0, image.getWidth()); xx++) {
+                        for(int yy = Utils.clamp(y - range, 0, image.getHeight()); yy < Utils.clamp(y + range + 1, 0, image.getHeight()); yy++) {
+                            passes++;
+                            int c = image.getRGB(xx, yy);
+                            r += redOf(c);
+                            g += greenOf(c);
+                            b += blueOf(c);
+                        }
                     }
-                }
 
-                // Set average colour
-                blur.setRGB(x, y, new Color(
-                    r / passes,
-                    g / passes,
-                    b / passes
-                ).getRGB());
+                    // Set average colour
+                    blur.setRGB(x, y, rgb(
+                        r / passes,
+                        g / passes,
+                        b / passes
+                    ));
+                }
             }
-        }
+        });
 
         return blur;
     }
@@ -523,36 +641,167 @@ public class ImageManipulation {
      * @return Blurred image
      */
     public static BufferedImage blurPasses(BufferedImage image, int range, int passes) {
+        if(range < 0) throw new IllegalArgumentException("Invalid parameter for function blurPasses: range must not be negative");
+
+        ExecutionContext context = ExecutionContext.current();
+
         BufferedImage last;
 
-        last = blur(image, range);
+        // Only the last pass writes into the output image of the context
+        last = blur(image, range, passes > 1 ? createBlankClone(image) : createOutput(image));
 
         for(int i = 0; i < passes - 1; i++) {
-            last = blur(last, range);
+            // Each blur checks in per row, this only reports how many passes are done
+            context.checkpoint("blurPasses", i + 1, passes);
+
+            last = blur(last, range, i < passes - 2 ? createBlankClone(image) : createOutput(image));
         }
 
         return last;
     }
 
+    /**
+     * Removes noise by setting each channel of every pixel to the median of that channel in a square around it
+     * Uses the Perreault-Hebert sliding histogram, so the cost per pixel does not grow with the radius. Like blur, only
+     * pixels inside the image are sampled, and when an edge window has an even number of pixels the lower median is used
+     * In a clipped ExecutionContext only the clip rectangles are computed, from the pixels within the radius of them
+     * @param image Input image
+     * @param radius Range of pixels in a square area to sample, so the square is 2 * radius + 1 pixels wide
+     * @return Filtered image
+     */
+    public static BufferedImage median(BufferedImage image, int radius) {
+        if(radius < 0) throw new IllegalArgumentException("Invalid parameter for function median: radius must not be negative");
+
+        BufferedImage median = createOutput(image);
+
+        Rectangle bounds = new Rectangle(0, 0, image.getWidth(), image.getHeight());
+        ExecutionContext context = ExecutionContext.current();
+        List<Rectangle> clip = context.getClip();
+
+        // Only the clip rectangles are computed, each from the columns and rows within the radius of it
+        for(Rectangle r : clip == null ? Collections.singletonList(bounds) : clip) {
+            Rectangle area = r.intersection(bounds);
+            if(area.isEmpty()) continue;
+
+            // Every band builds its own column histograms, so there are only as many bands as cores
+            int bands = Math.min(area.height, Runtime.getRuntime().availableProcessors());
+
+            ExecutionPolicy.runLines("median", ExecutionPolicy.CostClass.NEIGHBOURHOOD, bands, (int) Math.min(Integer.MAX_VALUE, (long) area.width * area.height / bands), (from, to) -> {
+                for(int band = from; band < to; band++) {
+                    int y0 = area.y + (int) ((long) area.height * band / bands);
+                    int y1 = area.y + (int) ((long) area.height * (band + 1) / bands);
+
+                    new MedianFilter(image, median, radius, area.x, area.x + area.width).rows(y0, y1, context);
+                }
+            });
+        }
+
+        return median;
+    }
+
+    /**
+     * Gaussian blur using the Young-van Vliet recursive filter, which costs the same per pixel for any sigma
+     * Rows are filtered then columns, with the edge pixels repeated past the border. Compared to a sampled Gaussian
+     * convolution (kernel truncated at 4 sigma, edges repeated) every channel stays within 2 for any sigma, even on
+     * random noise. Below sigma 4 the recursive filter is less accurate so that kernel is applied directly instead,
+     * which is at most 33 samples per pixel per pass
+     * @param image Input image
+     * @param sigma Standard deviation of the Gaussian in pixels, values under 0.5 leave the image unblurred
+     * @return Blurred image
+     */
+    public static BufferedImage gaussianBlur(BufferedImage image, float sigma) {
+        if(!(sigma > 0) || Float.isInfinite(sigma)) throw new IllegalArgumentException("Invalid parameter for function gaussianBlur: sigma must be positive and finite");
+
+        int width = image.getWidth();
+        int height = image.getHeight();
+
+        int[] pixels = image.getRGB(0, 0, width, height, null, 0, width);
+        BufferedImage blur = createOutput(image);
+
+        if(sigma < .5f) {
+            for(int i = 0; i < pixels.length; i++) pixels[i] |= 0xFF000000;
+            blur.setRGB(0, 0, width, height, pixels, 0, width);
+            return blur;
+        }
+
+        GaussianFilter filter = new GaussianFilter(sigma);
+
+        // Each channel is filtered in its own float plane between the row and column passes
+        float[][] planes = new float[3][width * height];
+
+        ExecutionPolicy.runLines("gaussianBlur", ExecutionPolicy.CostClass.NEIGHBOURHOOD, height, width, (from, to) -> {
+            double[] line = new double[width], scratch = new double[width];
+
+            for(int y = from; y < to; y++) {
+                for(int c = 0; c < 3; c++) {
+                    int shift = 16 - c * 8;
+
+                    for(int x = 0; x < width; x++) {
+                        line[x] = pixels[y * width + x] >> shift & 0xFF;
+                    }
+
+                    filter.apply(line, scratch, width);
+
+                    for(int x = 0; x < width; x++) {
+                        planes[c][y * width + x] = (float) line[x];
+                    }
+                }
+            }
+        });
+
+        // Columns, split into strips of neighbouring columns so each thread stays within the same cache lines
+        int strip = 16;
+        ExecutionPolicy.runLines("gaussianBlur", ExecutionPolicy.CostClass.NEIGHBOURHOOD, (width + strip - 1) / strip, height * strip, (from, to) -> {
+            double[] line = new double[height], scratch = new double[height];
+
+            for(int x = from * strip; x < Math.min(width, to * strip); x++) {
+                for(int c = 0; c < 3; c++) {
+                    for(int y = 0; y < height; y++) {
+                        line[y] = planes[c][y * width + x];
+                    }
+
+                    filter.apply(line, scratch, height);
+
+                    for(int y = 0; y < height; y++) {
+                        planes[c][y * width + x] = (float) line[y];
+                    }
+                }
+            }
+        });
+
+        for(int i = 0; i < pixels.length; i++) {
+            pixels[i] = 0xFF000000
+                | clampRGB(Math.round(planes[0][i])) << 16
+                | clampRGB(Math.round(planes[1][i])) << 8
+                | clampRGB(Math.round(planes[2][i]));
+        }
+
+        blur.setRGB(0, 0, width, height, pixels, 0, width);
+
+        return blur;
+    }
+
     /**
      * Distorts image
      * @param image Input image
      * @return Distorted image
      */
     public static BufferedImage distortWave(BufferedImage image) {
-        BufferedImage distort = createBlankClone(image);
+        BufferedImage distort = createOutput(image);
         
-        for(int y = 0; y < image.getHeight(); y++) {
-            for(int x = 0; x < image.getWidth(); x++) {
-                // Use sine and cosine functions to change the sample coordinates
-                Color c = new Color(image.getRGB(
-                        Utils.clamp((int) (x + (Math.sin((float) x / 18f)) * 10f), 0, image.getWidth() - 1),
-                        Utils.clamp((int) (y + (Math.cos((float) y / 20f)) * 10f ), 0, image.getHeight() - 1)
-                ));
-
-                distort.setRGB(x, y, c.getRGB());
+        ExecutionPolicy.run("distortWave", ExecutionPolicy.CostClass.NEIGHBOURHOOD, distort, (x0, y0, x1, y1) -> {
+            for(int y = y0; y < y1; y++) {
+                for(int x = x0; x < x1; x++) {
+                    // Use sine and cosine functions to change the sample coordinates
+                    int c = image.getRGB(
+                            Utils.clamp((int) (x + (Math.sin((float) x / 18f)) * 10f), 0, image.getWidth() - 1),
+                            Utils.clamp((int) (y + (Math.cos((float) y / 20f)) * 10f ), 0, image.getHeight() - 1)
+                    );
+
+                    distort.setRGB(x, y, opaque(c));
+                }
             }
-        }
+        });
 
         return distort;
     }
@@ -563,19 +812,15 @@ public class ImageManipulation {
      * @return Distorted image
      */
     public static BufferedImage distortWaveX(BufferedImage image) {
-        BufferedImage distort = createBlankClone(image);
+        BufferedImage distort = createOutput(image);
 
-        for(int y = 0; y < image.getHeight(); y++) {
-            for(int x = 0; x < image.getWidth(); x++) {
-                // Use sine function to change the sample coordinates
-                Color c = new Color(image.getRGB(
-                        Utils.clamp((int) (x + (Math.sin((float) x / 18f)) * 10f), 0, image.getWidth() - 1),
-                        y
-                ));
-
-                distort.setRGB(x, y, c.getRGB());
+        ExecutionPolicy.run("distortWaveX", ExecutionPolicy.CostClass.NEIGHBOURHOOD, distort, (x0, y0, x1, y1) -> {
+            for(int y = y0; y < y1; y++) {
+                for(int x = x0; x < x1; x++) {
+                    distort.setRGB(x, y, opaque(image.getRGB(distortWaveXSource(x, image.getWidth()), y)));
+                }
             }
-        }
+        });
 
         return distort;
     }
@@ -586,20 +831,22 @@ public class ImageManipulation {
      * @return Distorted image
      */
     public static BufferedImage distortWaveY(BufferedImage image) {
-        BufferedImage distort = createBlankClone(image);
+        BufferedImage distort = createOutput(image);
 
-        for(int y = 0; y < image.getHeight(); y++) {
-            for(int x = 0; x < image.getWidth(); x++) {
-                // Use cosine function to change the sample coordinates
-                Color c = new Color(image.getRGB(
-                        x,
-                        Utils.clamp((int) (y + (Math.cos((float) y / 20f)) * 10f), 0, image.getHeight() - 1)
-                ));
+        ExecutionPolicy.run("distortWaveY", ExecutionPolicy.CostClass.NEIGHBOURHOOD, distort, (x0, y0, x1, y1) -> {
+            for(int y = y0; y < y1; y++) {
+                for(int x = x0; x < x1; x++) {
+                    // Use cosine function to change the sample coordinates
+                    int c = image.getRGB(
+                            x,
+                            Utils.clamp((int) (y + (Math.cos((float) y / 20f)) * 10f), 0, image.getHeight() - 1)
+                    );
 
 
-                distort.setRGB(x, y, c.getRGB());
+                    distort.setRGB(x, y, opaque(c));
+                }
             }
-        }
+        });
 
         return distort;
     }
@@ -613,17 +860,50 @@ public class ImageManipulation {
     public static BufferedImage shimmer(BufferedImage image, int amount) {
         BufferedImage shimmer = createBlankClone(image);
 
-        for(int y = 0; y < image.getHeight(); y++) {
-            for(int x = 0; x < image.getWidth(); x++) {
-                // Sample from a random pixel near the current pixel
-                Color c = new Color(image.getRGB(
-                     Utils.clamp((int) (x + (float) (Math.random() -.5)* 5 * 10f), 0, image.getWidth() - 1),
-                     Utils.clamp((int) (y + (float) (Math.random() -.5)* 5 * 10f), 0, image.getHeight() - 1)
-                ));
+        ExecutionPolicy.run("shimmer", ExecutionPolicy.CostClass.NEIGHBOURHOOD, shimmer, (x0, y0, x1, y1) -> {
+            // Math.random shares one generator between every thread
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+
+            for(int y = y0; y < y1; y++) {
+                for(int x = x0; x < x1; x++) {
+                    // Sample from a random pixel near the current pixel
+                    int c = image.getRGB(
+                         Utils.clamp((int) (x + (float) (random.nextDouble() -.5)* 5 * 10f), 0, image.getWidth() - 1),
+                         Utils.clamp((int) (y + (float) (random.nextDouble() -.5)* 5 * 10f), 0, image.getHeight() - 1)
+                    );
 
-                shimmer.setRGB(x, y, c.getRGB());
+                    shimmer.setRGB(x, y, opaque(c));
+                }
             }
-        }
+        });
+
+        return mixAlpha(shimmer, image, amount);
+    }
+
+    /**
+     * Adds a shimmering effect that is the same every time for the same seed, so the result can be cached
+     *
+     * @param image Input image
+     * @param amount Alpha of shimmer
+     * @param seed Seed of the random offsets
+     * @return Image with shimmer added
+     */
+    public static BufferedImage shimmer(BufferedImage image, int amount, long seed) {
+        BufferedImage shimmer = createBlankClone(image);
+
+        ExecutionPolicy.run("shimmer", ExecutionPolicy.CostClass.NEIGHBOURHOOD, shimmer, (x0, y0, x1, y1) -> {
+            for(int y = y0; y < y1; y++) {
+                for(int x = x0; x < x1; x++) {
+                    // Sample from a random pixel near the current pixel
+                    int c = image.getRGB(
+                         Utils.clamp((int) (x + (float) (random(seed, x, y, 0) -.5)* 5 * 10f), 0, image.getWidth() - 1),
+                         Utils.clamp((int) (y + (float) (random(seed, x, y, 1) -.5)* 5 * 10f), 0, image.getHeight() - 1)
+                    );
+
+                    shimmer.setRGB(x, y, opaque(c));
+                }
+            }
+        });
 
         return mixAlpha(shimmer, image, amount);
     }
@@ -637,29 +917,31 @@ public class ImageManipulation {
      */
     public static BufferedImage extractWatermarkWhiteBackground(BufferedImage image) {
         // BufferedImage object for transparent watermark on white background
-        BufferedImage watermarkOnlyImage = new BufferedImage(image.getWidth(),image.getHeight(),BufferedImage.TYPE_INT_ARGB);
-        for (int x = 0; x < image.getWidth(); x++) {
-            for (int y = 0; y < image.getHeight(); y++) {
-                int r, g, b, a, max; // red, green, blue, alpha/opacity/transparency
-                Color curColour = new Color(image.getRGB(x, y));
-
-                // Alpha value = 0 if all equals 0
-                if(Math.max(curColour.getRed(),Math.max(curColour.getBlue(),curColour.getGreen())) == 255) {
-                    a = 0; r = 0; g = 0; b = 0;
-                }
-                else {
-                    // Alpha values equals max of values after they are subtracted from 255
-                    a = Math.max(255 - curColour.getRed(),Math.max(255 - curColour.getBlue(),255 - curColour.getGreen()));
-                    // Formula is C = Cs * a + Cd ( 1 - a )
-                    // C = Final Colour | Cs = Colour with alpha added on top | Cd = Colour underneath / original colour | a = Alpha / opacity / transparency value from 0.0 to 1.0
-                    r = (int)(((255 - (255.0*(255 - curColour.getRed())) / a)));
-                    g = (int)(((255 - (255.0*(255 - curColour.getGreen())) / a)));
-                    b = (int)(((255 - (255.0*(255 - curColour.getBlue())) / a)));
+        BufferedImage watermarkOnlyImage = createOutput(image);
+        ExecutionPolicy.run("extractWatermarkWhiteBackground", ExecutionPolicy.CostClass.POINT, watermarkOnlyImage, (x0, y0, x1, y1) -> {
+            for (int y = y0; y < y1; y++) {
+                for (int x = x0; x < x1; x++) {
+                    int r, g, b, a, max; // red, green, blue, alpha/opacity/transparency
+                    int curColour = image.getRGB(x, y);
+
+                    // Alpha value = 0 if all equals 0
+                    if(Math.max(redOf(curColour),Math.max(blueOf(curColour),greenOf(curColour))) == 255) {
+                        a = 0; r = 0; g = 0; b = 0;
+                    }
+                    else {
+                        // Alpha values equals max of values after they are subtracted from 255
+                        a = Math.max(255 - redOf(curColour),Math.max(255 - blueOf(curColour),255 - greenOf(curColour)));
+                        // Formula is C = Cs * a + Cd ( 1 - a )
+                        // C = Final Colour | Cs = Colour with alpha added on top | Cd = Colour underneath / original colour | a = Alpha / opacity / transparency value from 0.0 to 1.0
+                        r = (int)(((255 - (255.0*(255 - redOf(curColour))) / a)));
+                        g = (int)(((255 - (255.0*(255 - greenOf(curColour))) / a)));
+                        b = (int)(((255 - (255.0*(255 - blueOf(curColour))) / a)));
+                    }
+                    // creates a colour object using the RGB values and adds the integer ARGB value into the BufferedImage object
+                    watermarkOnlyImage.setRGB(x,y,rgba(r,g,b,a));
                 }
-                // creates a colour object using the RGB values and adds the integer ARGB value into the BufferedImage object
-                watermarkOnlyImage.setRGB(x,y,new Color(r,g,b,a).getRGB());
             }
-        }
+        });
         return watermarkOnlyImage;
     }
 
@@ -676,42 +958,48 @@ public class ImageManipulation {
     public static BufferedImage removeWatermark(BufferedImage watermarked, BufferedImage watermark, int xCoord, int yCoord) {
         BufferedImage image = Utils.deepCopy(watermarked);
 
-        for(int x = 0, x2 = xCoord; x < watermark.getWidth() && x2 < watermarked.getWidth(); x++, x2++) {
-            for (int y = 0, y2 = yCoord; y < watermark.getHeight() && y2 < watermarked.getHeight(); y++, y2++) {
-                if(x2 < 0 || y2 < 0) continue;
-                
-                int r, g, b, or, og, ob, wr, wg, wb; // red, green, blue values for new, original and watermark
-                double a; // alpha/transparency/opacity value
-                Color curColour = new Color(image.getRGB(x2, y2));
-                Color watermarkColour = new Color(watermark.getRGB(x,y), true);
-                // original / watermarked image RGB values
-                or = curColour.getRed();
-                og = curColour.getGreen();
-                ob = curColour.getBlue();
-                // separated watermark image RGB values
-                wr = watermarkColour.getRed();
-                wg = watermarkColour.getGreen();
-                wb = watermarkColour.getBlue() ;
-                // alpha value of watermark
-                a = (watermarkColour.getAlpha()) / 255.0;
-                // final RGB values after watermark has been removed
-                // reverses the formula for alpha compositing to solve for the initial background colour instead of the final colour
-                // C = Cs * a + Cd ( 1 - a ) -> Cd = (C - Cs * a) / (1 - a)
-                r = (int) ((or - wr * a) / (1 - a));
-                g = (int) ((og - wg * a) / (1 - a));
-                b = (int) ((ob - wb * a) / (1 - a));
-                // limits RGB values to be within 0 to 255 to ensure colour is set every time because the RGB calculations above will
-                // return negative integers or integers greater than 255
-                if(r >= 255) { r = 255; }
-                if(g >= 255) { g = 255; }
-                if(b >= 255) { b = 255; }
-                if(r < 0) { r = 0; }
-                if(g < 0) { g = 0; }
-                if(b < 0) { b = 0; }
-                // set RGB colour
-                image.setRGB(x2, y2, new Color(r, g, b).getRGB());
+        // Only the part of the watermark that overlaps the image is visited
+        ExecutionPolicy.run("removeWatermark", ExecutionPolicy.CostClass.POINT,
+                Math.max(0, xCoord), Math.max(0, yCoord),
+                Math.min(watermarked.getWidth(), xCoord + watermark.getWidth()), Math.min(watermarked.getHeight(), yCoord + watermark.getHeight()),
+                (x0, y0, x1, y1) -> {
+            for(int y2 = y0; y2 < y1; y2++) {
+                for(int x2 = x0; x2 < x1; x2++) {
+                    int x = x2 - xCoord, y = y2 - yCoord;
+
+                    int r, g, b, or, og, ob, wr, wg, wb; // red, green, blue values for new, original and watermark
+                    double a; // alpha/transparency/opacity value
+                    int curColour = image.getRGB(x2, y2);
+                    int watermarkColour = watermark.getRGB(x,y);
+                    // original / watermarked image RGB values
+                    or = redOf(curColour);
+                    og = greenOf(curColour);
+                    ob = blueOf(curColour);
+                    // separated watermark image RGB values
+                    wr = redOf(watermarkColour);
+                    wg = greenOf(watermarkColour);
+                    wb = blueOf(watermarkColour) ;
+                    // alpha value of watermark
+                    a = (alphaOf(watermarkColour)) / 255.0;
+                    // final RGB values after watermark has been removed
+                    // reverses the formula for alpha compositing to solve for the initial background colour instead of the final colour
+                    // C = Cs * a + Cd ( 1 - a ) -> Cd = (C - Cs * a) / (1 - a)
+                    r = (int) ((or - wr * a) / (1 - a));
+                    g = (int) ((og - wg * a) / (1 - a));
+                    b = (int) ((ob - wb * a) / (1 - a));
+                    // limits RGB values to be within 0 to 255 to ensure colour is set every time because the RGB calculations above will
+                    // return negative integers or integers greater than 255
+                    if(r >= 255) { r = 255; }
+                    if(g >= 255) { g = 255; }
+                    if(b >= 255) { b = 255; }
+                    if(r < 0) { r = 0; }
+                    if(g < 0) { g = 0; }
+                    if(b < 0) { b = 0; }
+                    // set RGB colour
+                    image.setRGB(x2, y2, rgb(r, g, b));
+                }
             }
-        }
+        });
         return image;
     }
 
@@ -728,40 +1016,46 @@ public class ImageManipulation {
     public static BufferedImage addWatermark(BufferedImage unwatermarked, BufferedImage watermark, int xCoord, int yCoord) {
         BufferedImage image = Utils.deepCopy(unwatermarked);
 
-        for(int x = 0, x2 = xCoord; x <  watermark.getWidth() && x2 < unwatermarked.getWidth(); x++, x2++) {
-            for (int y = 0, y2 = yCoord; y < watermark.getHeight() && y2 < unwatermarked.getHeight(); y++, y2++) {
-                if(x2 < 0 || y2 < 0) continue;
-            
-                int r, g, b, or, og, ob, wr, wg, wb; // red, green, blue values for new, original and watermark
-                double a; // alpha/transparency/opacity value
-                Color curColour = new Color(image.getRGB(x2, y2));
-                Color watermarkColour = new Color(watermark.getRGB(x,y), true);
-                // original / watermarked image RGB values
-                or = curColour.getRed();
-                og = curColour.getGreen();
-                ob = curColour.getBlue();
-                // separated watermark image RGB values
-                wr = watermarkColour.getRed();
-                wg = watermarkColour.getGreen();
-                wb = watermarkColour.getBlue() ;
-                // alpha value of watermark
-                a = (watermarkColour.getAlpha()) / 255.0;
-                // Adds watermark onto image using the alpha compositing formula
-                r = (int) ((wr * a) + or * (1 - a));
-                g = (int) ((wg * a) + og * (1 - a));
-                b = (int) ((wb * a) + ob * (1 - a));
-                // limits RGB values to be within 0 to 255 to ensure colour is set every time because the RGB calculations above will
-                // return negative integers or integers greater than 255
-                if(r >= 255) { r = 255; }
-                if(g >= 255) { g = 255; }
-                if(b >= 255) { b = 255; }
-                if(r < 0) { r = 0; }
-                if(g < 0) { g = 0; }
-                if(b < 0) { b = 0; }
-                // set RGB colour
-                image.setRGB(x2, y2, new Color(r, g, b).getRGB());
+        // Only the part of the watermark that overlaps the image is visited
+        ExecutionPolicy.run("addWatermark", ExecutionPolicy.CostClass.POINT,
+                Math.max(0, xCoord), Math.max(0, yCoord),
+                Math.min(unwatermarked.getWidth(), xCoord + watermark.getWidth()), Math.min(unwatermarked.getHeight(), yCoord + watermark.getHeight()),
+                (x0, y0, x1, y1) -> {
+            for(int y2 = y0; y2 < y1; y2++) {
+                for(int x2 = x0; x2 < x1; x2++) {
+                    int x = x2 - xCoord, y = y2 - yCoord;
+
+                    int r, g, b, or, og, ob, wr, wg, wb; // red, green, blue values for new, original and watermark
+                    double a; // alpha/transparency/opacity value
+                    int curColour = image.getRGB(x2, y2);
+                    int watermarkColour = watermark.getRGB(x,y);
+                    // original / watermarked image RGB values
+                    or = redOf(curColour);
+                    og = greenOf(curColour);
+                    ob = blueOf(curColour);
+                    // separated watermark image RGB values
+                    wr = redOf(watermarkColour);
+                    wg = greenOf(watermarkColour);
+                    wb = blueOf(watermarkColour) ;
+                    // alpha value of watermark
+                    a = (alphaOf(watermarkColour)) / 255.0;
+                    // Adds watermark onto image using the alpha compositing formula
+                    r = (int) ((wr * a) + or * (1 - a));
+                    g = (int) ((wg * a) + og * (1 - a));
+                    b = (int) ((wb * a) + ob * (1 - a));
+                    // limits RGB values to be within 0 to 255 to ensure colour is set every time because the RGB calculations above will
+                    // return negative integers or integers greater than 255
+                    if(r >= 255) { r = 255; }
+                    if(g >= 255) { g = 255; }
+                    if(b >= 255) { b = 255; }
+                    if(r < 0) { r = 0; }
+                    if(g < 0) { g = 0; }
+                    if(b < 0) { b = 0; }
+                    // set RGB colour
+                    image.setRGB(x2, y2, rgb(r, g, b));
+                }
             }
-        }
+        });
         return image;
     }
 
@@ -774,16 +1068,37 @@ public class ImageManipulation {
     public static BufferedImage noise(BufferedImage image, int amount) {
         BufferedImage noise = createBlankClone(image);
 
-        for(int y = 0; y < image.getHeight(); y++) {
-            for(int x = 0; x < image.getWidth(); x++) {
-                noise.setRGB(x, y,
-                new Color(
-                    (float) Math.random(),
-                    (float) Math.random(),
-                    (float) Math.random()
-                ).getRGB());
+        ExecutionPolicy.run("noise", ExecutionPolicy.CostClass.POINT, noise, (x0, y0, x1, y1) -> {
+            // Math.random shares one generator between every thread
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+
+            for(int y = y0; y < y1; y++) {
+                for(int x = x0; x < x1; x++) {
+                    noise.setRGB(x, y, noisePixel(random));
+                }
+            }
+        });
+        // Mix noise with original
+        return mixAlpha(noise, image, amount);
+    }
+
+    /**
+     * Adds noise that is the same every time for the same seed, so the result can be cached
+     * @param image Input image
+     * @param amount Alpha of noise
+     * @param seed Seed of the noise
+     * @return Image with noise added
+     */
+    public static BufferedImage noise(BufferedImage image, int amount, long seed) {
+        BufferedImage noise = createBlankClone(image);
+
+        ExecutionPolicy.run("noise", ExecutionPolicy.CostClass.POINT, noise, (x0, y0, x1, y1) -> {
+            for(int y = y0; y < y1; y++) {
+                for(int x = x0; x < x1; x++) {
+                    noise.setRGB(x, y, noisePixel(seed, x, y));
+                }
             }
-        }
+        });
         // Mix noise with original
         return mixAlpha(noise, image, amount);
     }
@@ -797,14 +1112,37 @@ public class ImageManipulation {
     public static BufferedImage noiseGreyscale(BufferedImage image, int amount) {
         BufferedImage noise = createBlankClone(image);
 
-        for(int y = 0; y < image.getHeight(); y++) {
-            for(int x = 0; x < image.getWidth(); x++) {
+        ExecutionPolicy.run("noiseGreyscale", ExecutionPolicy.CostClass.POINT, noise, (x0, y0, x1, y1) -> {
+            // Math.random shares one generator between every thread
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+
+            for(int y = y0; y < y1; y++) {
+                for(int x = x0; x < x1; x++) {
+                    noise.setRGB(x, y, noiseGreyscalePixel(random));
+                }
+            }
+        });
+        // Mix noise with original
+        return mixAlpha(noise, image, amount);
+    }
 
-                float rand = (float) Math.random();
+    /**
+     * Adds greyscaled noise that is the same every time for the same seed, so the result can be cached
+     * @param image Input image
+     * @param amount Alpha of noise
+     * @param seed Seed of the noise
+     * @return Image with noise added
+     */
+    public static BufferedImage noiseGreyscale(BufferedImage image, int amount, long seed) {
+        BufferedImage noise = createBlankClone(image);
 
-                noise.setRGB(x, y, new Color(rand, rand, rand).getRGB());
+        ExecutionPolicy.run("noiseGreyscale", ExecutionPolicy.CostClass.POINT, noise, (x0, y0, x1, y1) -> {
+            for(int y = y0; y < y1; y++) {
+                for(int x = x0; x < x1; x++) {
+                    noise.setRGB(x, y, noiseGreyscalePixel(seed, x, y));
+                }
             }
-        }
+        });
         // Mix noise with original
         return mixAlpha(noise, image, amount);
     }
@@ -816,20 +1154,20 @@ public class ImageManipulation {
      * @return Pixelated image
      */
     public static BufferedImage pixel(BufferedImage image, int pixelSize) {
-        BufferedImage pixel = Utils.deepCopy(image);
-
-        for(int y = 0; y < image.getHeight(); y += pixelSize) {
-            for(int x = 0; x < image.getWidth(); x += pixelSize) {
-                // Set neightbouring pixels to same colour as current, then jump pixelSize steps to
-                // the next set of pixels
-                for(int xx = x; xx < x + pixelSize && xx < image.getWidth(); xx++) {
-                    for (int yy = y; yy < y + pixelSize && yy < image.getHeight(); yy++) {
-                        pixel.setRGB(xx, yy, new Color(image.getRGB(x, y)).getRGB());
-                    }
+        if(pixelSize < 1) throw new IllegalArgumentException("Invalid parameter for function pixel: pixelSize must be at least 1");
+
+        // Start from a copy so the type of the image is kept, unless the context has an output image to write into
+        BufferedImage output = ExecutionContext.current().takeOutput(image.getWidth(), image.getHeight());
+        BufferedImage pixel = output != null ? output : Utils.deepCopy(image);
+
+        ExecutionPolicy.run("pixel", ExecutionPolicy.CostClass.POINT, pixel, (x0, y0, x1, y1) -> {
+            for(int y = y0; y < y1; y++) {
+                for(int x = x0; x < x1; x++) {
+                    // Set every pixel to the colour of the top left pixel of its pixelSize by pixelSize block
+                    pixel.setRGB(x, y, opaque(image.getRGB(x - x % pixelSize, y - y % pixelSize)));
                 }
-                
             }
-        }
+        });
 
         return pixel;
     }
@@ -843,27 +1181,27 @@ public class ImageManipulation {
      * @return Faded image
      */
     public static BufferedImage circleFade(BufferedImage image, Color colour, int radius, int fadeLength) {
-        BufferedImage fade = createBlankClone(image);
+        BufferedImage fade = createOutput(image);
 
         int centreX = image.getWidth() / 2;
         int centreY = image.getHeight() / 2;
 
-        for(int y = 0; y < image.getHeight(); y++) {
-            for(int x = 0; x < image.getWidth(); x++) {
-                // Set colour relative to coordinate distance from centre of image
-                float dist = distance(x, centreX, y, centreY);
+        RadialTable distances = RadialTable.of(image.getWidth(), image.getHeight());
+
+        ExecutionPolicy.run("circleFade", ExecutionPolicy.CostClass.POINT, fade, (x0, y0, x1, y1) -> {
+            int[] row = new int[x1 - x0];
 
-                float alpha = (dist / (radius + fadeLength)) * 255f;
+            for(int y = y0; y < y1; y++) {
+                Utils.readARGB(image, x0, y, row.length, 1, row);
 
-                Color current = new Color(image.getRGB(x, y));
+                for(int x = x0; x < x1; x++) {
+                    // Set colour relative to coordinate distance from centre of image
+                    row[x - x0] = blend(colour, row[x - x0], circleFadeAlpha(distances.distance(x, y), radius, fadeLength));
+                }
 
-                fade.setRGB(x, y, new Color(
-                        alphaComposite(colour.getRed(), current.getRed(), (int) alpha),
-                        alphaComposite(colour.getGreen(), current.getGreen(), (int) alpha),
-                        alphaComposite(colour.getBlue(), current.getBlue(), (int) alpha)
-                ).getRGB());
+                Utils.writeARGB(fade, x0, y, row.length, 1, row);
             }
-        }
+        });
 
         return fade;
     }
@@ -877,29 +1215,34 @@ public class ImageManipulation {
      * @return Faded image
      */
     public static BufferedImage squareFade(BufferedImage image, Color colour, int width, int fadeLength) {
-        BufferedImage fade = createBlankClone(image);
+        BufferedImage fade = createOutput(image);
 
         int centreX = image.getWidth() / 2;
         int centreY = image.getHeight() / 2;
 
-        for(int y = 0; y < image.getHeight(); y++) {
-            for(int x = 0; x < image.getWidth(); x++) {
-                // Set colour relative to the maximum distance from a line down the vertical and a line down the horizontal
-                float distX = distance1d(x, centreX),
-                      distY = distance1d(y, centreY),
-                      dist = Math.max(distX, distY);
+        // Alpha only depends on the larger of the two distances, which are whole numbers
+        int[] alphas = new int[Math.max(centreX, centreY) + 1];
+
+        for(int dist = 0; dist < alphas.length; dist++) {
+            alphas[dist] = squareFadeAlpha(dist, width, fadeLength);
+        }
+
+        ExecutionPolicy.run("squareFade", ExecutionPolicy.CostClass.POINT, fade, (x0, y0, x1, y1) -> {
+            int[] row = new int[x1 - x0];
+
+            for(int y = y0; y < y1; y++) {
+                Utils.readARGB(image, x0, y, row.length, 1, row);
 
-                float alpha = (dist / (width + fadeLength)) * 255f;
+                int distY = distance1d(y, centreY);
 
-                Color current = new Color(image.getRGB(x, y));
+                for(int x = x0; x < x1; x++) {
+                    // Set colour relative to the maximum distance from a line down the vertical and a line down the horizontal
+                    row[x - x0] = blend(colour, row[x - x0], alphas[Math.max(distance1d(x, centreX), distY)]);
+                }
 
-                fade.setRGB(x, y, new Color(
-                        alphaComposite(colour.getRed(), current.getRed(), (int) alpha),
-                        alphaComposite(colour.getGreen(), current.getGreen(), (int) alpha),
-                        alphaComposite(colour.getBlue(), current.getBlue(), (int) alpha)
-                ).getRGB());
+                Utils.writeARGB(fade, x0, y, row.length, 1, row);
             }
-        }
+        });
 
         return fade;
     }
@@ -911,25 +1254,34 @@ public class ImageManipulation {
      * @return Disfigured image
      */
     public static BufferedImage circleDisfigure(BufferedImage image, int amount) {
-        BufferedImage disfigured = createBlankClone(image);
-
-        int centreX = image.getWidth() / 2;
-        int centreY = image.getHeight() / 2;
-
-        for(int y = 0; y < image.getHeight(); y++) {
-            for(int x = 0; x < image.getWidth(); x++) {
-                // Apply a random rotation to the point being sampled
-                vec2 rot = vec2.rotate(centreX, centreY, x, y, (float) Math.cos(x * y));
-
-                if(rot.x < 0 || rot.x >= image.getWidth() || rot.y < 0 || rot.y >= image.getHeight()) continue;
-                
-                Color cur = new Color(image.getRGB((int) rot.x, (int) rot.y));
+        return mixAlpha(warp("circleDisfigure", image, circleDisfigureMap(image.getWidth(), image.getHeight()), createBlankClone(image)), image, amount);
+    }
 
-                disfigured.setRGB(x, y, cur.getRGB());
-            }
+    /**
+     * Inverse map of circleDisfigure
+     * Rotates each point about the centre by a pseudo-random angle
+     * At draft quality the sines and cosines come from FastMath
+     * @param width Width of the image
+     * @param height Height of the image
+     * @return Map from output pixels to source positions
+     */
+    static WarpMap circleDisfigureMap(int width, int height) {
+        int centreX = width / 2;
+        int centreY = height / 2;
+
+        if(isDraft()) {
+            return (x, y, source) -> {
+                float angle = FastMath.cos(x * y);
+                vec2.rotate(centreX, centreY, x, y, FastMath.sin(angle), FastMath.cos(angle), source);
+            };
         }
 
-        return mixAlpha(disfigured, image, amount);
+        return (x, y, source) -> {
+            // Apply a random rotation to the point being sampled
+            vec2 rot = vec2.rotate(centreX, centreY, x, y, (float) Math.cos(x * y));
+            source[0] = rot.x;
+            source[1] = rot.y;
+        };
     }
 
     /**
@@ -938,27 +1290,40 @@ public class ImageManipulation {
      * @return Distorted image
      */
     public static BufferedImage circleDistort(BufferedImage image, int amount) {
-        BufferedImage distort = createBlankClone(image);
-
-        int centreX = image.getWidth() / 2;
-        int centreY = image.getHeight() / 2;
-
-        for(int y = 0; y < image.getHeight(); y++) {
-            for(int x = 0; x < image.getWidth(); x++) {
-                // Rotate the point being sampled relative to the distance from the centre
-                float dist = distance(centreX, x, centreY, y);
+        return mixAlpha(warp("circleDistort", image, circleDistortMap(image.getWidth(), image.getHeight()), createBlankClone(image)), image, amount);
+    }
 
-                vec2 rot = vec2.rotate(centreX, centreY, x, y, dist / (Math.min(image.getWidth(), image.getHeight() )/ 10f));
+    /**
+     * Inverse map of circleDistort
+     * Rotates each point about the centre by an angle growing with its distance from the centre
+     * At draft quality the sine and cosine come from FastMath
+     * @param width Width of the image
+     * @param height Height of the image
+     * @return Map from output pixels to source positions
+     */
+    static WarpMap circleDistortMap(int width, int height) {
+        int centreX = width / 2;
+        int centreY = height / 2;
 
-                if(rot.x < 0 || rot.x >= image.getWidth() || rot.y < 0 || rot.y >= image.getHeight()) continue;
+        RadialTable distances = RadialTable.of(width, height);
 
-                Color cur = new Color(image.getRGB((int) rot.x, (int) rot.y));
+        if(isDraft()) {
+            float turn = Math.min(width, height) / 10f;
 
-                distort.setRGB(x, y, cur.getRGB());
-            }
+            return (x, y, source) -> {
+                float angle = distances.distance(x, y) / turn;
+                vec2.rotate(centreX, centreY, x, y, FastMath.sin(angle), FastMath.cos(angle), source);
+            };
         }
 
-        return mixAlpha(distort, image, amount);
+        return (x, y, source) -> {
+            // Rotate the point being sampled relative to the distance from the centre
+            float dist = distances.distance(x, y);
+
+            vec2 rot = vec2.rotate(centreX, centreY, x, y, dist / (Math.min(width, height )/ 10f));
+            source[0] = rot.x;
+            source[1] = rot.y;
+        };
     }
 
     /**
@@ -968,28 +1333,38 @@ public class ImageManipulation {
      * @return Distorted image
      */
     public static BufferedImage concaveDistort(BufferedImage image, int alpha) {
-        BufferedImage distort = createBlankClone(image);
-
-        int centreX = image.getWidth() / 2;
-        int centreY = image.getHeight() / 2;
-
-        float div = Math.max(image.getWidth(), image.getHeight());
-
-        for(int y = 0; y < image.getHeight(); y++) {
-            for(int x = 0; x < image.getWidth(); x++) {
-                // Scale the image from the centre relative to the angle to the centre
-                float dist = (float) Math.cos(angleTo(centreX, x, centreY, y) * 4f);
-                vec2 scale = vec2.scale(centreX, centreY, x, y, dist);
-
-                if(scale.x < 0 || scale.x >= image.getWidth() || scale.y < 0 || scale.y >= image.getHeight()) continue;
-
-                Color cur = new Color(image.getRGB((int) scale.x, (int) scale.y));
+        return mixAlpha(warp("concaveDistort", image, concaveDistortMap(image.getWidth(), image.getHeight()), createBlankClone(image)), image, alpha);
+    }
 
-                distort.setRGB(x, y, cur.getRGB());
-            }
+    /**
+     * Inverse map of concaveDistort
+     * Scales each point from the centre by the cosine of four times its angle to the centre
+     * At draft quality the cosine is found from the offset to the centre, without atan2 or cos
+     * @param width Width of the image
+     * @param height Height of the image
+     * @return Map from output pixels to source positions
+     */
+    static WarpMap concaveDistortMap(int width, int height) {
+        int centreX = width / 2;
+        int centreY = height / 2;
+
+        if(isDraft()) {
+            return (x, y, source) -> {
+                // cos(4a) = 1 - 8 sin(a)^2 cos(a)^2, with sin and cos of the angle to the centre being dy / r and dx / r
+                double dx = x - centreX, dy = y - centreY, squared = dx * dx + dy * dy;
+                float scale = squared == 0 ? 1 : (float) (1 - 8 * dx * dx * dy * dy / (squared * squared));
+
+                vec2.scale(centreX, centreY, x, y, scale, source);
+            };
         }
 
-        return mixAlpha(distort, image, alpha);
+        return (x, y, source) -> {
+            // Scale the image from the centre relative to the angle to the centre
+            float dist = (float) Math.cos(angleTo(centreX, x, centreY, y) * 4f);
+            vec2 scale = vec2.scale(centreX, centreY, x, y, dist);
+            source[0] = scale.x;
+            source[1] = scale.y;
+        };
     }
 
     /**
@@ -999,29 +1374,26 @@ public class ImageManipulation {
      * @return Distorted image
      */
     public static BufferedImage sphereDistort(BufferedImage image, int alpha) {
-        BufferedImage distort = createBlankClone(image);
-
-        int centreX = image.getWidth() / 2;
-        int centreY = image.getHeight() / 2;
-
-        float div = Math.max(image.getWidth(), image.getHeight());
-
-        for(int y = 0; y < image.getHeight(); y++) {
-            for(int x = 0; x < image.getWidth(); x++) {
-                // Scale the image relative to the distance from the centre, with the distance being put through a
-                // sine function and thus limiting the scale from -1 to 1
-                int dist = (int) distance(centreX, x, centreY, y);
-                vec2 scale = vec2.scale(centreX, centreY, x, y, (float) Math.sin(dist / 50f));
-
-                if(scale.x < 0 || scale.x >= image.getWidth() || scale.y < 0 || scale.y >= image.getHeight()) continue;
+        return mixAlpha(warp("sphereDistort", image, sphereDistortMap(image.getWidth(), image.getHeight()), createBlankClone(image)), image, alpha);
+    }
 
-                Color cur = new Color(image.getRGB((int) scale.x, (int) scale.y));
+    /**
+     * Inverse map of sphereDistort
+     * Scales each point from the centre by the sine of its distance from the centre
+     * @param width Width of the image
+     * @param height Height of the image
+     * @return Map from output pixels to source positions
+     */
+    static WarpMap sphereDistortMap(int width, int height) {
+        int centreX = width / 2;
+        int centreY = height / 2;
 
-                distort.setRGB(x, y, cur.getRGB());
-            }
-        }
+        RadialTable distances = RadialTable.of(width, height);
+        // Scale the image relative to the distance from the centre, with the distance being put through a
+        // sine function and thus limiting the scale from -1 to 1
+        float[] scales = distances.byDistance(dist -> (float) Math.sin(dist / 50f));
 
-        return mixAlpha(distort, image, alpha);
+        return (x, y, source) -> vec2.scale(centreX, centreY, x, y, scales[(int) distances.distance(x, y)], source);
     }
 
     /**
@@ -1031,28 +1403,27 @@ public class ImageManipulation {
      * @return Rippled image
      */
     public static BufferedImage ripple(BufferedImage image, int alpha) {
-        BufferedImage ripple = createBlankClone(image);
-
-        int centreX = image.getWidth() / 2;
-        int centreY = image.getHeight() / 2;
-
-        for(int y = 0; y < image.getHeight(); y++) {
-            for(int x = 0; x < image.getWidth(); x++) {
-                // Scale the image relative to the distance from the centre, with the distance being put through a
-                // sine function and thus limiting the scale from -1 to 1
-                // (sphereDistort but sine wave has a shorter period)
-                int dist = (int) distance(centreX, x, centreY, y);
-                vec2 scale = vec2.scale(centreX, centreY, x, y, (float) Math.sin(dist / 6f));
-
-                if(scale.x < 0 || scale.x >= image.getWidth() || scale.y < 0 || scale.y >= image.getHeight()) continue;
+        return mixAlpha(warp("ripple", image, rippleMap(image.getWidth(), image.getHeight()), createBlankClone(image)), image, alpha);
+    }
 
-                Color cur = new Color(image.getRGB((int) scale.x, (int) scale.y));
+    /**
+     * Inverse map of ripple
+     * Scales each point from the centre by a short period sine of its distance from the centre
+     * @param width Width of the image
+     * @param height Height of the image
+     * @return Map from output pixels to source positions
+     */
+    static WarpMap rippleMap(int width, int height) {
+        int centreX = width / 2;
+        int centreY = height / 2;
 
-                ripple.setRGB(x, y, cur.getRGB());
-            }
-        }
+        RadialTable distances = RadialTable.of(width, height);
+        // Scale the image relative to the distance from the centre, with the distance being put through a
+        // sine function and thus limiting the scale from -1 to 1
+        // (sphereDistort but sine wave has a shorter period)
+        float[] scales = distances.byDistance(dist -> (float) Math.sin(dist / 6f));
 
-        return mixAlpha(ripple, image, alpha);
+        return (x, y, source) -> vec2.scale(centreX, centreY, x, y, scales[(int) distances.distance(x, y)], source);
     }
 
     /**
@@ -1061,30 +1432,27 @@ public class ImageManipulation {
      * @return Distorted image
      */
     public static BufferedImage scaleOut(BufferedImage image) {
-        BufferedImage zoom = createBlankClone(image);
-
-        int centreX = image.getWidth() / 2;
-        int centreY = image.getHeight() / 2;
-
-        float div = Math.max(image.getWidth(), image.getHeight());
-
-        for(int y = 0; y < image.getHeight(); y++) {
-            for(int x = 0; x < image.getWidth(); x++) {
-                // Scale relative to distance from centre
-
-                int dist = (int) distance(centreX, x, centreY, y);
-
-                vec2 rot = vec2.scale(centreX, centreY, x, y, (div - (float) dist) / div);
+        return warp("scaleOut", image, scaleOutMap(image.getWidth(), image.getHeight()), createOutput(image));
+    }
 
-                if(rot.x < 0 || rot.x >= image.getWidth() || rot.y < 0 || rot.y >= image.getHeight()) continue;
+    /**
+     * Inverse map of scaleOut
+     * Scales each point towards the centre, less the further it is from the centre
+     * @param width Width of the image
+     * @param height Height of the image
+     * @return Map from output pixels to source positions
+     */
+    static WarpMap scaleOutMap(int width, int height) {
+        int centreX = width / 2;
+        int centreY = height / 2;
 
-                Color cur = new Color(image.getRGB((int) rot.x, (int) rot.y));
+        float div = Math.max(width, height);
 
-                zoom.setRGB(x, y, cur.getRGB());
-            }
-        }
+        RadialTable distances = RadialTable.of(width, height);
+        // Scale relative to distance from centre
+        float[] scales = distances.byDistance(dist -> (div - (float) dist) / div);
 
-        return zoom;
+        return (x, y, source) -> vec2.scale(centreX, centreY, x, y, scales[(int) distances.distance(x, y)], source);
     }
 
     /**
@@ -1094,29 +1462,27 @@ public class ImageManipulation {
      * @return Distorted image
      */
     public static BufferedImage bulge(BufferedImage image, int alpha) {
-        BufferedImage bulge = createBlankClone(image);
-
-        int centreX = image.getWidth() / 2;
-        int centreY = image.getHeight() / 2;
-
-        float div = Math.min(image.getWidth(), image.getHeight());
-
-        for(int y = 0; y < image.getHeight(); y++) {
-            for(int x = 0; x < image.getWidth(); x++) {
-                // Scale relative to distance from centre
-                int dist = (int) distance(centreX, x, centreY, y);
-
-                vec2 rot = vec2.scale(centreX, centreY, x, y, (float) dist / div);
+        return mixAlpha(warp("bulge", image, bulgeMap(image.getWidth(), image.getHeight()), createBlankClone(image)), image, alpha);
+    }
 
-                if(rot.x < 0 || rot.x >= image.getWidth() || rot.y < 0 || rot.y >= image.getHeight()) continue;
+    /**
+     * Inverse map of bulge
+     * Scales each point towards the centre, more the closer it is to the centre
+     * @param width Width of the image
+     * @param height Height of the image
+     * @return Map from output pixels to source positions
+     */
+    static WarpMap bulgeMap(int width, int height) {
+        int centreX = width / 2;
+        int centreY = height / 2;
 
-                Color cur = new Color(image.getRGB((int) rot.x, (int) rot.y));
+        float div = Math.min(width, height);
 
-                bulge.setRGB(x, y, cur.getRGB());
-            }
-        }
+        RadialTable distances = RadialTable.of(width, height);
+        // Scale relative to distance from centre
+        float[] scales = distances.byDistance(dist -> (float) dist / div);
 
-        return mixAlpha(bulge, image, alpha);
+        return (x, y, source) -> vec2.scale(centreX, centreY, x, y, scales[(int) distances.distance(x, y)], source);
     }
 
     /**
@@ -1125,22 +1491,23 @@ public class ImageManipulation {
      * @return Curved image
      */
     public static BufferedImage curveUp(BufferedImage image) {
-        BufferedImage curve = createBlankClone(image);
-
-        for(int y = 0; y < image.getHeight(); y++) {
-            for(int x = 0; x < image.getWidth(); x++) {
-                // Scale relative to the y axis
-                vec2 rot = vec2.scale(0, 0, x, y, (float) y / ((float) image.getHeight()));
-
-                if(rot.x < 0 || rot.x >= image.getWidth() || rot.y < 0 || rot.y >= image.getHeight()) continue;
-
-                Color cur = new Color(image.getRGB((int) rot.x, (int) rot.y));
-
-                curve.setRGB(x, y, cur.getRGB());
-            }
-        }
+        return warp("curveUp", image, curveUpMap(image.getWidth(), image.getHeight()), createOutput(image));
+    }
 
-        return curve;
+    /**
+     * Inverse map of curveUp
+     * Scales each point towards the top left corner, more the closer it is to the top
+     * @param width Width of the image
+     * @param height Height of the image
+     * @return Map from output pixels to source positions
+     */
+    static WarpMap curveUpMap(int width, int height) {
+        return (x, y, source) -> {
+            // Scale relative to the y axis
+            vec2 rot = vec2.scale(0, 0, x, y, (float) y / ((float) height));
+            source[0] = rot.x;
+            source[1] = rot.y;
+        };
     }
 
     /**
@@ -1149,64 +1516,290 @@ public class ImageManipulation {
      * @return Curved image
      */
     public static BufferedImage curveRight(BufferedImage image) {
-        BufferedImage curve = createBlankClone(image);
-
-        for(int y = 0; y < image.getHeight(); y++) {
-            for(int x = 0; x < image.getWidth(); x++) {
-                // Scale relative to the x axis
-                vec2 scale = vec2.scale(0, 0, x, y, (float) x / ((float) image.getWidth()));
-
-                if(scale.x < 0 || scale.x >= image.getWidth() || scale.y < 0 || scale.y >= image.getHeight()) continue;
-
-                Color cur = new Color(image.getRGB((int) scale.x, (int) scale.y));
-
-                curve.setRGB(x, y, cur.getRGB());
-            }
-        }
+        return warp("curveRight", image, curveRightMap(image.getWidth(), image.getHeight()), createOutput(image));
+    }
 
-        return curve;
+    /**
+     * Inverse map of curveRight
+     * Scales each point towards the top left corner, more the closer it is to the left
+     * @param width Width of the image
+     * @param height Height of the image
+     * @return Map from output pixels to source positions
+     */
+    static WarpMap curveRightMap(int width, int height) {
+        return (x, y, source) -> {
+            // Scale relative to the x axis
+            vec2 scale = vec2.scale(0, 0, x, y, (float) x / ((float) width));
+            source[0] = scale.x;
+            source[1] = scale.y;
+        };
     }
 
     // Create an empty BufferedImage of the input's width and height
     private static BufferedImage createBlankClone(BufferedImage img) {
-        return new BufferedImage(
+        TraceEvents.AllocationEvent event = TraceEvents.allocating();
+
+        return TraceEvents.allocated(event, "createBlankClone", new BufferedImage(
                 img.getWidth(),
                 img.getHeight(),
-                BufferedImage.TYPE_INT_ARGB);
+                BufferedImage.TYPE_INT_ARGB));
+    }
+
+    // Create the image an operation returns, the output image of the current ExecutionContext if it has one of the
+    // same size, so operations must write every pixel of it
+    private static BufferedImage createOutput(BufferedImage img) {
+        return createOutput(img.getWidth(), img.getHeight());
+    }
+
+    private static BufferedImage createOutput(int width, int height) {
+        BufferedImage output = ExecutionContext.current().takeOutput(width, height);
+        if(output != null) return output;
+
+        TraceEvents.AllocationEvent event = TraceEvents.allocating();
+        return TraceEvents.allocated(event, "createOutput", new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB));
+    }
+
+    // Sample every output pixel from the source position given by the map, pixels mapped outside the image are transparent
+    private static BufferedImage warp(String operation, BufferedImage image, WarpMap map, BufferedImage warped) {
+        int width = image.getWidth(), height = image.getHeight();
+        // Samples land anywhere in the image, so it is read once up front rather than one getRGB per sample
+        int[] pixels = Utils.readARGB(image, 0, 0, width, height, null);
+
+        ExecutionPolicy.run(operation, ExecutionPolicy.CostClass.WARP, warped, (x0, y0, x1, y1) -> {
+            float[] source = new float[2];
+            int[] row = new int[x1 - x0];
+
+            for(int y = y0; y < y1; y++) {
+                for(int x = x0; x < x1; x++) {
+                    map.source(x, y, source);
+
+                    if(source[0] < 0 || source[0] >= width || source[1] < 0 || source[1] >= height) {
+                        row[x - x0] = 0;
+                        continue;
+                    }
+
+                    // The sampled colour is copied with its alpha dropped
+                    row[x - x0] = pixels[(int) source[1] * width + (int) source[0]] | 0xFF000000;
+                }
+
+                Utils.writeARGB(warped, x0, y, row.length, 1, row);
+            }
+        });
+
+        return warped;
     }
 
     // Get the final colour from a solid background colour and a colour with alpha
-    private static int alphaComposite(int colour, int base, int alpha) {
-        float cf2 = (float) base / 255f;
-        float cf1 = (float) colour / 255f;
-        float af1 = (float) alpha / 255f;
+    static int alphaComposite(int colour, int base, int alpha) {
+        return alphaComposite((float) colour / 255f, (float) base / 255f, (float) alpha / 255f);
+    }
 
+    // alphaComposite with the colours and alpha already divided by 255, so loops can look them up or divide once
+    private static int alphaComposite(float cf1, float cf2, float af1) {
         int result = (int) ((cf1 * af1 + (1f - af1) * cf2) * 255f);
 
         // Clamp within 0 and 255
         return Math.min(255, Math.max(0, result));
     }
 
+    // Composites a colour over an ARGB pixel with alphaComposite, giving an opaque pixel
+    static int blend(Color colour, int base, int alpha) {
+        float af1 = (float) alpha / 255f;
+
+        return 0xFF000000
+                | alphaComposite(LEVELS[colour.getRed()], LEVELS[base >> 16 & 0xFF], af1) << 16
+                | alphaComposite(LEVELS[colour.getGreen()], LEVELS[base >> 8 & 0xFF], af1) << 8
+                | alphaComposite(LEVELS[colour.getBlue()], LEVELS[base & 0xFF], af1);
+    }
+
+    // Composites an ARGB pixel over another with alphaComposite, alpha already divided by 255, giving an opaque pixel
+    static int mix(int top, int base, float af1) {
+        return 0xFF000000
+                | alphaComposite(LEVELS[top >> 16 & 0xFF], LEVELS[base >> 16 & 0xFF], af1) << 16
+                | alphaComposite(LEVELS[top >> 8 & 0xFF], LEVELS[base >> 8 & 0xFF], af1) << 8
+                | alphaComposite(LEVELS[top & 0xFF], LEVELS[base & 0xFF], af1);
+    }
+
+    // The per-pixel kernels below are shared with ScanlinePipeline, so streamed rows get the same pixels
+
+    // Pixel of greyScale, the largest channel in every channel
+    static int greyScalePixel(int argb) {
+        int colour = Math.max(redOf(argb), Math.max(greenOf(argb), blueOf(argb)));
+
+        return rgb(colour, colour, colour);
+    }
+
+    // Pixel of negative
+    static int negativePixel(int argb) {
+        return rgb(255 - redOf(argb), 255 - greenOf(argb), 255 - blueOf(argb));
+    }
+
+    // Pixel of brighten, and of darken with the amount negated
+    static int brightenPixel(int argb, int amount) {
+        return rgb(clampRGB(redOf(argb) + amount), clampRGB(greenOf(argb) + amount), clampRGB(blueOf(argb) + amount));
+    }
+
+    // Pixels red, green, blue, warm, cool and saturate mix over the image
+    static int redPixel(int argb) {
+        return rgb(clampRGB(redOf(argb) + 1), 0, 0);
+    }
+
+    static int greenPixel(int argb) {
+        return rgb(0, clampRGB(greenOf(argb) + 1), 0);
+    }
+
+    static int bluePixel(int argb) {
+        return rgb(0, 0, clampRGB(blueOf(argb) + 1));
+    }
+
+    static int warmPixel(int argb) {
+        return rgb(255, greenOf(argb), 0);
+    }
+
+    static int coolPixel(int argb) {
+        return rgb(0, greenOf(argb), 255);
+    }
+
+    static int saturatePixel(int argb) {
+        return rgb(redOf(argb) < 128 ? 0 : 255, greenOf(argb) < 128 ? 0 : 255, blueOf(argb) < 128 ? 0 : 255);
+    }
+
+    // Limits the magnitude of the seed of rainbowWave to within 20 while keeping it pseudorandom because the algorithm
+    // breaks when the seed is too large
+    static float rainbowWaveSeed(float seed) {
+        return (float) Math.cos(seed) * 20f;
+    }
+
+    // Period of the waves of rainbowWave for a limited seed
+    static float rainbowWavePeriod(float limitedSeed) {
+        return 100f * ((float) Math.abs(Math.sin(limitedSeed)) + .5f);
+    }
+
+    // Pixel of rainbowWave at x, y
+    static int rainbowWavePixel(int argb, int x, int y, float period, float limitedSeed, int intensity) {
+        // Use sine and cosine values on the x and y coordinates to generate an rgb value for each rgb values
+        int r = alphaComposite(
+                    alphaComposite(
+                        Math.max(0, (int) (Math.sin((float) x / period + limitedSeed) * 255f)),
+                        Math.max(0, (int) (Math.cos((float) y / period + limitedSeed * 23) * 255f)),
+                    128
+                    ),
+                redOf(argb), intensity),
+
+            g = alphaComposite(
+                    alphaComposite(
+                        Math.max(0, (int) (Math.cos((float) x / period + limitedSeed * 32) * 255f)),
+                        Math.max(0, (int) (Math.cos((float) y / period - Math.PI) * 255f)),
+                    128
+                    ),
+                greenOf(argb), intensity),
+
+            b = alphaComposite(
+                    alphaComposite(
+                    Math.max(0, (int) (Math.sin((float) x / period - Math.PI - limitedSeed * 12) * 255f)),
+                    Math.max(0, (int) (Math.sin((float) y / period + limitedSeed * 65) * 255f)),
+                    128
+                    ), blueOf(argb), intensity);
+
+        return rgb(r, g, b);
+    }
+
+    // Column of the source row distortWaveX samples for column x
+    static int distortWaveXSource(int x, int width) {
+        // Use sine function to change the sample coordinates
+        return Utils.clamp((int) (x + (Math.sin((float) x / 18f)) * 10f), 0, width - 1);
+    }
+
+    // Pixels of noise and noiseGreyscale, from a generator or hashed from the seed and position
+    static int noisePixel(Random random) {
+        return rgb(toLevel((float) random.nextDouble()), toLevel((float) random.nextDouble()), toLevel((float) random.nextDouble()));
+    }
+
+    static int noisePixel(long seed, int x, int y) {
+        return rgb(toLevel((float) random(seed, x, y, 0)), toLevel((float) random(seed, x, y, 1)), toLevel((float) random(seed, x, y, 2)));
+    }
+
+    static int noiseGreyscalePixel(Random random) {
+        int level = toLevel((float) random.nextDouble());
+
+        return rgb(level, level, level);
+    }
+
+    static int noiseGreyscalePixel(long seed, int x, int y) {
+        int level = toLevel((float) random(seed, x, y, 0));
+
+        return rgb(level, level, level);
+    }
+
+    // Alpha circleFade blends its colour with at a distance from the centre
+    static int circleFadeAlpha(float dist, int radius, int fadeLength) {
+        return (int) ((dist / (radius + fadeLength)) * 255f);
+    }
+
+    // Alpha squareFade blends its colour with at a distance from the centre lines
+    static int squareFadeAlpha(int dist, int width, int fadeLength) {
+        return (int) (((float) dist / (width + fadeLength)) * 255f);
+    }
+
+    // Converts a channel from 0 to 1 to a level from 0 to 255 with the rounding of the float Color constructor
+    private static int toLevel(float f) {
+        return (int) (f * 255 + 0.5);
+    }
+
+    // Opaque ARGB value, same as new Color(r, g, b).getRGB() for levels from 0 to 255
+    private static int rgb(int r, int g, int b) {
+        return 0xFF000000 | r << 16 | g << 8 | b;
+    }
+
+    // ARGB value, same as new Color(r, g, b, a).getRGB() for levels from 0 to 255
+    private static int rgba(int r, int g, int b, int a) {
+        return a << 24 | r << 16 | g << 8 | b;
+    }
+
+    // Pixel with its alpha set to 255, same as new Color(rgb).getRGB()
+    static int opaque(int rgb) {
+        return 0xFF000000 | rgb;
+    }
+
+    private static int redOf(int argb) {
+        return argb >> 16 & 0xFF;
+    }
+
+    private static int greenOf(int argb) {
+        return argb >> 8 & 0xFF;
+    }
+
+    private static int blueOf(int argb) {
+        return argb & 0xFF;
+    }
+
+    private static int alphaOf(int argb) {
+        return argb >>> 24;
+    }
+
     // Add one image on top of another, with the image on top having the specified alpha value
     private static BufferedImage mixAlpha(BufferedImage a, BufferedImage b, int alpha) {
         if(a.getWidth() != b.getWidth()) throw new Error("Invalid parameter for function mixAlpha: Widths do not match for both BufferedImages");
 
         if(a.getHeight() != b.getHeight()) throw new Error("Invalid parameter for function mixAlpha: Heights do not match for both BufferedImages");
 
-        BufferedImage mixed = createBlankClone(a);
+        BufferedImage mixed = createOutput(a);
+        float af1 = (float) alpha / 255f;
+
+        ExecutionPolicy.run("mixAlpha", ExecutionPolicy.CostClass.POINT, mixed, (x0, y0, x1, y1) -> {
+            int[] aRow = new int[x1 - x0], bRow = new int[x1 - x0];
 
-        for(int y = 0; y < a.getHeight(); y++) {
-            for(int x = 0; x < a.getWidth(); x++) {
-                Color aC = new Color(a.getRGB(x, y));
-                Color bC = new Color(b.getRGB(x, y));
+            for(int y = y0; y < y1; y++) {
+                Utils.readARGB(a, x0, y, aRow.length, 1, aRow);
+                Utils.readARGB(b, x0, y, bRow.length, 1, bRow);
+
+                for(int i = 0; i < aRow.length; i++) {
+                    aRow[i] = mix(aRow[i], bRow[i], af1);
+                }
 
-                mixed.setRGB(x, y, new Color(
-                        alphaComposite(aC.getRed(), bC.getRed(), alpha),
-                        alphaComposite(aC.getGreen(), bC.getGreen(), alpha),
-                        alphaComposite(aC.getBlue(), bC.getBlue(), alpha)
-                ).getRGB());
+                Utils.writeARGB(mixed, x0, y, aRow.length, 1, aRow);
             }
-        }
+        });
 
         return mixed;
     }
@@ -1222,27 +1815,47 @@ public class ImageManipulation {
     }
     
     // Clamps within 0 and 1 for RGBA values
-    private static float clampRGB(float f) {
+    static float clampRGB(float f) {
         return f > 1f ? 1f : f < 0 ? 0 : f;
     }
 
     // Clamps within 0 and 255 for RGBA values
-    private static int clampRGB(int f) {
+    static int clampRGB(int f) {
         return f > 255 ? 255 : f < 0 ? 0 : f;
     }
 
-    // Distance between two points in two dimensions
-    private static float distance(int x1, int x2, int y1, int y2) {
-        return (float) Math.sqrt(Math.pow(x1 - x2, 2) + Math.pow(y1 - y2, 2));
+    // Distance between two points in two dimensions, the squares of ints are exact doubles so this is the same as
+    // summing Math.pow(d, 2) but much cheaper
+    static float distance(int x1, int x2, int y1, int y2) {
+        double dx = x1 - x2, dy = y1 - y2;
+        return (float) Math.sqrt(dx * dx + dy * dy);
+    }
+
+    // Random value from 0 to 1 for a pixel, hashed from the seed and position so it does not depend on which thread or
+    // tile computes the pixel, with a separate value per channel
+    static double random(long seed, int x, int y, int channel) {
+        long z = seed + ((long) y << 32 | x & 0xFFFFFFFFL) * 0x9E3779B97F4A7C15L + channel * 0xD1B54A32D192ED03L;
+
+        // SplitMix64 finaliser
+        z = (z ^ z >>> 30) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ z >>> 27) * 0x94D049BB133111EBL;
+        z ^= z >>> 31;
+
+        return (z >>> 11) * 0x1.0p-53;
+    }
+
+    // Whether the warps should use FastMath, read once when a map is built
+    private static boolean isDraft() {
+        return ExecutionContext.current().getQuality() == ExecutionContext.Quality.DRAFT;
     }
 
     // Distance between two points in one dimension
-    private static int distance1d(int x, int x2) {
+    static int distance1d(int x, int x2) {
         return Math.abs(x - x2);
     }
 
     // Distance between two points in one dimension
-    private static float distance1d(float x, float x2) {
+    static float distance1d(float x, float x2) {
         return Math.abs(x - x2);
     }
     
@@ -1259,6 +1872,440 @@ public class ImageManipulation {
         return (float) Math.atan2( (float) (toY - fromY), (float) (toX - fromX));
     }
     
+    /**
+     * Colours of rainbowGradient, each channel set by the distance of a pixel from a point placed by the seed
+     * Shared with ScanlinePipeline, so streamed rows get the same pixels
+     */
+    static final class RainbowGradient {
+        private final int rx, ry, gx, gy, bx, by;
+        private final float max;
+
+        RainbowGradient(int width, int height, float seed) {
+            int seedx = (int) ((float) Math.cos(seed) * 20f),
+                seedy = (int) ((float) Math.sin(seed) * 20f);
+
+            // Set rgb x and y coordinates
+            int hw = width / 2,
+                hh = height / 2;
+
+            rx = hw + seedx;
+            ry = 0 + seedy;
+            gx = 0 - seedx;
+            gy = hh + hh / 2 + seedy;
+            bx = width - seedx;
+            by = gy + seedy;
+
+            max = distance(hw, 0, hh, 0);
+        }
+
+        // Opaque colour of the gradient at x, y, before it is mixed over the image
+        int pixel(int x, int y) {
+            // Get the distance from x and y coordinate to the corresponding rgb value
+            // coordinates, then somewhat normalise it
+            return 0xFF000000
+                    | toLevel(clampRGB(distance(x, rx, y, ry) / max)) << 16
+                    | toLevel(clampRGB(distance(x, gx, y, gy) / max)) << 8
+                    | toLevel(clampRGB(distance(x, bx, y, by) / max));
+        }
+    }
+
+    /**
+     * Distances of the pixels of an image from its centre (width / 2, height / 2), used by the centre-based effects
+     * Distance only depends on how far a pixel is from the centre along each axis, so only one quadrant is computed and
+     * the other three read it mirrored. The values are exactly those of distance(), and the table of the last size
+     * used is kept because effects are usually applied to many images of the same size
+     *
+     * Past MAX_ENTRIES, such as for the whole mosaic a TileShards worker computes a tile of, no table is kept and every
+     * distance is computed when it is asked for
+     */
+    static final class RadialTable {
+        // 64 MB of floats, a quadrant of an image of about 8192 by 8192
+        private static final long MAX_ENTRIES = 1 << 24;
+
+        private static volatile RadialTable last;
+
+        private final int centreX, centreY;
+        // Distance at dy * (centreX + 1) + dx for a pixel dx and dy away from the centre, null past MAX_ENTRIES
+        private final float[] distances;
+
+        private RadialTable(int centreX, int centreY) {
+            this.centreX = centreX;
+            this.centreY = centreY;
+
+            if((long) (centreX + 1) * (centreY + 1) > MAX_ENTRIES) {
+                this.distances = null;
+                return;
+            }
+
+            this.distances = new float[(centreX + 1) * (centreY + 1)];
+
+            ExecutionPolicy.runLines("radialTable", ExecutionPolicy.CostClass.POINT, centreY + 1, centreX + 1, (from, to) -> {
+                for(int dy = from; dy < to; dy++) {
+                    for(int dx = 0; dx <= centreX; dx++) {
+                        distances[dy * (centreX + 1) + dx] = ImageManipulation.distance(dx, 0, dy, 0);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Gets the table for an image size
+         * @param width Width of the image
+         * @param height Height of the image
+         * @return Table of distances from the centre
+         */
+        static RadialTable of(int width, int height) {
+            RadialTable table = last;
+
+            if(table == null || table.centreX != width / 2 || table.centreY != height / 2) {
+                table = new RadialTable(width / 2, height / 2);
+                last = table;
+            }
+
+            return table;
+        }
+
+        /**
+         * @param x X coordinate of a pixel of the image
+         * @param y Y coordinate of a pixel of the image
+         * @return Same as distance(x, width / 2, y, height / 2)
+         */
+        float distance(int x, int y) {
+            if(distances == null) return ImageManipulation.distance(x, centreX, y, centreY);
+
+            return distances[Math.abs(y - centreY) * (centreX + 1) + Math.abs(x - centreX)];
+        }
+
+        /**
+         * Evaluates a function of the truncated distance for every distance in the image, for effects that only
+         * depend on that
+         * @param function Function of the distance
+         * @return Values indexed by (int) distance(x, y)
+         */
+        float[] byDistance(IntToFloatFunction function) {
+            // The corners are the furthest pixels
+            float[] values = new float[(int) ImageManipulation.distance(centreX, 0, centreY, 0) + 1];
+
+            for(int dist = 0; dist < values.length; dist++) {
+                values[dist] = function.apply(dist);
+            }
+
+            return values;
+        }
+
+        interface IntToFloatFunction {
+            float apply(int value);
+        }
+    }
+
+    /**
+     * Perreault-Hebert median filter over a band of rows, used by median
+     * Each column keeps a histogram of the pixels in the window rows, which is updated with one pixel in and one out as
+     * the window moves down. The window histogram is the sum of the column histograms in the window, updated with one
+     * column in and one out as the window moves right. Histograms are split into 16 coarse bins of 16 levels, only the
+     * coarse bins are kept up to date for every pixel and the levels of a coarse bin are caught up when the median
+     * falls in that bin
+     */
+    private static class MedianFilter {
+        private final BufferedImage image, output;
+        private final int radius, width, height;
+        // Output columns from x0 inclusive to x1 exclusive, and the source columns within the radius of them
+        private final int x0, x1, left, right;
+
+        // Levels of each source column, at ((x - left) * 3 + channel) * 256 + level, and coarse bins at
+        // ((x - left) * 3 + channel) * 16 + bin
+        private final char[] columnLevels, columnBins;
+        // Window histogram, levels at channel * 256 + level and coarse bins at channel * 16 + bin
+        private final int[] levels = new int[3 * 256], bins = new int[3 * 16];
+        // Column the levels of each coarse bin were last caught up to, or -1 when they need rebuilding
+        private final int[] updated = new int[3 * 16];
+
+        private MedianFilter(BufferedImage image, BufferedImage output, int radius, int x0, int x1) {
+            this.image = image;
+            this.output = output;
+            this.radius = radius;
+            this.width = image.getWidth();
+            this.height = image.getHeight();
+            this.x0 = x0;
+            this.x1 = x1;
+            this.left = Math.max(0, x0 - radius);
+            this.right = (int) Math.min(width, (long) x1 + radius);
+            this.columnLevels = new char[(right - left) * 3 * 256];
+            this.columnBins = new char[(right - left) * 3 * 16];
+        }
+
+        // Filters the rows from y0 inclusive to y1 exclusive
+        private void rows(int y0, int y1, ExecutionContext context) {
+            int[] row = new int[right - left];
+            int[] result = new int[x1 - x0];
+
+            for(int y = Math.max(0, y0 - radius); y <= Math.min(height - 1, (long) y0 + radius); y++) {
+                addRow(row, y, 1);
+            }
+
+            for(int y = y0; y < y1; y++) {
+                context.checkpoint();
+
+                if(y > y0) {
+                    if(y - radius - 1 >= 0) addRow(row, y - radius - 1, -1);
+                    if(y + radius < height) addRow(row, y + radius, 1);
+                }
+
+                int rows = (int) Math.min(height - 1, (long) y + radius) - Math.max(0, y - radius) + 1;
+
+                filterRow(result, rows);
+                output.setRGB(x0, y, x1 - x0, 1, result, 0, x1 - x0);
+            }
+        }
+
+        // Adds (or with count -1 removes) a source row to the column histograms
+        private void addRow(int[] row, int y, int count) {
+            image.getRGB(left, y, right - left, 1, row, 0, right - left);
+
+            for(int i = 0; i < right - left; i++) {
+                for(int channel = 0; channel < 3; channel++) {
+                    int level = row[i] >> (16 - channel * 8) & 0xFF;
+                    int column = i * 3 + channel;
+
+                    columnLevels[column * 256 + level] += count;
+                    columnBins[column * 16 + (level >> 4)] += count;
+                }
+            }
+        }
+
+        // Computes the output columns of one row into the result array
+        private void filterRow(int[] result, int rows) {
+            Arrays.fill(bins, 0);
+            Arrays.fill(updated, -1);
+
+            for(int x = Math.max(0, x0 - radius); x <= Math.min(width - 1, (long) x0 + radius); x++) {
+                addBins(x, 1);
+            }
+
+            for(int x = x0; x < x1; x++) {
+                if(x > x0) {
+                    long in = (long) x + radius;
+                    int out = x - radius - 1;
+
+                    if(in < width && out >= 0) slideBins((int) in, out);
+                    else if(in < width) addBins((int) in, 1);
+                    else if(out >= 0) addBins(out, -1);
+                }
+
+                int columns = (int) Math.min(width - 1, (long) x + radius) - Math.max(0, x - radius) + 1;
+                int rank = (columns * rows - 1) / 2;
+
+                result[x - x0] = 0xFF000000 | median(0, x, rank) << 16 | median(1, x, rank) << 8 | median(2, x, rank);
+            }
+        }
+
+        private void addBins(int x, int count) {
+            // The three channels of a column are next to each other, in the same order as the window bins
+            int from = (x - left) * 3 * 16;
+
+            for(int i = 0; i < 3 * 16; i++) {
+                bins[i] += count * columnBins[from + i];
+            }
+        }
+
+        // Moves the window bins one column, adding column in and removing column out
+        private void slideBins(int in, int out) {
+            int from = (in - left) * 3 * 16, to = (out - left) * 3 * 16;
+
+            for(int i = 0; i < 3 * 16; i++) {
+                bins[i] += columnBins[from + i] - columnBins[to + i];
+            }
+        }
+
+        // Level of a channel with rank pixels below it in the window centred on column x
+        private int median(int channel, int x, int rank) {
+            int bin = 0, below = 0;
+
+            while(below + bins[channel * 16 + bin] <= rank) {
+                below += bins[channel * 16 + bin];
+                bin++;
+            }
+
+            catchUp(channel, bin, x);
+
+            int level = bin * 16;
+
+            while(below + levels[channel * 256 + level] <= rank) {
+                below += levels[channel * 256 + level];
+                level++;
+            }
+
+            return level;
+        }
+
+        // Brings the levels of one coarse bin up to the window centred on column x
+        private void catchUp(int channel, int bin, int x) {
+            int last = updated[channel * 16 + bin];
+            int offset = channel * 256 + bin * 16;
+
+            if(last < 0 || x - last > 2L * radius + 1) {
+                // Rebuilding is cheaper than catching up more columns than the window holds
+                Arrays.fill(levels, offset, offset + 16, 0);
+
+                for(int column = Math.max(0, x - radius); column <= Math.min(width - 1, (long) x + radius); column++) {
+                    addLevels(column, channel, bin, offset, 1);
+                }
+            }
+            else {
+                for(int column = last + 1; column <= x; column++) {
+                    long in = (long) column + radius;
+                    int out = column - radius - 1;
+
+                    if(in < width && out >= 0) {
+                        int from = (((int) in - left) * 3 + channel) * 256 + bin * 16, to = ((out - left) * 3 + channel) * 256 + bin * 16;
+
+                        for(int i = 0; i < 16; i++) {
+                            levels[offset + i] += columnLevels[from + i] - columnLevels[to + i];
+                        }
+                    }
+                    else if(in < width) addLevels((int) in, channel, bin, offset, 1);
+                    else if(out >= 0) addLevels(out, channel, bin, offset, -1);
+                }
+            }
+
+            updated[channel * 16 + bin] = x;
+        }
+
+        private void addLevels(int column, int channel, int bin, int offset, int count) {
+            int from = ((column - left) * 3 + channel) * 256 + bin * 16;
+
+            for(int i = 0; i < 16; i++) {
+                levels[offset + i] += count * columnLevels[from + i];
+            }
+        }
+    }
+
+    /**
+     * One dimensional Gaussian filter used by gaussianBlur
+     */
+    private static class GaussianFilter {
+        // Past this the coefficients lose their precision in doubles, and every line is within a level of the average of
+        // its two edge values anyway
+        private static final double MAX_SIGMA = 1e7;
+
+        // Recursive filter coefficients
+        private final double b, b1, b2, b3;
+        // Maps the last three forward pass values to the first three backward pass values
+        private final double[] boundary;
+        // Sampled kernel used instead of the recursive filter for small sigma, null otherwise
+        private final double[] kernel;
+
+        private GaussianFilter(float sigma) {
+            if(sigma < 4f) {
+                int radius = (int) Math.ceil(4 * sigma);
+                double sum = 0;
+
+                kernel = new double[radius * 2 + 1];
+                for(int i = -radius; i <= radius; i++) {
+                    kernel[i + radius] = Math.exp(-i * i / (2.0 * sigma * sigma));
+                    sum += kernel[i + radius];
+                }
+                for(int i = 0; i < kernel.length; i++) kernel[i] /= sum;
+
+                b = b1 = b2 = b3 = 0;
+                boundary = null;
+                return;
+            }
+
+            kernel = null;
+
+            // Coefficients from Young and van Vliet, "Recursive implementation of the Gaussian filter" (1995)
+            double q = .98711 * Math.min(sigma, MAX_SIGMA) - .96330;
+            double b0 = 1.57825 + 2.44413 * q + 1.4281 * q * q + .422205 * q * q * q;
+            b1 = (2.44413 * q + 2.85619 * q * q + 1.26661 * q * q * q) / b0;
+            b2 = -(1.4281 * q * q + 1.26661 * q * q * q) / b0;
+            b3 = (.422205 * q * q * q) / b0;
+            b = 1 - (b1 + b2 + b3);
+
+            boundary = boundary();
+        }
+
+        /**
+         * Filters a line in place
+         * @param line Values to filter
+         * @param scratch Scratch space at least as long as the line
+         * @param n Length of the line
+         */
+        private void apply(double[] line, double[] scratch, int n) {
+            if(kernel != null) {
+                convolve(line, scratch, n);
+                return;
+            }
+
+            double first = line[0], last = line[n - 1];
+
+            // Forward pass, starting in the steady state for a constant signal of the first value
+            double w1 = first, w2 = first, w3 = first;
+
+            for(int i = 0; i < n; i++) {
+                double w = b * line[i] + b1 * w1 + b2 * w2 + b3 * w3;
+                line[i] = w;
+                w3 = w2;
+                w2 = w1;
+                w1 = w;
+            }
+
+            // Backward pass starts from the values it would have if the line carried on with the last value forever
+            // (Triggs and Sdika, "Boundary conditions for Young-van Vliet recursive filtering", 2006)
+            double u0 = w1 - last, u1 = w2 - last, u2 = w3 - last;
+            double y1 = last + boundary[0] * u0 + boundary[1] * u1 + boundary[2] * u2,
+                   y2 = last + boundary[3] * u0 + boundary[4] * u1 + boundary[5] * u2,
+                   y3 = last + boundary[6] * u0 + boundary[7] * u1 + boundary[8] * u2;
+
+            line[n - 1] = y1;
+
+            for(int i = n - 2; i >= 0; i--) {
+                double y = b * line[i] + b1 * y1 + b2 * y2 + b3 * y3;
+                line[i] = y;
+                y3 = y2;
+                y2 = y1;
+                y1 = y;
+            }
+        }
+
+        // Direct convolution with the sampled kernel, repeating the edge values
+        private void convolve(double[] line, double[] scratch, int n) {
+            int radius = kernel.length / 2;
+
+            for(int i = 0; i < n; i++) {
+                double sum = 0;
+
+                for(int k = -radius; k <= radius; k++) {
+                    sum += kernel[k + radius] * line[Utils.clamp(i + k, 0, n - 1)];
+                }
+
+                scratch[i] = sum;
+            }
+
+            System.arraycopy(scratch, 0, line, 0, n);
+        }
+
+        // Closed form from Triggs and Sdika of the backward pass start for a line that carries on with its last value
+        // forever, row by row for y1 to y3 and column by column for the forward values w1 to w3. The 1 - b1 - b2 - b3
+        // factor of their denominator cancels with the gain b, so it costs nothing per blur whatever sigma is
+        private double[] boundary() {
+            double a1 = b1, a2 = b2, a3 = b3;
+            double scale = 1 / ((1 + a1 - a2 + a3) * (1 + a2 + (a1 - a3) * a3));
+
+            return new double[] {
+                scale * (1 - a2 - a1 * a3 - a3 * a3),
+                scale * (a1 + a3) * (a2 + a1 * a3),
+                scale * a3 * (a1 + a2 * a3),
+                scale * (a1 + a2 * a3),
+                -scale * (a2 - 1) * (a2 + a1 * a3),
+                -scale * a3 * (a1 * a3 + a3 * a3 + a2 - 1),
+                scale * (a1 * a3 + a2 + a1 * a1 - a2 * a2),
+                scale * (a1 * a2 + a3 * a2 * a2 - a1 * a3 * a3 - a3 * a3 * a3 - a2 * a3 + a3),
+                scale * a3 * (a1 + a2 * a3)
+            };
+        }
+    }
+
     /**
      * Class for 2 dimensional vector and point maths
      */
@@ -1308,6 +2355,24 @@ public class ImageManipulation {
             );
         }
 
+        /**
+         * Performs rotation around a point by an angle given as its sine and cosine, without allocating a vec2
+         * @param ox X coordinate of point to rotate from
+         * @param oy Y coordinate of point to rotate from
+         * @param px X coordinate of point being rotated
+         * @param py Y coordinate of point being rotated
+         * @param sin Sine of the angle
+         * @param cos Cosine of the angle
+         * @param out Array the rotated x and y are written to
+         */
+        public static void rotate(int ox, int oy, int px, int py, float sin, float cos, float[] out) {
+            px -= ox;
+            py -= oy;
+
+            out[0] = px * cos - py * sin + ox;
+            out[1] = px * sin + py * cos + oy;
+        }
+
         /**
          * Scales vector originating from a certain point in 2 dimensional space
          * @param ox X coordinate of point to scale from
@@ -1328,5 +2393,19 @@ public class ImageManipulation {
                 py * scale + oy
             );
         }
+
+        /**
+         * Scales vector originating from a certain point in 2 dimensional space, without allocating a vec2
+         * @param ox X coordinate of point to scale from
+         * @param oy Y coordinate of point to scale from
+         * @param px X coordinate of point being scaled
+         * @param py Y coordinate of point being scaled
+         * @param scale Factor to scale by
+         * @param out Array the scaled x and y are written to
+         */
+        public static void scale(int ox, int oy, int px, int py, float scale, float[] out) {
+            out[0] = (px - ox) * scale + ox;
+            out[1] = (py - oy) * scale + oy;
+        }
     }
 }
@@ -0,0 +1,437 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Embedded HTTP service for the ImageManipulation operations, listening on localhost
+ *
+ * GET  /operations                  Lists the operations and their parameters
+ * POST /op/{name}?param=value       Runs one operation on the image in the request body
+ * POST /pipeline?steps=chain        Runs a chain of operations, written as described in Operations
+ *
+ * Every POST also takes format=png (the default), format=bmp or any other format ImageIO can write, and quality=draft
+ * for the faster approximate warps of ExecutionContext.Quality.DRAFT
+ * When every step is row-local and both the body and the format are PNG or BMP, the image is streamed through a
+ * ScanlinePipeline row by row, otherwise it is decoded, processed and streamed back out as it is encoded
+ *
+ * Requests are handled on virtual threads when the runtime has them and on a cached thread pool otherwise
+ * The image work itself is limited to one request per core, further requests wait in a bounded queue and are turned
+ * away with 429 Too Many Requests when the queue is full or they have waited too long
+ */
+public class ImageService {
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Semaphore permits;
+    private final int maxQueued;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final LongAdder rejected = new LongAdder();
+    private volatile long queueTimeout = TimeUnit.SECONDS.toNanos(5);
+    private volatile long requestTimeout = 0;
+    private volatile ResultCache cache;
+
+    /**
+     * Creates a service on localhost with one worker per core and a queue of twice as many requests
+     * @param port Port to listen on, or 0 for any free port
+     */
+    public ImageService(int port) throws IOException {
+        this(port, Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    /**
+     * Creates a service on localhost
+     * @param port Port to listen on, or 0 for any free port
+     * @param workers Requests processed at the same time
+     * @param maxQueued Requests allowed to wait for a worker before further ones are rejected
+     */
+    public ImageService(int port, int workers, int maxQueued) throws IOException {
+        if(workers < 1) throw new IllegalArgumentException("Invalid parameter for function ImageService: workers must be at least 1");
+        if(maxQueued < 0) throw new IllegalArgumentException("Invalid parameter for function ImageService: maxQueued must not be negative");
+
+        this.permits = new Semaphore(workers, true);
+        this.maxQueued = maxQueued;
+        this.executor = createExecutor();
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+
+        server.setExecutor(executor);
+        server.createContext("/operations", this::listOperations);
+        server.createContext("/op/", this::runOperation);
+        server.createContext("/pipeline", this::runPipeline);
+    }
+
+    /**
+     * Sets how long a request may wait for a worker before it is rejected
+     * @param timeout Time allowed
+     * @param unit Unit of the timeout
+     * @return This service
+     */
+    public ImageService setQueueTimeout(long timeout, TimeUnit unit) {
+        this.queueTimeout = unit.toNanos(timeout);
+        return this;
+    }
+
+    /**
+     * Sets how long the image work of a request may take before it is cancelled with 503 Service Unavailable
+     * @param timeout Time allowed, or 0 for no limit
+     * @param unit Unit of the timeout
+     * @return This service
+     */
+    public ImageService setRequestTimeout(long timeout, TimeUnit unit) {
+        this.requestTimeout = unit.toNanos(timeout);
+        return this;
+    }
+
+    /**
+     * Sets a cache for the results of requests that are decoded in full, so repeated requests for the same image and
+     * steps are computed once. Requests streamed row by row are not cached
+     * @param cache Cache, or null for none
+     * @return This service
+     */
+    public ImageService setCache(ResultCache cache) {
+        this.cache = cache;
+        return this;
+    }
+
+    /**
+     * Starts accepting requests
+     * @return This service
+     */
+    public ImageService start() {
+        server.start();
+        return this;
+    }
+
+    /**
+     * Stops accepting requests and waits up to the given time for running ones to finish
+     * @param delaySeconds Seconds to wait
+     */
+    public void stop(int delaySeconds) {
+        server.stop(delaySeconds);
+        executor.shutdown();
+    }
+
+    /**
+     * @return Port the service listens on
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * @return Requests waiting for a worker
+     */
+    public int getQueuedCount() {
+        return queued.get();
+    }
+
+    /**
+     * @return Requests rejected with 429 since the service was created
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * Runs the service until the process is stopped
+     * @param args Optional port, 8080 by default
+     */
+    public static void main(String[] args) throws IOException {
+        ImageService service = new ImageService(args.length > 0 ? Integer.parseInt(args[0]) : 8080).start();
+        System.out.println("Listening on http://localhost:" + service.getPort());
+    }
+
+    private void listOperations(HttpExchange exchange) throws IOException {
+        try {
+            if(!exchange.getRequestMethod().equals("GET")) {
+                sendText(exchange, 405, "Use GET");
+                return;
+            }
+
+            StringBuilder body = new StringBuilder();
+
+            for(Operations.Operation operation : Operations.all()) {
+                body.append(operation).append(operation.rowLocal ? " [row-local]" : "").append('\n');
+            }
+
+            sendText(exchange, 200, body.toString());
+        }
+        finally {
+            exchange.close();
+        }
+    }
+
+    private void runOperation(HttpExchange exchange) throws IOException {
+        handle(exchange, query -> {
+            String name = exchange.getRequestURI().getPath().substring("/op/".length());
+            query.remove("format");
+
+            return Collections.singletonList(Operations.get(name).step(query));
+        });
+    }
+
+    private void runPipeline(HttpExchange exchange) throws IOException {
+        handle(exchange, query -> {
+            String steps = query.remove("steps");
+            query.remove("format");
+
+            if(steps == null) throw new IllegalArgumentException("Invalid request: Missing steps");
+            if(!query.isEmpty()) throw new IllegalArgumentException("Invalid request: Unknown parameter " + query.keySet().iterator().next());
+
+            return Operations.parseChain(steps);
+        });
+    }
+
+    private interface StepParser {
+        List<Operations.Step> parse(Map<String, String> query);
+    }
+
+    private void handle(HttpExchange exchange, StepParser parser) throws IOException {
+        try {
+            if(!exchange.getRequestMethod().equals("POST")) {
+                sendText(exchange, 405, "Use POST with the image as the request body");
+                return;
+            }
+
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            String format = query.getOrDefault("format", "png").toLowerCase();
+            String quality = query.remove("quality");
+            List<Operations.Step> steps;
+
+            // Reject bad requests before they take a place in the queue
+            try {
+                if(quality != null && !quality.equals("exact") && !quality.equals("draft")) {
+                    throw new IllegalArgumentException("Invalid request: Unsupported quality " + quality);
+                }
+
+                steps = parser.parse(query);
+
+                if(!format.equals("png") && !format.equals("bmp") && !ImageIO.getImageWritersByFormatName(format).hasNext()) {
+                    throw new IllegalArgumentException("Invalid request: Unsupported format " + format);
+                }
+            }
+            catch(IllegalArgumentException e) {
+                sendText(exchange, 400, e.getMessage());
+                return;
+            }
+
+            if(!admit()) {
+                rejected.increment();
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                sendText(exchange, 429, "Too many requests");
+                return;
+            }
+
+            try {
+                ExecutionContext context = new ExecutionContext();
+                if(requestTimeout > 0) context.setTimeout(requestTimeout, TimeUnit.NANOSECONDS);
+                if("draft".equals(quality)) context.setQuality(ExecutionContext.Quality.DRAFT);
+
+                process(exchange, steps, format, context);
+            }
+            finally {
+                permits.release();
+            }
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Waits for a worker, or gives up straight away if the queue is full
+     * @return Whether a worker was acquired
+     */
+    private boolean admit() throws InterruptedException {
+        if(permits.tryAcquire()) return true;
+
+        if(queued.incrementAndGet() > maxQueued) {
+            queued.decrementAndGet();
+            return false;
+        }
+
+        try {
+            return permits.tryAcquire(queueTimeout, TimeUnit.NANOSECONDS);
+        }
+        finally {
+            queued.decrementAndGet();
+        }
+    }
+
+    private void process(HttpExchange exchange, List<Operations.Step> steps, String format, ExecutionContext context) throws IOException {
+        InputStream in = new BufferedInputStream(exchange.getRequestBody(), 1 << 16);
+        ResponseBody body = new ResponseBody(exchange, format);
+
+        try {
+            ScanlineCodec.RowReader reader = ScanlineCodec.canOpen(in) ? ScanlineCodec.open(in) : null;
+            boolean streamable = format.equals("bmp") || format.equals("png") && reader != null && !reader.isBottomUp();
+
+            if(reader != null && streamable && Operations.isRowLocal(steps)) {
+                // Nothing is buffered beyond the rows in flight, rows are written out as soon as they are read
+                ScanlinePipeline.Builder builder = ScanlinePipeline.builder();
+                Operations.addTo(builder, steps);
+
+                ScanlineCodec.RowWriter writer = ScanlineCodec.createWriter(body, format, reader.getWidth(), reader.getHeight(), reader.isBottomUp());
+
+                try(TraceEvents.Span span = TraceEvents.codec("stream", format, reader.getWidth(), reader.getHeight())) {
+                    context.call(() -> {
+                        try {
+                            reader.readRows(builder.build(reader.getWidth(), reader.getHeight(), writer)::row);
+                            writer.finish();
+                        }
+                        catch(IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                        return null;
+                    });
+                    if(span != null) span.completed(null);
+                }
+                return;
+            }
+
+            BufferedImage image;
+
+            try(TraceEvents.Span span = TraceEvents.codec("decode", reader instanceof ScanlineCodec.PngReader ? "png" : reader != null ? "bmp" : "imageio", 0, 0)) {
+                image = reader != null ? ScanlineCodec.readImage(reader) : ImageIO.read(in);
+                if(span != null && image != null) span.completed(image);
+            }
+
+            if(image == null) throw new IllegalArgumentException("Invalid request: The body is not an image in a supported format");
+
+            ResultCache cache = this.cache;
+            BufferedImage result = context.call(() -> cache != null ? cache.apply(image, steps) : Operations.apply(image, steps));
+
+            try(TraceEvents.Span span = TraceEvents.codec("encode", format, result.getWidth(), result.getHeight())) {
+                ScanlineCodec.writeImage(result, format, body);
+                if(span != null) span.completed(null);
+            }
+        }
+        catch(UncheckedIOException e) {
+            if(!body.sent) sendText(exchange, 400, "Invalid request: " + e.getCause().getMessage());
+        }
+        catch(IllegalArgumentException e) {
+            if(!body.sent) sendText(exchange, 400, e.getMessage());
+        }
+        catch(CancellationException e) {
+            if(!body.sent) sendText(exchange, 503, e.getMessage());
+        }
+        catch(IOException e) {
+            // Either the body could not be decoded or the client went away, there is only someone to tell in the first case
+            if(!body.sent) sendText(exchange, 400, "Invalid request: " + e.getMessage());
+        }
+        catch(RuntimeException e) {
+            // A fault in an operation, the exchange is still answered and then closed by handle
+            if(!body.sent) sendText(exchange, 500, "Internal error: " + e);
+        }
+        catch(Error e) {
+            // Such as OutOfMemoryError from an image too large for the heap, whatever it allocated is unreachable now
+            if(!body.sent) sendText(exchange, 500, "Internal error: " + e);
+        }
+    }
+
+    /**
+     * Response body that sends the 200 headers on its first write, so anything that fails before the first byte of the
+     * image can still be answered with an error
+     */
+    private static class ResponseBody extends OutputStream {
+        private final HttpExchange exchange;
+        private final String format;
+        private OutputStream out;
+        private boolean sent;
+
+        private ResponseBody(HttpExchange exchange, String format) {
+            this.exchange = exchange;
+            this.format = format;
+        }
+
+        private OutputStream open() throws IOException {
+            if(!sent) {
+                sendHeaders(exchange, format);
+                sent = true;
+                out = exchange.getResponseBody();
+            }
+
+            return out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            open().write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if(len > 0) open().write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if(sent) out.flush();
+        }
+    }
+
+    private static void sendHeaders(HttpExchange exchange, String format) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "image/" + (format.equals("jpg") ? "jpeg" : format));
+        // Length 0 means chunked, so the body is sent while it is produced
+        exchange.sendResponseHeaders(200, 0);
+    }
+
+    private static void sendText(HttpExchange exchange, int status, String text) throws IOException {
+        // Read what is left of the request first, closing with unread data resets the connection before the client sees the reply
+        InputStream in = exchange.getRequestBody();
+        byte[] discard = new byte[8192];
+        while(in.read(discard) != -1);
+
+        byte[] body = (text + "\n").getBytes(StandardCharsets.UTF_8);
+
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        exchange.getResponseBody().write(body);
+    }
+
+    private static Map<String, String> parseQuery(String query) {
+        Map<String, String> values = new LinkedHashMap<>();
+        if(query == null) return values;
+
+        for(String pair : query.split("&")) {
+            if(pair.isEmpty()) continue;
+
+            int equals = pair.indexOf('=');
+
+            try {
+                String key = URLDecoder.decode(equals == -1 ? pair : pair.substring(0, equals), "UTF-8");
+                values.put(key, equals == -1 ? "" : URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+            }
+            catch(UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        return values;
+    }
+
+    /**
+     * Uses a virtual thread per request on runtimes that have them, found by reflection so the service still runs on
+     * older runtimes, where a cached thread pool is used instead
+     */
+    private static ExecutorService createExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch(ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+}
@@ -0,0 +1,173 @@
+import java.awt.image.BufferedImage;
+
+/**
+ * Per-channel 256-bin histograms of an image, with the mean, variance and percentiles computed from them
+ * The histograms are built in one pass over the image, in parallel bands with their own bins which are added together
+ * at the end
+ */
+public class ImageStatistics {
+    /**
+     * Channel of a pixel
+     */
+    public enum Channel {
+        RED,
+        GREEN,
+        BLUE,
+        ALPHA,
+        // Largest of red, green and blue, the grey level greyScale produces
+        VALUE
+    }
+
+    private static final int CHANNELS = Channel.values().length;
+
+    // histograms[channel][level] is the number of pixels with that level in that channel
+    private final long[][] histograms;
+    private final long pixels;
+
+    private ImageStatistics(long[][] histograms, long pixels) {
+        this.histograms = histograms;
+        this.pixels = pixels;
+    }
+
+    /**
+     * Computes the histograms of an image
+     * @param image Input image
+     * @return Statistics of the image
+     */
+    public static ImageStatistics of(BufferedImage image) {
+        int width = image.getWidth(), height = image.getHeight();
+
+        long[][] histograms = ExecutionPolicy.reduce("imageStatistics", ExecutionPolicy.CostClass.POINT, width, height,
+                () -> new long[CHANNELS][256],
+                (bins, y0, y1) -> {
+                    int[] row = new int[width];
+
+                    for(int y = y0; y < y1; y++) {
+                        image.getRGB(0, y, width, 1, row, 0, width);
+
+                        for(int x = 0; x < width; x++) {
+                            int argb = row[x];
+                            int r = argb >> 16 & 0xFF, g = argb >> 8 & 0xFF, b = argb & 0xFF;
+
+                            bins[0][r]++;
+                            bins[1][g]++;
+                            bins[2][b]++;
+                            bins[3][argb >>> 24]++;
+                            bins[4][Math.max(r, Math.max(g, b))]++;
+                        }
+                    }
+                },
+                (a, b) -> {
+                    for(int c = 0; c < CHANNELS; c++) {
+                        for(int i = 0; i < 256; i++) {
+                            a[c][i] += b[c][i];
+                        }
+                    }
+                    return a;
+                });
+
+        return new ImageStatistics(histograms, (long) width * height);
+    }
+
+    /**
+     * @return Number of pixels in the image
+     */
+    public long getPixelCount() {
+        return pixels;
+    }
+
+    /**
+     * Gets the histogram of a channel
+     * @param channel Channel
+     * @return Copy of the 256 bins, bin i being the number of pixels with level i
+     */
+    public long[] getHistogram(Channel channel) {
+        return histograms[channel.ordinal()].clone();
+    }
+
+    /**
+     * Gets the mean of a channel
+     * @param channel Channel
+     * @return Mean level from 0 to 255, or 0 for an empty image
+     */
+    public double getMean(Channel channel) {
+        if(pixels == 0) return 0;
+
+        long[] bins = histograms[channel.ordinal()];
+        long sum = 0;
+
+        for(int i = 0; i < 256; i++) {
+            sum += bins[i] * i;
+        }
+
+        return (double) sum / pixels;
+    }
+
+    /**
+     * Gets the population variance of a channel
+     * @param channel Channel
+     * @return Variance, or 0 for an empty image
+     */
+    public double getVariance(Channel channel) {
+        if(pixels == 0) return 0;
+
+        long[] bins = histograms[channel.ordinal()];
+        double mean = getMean(channel), sum = 0;
+
+        for(int i = 0; i < 256; i++) {
+            sum += bins[i] * (i - mean) * (i - mean);
+        }
+
+        return sum / pixels;
+    }
+
+    /**
+     * Gets the standard deviation of a channel
+     * @param channel Channel
+     * @return Standard deviation, or 0 for an empty image
+     */
+    public double getStandardDeviation(Channel channel) {
+        return Math.sqrt(getVariance(channel));
+    }
+
+    /**
+     * Gets a percentile of a channel
+     * @param channel Channel
+     * @param percent Percentage of pixels from 0 to 100
+     * @return Lowest level that at least the given percentage of pixels are at or below, or 0 for an empty image
+     */
+    public int getPercentile(Channel channel, double percent) {
+        if(percent < 0 || percent > 100) throw new IllegalArgumentException("Invalid parameter for function getPercentile: percent must be from 0 to 100");
+
+        long[] bins = histograms[channel.ordinal()];
+        // At least one pixel, so the 0th percentile is the lowest level in use
+        double wanted = Math.max(1, percent / 100 * pixels);
+        long count = 0;
+
+        for(int i = 0; i < 256; i++) {
+            count += bins[i];
+            if(count >= wanted) return i;
+        }
+
+        return pixels == 0 ? 0 : 255;
+    }
+
+    /**
+     * Predicts the mean of the red, green and blue channels after brighten or darken, from the histograms alone
+     * @param amount Amount added to every channel before clamping, negative to darken
+     * @return Mean of the three channel means after the change
+     */
+    public double getShiftedMean(int amount) {
+        if(pixels == 0) return 0;
+
+        long sum = 0;
+
+        for(int c = 0; c < 3; c++) {
+            for(int i = 0; i < 256; i++) {
+                sum += histograms[c][i] * Math.min(255, Math.max(0, i + amount));
+            }
+        }
+
+        return (double) sum / (3.0 * pixels);
+    }
+}
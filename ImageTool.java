@@ -0,0 +1,293 @@
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Command line entry point running an operation or chain over image files, for batch jobs that start a JVM per run
+ *
+ * java ImageTool [options] chain input...
+ *   chain              Steps in chain syntax, for example "blur:range=3;brighten:amount=20"
+ *   input              Image files, or - for standard input
+ *   -o path            Output file for a single input, or directory for several, - for standard output
+ *                      By default each output is written next to its input as name.out.format
+ *   -f format          png (the default), bmp or any format ImageIO can write
+ *   -q draft           Faster approximate warps, see ExecutionContext.Quality.DRAFT
+ *   -z level           Deflate level of PNG output from 0 (fastest) to 9 (smallest), 6 by default
+ *   -t threads         Threads deflating PNG output, one per core by default
+ *   -j workers         Runs the chain in tiles over worker processes, for PNG and BMP images too large for one JVM,
+ *                      see TileShards
+ *   --list             Lists the operations and their parameters
+ *   --train            Runs every operation once on a small generated image, the training run of an AppCDS archive
+ *
+ * Startup is kept short for small jobs: AWT is forced headless before any of it is loaded, PNG and BMP are read and
+ * written by ScanlineCodec so ImageIO and its plugin registry are only loaded for other formats, chains of row-local
+ * steps are streamed row by row as ImageService does, other croppable chains are encoded strip by strip as they are
+ * computed by StreamingEncoder, and none of the pixel paths allocate java.awt.Color. The classes
+ * a run loads can be archived with scripts/appcds.sh, and scripts/coldstart.sh measures the start-up time with and
+ * without the archive
+ *
+ * Exits with 0 when every input succeeded, 1 when any failed (the others are still processed) and 2 for invalid usage
+ */
+public class ImageTool {
+    private ImageTool() {}
+
+    public static void main(String[] args) {
+        // Must be set before the first AWT class is initialised
+        if(System.getProperty("java.awt.headless") == null) System.setProperty("java.awt.headless", "true");
+
+        System.exit(run(args, System.out, System.err));
+    }
+
+    /**
+     * Runs the tool without exiting
+     * @param args Command line arguments
+     * @param out Standard output, used for --list and for images written to -
+     * @param err Messages for failed inputs and invalid usage
+     * @return Exit status
+     */
+    public static int run(String[] args, PrintStream out, PrintStream err) {
+        String output = null, format = "png";
+        int workers = 0, level = -1, threads = Runtime.getRuntime().availableProcessors();
+        ExecutionContext context = new ExecutionContext();
+        List<String> positional = new ArrayList<>();
+
+        try {
+            for(int i = 0; i < args.length; i++) {
+                switch(args[i]) {
+                    case "-o":
+                        output = value(args, ++i);
+                        break;
+                    case "-f":
+                        format = value(args, ++i).toLowerCase();
+                        break;
+                    case "-q":
+                        context.setQuality(ExecutionContext.Quality.valueOf(value(args, ++i).toUpperCase()));
+                        break;
+                    case "-z":
+                        level = Integer.parseInt(value(args, ++i));
+                        if(level < 0 || level > 9) throw new IllegalArgumentException("Expected a deflate level from 0 to 9");
+                        break;
+                    case "-t":
+                        threads = Integer.parseInt(value(args, ++i));
+                        if(threads < 1) throw new IllegalArgumentException("Expected at least one thread");
+                        break;
+                    case "-j":
+                        workers = Integer.parseInt(value(args, ++i));
+                        if(workers < 1) throw new IllegalArgumentException("Expected at least one worker");
+                        break;
+                    case "--list":
+                        for(Operations.Operation operation : Operations.all()) {
+                            out.println(operation + (operation.rowLocal ? " [row-local]" : ""));
+                        }
+                        return 0;
+                    case "--train":
+                        train();
+                        return 0;
+                    default:
+                        if(args[i].startsWith("-") && !args[i].equals("-")) throw new IllegalArgumentException("Unknown option " + args[i]);
+                        positional.add(args[i]);
+                }
+            }
+
+            if(positional.size() < 2) throw new IllegalArgumentException("Expected a chain and at least one input");
+            if(workers > 0 && !format.equals("png") && !format.equals("bmp")) throw new IllegalArgumentException("Only png and bmp can be written with -j");
+            if(!format.equals("png") && !format.equals("bmp") && !ImageIO.getImageWritersByFormatName(format).hasNext()) {
+                throw new IllegalArgumentException("Unsupported format " + format);
+            }
+        }
+        catch(IllegalArgumentException e) {
+            err.println("Invalid usage: " + e.getMessage());
+            err.println("Usage: java ImageTool [-o path] [-f format] [-q draft|exact] [-z level] [-t threads] [-j workers] [--list] [--train] chain input...");
+            return 2;
+        }
+
+        List<Operations.Step> steps;
+
+        try {
+            steps = Operations.parseChain(positional.get(0));
+        }
+        catch(IllegalArgumentException e) {
+            err.println(e.getMessage());
+            return 2;
+        }
+
+        if(workers > 0) {
+            for(Operations.Step step : steps) {
+                if(!TileShards.isShardable(step.operation.name)) {
+                    err.println(step.operation.name + " needs the whole image and cannot be run with -j");
+                    return 2;
+                }
+            }
+        }
+
+        List<String> inputs = positional.subList(1, positional.size());
+        TileShards shards = workers > 0 ? new TileShards(workers) : null;
+        StreamingEncoder encoder = new StreamingEncoder(format).setLevel(level).setThreads(threads);
+        int status = 0;
+
+        for(String input : inputs) {
+            try {
+                Path target = target(input, output, format, inputs.size() > 1);
+
+                try(InputStream in = new BufferedInputStream(input.equals("-") ? System.in : Files.newInputStream(Paths.get(input)), 1 << 16);
+                    OutputStream sink = target == null ? new FilterOutputStream(out) {
+                        // Standard output stays open for the inputs after this one
+                        @Override
+                        public void close() throws IOException {
+                            flush();
+                        }
+                    } : new BufferedOutputStream(Files.newOutputStream(target), 1 << 16)) {
+                    if(shards != null) shard(in, sink, steps, encoder, context, shards);
+                    else process(in, sink, steps, encoder, context);
+                }
+            }
+            catch(IOException | IllegalArgumentException | UncheckedIOException e) {
+                err.println(input + ": " + (e instanceof NoSuchFileException ? "No such file" : e.getMessage()));
+                status = 1;
+            }
+        }
+
+        if(shards != null) shards.close();
+
+        return status;
+    }
+
+    private static String value(String[] args, int i) {
+        if(i >= args.length) throw new IllegalArgumentException("Missing value for " + args[i - 1]);
+        return args[i];
+    }
+
+    // Output file of an input, or null for standard output
+    private static Path target(String input, String output, String format, boolean several) throws IOException {
+        if("-".equals(output)) {
+            if(several) throw new IllegalArgumentException("Only one input can be written to standard output");
+            return null;
+        }
+
+        if(output != null && !several) return Paths.get(output);
+
+        if(input.equals("-")) throw new IllegalArgumentException("Give -o for images read from standard input");
+
+        Path source = Paths.get(input);
+        String name = source.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String file = (dot > 0 ? name.substring(0, dot) : name) + ".out." + format;
+
+        if(output == null) return source.resolveSibling(file);
+
+        Path directory = Paths.get(output);
+        Files.createDirectories(directory);
+        return directory.resolve(file);
+    }
+
+    // Streams row-local chains and decodes, processes and encodes the rest, as ImageService does
+    private static void process(InputStream in, OutputStream out, List<Operations.Step> steps, StreamingEncoder encoder, ExecutionContext context) throws IOException {
+        String format = encoder.getFormat();
+        ScanlineCodec.RowReader reader = ScanlineCodec.canOpen(in) ? ScanlineCodec.open(in) : null;
+
+        if(reader != null && Operations.isRowLocal(steps) && (format.equals("bmp") || format.equals("png") && !reader.isBottomUp())) {
+            ScanlinePipeline.Builder builder = ScanlinePipeline.builder();
+            Operations.addTo(builder, steps);
+
+            ScanlineCodec.RowWriter writer = encoder.createWriter(out, reader.getWidth(), reader.getHeight(), reader.isBottomUp());
+            context.call(() -> {
+                try {
+                    reader.readRows(builder.build(reader.getWidth(), reader.getHeight(), writer)::row);
+                    writer.finish();
+                }
+                catch(IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return null;
+            });
+            return;
+        }
+
+        BufferedImage image = reader != null ? ScanlineCodec.readImage(reader) : ImageIO.read(in);
+        if(image == null) throw new IllegalArgumentException("Not an image in a supported format");
+
+        context.call(() -> {
+            try {
+                encoder.write(image, steps, out);
+            }
+            catch(IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return null;
+        });
+    }
+
+    // Decodes into a raster file, runs the steps over it in tiles and encodes the result, without holding the image
+    private static void shard(InputStream in, OutputStream out, List<Operations.Step> steps, StreamingEncoder encoder, ExecutionContext context, TileShards shards) throws IOException {
+        if(!ScanlineCodec.canOpen(in)) throw new IllegalArgumentException("Only PNG and BMP images can be read with -j");
+
+        ScanlineCodec.RowReader reader = ScanlineCodec.open(in);
+        Path source = Files.createTempFile("imagetool", ".raster"), result = Files.createTempFile("imagetool", ".raster");
+
+        try {
+            RasterFile.write(reader, source);
+
+            context.call(() -> {
+                try {
+                    shards.apply(source, result, steps);
+                }
+                catch(IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return null;
+            });
+
+            try(RasterFile file = RasterFile.open(result, false)) {
+                file.encode(encoder.createWriter(out, file.getWidth(), file.getHeight(), false));
+            }
+        }
+        finally {
+            Files.deleteIfExists(source);
+            Files.deleteIfExists(result);
+        }
+    }
+
+    // Loads what a typical run loads: every operation, alone and through the scanline pipeline, and the PNG and BMP
+    // codecs, on an image small enough that the run takes well under a second
+    private static void train() {
+        BufferedImage image = new BufferedImage(64, 48, BufferedImage.TYPE_INT_ARGB);
+
+        for(int y = 0; y < image.getHeight(); y++) {
+            for(int x = 0; x < image.getWidth(); x++) {
+                image.setRGB(x, y, 0xFF000000 | x * 4 << 16 | y * 5 << 8 | (x ^ y) * 4);
+            }
+        }
+
+        for(Operations.Operation operation : Operations.all()) {
+            Object[] args = new Object[operation.params.size()];
+
+            for(int i = 0; i < args.length; i++) {
+                Operations.Param param = operation.params.get(i);
+                args[i] = param.parse(operation.name, param.type == Operations.ParamType.COLOUR ? "ff8000" : param.type == Operations.ParamType.FLOAT ? "0.5" : "3");
+            }
+
+            List<Operations.Step> steps = new ArrayList<>();
+            steps.add(operation.step(args));
+            steps.add(operation.step(args));
+
+            for(String format : new String[] {"png", "bmp"}) {
+                try {
+                    ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+                    ScanlineCodec.writeImage(image, format, encoded);
+
+                    process(new ByteArrayInputStream(encoded.toByteArray()), new ByteArrayOutputStream(), steps, new StreamingEncoder(format), new ExecutionContext());
+                    process(new ByteArrayInputStream(encoded.toByteArray()), new ByteArrayOutputStream(), steps.subList(0, 1), new StreamingEncoder(format), new ExecutionContext());
+                }
+                catch(IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,343 @@
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Renders a chain of operations and keeps every intermediate image, so that after part of the source image has been
+ * painted over only the output tiles that depend on the painted pixels are recomputed
+ *
+ * The changed rectangle is grown by the footprint of each step in turn: the range of blur and median, the blocks of pixel, the
+ * wave amplitude of the distort waves, and for the warps every output tile whose source pixels touch the change.
+ * Steps whose output pixels can depend on any source pixel (rotateAny, scaleOut, the recursive gaussianBlur and the
+ * statistics-driven autoBrighten and autoContrast) are recomputed in full, and so is everything after them
+ *
+ * Recomputed tiles are identical to a full render, except for noise, noiseGreyscale and shimmer which draw new random
+ * values for the recomputed tiles
+ */
+public class IncrementalRenderer {
+    // Side of the square tiles that are recomputed
+    private static final int TILE_SIZE = 32;
+
+    private final List<Operations.Step> steps;
+    // images[0] is the source and images[i + 1] the output of step i
+    private final BufferedImage[] images;
+    private final Footprint[] footprints;
+
+    /**
+     * Renders the steps in full
+     * @param source Source image, paint into it and call update() with the painted rectangle
+     * @param steps Steps in order
+     */
+    public IncrementalRenderer(BufferedImage source, List<Operations.Step> steps) {
+        this.steps = new ArrayList<>(steps);
+        this.images = new BufferedImage[steps.size() + 1];
+        this.footprints = new Footprint[steps.size()];
+
+        images[0] = source;
+
+        for(int i = 0; i < steps.size(); i++) {
+            images[i + 1] = steps.get(i).apply(images[i]);
+        }
+    }
+
+    /**
+     * @return Source image
+     */
+    public BufferedImage getSource() {
+        return images[0];
+    }
+
+    /**
+     * @return Output of the last step, updated in place by update()
+     */
+    public BufferedImage getResult() {
+        return images[images.length - 1];
+    }
+
+    /**
+     * Recomputes the parts of every step affected by a change to the source image
+     * Cancellation and progress come from the current ExecutionContext, a cancelled update leaves the intermediate
+     * images partly updated, so the same rectangle has to be updated again
+     * @param dirty Rectangle of the source image that was painted over
+     * @return Rectangles of the result that were recomputed
+     */
+    public List<Rectangle> update(Rectangle dirty) {
+        List<Rectangle> changed = Collections.singletonList(dirty.intersection(bounds(images[0])));
+
+        if(changed.get(0).isEmpty()) return Collections.emptyList();
+
+        for(int i = 0; i < steps.size(); i++) {
+            Operations.Step step = steps.get(i);
+            BufferedImage input = images[i], output = images[i + 1];
+
+            if(footprints[i] == null) footprints[i] = footprint(step, input);
+
+            Tiles affected = footprints[i].affected(changed, output.getWidth(), output.getHeight());
+
+            if(affected == null) {
+                // Global footprint, the whole step and every step after it are recomputed
+                images[i + 1] = step.apply(input);
+                changed = Collections.singletonList(bounds(images[i + 1]));
+                continue;
+            }
+
+            if(affected.isEmpty()) return Collections.emptyList();
+
+            changed = affected.toRectangles();
+
+            // Intermediate passes of blurPasses need their own halo around the tiles to be correct in the tiles
+            int halo = clipHalo(step);
+            List<Rectangle> clip = halo == 0 ? changed : affected.grow(halo, halo).toRectangles();
+
+            BufferedImage result = ExecutionContext.current().clip(clip).call(() -> step.apply(input));
+
+            for(Rectangle r : changed) {
+                output.getRaster().setRect(result.getRaster().createChild(r.x, r.y, r.width, r.height, r.x, r.y, null));
+            }
+        }
+
+        return changed;
+    }
+
+    // Finds which output pixels each input pixel of a step can change
+    private static Footprint footprint(Operations.Step step, BufferedImage input) {
+        Object[] args = step.getArgs();
+        int width = input.getWidth(), height = input.getHeight();
+
+        switch(step.operation.name) {
+            case "rotateAny": case "scaleOut": case "gaussianBlur": case "autoBrighten": case "autoContrast":
+                return (dirty, w, h) -> null;
+            case "reflectX":
+                return rectangles(r -> new Rectangle(width - r.x - r.width, r.y, r.width, r.height));
+            case "reflectY":
+                return rectangles(r -> new Rectangle(r.x, height - r.y - r.height, r.width, r.height));
+            case "rotateCCW":
+                // Output (x, y) is input (width - 1 - y, x)
+                return rectangles(r -> new Rectangle(r.y, width - r.x - r.width, r.height, r.width));
+            case "rotateCW":
+                // Output (x, y) is input (y, height - 1 - x)
+                return rectangles(r -> new Rectangle(height - r.y - r.height, r.x, r.height, r.width));
+            case "blur": case "median":
+                return halo((Integer) args[0], (Integer) args[0]);
+            case "blurPasses":
+                return halo((Integer) args[0] * Math.max(1, (Integer) args[1]), (Integer) args[0] * Math.max(1, (Integer) args[1]));
+            case "distortWave":
+                // Sample offsets are sine and cosine waves of amplitude 10
+                return halo(10, 10);
+            case "distortWaveX":
+                return halo(10, 0);
+            case "distortWaveY":
+                return halo(0, 10);
+            case "shimmer": case "shimmerSeeded":
+                // Sample offsets are random within 25 pixels
+                return halo(25, 25);
+            case "pixel": {
+                // Each block copies its top left pixel, so the whole block changes when that pixel does
+                int size = (Integer) args[0];
+                return rectangles(r -> {
+                    int x0 = r.x / size * size, y0 = r.y / size * size;
+                    return new Rectangle(x0, y0, (r.x + r.width + size - 1) / size * size - x0, (r.y + r.height + size - 1) / size * size - y0);
+                });
+            }
+            case "rotateAnyNoResize":
+                return new WarpFootprint(ImageManipulation.rotateAnyNoResizeMap(width, height, (Integer) args[0]), width, height, false);
+            case "circleDisfigure":
+                return new WarpFootprint(ImageManipulation.circleDisfigureMap(width, height), width, height, true);
+            case "circleDistort":
+                return new WarpFootprint(ImageManipulation.circleDistortMap(width, height), width, height, true);
+            case "concaveDistort":
+                return new WarpFootprint(ImageManipulation.concaveDistortMap(width, height), width, height, true);
+            case "sphereDistort":
+                return new WarpFootprint(ImageManipulation.sphereDistortMap(width, height), width, height, true);
+            case "ripple":
+                return new WarpFootprint(ImageManipulation.rippleMap(width, height), width, height, true);
+            case "bulge":
+                return new WarpFootprint(ImageManipulation.bulgeMap(width, height), width, height, true);
+            case "curveUp":
+                return new WarpFootprint(ImageManipulation.curveUpMap(width, height), width, height, false);
+            case "curveRight":
+                return new WarpFootprint(ImageManipulation.curveRightMap(width, height), width, height, false);
+            default:
+                // Point operations only read the pixel they write
+                return halo(0, 0);
+        }
+    }
+
+    // Extra rectangle computed around the affected tiles, so that multi-pass steps are correct inside the tiles
+    private static int clipHalo(Operations.Step step) {
+        if(!step.operation.name.equals("blurPasses")) return 0;
+
+        Object[] args = step.getArgs();
+        return (Integer) args[0] * (Math.max(1, (Integer) args[1]) - 1);
+    }
+
+    private static Footprint halo(int x, int y) {
+        return rectangles(r -> new Rectangle(r.x - x, r.y - y, r.width + 2 * x, r.height + 2 * y));
+    }
+
+    private static Footprint rectangles(RectangleMap map) {
+        return (dirty, width, height) -> {
+            Tiles tiles = new Tiles(width, height);
+
+            for(Rectangle r : dirty) {
+                tiles.mark(map.apply(r));
+            }
+
+            return tiles;
+        };
+    }
+
+    private static Rectangle bounds(BufferedImage image) {
+        return new Rectangle(0, 0, image.getWidth(), image.getHeight());
+    }
+
+    private interface RectangleMap {
+        Rectangle apply(Rectangle r);
+    }
+
+    private interface Footprint {
+        /**
+         * @param dirty Changed rectangles of the input
+         * @param width Width of the output
+         * @param height Height of the output
+         * @return Output tiles that can change, or null if any output pixel can
+         */
+        Tiles affected(List<Rectangle> dirty, int width, int height);
+    }
+
+    /**
+     * Footprint of a warp, from the bounding box of the source pixels sampled by each output tile
+     */
+    private static class WarpFootprint implements Footprint {
+        // Bounding box of each tile as x0, y0, x1, y1 (exclusive), with x1 <= x0 when the tile samples nothing
+        private final int[] boxes;
+        // Whether the warp is mixed with the input, so output pixels also read the input pixel at the same position
+        private final boolean mixed;
+
+        private WarpFootprint(WarpMap map, int width, int height, boolean mixed) {
+            Tiles grid = new Tiles(width, height);
+            this.boxes = new int[grid.columns * grid.rows * 4];
+            this.mixed = mixed;
+
+            float[] source = new float[2];
+
+            for(int ty = 0; ty < grid.rows; ty++) {
+                for(int tx = 0; tx < grid.columns; tx++) {
+                    int x0 = Integer.MAX_VALUE, y0 = Integer.MAX_VALUE, x1 = Integer.MIN_VALUE, y1 = Integer.MIN_VALUE;
+
+                    for(int y = ty * TILE_SIZE; y < Math.min(height, (ty + 1) * TILE_SIZE); y++) {
+                        for(int x = tx * TILE_SIZE; x < Math.min(width, (tx + 1) * TILE_SIZE); x++) {
+                            map.source(x, y, source);
+
+                            // Pixels mapped outside the image stay transparent whatever the input is
+                            if(source[0] < 0 || source[0] >= width || source[1] < 0 || source[1] >= height) continue;
+
+                            x0 = Math.min(x0, (int) source[0]);
+                            y0 = Math.min(y0, (int) source[1]);
+                            x1 = Math.max(x1, (int) source[0] + 1);
+                            y1 = Math.max(y1, (int) source[1] + 1);
+                        }
+                    }
+
+                    int i = (ty * grid.columns + tx) * 4;
+                    boxes[i] = x0;
+                    boxes[i + 1] = y0;
+                    boxes[i + 2] = x1;
+                    boxes[i + 3] = y1;
+                }
+            }
+        }
+
+        @Override
+        public Tiles affected(List<Rectangle> dirty, int width, int height) {
+            Tiles tiles = new Tiles(width, height);
+
+            if(mixed) {
+                for(Rectangle r : dirty) tiles.mark(r);
+            }
+
+            for(int tile = 0; tile < tiles.columns * tiles.rows; tile++) {
+                int i = tile * 4;
+
+                for(Rectangle r : dirty) {
+                    if(boxes[i] < r.x + r.width && r.x < boxes[i + 2] && boxes[i + 1] < r.y + r.height && r.y < boxes[i + 3]) {
+                        tiles.dirty[tile] = true;
+                        break;
+                    }
+                }
+            }
+
+            return tiles;
+        }
+    }
+
+    /**
+     * Set of dirty tiles of an image
+     */
+    private static class Tiles {
+        private final int width, height, columns, rows;
+        private final boolean[] dirty;
+
+        private Tiles(int width, int height) {
+            this.width = width;
+            this.height = height;
+            this.columns = (width + TILE_SIZE - 1) / TILE_SIZE;
+            this.rows = (height + TILE_SIZE - 1) / TILE_SIZE;
+            this.dirty = new boolean[columns * rows];
+        }
+
+        // Marks every tile overlapping the rectangle
+        private void mark(Rectangle r) {
+            int x0 = Math.max(0, r.x), y0 = Math.max(0, r.y);
+            int x1 = Math.min(width, r.x + r.width), y1 = Math.min(height, r.y + r.height);
+
+            if(x1 <= x0 || y1 <= y0) return;
+
+            for(int ty = y0 / TILE_SIZE; ty <= (y1 - 1) / TILE_SIZE; ty++) {
+                for(int tx = x0 / TILE_SIZE; tx <= (x1 - 1) / TILE_SIZE; tx++) {
+                    dirty[ty * columns + tx] = true;
+                }
+            }
+        }
+
+        private boolean isEmpty() {
+            for(boolean d : dirty) {
+                if(d) return false;
+            }
+
+            return true;
+        }
+
+        // Tiles overlapping the dirty tiles grown by x and y pixels
+        private Tiles grow(int x, int y) {
+            Tiles grown = new Tiles(width, height);
+
+            for(Rectangle r : toRectangles()) {
+                grown.mark(new Rectangle(r.x - x, r.y - y, r.width + 2 * x, r.height + 2 * y));
+            }
+
+            return grown;
+        }
+
+        // Dirty tiles as rectangles clipped to the image, with runs of tiles in a row merged
+        private List<Rectangle> toRectangles() {
+            List<Rectangle> rectangles = new ArrayList<>();
+
+            for(int ty = 0; ty < rows; ty++) {
+                for(int tx = 0; tx < columns; tx++) {
+                    if(!dirty[ty * columns + tx]) continue;
+
+                    int start = tx;
+                    while(tx + 1 < columns && dirty[ty * columns + tx + 1]) tx++;
+
+                    int x0 = start * TILE_SIZE, y0 = ty * TILE_SIZE;
+                    rectangles.add(new Rectangle(x0, y0, Math.min(width, (tx + 1) * TILE_SIZE) - x0, Math.min(height, y0 + TILE_SIZE) - y0));
+                }
+            }
+
+            return rectangles;
+        }
+    }
+}
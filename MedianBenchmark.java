@@ -0,0 +1,51 @@
+import java.awt.image.BufferedImage;
+import java.io.PrintStream;
+import java.util.Random;
+
+/**
+ * Throughput of ImageManipulation.median across radii 1 to 50, written as tab separated values
+ * The cost per pixel of the sliding histogram should stay roughly flat as the radius grows
+ *
+ * Run with scripts/median.sh, which appends the results to benchmarks/median.tsv
+ */
+public class MedianBenchmark {
+    private static final int[] RADII = {1, 2, 3, 5, 8, 12, 20, 30, 40, 50};
+    private static final int WIDTH = 1920, HEIGHT = 1080, RUNS = 3;
+
+    private MedianBenchmark() {}
+
+    public static void main(String[] args) {
+        print(System.out);
+    }
+
+    private static void print(PrintStream out) {
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(1);
+
+        // Noise over a gradient, so the windows hold many different levels as photographs do
+        for(int y = 0; y < HEIGHT; y++) {
+            for(int x = 0; x < WIDTH; x++) {
+                int v = (x + y) * 255 / (WIDTH + HEIGHT);
+                image.setRGB(x, y, Utils.clamp(v + random.nextInt(64) - 32, 0, 255) << 16 | random.nextInt(256) << 8 | v);
+            }
+        }
+
+        // Warms up the histogram code before anything is timed
+        ImageManipulation.median(image, 3);
+
+        out.println("radius\twidth\theight\tcores\tbest_ms\tmegapixels_per_s");
+
+        for(int radius : RADII) {
+            long best = Long.MAX_VALUE;
+
+            for(int i = 0; i < RUNS; i++) {
+                long start = System.nanoTime();
+                ImageManipulation.median(image, radius);
+                best = Math.min(best, System.nanoTime() - start);
+            }
+
+            out.println(radius + "\t" + WIDTH + "\t" + HEIGHT + "\t" + Runtime.getRuntime().availableProcessors() + "\t" + best / 1000000
+                    + "\t" + String.format("%.2f", WIDTH * (double) HEIGHT / best * 1000));
+        }
+    }
+}
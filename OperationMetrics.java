@@ -0,0 +1,441 @@
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Call counts, latencies, pixels and allocations of the ImageManipulation operations, exposed as JMX MXBeans
+ * Metrics are off unless the system property imagemanipulation.metrics is true or setEnabled(true) is called, and while
+ * they are off recording is a single read of a volatile flag, with no timing, no allocation and no JMX
+ *
+ * An operation is measured from Operations.Operation.apply, so every step of a chain or of ImageService is counted under
+ * its operation name. ImageManipulation methods called directly are measured pass by pass from ExecutionPolicy, under
+ * the name of each pass, which is the name of the operation for most of them. Passes run inside a measured operation are
+ * part of its measurement and are not counted again
+ *
+ * Counters are LongAdders, which keep a cell per contending thread, so recording from many threads at once does not
+ * contend on a shared counter
+ *
+ * Each name is registered once it is first recorded as ImageManipulation:type=Operation,name=[name], and the switch and
+ * reset as ImageManipulation:type=Metrics
+ */
+public class OperationMetrics {
+    /**
+     * Metrics of one operation or pass
+     */
+    public interface OperationMXBean {
+        /**
+         * @return Name of the operation or pass
+         */
+        String getName();
+
+        /**
+         * @return Calls that completed
+         */
+        long getCalls();
+
+        /**
+         * @return Calls that threw, including cancellations
+         */
+        long getFailures();
+
+        /**
+         * @return Input pixels of the calls that completed
+         */
+        long getPixels();
+
+        /**
+         * @return Total time of the calls that completed in nanoseconds
+         */
+        long getTotalNanos();
+
+        /**
+         * @return Longest call in nanoseconds
+         */
+        long getMaxNanos();
+
+        /**
+         * @return Millions of input pixels per second of call time
+         */
+        double getMegapixelsPerSecond();
+
+        /**
+         * @return Bytes of the images returned
+         */
+        long getOutputBytes();
+
+        /**
+         * @return Bytes allocated by the calling thread during the calls, outputs and intermediates alike, or -1 if the
+         * JVM cannot measure it
+         */
+        long getAllocatedBytes();
+
+        /**
+         * @return Calls in each latency bucket, bucket i holding the calls shorter than getLatencyBucketMicros()[i]
+         * and at least as long as the bucket before it
+         */
+        long[] getLatencyHistogram();
+
+        /**
+         * @return Exclusive upper bound of each latency bucket in microseconds
+         */
+        long[] getLatencyBucketMicros();
+
+        /**
+         * @return Median latency in milliseconds, the upper bound of its bucket
+         */
+        double getLatencyMillisP50();
+
+        /**
+         * @return 99th percentile latency in milliseconds, the upper bound of its bucket
+         */
+        double getLatencyMillisP99();
+
+        /**
+         * @return Passes run with each ExecutionPolicy strategy under this name since the JVM started
+         */
+        Map<String, Long> getPassStrategies();
+    }
+
+    /**
+     * Switch and reset for all of the metrics
+     */
+    public interface MetricsMXBean {
+        boolean isEnabled();
+
+        void setEnabled(boolean enabled);
+
+        /**
+         * Sets every counter back to zero, calls recorded while resetting may be partly kept
+         */
+        void reset();
+    }
+
+    /**
+     * A call being measured, closed when it returns or throws
+     */
+    public static class Scope implements AutoCloseable {
+        private final Stats stats;
+        private final long pixels;
+        private final long start;
+        private final long allocatedAtStart;
+        private BufferedImage output;
+        private boolean completed;
+
+        private Scope(Stats stats, long pixels) {
+            this.stats = stats;
+            this.pixels = pixels;
+            this.allocatedAtStart = allocatedBytes();
+            this.start = System.nanoTime();
+        }
+
+        /**
+         * Marks the call as completed, calls closed without it are counted as failures
+         * @param output Image returned by the call, or null for a pass
+         */
+        public void completed(BufferedImage output) {
+            this.output = output;
+            this.completed = true;
+        }
+
+        @Override
+        public void close() {
+            long nanos = System.nanoTime() - start;
+            long allocated = allocatedBytes();
+            OPEN.remove();
+
+            if(!completed) {
+                stats.failures.increment();
+                return;
+            }
+
+            stats.record(nanos, pixels, output == null ? 0 : bytes(output), allocated - allocatedAtStart);
+        }
+    }
+
+    private static class Stats implements OperationMXBean {
+        private final String name;
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder pixels = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+        private final LongAdder outputBytes = new LongAdder();
+        private final LongAdder allocatedBytes = new LongAdder();
+        private final LongAdder[] latencies = new LongAdder[BUCKETS];
+
+        Stats(String name) {
+            this.name = name;
+            for(int i = 0; i < BUCKETS; i++) latencies[i] = new LongAdder();
+        }
+
+        void record(long nanos, long pixels, long outputBytes, long allocatedBytes) {
+            calls.increment();
+            this.pixels.add(pixels);
+            this.nanos.add(nanos);
+            maxNanos.accumulate(nanos);
+            this.outputBytes.add(outputBytes);
+            this.allocatedBytes.add(allocatedBytes);
+            // Bucket i holds latencies of 2^(i-1) up to 2^i microseconds
+            latencies[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos / 1000))].increment();
+        }
+
+        void reset() {
+            for(LongAdder adder : new LongAdder[] {calls, failures, pixels, nanos, outputBytes, allocatedBytes}) adder.reset();
+            for(LongAdder adder : latencies) adder.reset();
+            maxNanos.reset();
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public long getCalls() {
+            return calls.sum();
+        }
+
+        @Override
+        public long getFailures() {
+            return failures.sum();
+        }
+
+        @Override
+        public long getPixels() {
+            return pixels.sum();
+        }
+
+        @Override
+        public long getTotalNanos() {
+            return nanos.sum();
+        }
+
+        @Override
+        public long getMaxNanos() {
+            return maxNanos.get();
+        }
+
+        @Override
+        public double getMegapixelsPerSecond() {
+            long total = nanos.sum();
+            return total == 0 ? 0 : pixels.sum() * 1000.0 / total;
+        }
+
+        @Override
+        public long getOutputBytes() {
+            return outputBytes.sum();
+        }
+
+        @Override
+        public long getAllocatedBytes() {
+            return Allocation.BEAN == null ? -1 : allocatedBytes.sum();
+        }
+
+        @Override
+        public long[] getLatencyHistogram() {
+            long[] histogram = new long[BUCKETS];
+            for(int i = 0; i < BUCKETS; i++) histogram[i] = latencies[i].sum();
+            return histogram;
+        }
+
+        @Override
+        public long[] getLatencyBucketMicros() {
+            long[] bounds = new long[BUCKETS];
+            for(int i = 0; i < BUCKETS; i++) bounds[i] = 1L << i;
+            return bounds;
+        }
+
+        @Override
+        public double getLatencyMillisP50() {
+            return percentile(0.5);
+        }
+
+        @Override
+        public double getLatencyMillisP99() {
+            return percentile(0.99);
+        }
+
+        @Override
+        public Map<String, Long> getPassStrategies() {
+            Map<String, Long> passes = new TreeMap<>();
+
+            for(ExecutionPolicy.Strategy strategy : ExecutionPolicy.Strategy.values()) {
+                passes.put(strategy.name(), ExecutionPolicy.getStrategyCount(name, strategy));
+            }
+
+            return passes;
+        }
+
+        private double percentile(double p) {
+            long[] histogram = getLatencyHistogram();
+            long total = 0;
+            for(long count : histogram) total += count;
+            if(total == 0) return 0;
+
+            long seen = 0;
+
+            for(int i = 0; i < BUCKETS; i++) {
+                seen += histogram[i];
+                if(seen >= p * total) return (1L << i) / 1000.0;
+            }
+
+            return (1L << BUCKETS - 1) / 1000.0;
+        }
+    }
+
+    private static class Control implements MetricsMXBean {
+        @Override
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        @Override
+        public void setEnabled(boolean enabled) {
+            OperationMetrics.setEnabled(enabled);
+        }
+
+        @Override
+        public void reset() {
+            OperationMetrics.reset();
+        }
+    }
+
+    private static final String DOMAIN = "ImageManipulation";
+
+    // Latency buckets, the last one holds everything from about 18 minutes up
+    private static final int BUCKETS = 32;
+
+    private static final Map<String, Stats> stats = new ConcurrentHashMap<>();
+
+    // Scope open on the current thread, so passes inside a measured operation are not measured again
+    private static final ThreadLocal<Scope> OPEN = new ThreadLocal<>();
+
+    private static volatile boolean enabled;
+    private static boolean controlRegistered;
+
+    static {
+        if(Boolean.getBoolean("imagemanipulation.metrics")) setEnabled(true);
+    }
+
+    private OperationMetrics() {}
+
+    /**
+     * Turns recording on or off, the first time it is turned on the MXBeans are registered with the platform MBean
+     * server
+     * @param enabled Whether to record
+     */
+    public static synchronized void setEnabled(boolean enabled) {
+        if(enabled && !controlRegistered) {
+            register(DOMAIN + ":type=Metrics", new Control());
+            controlRegistered = true;
+            stats.values().forEach(OperationMetrics::register);
+        }
+
+        OperationMetrics.enabled = enabled;
+    }
+
+    /**
+     * @return Whether calls are being recorded
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Sets every counter back to zero
+     */
+    public static void reset() {
+        stats.values().forEach(Stats::reset);
+    }
+
+    /**
+     * Gets the metrics of an operation or pass
+     * @param name Name of the operation or pass
+     * @return Metrics, or null if nothing has been recorded under the name
+     */
+    public static OperationMXBean get(String name) {
+        return stats.get(name);
+    }
+
+    /**
+     * Starts measuring a call
+     * Use with try-with-resources, which skips closing a null scope, and call completed() before returning
+     * @param name Name of the operation or pass
+     * @param pixels Pixels the call processes
+     * @return Scope to close when the call returns, or null when metrics are off or a call is already being measured on
+     * this thread
+     */
+    public static Scope open(String name, long pixels) {
+        if(!enabled || OPEN.get() != null) return null;
+
+        Stats named = stats.get(name);
+
+        if(named == null) {
+            Stats created = new Stats(name);
+            named = stats.putIfAbsent(name, created);
+
+            // Registered outside of the map so JMX is never called while holding a bin of it
+            if(named == null) {
+                named = created;
+                register(created);
+            }
+        }
+
+        Scope scope = new Scope(named, pixels);
+        OPEN.set(scope);
+        return scope;
+    }
+
+    private static void register(Stats stats) {
+        // Operation and pass names are plain identifiers, anything else is quoted
+        String name = stats.name.matches("\\w+") ? stats.name : ObjectName.quote(stats.name);
+        register(DOMAIN + ":type=Operation,name=" + name, stats);
+    }
+
+    private static void register(String name, Object bean) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+        try {
+            ObjectName objectName = new ObjectName(name);
+            // Another copy of the library in the same JVM may have registered the name first
+            if(!server.isRegistered(objectName)) server.registerMBean(bean, objectName);
+        }
+        catch(JMException e) {
+            throw new IllegalStateException("Could not register " + name, e);
+        }
+    }
+
+    // Bytes of pixel data held by an image
+    private static long bytes(BufferedImage image) {
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        return (long) buffer.getSize() * buffer.getNumBanks() * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+    }
+
+    private static long allocatedBytes() {
+        return Allocation.BEAN == null ? 0 : Allocation.BEAN.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    // The allocation counter of HotSpot and compatible JVMs, in a class of its own so it is only looked up once metrics
+    // are on. Null if this JVM has none or it is turned off
+    private static class Allocation {
+        static final com.sun.management.ThreadMXBean BEAN = bean();
+
+        private static com.sun.management.ThreadMXBean bean() {
+            ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+
+            if(!(bean instanceof com.sun.management.ThreadMXBean)) return null;
+
+            com.sun.management.ThreadMXBean allocation = (com.sun.management.ThreadMXBean) bean;
+            return allocation.isThreadAllocatedMemorySupported() && allocation.isThreadAllocatedMemoryEnabled() ? allocation : null;
+        }
+    }
+}
@@ -0,0 +1,473 @@
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.*;
+import java.util.List;
+
+/**
+ * Registry of the ImageManipulation operations by name, so they can be chosen and chained at runtime
+ * A chain is written as steps separated by semicolons, each step being the operation name optionally followed by a colon
+ * and its named parameters, for example "greyScale;blur:range=3;circleFade:colour=ff0000,radius=100,fadeLength=40"
+ *
+ * Operations that take a second image (removeWatermark and addWatermark) are not registered
+ */
+public class Operations {
+    /**
+     * Type of an operation parameter
+     */
+    public enum ParamType {
+        INT,
+        FLOAT,
+        // Written as a hex RGB value such as ff8000
+        COLOUR
+    }
+
+    /**
+     * Calls the ImageManipulation method of an operation
+     */
+    public interface Implementation {
+        BufferedImage apply(BufferedImage image, Object[] args);
+    }
+
+    /**
+     * Named parameter of an operation
+     */
+    public static class Param {
+        public final String name;
+        public final ParamType type;
+        // Range of values accepted for an INT or FLOAT parameter, both ends included
+        public final double min, max;
+
+        private Param(String name, ParamType type, double min, double max) {
+            this.name = name;
+            this.type = type;
+            this.min = min;
+            this.max = max;
+        }
+
+        /**
+         * Converts a string to the type of this parameter
+         * @param operation Name of the operation, for the error message
+         * @param value Value to parse
+         * @return Parsed value
+         */
+        public Object parse(String operation, String value) {
+            try {
+                switch(type) {
+                    case INT: return check(operation, Integer.parseInt(value.trim()));
+                    case FLOAT: return check(operation, Float.parseFloat(value.trim()));
+                    default: return new Color(Integer.parseInt(value.trim().replace("#", ""), 16));
+                }
+            }
+            catch(NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid parameter for operation " + operation + ": " + name + " must be " + type.name().toLowerCase() + " but was " + value);
+            }
+        }
+
+        /**
+         * Checks a value is in the range of this parameter
+         * @param operation Name of the operation, for the error message
+         * @param value Value to check
+         * @return The value
+         */
+        public Object check(String operation, Object value) {
+            if(type != ParamType.COLOUR && value instanceof Number) {
+                double v = ((Number) value).doubleValue();
+
+                // Also rejects NaN
+                if(!(v >= min && v <= max)) {
+                    throw new IllegalArgumentException("Invalid parameter for operation " + operation + ": " + name + " must be " + range() + " but was " + value);
+                }
+            }
+
+            return value;
+        }
+
+        // Describes the accepted range for error messages
+        private String range() {
+            if(min == Double.NEGATIVE_INFINITY && max == Double.POSITIVE_INFINITY) return "a number";
+            if(max == Double.POSITIVE_INFINITY) return "at least " + bound(min);
+            if(min == Double.NEGATIVE_INFINITY) return "at most " + bound(max);
+            return "from " + bound(min) + " to " + bound(max);
+        }
+
+        private String bound(double value) {
+            return type == ParamType.INT ? String.valueOf((long) value) : String.valueOf((float) value);
+        }
+
+        /**
+         * Converts a value of this parameter back to a string
+         * @param value Value
+         * @return String that parse() turns back into the value
+         */
+        public String format(Object value) {
+            if(type == ParamType.COLOUR) return String.format("%06x", ((Color) value).getRGB() & 0xFFFFFF);
+            return String.valueOf(value);
+        }
+    }
+
+    /**
+     * An ImageManipulation operation and its parameters
+     */
+    public static class Operation {
+        public final String name;
+        public final ExecutionPolicy.CostClass cost;
+        // Whether each output row only needs the same source row, so the operation can run in a ScanlinePipeline
+        public final boolean rowLocal;
+        // Whether the same input and arguments always give the same output, false for the unseeded random operations
+        public final boolean deterministic;
+        public final List<Param> params;
+        private final Implementation implementation;
+
+        private Operation(String name, ExecutionPolicy.CostClass cost, boolean rowLocal, boolean deterministic, Implementation implementation, Param... params) {
+            this.name = name;
+            this.cost = cost;
+            this.rowLocal = rowLocal;
+            this.deterministic = deterministic;
+            this.implementation = implementation;
+            this.params = Collections.unmodifiableList(Arrays.asList(params));
+        }
+
+        /**
+         * Runs the operation
+         * @param image Input image
+         * @param args Arguments in parameter order
+         * @return Output image
+         */
+        public BufferedImage apply(BufferedImage image, Object... args) {
+            try(OperationMetrics.Scope scope = OperationMetrics.open(name, (long) image.getWidth() * image.getHeight());
+                TraceEvents.Span span = TraceEvents.operation(this, args, image)) {
+                BufferedImage output = implementation.apply(image, args);
+                if(scope != null) scope.completed(output);
+                if(span != null) span.completed(output);
+                return output;
+            }
+        }
+
+        /**
+         * Writes arguments in chain syntax
+         * @param args Arguments in parameter order
+         * @return The operation and arguments, for example "blur:range=3"
+         */
+        String describe(Object[] args) {
+            StringBuilder s = new StringBuilder(name);
+
+            for(int i = 0; i < args.length && i < params.size(); i++) {
+                Param param = params.get(i);
+                s.append(i == 0 ? ":" : ",").append(param.name).append("=").append(param.format(args[i]));
+            }
+
+            return s.toString();
+        }
+
+        /**
+         * Creates a step from named string values
+         * @param values Parameter values by name, every parameter is required and unknown names are rejected
+         * @return Step
+         */
+        public Step step(Map<String, String> values) {
+            Object[] args = new Object[params.size()];
+
+            for(int i = 0; i < args.length; i++) {
+                Param param = params.get(i);
+                String value = values.get(param.name);
+
+                if(value == null) throw new IllegalArgumentException("Invalid parameter for operation " + name + ": Missing " + param.name);
+
+                args[i] = param.parse(name, value);
+            }
+
+            for(String key : values.keySet()) {
+                if(params.stream().noneMatch(p -> p.name.equals(key))) throw new IllegalArgumentException("Invalid parameter for operation " + name + ": Unknown parameter " + key);
+            }
+
+            return new Step(this, args);
+        }
+
+        /**
+         * Creates a step from arguments in parameter order
+         * @param args Arguments
+         * @return Step
+         */
+        public Step step(Object... args) {
+            if(args.length != params.size()) throw new IllegalArgumentException("Invalid parameter for operation " + name + ": Expected " + params.size() + " arguments but got " + args.length);
+
+            for(int i = 0; i < args.length; i++) {
+                params.get(i).check(name, args[i]);
+            }
+
+            return new Step(this, args.clone());
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder s = new StringBuilder(name);
+
+            for(int i = 0; i < params.size(); i++) {
+                Param param = params.get(i);
+                s.append(i == 0 ? "(" : ", ").append(param.name).append(": ").append(param.type.name().toLowerCase());
+
+                if(param.type != ParamType.COLOUR && (param.min != Double.NEGATIVE_INFINITY || param.max != Double.POSITIVE_INFINITY)) {
+                    s.append(" ").append(param.range());
+                }
+            }
+
+            return params.isEmpty() ? s.toString() : s.append(")").toString();
+        }
+    }
+
+    /**
+     * An operation with its arguments, one step of a chain
+     */
+    public static class Step {
+        public final Operation operation;
+        private final Object[] args;
+
+        private Step(Operation operation, Object[] args) {
+            this.operation = operation;
+            this.args = args;
+        }
+
+        /**
+         * @return Copy of the arguments in parameter order
+         */
+        public Object[] getArgs() {
+            return args.clone();
+        }
+
+        /**
+         * Runs the step
+         * @param image Input image
+         * @return Output image
+         */
+        public BufferedImage apply(BufferedImage image) {
+            return operation.apply(image, args);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Step && ((Step) o).operation == operation && Arrays.equals(((Step) o).args, args);
+        }
+
+        @Override
+        public int hashCode() {
+            return operation.name.hashCode() * 31 + Arrays.hashCode(args);
+        }
+
+        /**
+         * @return The step in chain syntax, for example "blur:range=3"
+         */
+        @Override
+        public String toString() {
+            return operation.describe(args);
+        }
+    }
+
+    private static final Map<String, Operation> operations = new LinkedHashMap<>();
+
+    // Bounds on the parameters whose cost grows without limit, so one step cannot hold a worker for as long as it likes
+    private static final int MAX_PASSES = 100;
+    private static final float MIN_SIGMA = .01f, MAX_SIGMA = 1000;
+
+    static {
+        register("reflectX", ExecutionPolicy.CostClass.POINT, true, (image, a) -> ImageManipulation.reflectX(image));
+        register("reflectY", ExecutionPolicy.CostClass.POINT, false, (image, a) -> ImageManipulation.reflectY(image));
+        register("rotateCCW", ExecutionPolicy.CostClass.WARP, false, (image, a) -> ImageManipulation.rotateCCW(image));
+        register("rotateCW", ExecutionPolicy.CostClass.WARP, false, (image, a) -> ImageManipulation.rotateCW(image));
+        register("rotateAny", ExecutionPolicy.CostClass.WARP, false, (image, a) -> ImageManipulation.rotateAny(image, (Integer) a[0]), param("degrees", ParamType.INT));
+        register("rotateAnyNoResize", ExecutionPolicy.CostClass.WARP, false, (image, a) -> ImageManipulation.rotateAnyNoResize(image, (Integer) a[0]), param("degrees", ParamType.INT));
+        register("greyScale", ExecutionPolicy.CostClass.POINT, true, (image, a) -> ImageManipulation.greyScale(image));
+        register("negative", ExecutionPolicy.CostClass.POINT, true, (image, a) -> ImageManipulation.negative(image));
+        register("rainbowWave", ExecutionPolicy.CostClass.POINT, true, (image, a) -> ImageManipulation.rainbowWave(image, (Integer) a[0], (Float) a[1]), param("intensity", ParamType.INT), param("seed", ParamType.FLOAT));
+        register("rainbowGradient", ExecutionPolicy.CostClass.POINT, true, (image, a) -> ImageManipulation.rainbowGradient(image, (Integer) a[0], (Float) a[1]), param("amount", ParamType.INT), param("seed", ParamType.FLOAT));
+        register("red", ExecutionPolicy.CostClass.POINT, true, (image, a) -> ImageManipulation.red(image, (Integer) a[0]), param("amount", ParamType.INT));
+        register("green", ExecutionPolicy.CostClass.POINT, true, (image, a) -> ImageManipulation.green(image, (Integer) a[0]), param("amount", ParamType.INT));
+        register("blue", ExecutionPolicy.CostClass.POINT, true, (image, a) -> ImageManipulation.blue(image, (Integer) a[0]), param("amount", ParamType.INT));
+        register("warm", ExecutionPolicy.CostClass.POINT, true, (image, a) -> ImageManipulation.warm(image, (Integer) a[0]), param("amount", ParamType.INT));
+        register("cool", ExecutionPolicy.CostClass.POINT, true, (image, a) -> ImageManipulation.cool(image, (Integer) a[0]), param("amount", ParamType.INT));
+        register("brighten", ExecutionPolicy.CostClass.POINT, true, (image, a) -> ImageManipulation.brighten(image, (Integer) a[0]), param("amount", ParamType.INT));
+        register("darken", ExecutionPolicy.CostClass.POINT, true, (image, a) -> ImageManipulation.darken(image, (Integer) a[0]), param("amount", ParamType.INT));
+        register("autoBrighten", ExecutionPolicy.CostClass.POINT, false, (image, a) -> ImageManipulation.autoBrighten(image, (Integer) a[0]), param("target", ParamType.INT));
+        register("autoContrast", ExecutionPolicy.CostClass.POINT, false, (image, a) -> ImageManipulation.autoContrast(image, (Float) a[0]), param("clip", ParamType.FLOAT));
+        register("saturate", ExecutionPolicy.CostClass.POINT, true, (image, a) -> ImageManipulation.saturate(image, (Integer) a[0]), param("amount", ParamType.INT));
+        register("blur", ExecutionPolicy.CostClass.NEIGHBOURHOOD, false, (image, a) -> ImageManipulation.blur(image, (Integer) a[0]), param("range", ParamType.INT, 0));
+        register("blurPasses", ExecutionPolicy.CostClass.NEIGHBOURHOOD, false, (image, a) -> ImageManipulation.blurPasses(image, (Integer) a[0], (Integer) a[1]), param("range", ParamType.INT, 0), param("passes", ParamType.INT, 1, MAX_PASSES));
+        register("median", ExecutionPolicy.CostClass.NEIGHBOURHOOD, false, (image, a) -> ImageManipulation.median(image, (Integer) a[0]), param("radius", ParamType.INT, 0));
+        register("gaussianBlur", ExecutionPolicy.CostClass.NEIGHBOURHOOD, false, (image, a) -> ImageManipulation.gaussianBlur(image, (Float) a[0]), param("sigma", ParamType.FLOAT, MIN_SIGMA, MAX_SIGMA));
+        register("distortWave", ExecutionPolicy.CostClass.NEIGHBOURHOOD, false, (image, a) -> ImageManipulation.distortWave(image));
+        register("distortWaveX", ExecutionPolicy.CostClass.NEIGHBOURHOOD, true, (image, a) -> ImageManipulation.distortWaveX(image));
+        register("distortWaveY", ExecutionPolicy.CostClass.NEIGHBOURHOOD, false, (image, a) -> ImageManipulation.distortWaveY(image));
+        registerRandom("shimmer", ExecutionPolicy.CostClass.NEIGHBOURHOOD, false, (image, a) -> ImageManipulation.shimmer(image, (Integer) a[0]), param("amount", ParamType.INT));
+        register("shimmerSeeded", ExecutionPolicy.CostClass.NEIGHBOURHOOD, false, (image, a) -> ImageManipulation.shimmer(image, (Integer) a[0], (Integer) a[1]), param("amount", ParamType.INT), param("seed", ParamType.INT));
+        register("extractWatermarkWhiteBackground", ExecutionPolicy.CostClass.POINT, false, (image, a) -> ImageManipulation.extractWatermarkWhiteBackground(image));
+        registerRandom("noise", ExecutionPolicy.CostClass.POINT, true, (image, a) -> ImageManipulation.noise(image, (Integer) a[0]), param("amount", ParamType.INT));
+        register("noiseSeeded", ExecutionPolicy.CostClass.POINT, true, (image, a) -> ImageManipulation.noise(image, (Integer) a[0], (Integer) a[1]), param("amount", ParamType.INT), param("seed", ParamType.INT));
+        registerRandom("noiseGreyscale", ExecutionPolicy.CostClass.POINT, true, (image, a) -> ImageManipulation.noiseGreyscale(image, (Integer) a[0]), param("amount", ParamType.INT));
+        register("noiseGreyscaleSeeded", ExecutionPolicy.CostClass.POINT, true, (image, a) -> ImageManipulation.noiseGreyscale(image, (Integer) a[0], (Integer) a[1]), param("amount", ParamType.INT), param("seed", ParamType.INT));
+        register("pixel", ExecutionPolicy.CostClass.POINT, false, (image, a) -> ImageManipulation.pixel(image, (Integer) a[0]), param("pixelSize", ParamType.INT, 1));
+        register("circleFade", ExecutionPolicy.CostClass.POINT, true, (image, a) -> ImageManipulation.circleFade(image, (Color) a[0], (Integer) a[1], (Integer) a[2]), param("colour", ParamType.COLOUR), param("radius", ParamType.INT), param("fadeLength", ParamType.INT));
+        register("squareFade", ExecutionPolicy.CostClass.POINT, true, (image, a) -> ImageManipulation.squareFade(image, (Color) a[0], (Integer) a[1], (Integer) a[2]), param("colour", ParamType.COLOUR), param("width", ParamType.INT), param("fadeLength", ParamType.INT));
+        register("circleDisfigure", ExecutionPolicy.CostClass.WARP, false, (image, a) -> ImageManipulation.circleDisfigure(image, (Integer) a[0]), param("amount", ParamType.INT));
+        register("circleDistort", ExecutionPolicy.CostClass.WARP, false, (image, a) -> ImageManipulation.circleDistort(image, (Integer) a[0]), param("amount", ParamType.INT));
+        register("concaveDistort", ExecutionPolicy.CostClass.WARP, false, (image, a) -> ImageManipulation.concaveDistort(image, (Integer) a[0]), param("alpha", ParamType.INT));
+        register("sphereDistort", ExecutionPolicy.CostClass.WARP, false, (image, a) -> ImageManipulation.sphereDistort(image, (Integer) a[0]), param("alpha", ParamType.INT));
+        register("ripple", ExecutionPolicy.CostClass.WARP, false, (image, a) -> ImageManipulation.ripple(image, (Integer) a[0]), param("alpha", ParamType.INT));
+        register("scaleOut", ExecutionPolicy.CostClass.WARP, false, (image, a) -> ImageManipulation.scaleOut(image));
+        register("bulge", ExecutionPolicy.CostClass.WARP, false, (image, a) -> ImageManipulation.bulge(image, (Integer) a[0]), param("alpha", ParamType.INT));
+        register("curveUp", ExecutionPolicy.CostClass.WARP, false, (image, a) -> ImageManipulation.curveUp(image));
+        register("curveRight", ExecutionPolicy.CostClass.WARP, false, (image, a) -> ImageManipulation.curveRight(image));
+    }
+
+    private static void register(String name, ExecutionPolicy.CostClass cost, boolean rowLocal, Implementation implementation, Param... params) {
+        operations.put(name, new Operation(name, cost, rowLocal, true, implementation, params));
+    }
+
+    // Registers an operation that gives a different result every time
+    private static void registerRandom(String name, ExecutionPolicy.CostClass cost, boolean rowLocal, Implementation implementation, Param... params) {
+        operations.put(name, new Operation(name, cost, rowLocal, false, implementation, params));
+    }
+
+    private static Param param(String name, ParamType type) {
+        return new Param(name, type, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+    }
+
+    private static Param param(String name, ParamType type, double min) {
+        return new Param(name, type, min, Double.POSITIVE_INFINITY);
+    }
+
+    private static Param param(String name, ParamType type, double min, double max) {
+        return new Param(name, type, min, max);
+    }
+
+    /**
+     * Gets an operation by name
+     * @param name Name of the ImageManipulation method
+     * @return Operation
+     */
+    public static Operation get(String name) {
+        Operation operation = operations.get(name);
+
+        if(operation == null) throw new IllegalArgumentException("Invalid operation: Unknown operation " + name);
+
+        return operation;
+    }
+
+    /**
+     * @return Every registered operation, in the order of ImageManipulation
+     */
+    public static Collection<Operation> all() {
+        return Collections.unmodifiableCollection(operations.values());
+    }
+
+    /**
+     * Parses a single step such as "blur:range=3"
+     * @param spec Step in chain syntax
+     * @return Step
+     */
+    public static Step parseStep(String spec) {
+        spec = spec.trim();
+        int colon = spec.indexOf(':');
+
+        Operation operation = get(colon == -1 ? spec : spec.substring(0, colon).trim());
+        Map<String, String> values = new LinkedHashMap<>();
+
+        if(colon != -1) {
+            for(String pair : spec.substring(colon + 1).split(",")) {
+                if(pair.trim().isEmpty()) continue;
+
+                int equals = pair.indexOf('=');
+                if(equals == -1) throw new IllegalArgumentException("Invalid parameter for operation " + operation.name + ": Expected name=value but got " + pair);
+
+                values.put(pair.substring(0, equals).trim(), pair.substring(equals + 1).trim());
+            }
+        }
+
+        return operation.step(values);
+    }
+
+    /**
+     * Parses a chain such as "greyScale;blur:range=3"
+     * @param spec Steps in chain syntax separated by semicolons
+     * @return Steps in order
+     */
+    public static List<Step> parseChain(String spec) {
+        List<Step> steps = new ArrayList<>();
+
+        for(String step : spec.split(";")) {
+            if(!step.trim().isEmpty()) steps.add(parseStep(step));
+        }
+
+        return steps;
+    }
+
+    /**
+     * Runs steps one after another, after PlanOptimiser has removed or merged the steps it can, which gives the same
+     * result with fewer passes. Steps are run as they are in a clipped context, where merged steps would compute a
+     * different part of each pass
+     * @param image Input image
+     * @param steps Steps in order
+     * @return Output of the last step, or the input image if there are no steps
+     */
+    public static BufferedImage apply(BufferedImage image, List<Step> steps) {
+        if(steps.size() < 2 || ExecutionContext.current().getClip() != null) return run(image, steps);
+
+        return PlanOptimiser.optimise(steps).apply(image);
+    }
+
+    /**
+     * Runs steps one after another without optimising them
+     * Runs of two or more warps without an alpha mix are applied as one WarpChain, which gives the same result with a
+     * single pass. Mixed warps read their input twice per stage, so a chain of them costs more than running them in turn
+     * @param image Input image
+     * @param steps Steps in order
+     * @return Output of the last step, or the input image if there are no steps
+     */
+    static BufferedImage run(BufferedImage image, List<Step> steps) {
+        for(int i = 0; i < steps.size(); i++) {
+            int end = i;
+            while(end < steps.size() && WarpChain.isUnmixedWarp(steps.get(end).operation.name)) end++;
+
+            if(end - i < 2) {
+                image = steps.get(i).apply(image);
+                continue;
+            }
+
+            WarpChain chain = new WarpChain();
+
+            for(Step step : steps.subList(i, end)) {
+                chain.add(step.operation.name, step.args);
+            }
+
+            image = chain.apply(image);
+            i = end - 1;
+        }
+
+        return image;
+    }
+
+    /**
+     * Adds row-local steps to a scanline pipeline
+     * @param builder Pipeline builder
+     * @param steps Steps, all of which must be row-local
+     */
+    public static void addTo(ScanlinePipeline.Builder builder, List<Step> steps) {
+        for(Step step : steps) {
+            builder.add(step.operation.name, step.args);
+        }
+    }
+
+    /**
+     * @param steps Steps
+     * @return Whether every step always gives the same output for the same input
+     */
+    public static boolean isDeterministic(List<Step> steps) {
+        return steps.stream().allMatch(step -> step.operation.deterministic);
+    }
+
+    /**
+     * @param steps Steps
+     * @return Whether every step is row-local
+     */
+    public static boolean isRowLocal(List<Step> steps) {
+        return steps.stream().allMatch(step -> step.operation.rowLocal);
+    }
+}
@@ -0,0 +1,351 @@
+import java.awt.color.ColorSpace;
+import java.awt.image.*;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+/**
+ * A view of pixels stored in an int array, a byte array or a ByteBuffer, with a width, height, row stride and channel
+ * order, which every ImageManipulation operation can read from and write into without copying
+ *
+ * asImage() is a BufferedImage backed by the same memory, so operations read the input in place, and apply() installs
+ * the output view as the output image of an ExecutionContext so the operation writes its result straight into it.
+ * Operations that cannot write into the output (the watermark operations, or any result of a different size) return a
+ * new image, which is copied into the output once
+ *
+ * The stride lets a view cover a rectangle of a larger frame, see view()
+ */
+public class PixelBuffer {
+    /**
+     * Order of the channels of a pixel
+     * For byte storage it is the order of the bytes in memory, for int storage the order from the highest byte to the
+     * lowest, so ARGB is the layout of BufferedImage.TYPE_INT_ARGB and RGBA bytes read as little endian ints are ABGR
+     */
+    public enum ChannelOrder {
+        // Offsets of red, green, blue and alpha from the first byte of a pixel, alpha is -1 when there is none
+        RGBA(0, 1, 2, 3),
+        BGRA(2, 1, 0, 3),
+        ARGB(1, 2, 3, 0),
+        ABGR(3, 2, 1, 0),
+        RGB(0, 1, 2, -1),
+        BGR(2, 1, 0, -1);
+
+        private final int[] offsets;
+
+        ChannelOrder(int red, int green, int blue, int alpha) {
+            this.offsets = alpha < 0 ? new int[] {red, green, blue} : new int[] {red, green, blue, alpha};
+        }
+
+        /**
+         * @return Whether the pixels have an alpha channel
+         */
+        public boolean hasAlpha() {
+            return offsets.length == 4;
+        }
+
+        /**
+         * @return Number of bytes in a pixel stored as bytes
+         */
+        public int getBytesPerPixel() {
+            return offsets.length;
+        }
+
+        // Mask of a channel in an int holding bytesPerPixel bytes, the first byte being the highest
+        private int mask(int channel) {
+            return 0xFF << (offsets.length - 1 - offsets[channel]) * 8;
+        }
+    }
+
+    private final Object storage;
+    private final int offset, width, height, stride;
+    private final ChannelOrder order;
+    private final BufferedImage image;
+
+    private PixelBuffer(Object storage, int offset, int width, int height, int stride, ChannelOrder order) {
+        if(width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Invalid parameter for function wrap: Size must be positive, was " + width + "x" + height);
+        }
+
+        int pixelSize = storage instanceof int[] ? 1 : order.getBytesPerPixel();
+        long end = offset + (long) (height - 1) * stride + (long) width * pixelSize;
+
+        if(offset < 0 || stride < width * pixelSize || end > capacity(storage)) {
+            throw new IllegalArgumentException("Invalid parameter for function wrap: " + width + "x" + height + " pixels with stride " + stride + " at offset " + offset + " do not fit in the storage");
+        }
+
+        this.storage = storage;
+        this.offset = offset;
+        this.width = width;
+        this.height = height;
+        this.stride = stride;
+        this.order = order;
+        this.image = createImage();
+    }
+
+    /**
+     * Wraps an int array with one pixel per int
+     * @param pixels Pixel array
+     * @param offset Index of the top left pixel
+     * @param width Width in pixels
+     * @param height Height in pixels
+     * @param stride Ints from the start of one row to the start of the next
+     * @param order Channel order from the highest byte to the lowest
+     * @return View of the pixels
+     */
+    public static PixelBuffer wrap(int[] pixels, int offset, int width, int height, int stride, ChannelOrder order) {
+        return new PixelBuffer(pixels, offset, width, height, stride, order);
+    }
+
+    /**
+     * Wraps an int array of ARGB pixels with no padding between rows
+     * @param pixels Pixel array
+     * @param width Width in pixels
+     * @param height Height in pixels
+     * @return View of the pixels
+     */
+    public static PixelBuffer wrap(int[] pixels, int width, int height) {
+        return wrap(pixels, 0, width, height, width, ChannelOrder.ARGB);
+    }
+
+    /**
+     * Wraps a byte array with one byte per channel
+     * @param pixels Pixel bytes
+     * @param offset Index of the first byte of the top left pixel
+     * @param width Width in pixels
+     * @param height Height in pixels
+     * @param stride Bytes from the start of one row to the start of the next
+     * @param order Channel order in memory
+     * @return View of the pixels
+     */
+    public static PixelBuffer wrap(byte[] pixels, int offset, int width, int height, int stride, ChannelOrder order) {
+        return new PixelBuffer(pixels, offset, width, height, stride, order);
+    }
+
+    /**
+     * Wraps a ByteBuffer with one byte per channel, starting at its position
+     * Direct buffers are read and written in place, which is slower per pixel than an array but never copies
+     * @param pixels Pixel bytes
+     * @param width Width in pixels
+     * @param height Height in pixels
+     * @param stride Bytes from the start of one row to the start of the next
+     * @param order Channel order in memory
+     * @return View of the pixels
+     */
+    public static PixelBuffer wrap(ByteBuffer pixels, int width, int height, int stride, ChannelOrder order) {
+        if(pixels.hasArray()) {
+            return wrap(pixels.array(), pixels.arrayOffset() + pixels.position(), width, height, stride, order);
+        }
+
+        return new PixelBuffer(pixels, pixels.position(), width, height, stride, order);
+    }
+
+    /**
+     * Allocates an ARGB int buffer
+     * @param width Width in pixels
+     * @param height Height in pixels
+     * @return Transparent buffer
+     */
+    public static PixelBuffer allocate(int width, int height) {
+        return wrap(new int[width * height], width, height);
+    }
+
+    /**
+     * Creates a view of a rectangle of this buffer, sharing its memory
+     * @param x Left of the rectangle
+     * @param y Top of the rectangle
+     * @param width Width of the rectangle
+     * @param height Height of the rectangle
+     * @return View of the rectangle
+     */
+    public PixelBuffer view(int x, int y, int width, int height) {
+        if(x < 0 || y < 0 || width <= 0 || height <= 0 || x + width > this.width || y + height > this.height) {
+            throw new IllegalArgumentException("Invalid parameter for function view: Rectangle " + width + "x" + height + " at " + x + "," + y + " is not inside the " + this.width + "x" + this.height + " buffer");
+        }
+
+        int pixelSize = storage instanceof int[] ? 1 : order.getBytesPerPixel();
+
+        return new PixelBuffer(storage, offset + y * stride + x * pixelSize, width, height, stride, order);
+    }
+
+    /**
+     * @return Width in pixels
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return Height in pixels
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return Ints or bytes from the start of one row to the start of the next
+     */
+    public int getStride() {
+        return stride;
+    }
+
+    /**
+     * @return Channel order of the pixels
+     */
+    public ChannelOrder getChannelOrder() {
+        return order;
+    }
+
+    /**
+     * Gets a BufferedImage backed by the buffer, writing to either changes the other
+     * @return Image sharing the buffer's memory
+     */
+    public BufferedImage asImage() {
+        return image;
+    }
+
+    /**
+     * Runs an operation on this buffer, writing the result into another buffer
+     * @param operation Operation, for example image -> ImageManipulation.blur(image, 5)
+     * @param output Buffer the size of the result, which must not share memory with this buffer
+     * @return The output buffer
+     */
+    public PixelBuffer apply(UnaryOperator<BufferedImage> operation, PixelBuffer output) {
+        checkOutput(output);
+
+        BufferedImage target = output.image;
+        BufferedImage result = ExecutionContext.current().output(target).call(() -> operation.apply(image));
+
+        if(result != target) copy(result, target);
+
+        return output;
+    }
+
+    /**
+     * Runs a step on this buffer, writing the result into another buffer
+     * @param step Step to run
+     * @param output Buffer the size of the result, which must not share memory with this buffer
+     * @return The output buffer
+     */
+    public PixelBuffer apply(Operations.Step step, PixelBuffer output) {
+        return apply(step::apply, output);
+    }
+
+    /**
+     * Runs steps one after another on this buffer, writing the result of the last into another buffer
+     * The steps before the last allocate their own images as usual, and a trailing run of warps still runs as one
+     * WarpChain, writing into the output
+     * @param steps Steps in order
+     * @param output Buffer the size of the result, which must not share memory with this buffer
+     * @return The output buffer
+     */
+    public PixelBuffer apply(List<Operations.Step> steps, PixelBuffer output) {
+        checkOutput(output);
+
+        // Start of the last step, or of the warps Operations.apply would fuse with it
+        int last = Math.max(0, steps.size() - 1);
+        if(isWarp(steps, last)) {
+            while(isWarp(steps, last - 1)) last--;
+        }
+
+        BufferedImage input = Operations.apply(image, steps.subList(0, last));
+        List<Operations.Step> tail = steps.subList(last, steps.size());
+
+        BufferedImage target = output.image;
+        BufferedImage result = ExecutionContext.current().output(target).call(() -> Operations.apply(input, tail));
+
+        if(result != target) copy(result, target);
+
+        return output;
+    }
+
+    private static boolean isWarp(List<Operations.Step> steps, int index) {
+        return index >= 0 && index < steps.size() && WarpChain.isUnmixedWarp(steps.get(index).operation.name);
+    }
+
+    // Copies an image into the output, for operations that returned their own image
+    private static void copy(BufferedImage result, BufferedImage target) {
+        int width = target.getWidth(), height = target.getHeight();
+
+        if(result.getWidth() != width || result.getHeight() != height) {
+            throw new IllegalArgumentException("Invalid parameter for function apply: Result is " + result.getWidth() + "x" + result.getHeight() + " but the output buffer is " + width + "x" + height);
+        }
+
+        int[] row = new int[width];
+
+        for(int y = 0; y < height; y++) {
+            result.getRGB(0, y, width, 1, row, 0, width);
+            target.setRGB(0, y, width, 1, row, 0, width);
+        }
+    }
+
+    // Operations read their input while writing the output, so the two must not overlap
+    private void checkOutput(PixelBuffer output) {
+        if(output.storage != storage) return;
+
+        int pixelSize = storage instanceof int[] ? 1 : order.getBytesPerPixel();
+        int outputPixelSize = storage instanceof int[] ? 1 : output.order.getBytesPerPixel();
+
+        long start = offset, end = offset + (long) (height - 1) * stride + (long) width * pixelSize;
+        long outputStart = output.offset, outputEnd = output.offset + (long) (output.height - 1) * output.stride + (long) output.width * outputPixelSize;
+
+        if(start < outputEnd && outputStart < end) {
+            throw new IllegalArgumentException("Invalid parameter for function apply: Output buffer shares memory with the input");
+        }
+    }
+
+    private static long capacity(Object storage) {
+        if(storage instanceof int[]) return ((int[]) storage).length;
+        if(storage instanceof byte[]) return ((byte[]) storage).length;
+        return ((ByteBuffer) storage).capacity();
+    }
+
+    private BufferedImage createImage() {
+        if(storage instanceof int[]) {
+            int[] pixels = (int[]) storage;
+            int alpha = order.hasAlpha() ? order.mask(3) : 0;
+
+            SampleModel model = new SinglePixelPackedSampleModel(DataBuffer.TYPE_INT, width, height, stride,
+                    alpha == 0 ? new int[] {order.mask(0), order.mask(1), order.mask(2)} : new int[] {order.mask(0), order.mask(1), order.mask(2), alpha});
+            DataBuffer data = new DataBufferInt(pixels, pixels.length - offset, offset);
+            ColorModel colours = alpha == 0
+                    ? new DirectColorModel(32, order.mask(0), order.mask(1), order.mask(2))
+                    : new DirectColorModel(32, order.mask(0), order.mask(1), order.mask(2), alpha);
+
+            return new BufferedImage(colours, Raster.createWritableRaster(model, data, null), false, null);
+        }
+
+        int bytesPerPixel = order.getBytesPerPixel();
+        SampleModel model = new PixelInterleavedSampleModel(DataBuffer.TYPE_BYTE, width, height, bytesPerPixel, stride, order.offsets);
+        DataBuffer data = storage instanceof byte[]
+                ? new DataBufferByte((byte[]) storage, ((byte[]) storage).length - offset, offset)
+                : new DirectByteData((ByteBuffer) storage, offset);
+        ColorModel colours = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_sRGB), order.hasAlpha(), false,
+                order.hasAlpha() ? ColorModel.TRANSLUCENT : ColorModel.OPAQUE, DataBuffer.TYPE_BYTE);
+
+        return new BufferedImage(colours, Raster.createWritableRaster(model, data, null), false, null);
+    }
+
+    /**
+     * Bytes of a direct ByteBuffer, read and written with absolute gets and puts so the buffer's position is unused
+     */
+    private static class DirectByteData extends DataBuffer {
+        private final ByteBuffer buffer;
+        private final int start;
+
+        DirectByteData(ByteBuffer buffer, int start) {
+            super(DataBuffer.TYPE_BYTE, buffer.capacity() - start);
+            this.buffer = buffer;
+            this.start = start;
+        }
+
+        @Override
+        public int getElem(int bank, int i) {
+            return buffer.get(start + i) & 0xFF;
+        }
+
+        @Override
+        public void setElem(int bank, int i, int value) {
+            buffer.put(start + i, (byte) value);
+        }
+    }
+}
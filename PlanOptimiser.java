@@ -0,0 +1,313 @@
+import java.awt.image.BufferedImage;
+import java.io.PrintStream;
+import java.util.*;
+
+/**
+ * Rewrites a chain of steps into fewer passes over the image with the same result, used by Operations.apply
+ *
+ * Reflections and quarter turns (reflectX, reflectY, rotateCW and rotateCCW) only move pixels, and the per-channel
+ * colour operations (negative, red, green, blue, warm, cool, brighten, darken and saturate) make each channel of an
+ * opaque pixel from the same channel of the input alone, so they can be done in any order with each other. A run of two
+ * or more of them is replaced by a single pass of ImageManipulation.orient, with the moves folded into one of the eight
+ * orientations of the image and the colour operations into one table per channel:
+ * - reflectX;reflectX, rotateCW;rotateCCW, four rotateCWs and other runs that move every pixel back are dropped, unless
+ *   they are the whole chain, which is then a single copy
+ * - brighten:amount=a;darken:amount=a is not an identity, as levels clamped to 255 by the brighten come back lower, and
+ *   becomes one table like any other run of colour operations
+ *
+ * The tables are found by running the colour operations on a 256 by 1 image holding every level, so they are exactly
+ * what the operations compute. Plans are kept for the chains optimised most recently
+ *
+ * main() checks that plans give the same pixels as running the steps in turn, see scripts/planoptimiser.sh
+ */
+public class PlanOptimiser {
+    private static final Set<String> MOVES = new HashSet<>(Arrays.asList("reflectX", "reflectY", "rotateCW", "rotateCCW"));
+    private static final Set<String> CHANNELS = new HashSet<>(Arrays.asList(
+            "negative", "red", "green", "blue", "warm", "cool", "brighten", "darken", "saturate"));
+
+    private static final int CACHED_PLANS = 64;
+
+    private static final Map<List<Operations.Step>, Plan> plans = new LinkedHashMap<List<Operations.Step>, Plan>(16, .75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<List<Operations.Step>, Plan> eldest) {
+            return size() > CACHED_PLANS;
+        }
+    };
+
+    /**
+     * One pass of a plan
+     */
+    private interface Stage {
+        BufferedImage apply(BufferedImage image);
+    }
+
+    /**
+     * Steps the optimiser found nothing to merge in, run with Operations.run so runs of warps are still fused
+     */
+    private static class Steps implements Stage {
+        private final List<Operations.Step> steps;
+
+        Steps(List<Operations.Step> steps) {
+            this.steps = steps;
+        }
+
+        @Override
+        public BufferedImage apply(BufferedImage image) {
+            return Operations.run(image, steps);
+        }
+
+        @Override
+        public String toString() {
+            StringJoiner s = new StringJoiner(";");
+            for(Operations.Step step : steps) s.add(step.toString());
+            return s.toString();
+        }
+    }
+
+    /**
+     * A run of moves and colour operations done as one ImageManipulation.orient pass
+     */
+    private static class Orient implements Stage {
+        private final int orientation;
+        // Levels of red, green then blue, or null when the run has no colour operations
+        private final int[] lut;
+
+        Orient(int orientation, int[] lut) {
+            this.orientation = orientation;
+            this.lut = lut;
+        }
+
+        @Override
+        public BufferedImage apply(BufferedImage image) {
+            return ImageManipulation.orient(image, orientation, lut);
+        }
+
+        @Override
+        public String toString() {
+            return "orient:orientation=" + orientation + (lut == null ? "" : ",table");
+        }
+    }
+
+    /**
+     * Steps rewritten into passes
+     */
+    public static class Plan {
+        private final List<Stage> stages;
+
+        private Plan(List<Stage> stages) {
+            this.stages = stages;
+        }
+
+        /**
+         * Runs the plan
+         * @param image Input image
+         * @return Same pixels as running the original steps one after another
+         */
+        public BufferedImage apply(BufferedImage image) {
+            for(Stage stage : stages) {
+                image = stage.apply(image);
+            }
+
+            return image;
+        }
+
+        /**
+         * @return The passes in chain syntax, with merged runs written as orient:orientation=n and ",table" when they
+         * include colour operations
+         */
+        @Override
+        public String toString() {
+            StringJoiner s = new StringJoiner(";");
+            for(Stage stage : stages) s.add(stage.toString());
+            return s.toString();
+        }
+    }
+
+    /**
+     * Optimises steps
+     * @param steps Steps in order
+     * @return Plan with the same result
+     */
+    public static Plan optimise(List<Operations.Step> steps) {
+        synchronized(plans) {
+            Plan plan = plans.get(steps);
+            if(plan != null) return plan;
+        }
+
+        Plan plan = build(steps);
+
+        synchronized(plans) {
+            plans.put(new ArrayList<>(steps), plan);
+        }
+
+        return plan;
+    }
+
+    private static Plan build(List<Operations.Step> steps) {
+        List<Stage> stages = new ArrayList<>();
+        // Steps not merged yet, kept together across dropped runs so warps either side of them are still fused
+        List<Operations.Step> pending = new ArrayList<>();
+
+        for(int i = 0; i < steps.size(); ) {
+            int end = i;
+            while(end < steps.size() && isMergeable(steps.get(end))) end++;
+
+            if(end - i < 2) {
+                pending.add(steps.get(i++));
+                continue;
+            }
+
+            Orient orient = merge(steps.subList(i, end));
+            i = end;
+
+            if(orient.orientation == 0 && orient.lut == null) continue;
+
+            if(!pending.isEmpty()) stages.add(new Steps(pending));
+            pending = new ArrayList<>();
+            stages.add(orient);
+        }
+
+        if(!pending.isEmpty()) stages.add(new Steps(pending));
+
+        // Everything cancelled out, the result is still a new image
+        if(stages.isEmpty()) stages.add(new Orient(0, null));
+
+        return new Plan(stages);
+    }
+
+    private static boolean isMergeable(Operations.Step step) {
+        return MOVES.contains(step.operation.name) || CHANNELS.contains(step.operation.name);
+    }
+
+    // Folds the moves into one orientation and the colour operations into one table
+    private static Orient merge(List<Operations.Step> run) {
+        // The run so far reflects in the x axis if reflected, then turns clockwise by turns quarter turns
+        int turns = 0;
+        boolean reflected = false;
+        List<Operations.Step> colours = new ArrayList<>();
+
+        for(Operations.Step step : run) {
+            switch(step.operation.name) {
+                case "rotateCW": turns += 1; break;
+                case "rotateCCW": turns += 3; break;
+                // Reflecting after turning is the same as reflecting first and turning the other way
+                case "reflectX": turns = -turns; reflected = !reflected; break;
+                // Reflecting in the y axis is reflecting in the x axis and turning by half
+                case "reflectY": turns = 2 - turns; reflected = !reflected; break;
+                default: colours.add(step);
+            }
+        }
+
+        return new Orient((turns & 3) | (reflected ? 4 : 0), colours.isEmpty() ? null : table(colours));
+    }
+
+    // Runs the colour operations on every level, in a context of its own so the clip and output image of the caller
+    // are not used by the probe
+    static int[] table(List<Operations.Step> colours) {
+        BufferedImage levels = new BufferedImage(256, 1, BufferedImage.TYPE_INT_ARGB);
+
+        for(int i = 0; i < 256; i++) {
+            levels.setRGB(i, 0, 0xFF000000 | i * 0x010101);
+        }
+
+        BufferedImage mapped = new ExecutionContext().call(() -> Operations.run(levels, colours));
+        int[] lut = new int[768];
+
+        for(int i = 0; i < 256; i++) {
+            int argb = mapped.getRGB(i, 0);
+
+            lut[i] = argb >> 16 & 0xFF;
+            lut[256 + i] = argb >> 8 & 0xFF;
+            lut[512 + i] = argb & 0xFF;
+        }
+
+        return lut;
+    }
+
+    /**
+     * Runs chains of moves and colour operations both through their plan and one step after another on images with and
+     * without alpha, and prints how many pixels differ for each as tab separated values
+     * Exits with 1 if any plan gives a different image
+     * @param args Number of random chains to check after the fixed ones, 400 by default
+     */
+    public static void main(String[] args) {
+        int randomChains = args.length > 0 ? Integer.parseInt(args[0]) : 400;
+
+        if(!check(System.out, randomChains)) System.exit(1);
+    }
+
+    private static boolean check(PrintStream out, int randomChains) {
+        List<String> chains = new ArrayList<>(Arrays.asList(
+                "reflectX;reflectX", "reflectY;reflectY", "rotateCW;rotateCCW", "rotateCCW;rotateCW",
+                "rotateCW;rotateCW;rotateCW;rotateCW", "rotateCCW;rotateCCW;rotateCCW;rotateCCW",
+                "reflectX;reflectY;rotateCW;rotateCW", "reflectX;rotateCW;reflectX;rotateCW",
+                "brighten:amount=40;darken:amount=40", "brighten:amount=200;darken:amount=200", "darken:amount=40;brighten:amount=40",
+                "negative;negative", "red:amount=120;green:amount=60;blue:amount=30", "warm:amount=80;cool:amount=80;saturate:amount=50",
+                "negative;brighten:amount=30;saturate:amount=120;darken:amount=10",
+                "reflectX;negative;rotateCW;warm:amount=60;reflectY", "blur:range=1;reflectX;reflectX;blur:range=1",
+                "bulge:alpha=100;reflectX;reflectX;ripple:alpha=20", "rotateCW;greyScale;rotateCCW;brighten:amount=20;darken:amount=20"));
+
+        String[] mergeable = {"reflectX", "reflectY", "rotateCW", "rotateCCW", "negative", "red", "green", "blue", "warm", "cool", "brighten", "darken", "saturate"};
+        Random random = new Random(42);
+
+        for(int i = 0; i < randomChains; i++) {
+            StringJoiner chain = new StringJoiner(";");
+
+            for(int j = 2 + random.nextInt(6); j > 0; j--) {
+                Operations.Operation operation = Operations.get(mergeable[random.nextInt(mergeable.length)]);
+                chain.add(operation.params.isEmpty() ? operation.name : operation.name + ":" + operation.params.get(0).name + "=" + random.nextInt(256));
+            }
+
+            chains.add(chain.toString());
+        }
+
+        // Non-square so turns change the size, with every alpha level and semi-transparent colours
+        BufferedImage[] images = {
+                new BufferedImage(37, 23, BufferedImage.TYPE_INT_ARGB),
+                new BufferedImage(37, 23, BufferedImage.TYPE_INT_RGB),
+                new BufferedImage(23, 37, BufferedImage.TYPE_4BYTE_ABGR)
+        };
+
+        for(BufferedImage image : images) {
+            for(int y = 0; y < image.getHeight(); y++) {
+                for(int x = 0; x < image.getWidth(); x++) {
+                    image.setRGB(x, y, random.nextInt());
+                }
+            }
+        }
+
+        out.println("chain\tplan\ttype\tdiffering_pixels");
+        boolean passed = true;
+
+        for(String chain : chains) {
+            List<Operations.Step> steps = Operations.parseChain(chain);
+            Plan plan = optimise(steps);
+
+            for(BufferedImage image : images) {
+                BufferedImage expected = new ExecutionContext().call(() -> Operations.run(image, steps));
+                BufferedImage actual = new ExecutionContext().call(() -> plan.apply(image));
+                int differing = differing(expected, actual);
+
+                passed &= differing == 0;
+                out.println(chain + "\t" + plan + "\t" + Java2DOps.typeName(image.getType()) + "\t" + differing);
+            }
+        }
+
+        return passed;
+    }
+
+    // Pixels that differ in any channel including alpha, or every pixel if the sizes differ
+    private static int differing(BufferedImage a, BufferedImage b) {
+        if(a.getWidth() != b.getWidth() || a.getHeight() != b.getHeight()) return Math.max(a.getWidth() * a.getHeight(), b.getWidth() * b.getHeight());
+
+        int[] pa = a.getRGB(0, 0, a.getWidth(), a.getHeight(), null, 0, a.getWidth());
+        int[] pb = b.getRGB(0, 0, b.getWidth(), b.getHeight(), null, 0, b.getWidth());
+        int differing = 0;
+
+        for(int i = 0; i < pa.length; i++) {
+            if(pa[i] != pb[i]) differing++;
+        }
+
+        return differing;
+    }
+}
@@ -0,0 +1,251 @@
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Uncompressed ARGB image in a file, read and written a rectangle at a time through memory mapping, so images larger
+ * than the heap can be processed and several processes can share one image through the page cache
+ *
+ * The file is a 16 byte header of a magic number, the width and the height, followed by the pixels as big-endian ints
+ * in rows from the top. Processes mapping the same file see each other's writes as soon as they are made, and writes
+ * to different rectangles never overlap, even when they share a page. Whole rows are streamed through the channel
+ * instead, as a mapping per row would leave thousands of mappings waiting for the garbage collector to release them
+ */
+public class RasterFile implements Closeable {
+    private static final int MAGIC = 0x494D5246;
+    private static final int HEADER = 16;
+    // Largest part of the file mapped at once, rectangles of more rows are mapped in bands
+    private static final long MAX_MAP = 1 << 28;
+
+    private final FileChannel channel;
+    private final int width, height;
+    private final boolean writable;
+
+    private RasterFile(FileChannel channel, int width, int height, boolean writable) {
+        this.channel = channel;
+        this.width = width;
+        this.height = height;
+        this.writable = writable;
+    }
+
+    /**
+     * Creates a raster file of transparent pixels, replacing any file at the path
+     * The file is sparse until pixels are written, so creating it costs no disk space
+     * @param path File to create
+     * @param width Width of the image
+     * @param height Height of the image
+     * @return Raster file open for reading and writing
+     * @throws IOException If the file could not be created
+     */
+    public static RasterFile create(Path path, int width, int height) throws IOException {
+        if(width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Invalid parameter for function create: Size must be positive, not " + width + "x" + height);
+        }
+
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER).putInt(MAGIC).putInt(width).putInt(height);
+            header.rewind();
+            channel.write(header, 0);
+
+            // Extends the file to its full size without writing the pixels
+            channel.write(ByteBuffer.allocate(1), HEADER + (long) width * height * 4 - 1);
+        }
+        catch(IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        return new RasterFile(channel, width, height, true);
+    }
+
+    /**
+     * Opens an existing raster file
+     * @param path File to open
+     * @param writable Whether pixels will be written
+     * @return Raster file
+     * @throws IOException If the file could not be read or is not a raster file
+     */
+    public static RasterFile open(Path path, boolean writable) throws IOException {
+        FileChannel channel = writable ? FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE) : FileChannel.open(path, StandardOpenOption.READ);
+
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            while(header.hasRemaining() && channel.read(header, header.position()) > 0);
+            header.flip();
+
+            if(header.remaining() < HEADER || header.getInt() != MAGIC) throw new IOException("Not a raster file: " + path);
+
+            int width = header.getInt(), height = header.getInt();
+            if(width <= 0 || height <= 0 || channel.size() < HEADER + (long) width * height * 4) throw new IOException("Truncated raster file: " + path);
+
+            return new RasterFile(channel, width, height, writable);
+        }
+        catch(IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes an image to a new raster file
+     * @param image Image to write
+     * @param path File to create
+     * @throws IOException If the file could not be written
+     */
+    public static void write(BufferedImage image, Path path) throws IOException {
+        try(RasterFile file = create(path, image.getWidth(), image.getHeight())) {
+            Rectangle all = file.getBounds();
+            file.write(all, Utils.readARGB(image, 0, 0, all.width, all.height, null));
+        }
+    }
+
+    /**
+     * Decodes a PNG or BMP into a new raster file row by row, without holding the image in memory
+     * @param reader Decoder
+     * @param path File to create
+     * @throws IOException If the image could not be decoded or the file written
+     */
+    public static void write(ScanlineCodec.RowReader reader, Path path) throws IOException {
+        try(RasterFile file = create(path, reader.getWidth(), reader.getHeight())) {
+            ByteBuffer buffer = ByteBuffer.allocate(file.width * 4);
+
+            reader.readRows((y, argb) -> {
+                buffer.clear();
+                buffer.asIntBuffer().put(argb, 0, file.width);
+
+                long position = file.offset(0, y);
+                while(buffer.hasRemaining()) position += file.channel.write(buffer, position);
+            });
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return Rectangle of the whole image
+     */
+    public Rectangle getBounds() {
+        return new Rectangle(0, 0, width, height);
+    }
+
+    /**
+     * Reads a rectangle of pixels
+     * @param r Rectangle to read, inside the image
+     * @param pixels Array of at least r.width * r.height pixels to read into, or null to allocate one
+     * @return Pixels in rows of r.width
+     * @throws IOException If the file could not be mapped
+     */
+    public int[] read(Rectangle r, int[] pixels) throws IOException {
+        check("read", r);
+        if(pixels == null) pixels = new int[r.width * r.height];
+
+        copy(r, pixels, false);
+        return pixels;
+    }
+
+    /**
+     * Reads a rectangle of pixels into an image
+     * @param r Rectangle to read, inside the image
+     * @return Image the size of the rectangle
+     * @throws IOException If the file could not be mapped
+     */
+    public BufferedImage readImage(Rectangle r) throws IOException {
+        BufferedImage image = new BufferedImage(r.width, r.height, BufferedImage.TYPE_INT_ARGB);
+        Utils.writeARGB(image, 0, 0, r.width, r.height, read(r, null));
+        return image;
+    }
+
+    /**
+     * Writes a rectangle of pixels
+     * @param r Rectangle to write, inside the image
+     * @param pixels Pixels in rows of r.width
+     * @throws IOException If the file could not be mapped
+     */
+    public void write(Rectangle r, int[] pixels) throws IOException {
+        check("write", r);
+        if(!writable) throw new IllegalStateException("Raster file was opened read-only");
+
+        copy(r, pixels, true);
+    }
+
+    /**
+     * Encodes the image row by row, without holding it in memory
+     * @param writer Encoder for an image of the same size, written from the top row down
+     * @throws IOException If the file could not be read or the image encoded
+     */
+    public void encode(ScanlineCodec.RowWriter writer) throws IOException {
+        int[] row = new int[width];
+        ByteBuffer buffer = ByteBuffer.allocate(width * 4);
+
+        for(int y = 0; y < height; y++) {
+            buffer.clear();
+            long position = offset(0, y);
+
+            while(buffer.hasRemaining()) {
+                int read = channel.read(buffer, position);
+                if(read < 0) throw new IOException("Truncated raster file");
+                position += read;
+            }
+
+            buffer.flip();
+            buffer.asIntBuffer().get(row);
+            writer.row(y, row);
+        }
+
+        writer.finish();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private void check(String function, Rectangle r) {
+        if(r.x < 0 || r.y < 0 || r.width < 0 || r.height < 0 || r.x + r.width > width || r.y + r.height > height) {
+            throw new IllegalArgumentException("Invalid parameter for function " + function + ": " + r + " is outside the " + width + "x" + height + " image");
+        }
+    }
+
+    private long offset(int x, int y) {
+        return HEADER + ((long) y * width + x) * 4;
+    }
+
+    // Maps the rows of the rectangle in bands and copies each row between the mapping and the array
+    private void copy(Rectangle r, int[] pixels, boolean write) throws IOException {
+        if(r.width == 0 || r.height == 0) return;
+
+        int band = (int) Math.max(1, Math.min(r.height, MAX_MAP / ((long) width * 4)));
+
+        for(int y0 = r.y; y0 < r.y + r.height; y0 += band) {
+            int rows = Math.min(band, r.y + r.height - y0);
+            long start = offset(r.x, y0);
+            long size = ((long) (rows - 1) * width + r.width) * 4;
+
+            MappedByteBuffer mapped = channel.map(write ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, start, size);
+            IntBuffer ints = mapped.asIntBuffer();
+
+            for(int y = 0; y < rows; y++) {
+                ints.position(y * width);
+
+                int offset = (y0 - r.y + y) * r.width;
+                if(write) ints.put(pixels, offset, r.width);
+                else ints.get(pixels, offset, r.width);
+            }
+        }
+    }
+}
@@ -0,0 +1,271 @@
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.*;
+import java.util.List;
+
+/**
+ * Applies operations to part of an image only, a rectangle or the pixels covered by a mask, leaving the rest as it was
+ * For example RegionOfInterest.of(new Rectangle(120, 340, 90, 30)).apply(image, Operations.parseChain("blur:range=6"))
+ * blurs a licence plate without blurring the rest of the image
+ *
+ * The region each step needs from the step before it is worked out backwards from the region of interest: the same
+ * rectangle for point operations, grown by the range of blur, blurPasses and median, by the wave amplitude of the distort
+ * waves and by the 25 pixel reach of shimmer, and out to the block edges for pixel. The reflections, warps and the
+ * operations that read the whole image (gaussianBlur, autoBrighten, autoContrast) need all of the image before them
+ *
+ * When no step depends on where a pixel is in the image or needs the whole image before it (blur, blurPasses, median,
+ * pixel and the colour operations), the steps run on a crop of the region the first step needs, so the cost follows the
+ * area of the region and not of the image. Other chains run each step in an ExecutionContext clipped to the region it
+ * has to produce, which computes only those pixels but still allocates whole images
+ *
+ * Pixels inside the region are identical to running the steps on the whole image. A mask covers a pixel by its alpha
+ * times the largest of its red, green and blue, as in Compositor, and pixels it partly covers are mixed between the
+ * result and the input
+ */
+public class RegionOfInterest {
+    // Steps whose output pixels only depend on the input pixels around them, whatever their position in the image
+    private static final Set<String> CROPPABLE = new HashSet<>(Arrays.asList(
+            "greyScale", "negative", "red", "green", "blue", "warm", "cool", "brighten", "darken", "saturate",
+            "extractWatermarkWhiteBackground", "blur", "blurPasses", "median", "pixel"));
+
+    private final Rectangle bounds;
+    // Mask the size of bounds, or null for the whole rectangle
+    private final BufferedImage mask;
+
+    private RegionOfInterest(Rectangle bounds, BufferedImage mask) {
+        this.bounds = bounds;
+        this.mask = mask;
+    }
+
+    /**
+     * Creates a rectangular region
+     * @param rectangle Rectangle in image coordinates, the part outside the image is ignored
+     * @return Region
+     */
+    public static RegionOfInterest of(Rectangle rectangle) {
+        return new RegionOfInterest(new Rectangle(rectangle), null);
+    }
+
+    /**
+     * Creates a region covered by a mask, only the rectangle under the mask is computed
+     * @param mask Mask, opaque white where the result is wanted and black or transparent where the input is kept
+     * @param x Left of the mask in image coordinates
+     * @param y Top of the mask in image coordinates
+     * @return Region
+     */
+    public static RegionOfInterest of(BufferedImage mask, int x, int y) {
+        return new RegionOfInterest(new Rectangle(x, y, mask.getWidth(), mask.getHeight()), mask);
+    }
+
+    /**
+     * Runs a step inside the region
+     * @param image Input image, which is not modified
+     * @param step Step to run
+     * @return Copy of the image with the region replaced by the result of the step
+     */
+    public BufferedImage apply(BufferedImage image, Operations.Step step) {
+        return apply(image, Collections.singletonList(step));
+    }
+
+    /**
+     * Runs steps inside the region
+     * @param image Input image, which is not modified
+     * @param steps Steps in order, none of which may change the size of the image
+     * @return Copy of the image with the region replaced by the result of the steps
+     */
+    public BufferedImage apply(BufferedImage image, List<Operations.Step> steps) {
+        BufferedImage output = Utils.deepCopy(image);
+        applyInPlace(output, steps);
+        return output;
+    }
+
+    /**
+     * Runs steps inside the region and writes the result into the image, the pixels outside the region are not touched
+     * and the cost of a chain that runs on a crop follows the area of the region alone
+     * @param image Image to update
+     * @param steps Steps in order, none of which may change the size of the image
+     */
+    public void applyInPlace(BufferedImage image, List<Operations.Step> steps) {
+        int width = image.getWidth(), height = image.getHeight();
+
+        for(Operations.Step step : steps) {
+            String name = step.operation.name;
+
+            if(name.equals("rotateAny") || (name.equals("rotateCW") || name.equals("rotateCCW")) && width != height) {
+                throw new IllegalArgumentException("Invalid parameter for function applyInPlace: " + name + " changes the size of the image");
+            }
+        }
+
+        Rectangle region = bounds.intersection(new Rectangle(0, 0, width, height));
+        if(region.isEmpty()) return;
+
+        // needed[i] is the part of the input of step i it needs, or null for all of it
+        Rectangle[] needed = new Rectangle[steps.size() + 1];
+        needed[steps.size()] = region;
+        boolean croppable = true;
+
+        for(int i = steps.size() - 1; i >= 0; i--) {
+            Operations.Step step = steps.get(i);
+            croppable &= isCroppable(step.operation.name);
+            needed[i] = needed[i + 1] == null ? null : needed(step, needed[i + 1], width, height);
+        }
+
+        BufferedImage result;
+        Rectangle at;
+
+        if(croppable && !steps.isEmpty()) {
+            at = align(needed[0], steps);
+
+            BufferedImage crop = new BufferedImage(at.width, at.height, BufferedImage.TYPE_INT_ARGB);
+            Utils.writeARGB(crop, 0, 0, at.width, at.height, Utils.readARGB(image, at.x, at.y, at.width, at.height, null));
+
+            result = Operations.apply(crop, steps);
+        }
+        else {
+            at = new Rectangle(0, 0, width, height);
+            result = image;
+
+            for(int i = 0; i < steps.size(); i++) {
+                result = clipped(steps.get(i), result, needed[i + 1]);
+            }
+        }
+
+        write(image, region, result, region.x - at.x, region.y - at.y);
+    }
+
+    /**
+     * @param name Name of an operation
+     * @return Whether the output pixels of the operation only depend on the input pixels around them, so it gives the
+     * same pixels on a crop of the image as on the whole image away from the edges of the crop
+     */
+    static boolean isCroppable(String name) {
+        return CROPPABLE.contains(name);
+    }
+
+    /**
+     * Finds the part of the input a step needs to compute a rectangle of its output
+     * @param step Step
+     * @param out Rectangle of the output
+     * @param width Width of the image
+     * @param height Height of the image
+     * @return Rectangle of the input clipped to the image, or null if the step needs all of it
+     */
+    static Rectangle needed(Operations.Step step, Rectangle out, int width, int height) {
+        Object[] args = step.getArgs();
+        Rectangle in;
+
+        switch(step.operation.name) {
+            case "blur": case "median":
+                in = grow(out, (Integer) args[0], (Integer) args[0]);
+                break;
+            case "blurPasses": {
+                int reach = (Integer) args[0] * Math.max(1, (Integer) args[1]);
+                in = grow(out, reach, reach);
+                break;
+            }
+            case "distortWave":
+                in = grow(out, 10, 10);
+                break;
+            case "distortWaveX":
+                in = grow(out, 10, 0);
+                break;
+            case "distortWaveY":
+                in = grow(out, 0, 10);
+                break;
+            case "shimmer": case "shimmerSeeded":
+                in = grow(out, 25, 25);
+                break;
+            case "pixel": {
+                // Each block copies its top left pixel, so the blocks the rectangle touches are needed
+                int size = (Integer) args[0];
+                int x0 = out.x / size * size, y0 = out.y / size * size;
+                in = new Rectangle(x0, y0, out.x + out.width - x0, out.y + out.height - y0);
+                break;
+            }
+            case "reflectX": case "reflectY": case "rotateCW": case "rotateCCW":
+            case "rotateAnyNoResize": case "circleDisfigure": case "circleDistort": case "concaveDistort":
+            case "sphereDistort": case "ripple": case "scaleOut": case "bulge": case "curveUp": case "curveRight":
+            case "gaussianBlur": case "autoBrighten": case "autoContrast":
+                return null;
+            default:
+                // Point operations only read the pixel they write
+                in = out;
+        }
+
+        return in.intersection(new Rectangle(0, 0, width, height));
+    }
+
+    private static Rectangle grow(Rectangle r, int x, int y) {
+        return new Rectangle(r.x - x, r.y - y, r.width + 2 * x, r.height + 2 * y);
+    }
+
+    // Moves the corner of a crop back to a multiple of every pixel block size, so the blocks fall where they do in the
+    // whole image
+    static Rectangle align(Rectangle crop, List<Operations.Step> steps) {
+        long block = 1;
+
+        for(Operations.Step step : steps) {
+            if(!step.operation.name.equals("pixel")) continue;
+
+            long size = (Integer) step.getArgs()[0];
+            // Least common multiple, capped once it is past any corner
+            block = Math.min(block / gcd(block, size) * size, Integer.MAX_VALUE);
+        }
+
+        int x0 = (int) (crop.x / block * block), y0 = (int) (crop.y / block * block);
+
+        return new Rectangle(x0, y0, crop.x + crop.width - x0, crop.y + crop.height - y0);
+    }
+
+    private static long gcd(long a, long b) {
+        return b == 0 ? a : gcd(b, a % b);
+    }
+
+    // Runs a step computing only a rectangle of its output, or all of it when the rectangle is null
+    private static BufferedImage clipped(Operations.Step step, BufferedImage input, Rectangle out) {
+        if(out == null) return step.apply(input);
+
+        List<Rectangle> clip = Collections.singletonList(out);
+
+        // Intermediate passes of blurPasses need their own halo around the rectangle to be correct inside it
+        if(step.operation.name.equals("blurPasses")) {
+            Object[] args = step.getArgs();
+            int halo = (Integer) args[0] * (Math.max(1, (Integer) args[1]) - 1);
+            clip = Collections.singletonList(grow(out, halo, halo));
+        }
+
+        List<Rectangle> rectangles = clip;
+        return ExecutionContext.current().clip(rectangles).call(() -> step.apply(input));
+    }
+
+    // Writes the region of the result, starting at (rx, ry) in the result, into the image
+    private void write(BufferedImage image, Rectangle region, BufferedImage result, int rx, int ry) {
+        int[] pixels = Utils.readARGB(result, rx, ry, region.width, region.height, null);
+
+        if(mask != null) {
+            int[] below = Utils.readARGB(image, region.x, region.y, region.width, region.height, null);
+            int[] coverage = Utils.readARGB(mask, region.x - bounds.x, region.y - bounds.y, region.width, region.height, null);
+
+            for(int i = 0; i < pixels.length; i++) {
+                int m = coverage[i];
+                double a = (m >>> 24) / 255.0 * Math.max(m >> 16 & 0xFF, Math.max(m >> 8 & 0xFF, m & 0xFF)) / 255.0;
+
+                if(a < 1) pixels[i] = mix(pixels[i], below[i], a);
+            }
+        }
+
+        Utils.writeARGB(image, region.x, region.y, region.width, region.height, pixels);
+    }
+
+    // Mixes every channel of two ARGB pixels, giving the second when a is 0
+    private static int mix(int argb, int below, double a) {
+        int mixed = 0;
+
+        for(int shift = 0; shift < 32; shift += 8) {
+            int c = argb >>> shift & 0xFF, b = below >>> shift & 0xFF;
+            mixed |= Utils.clamp((int) (c * a + b * (1 - a)), 0, 255) << shift;
+        }
+
+        return mixed;
+    }
+}
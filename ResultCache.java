@@ -0,0 +1,494 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Caches the results of chains of operations by the content of their source image, so repeated requests for the same
+ * image, steps and quality are computed once
+ *
+ * Results are keyed by a 128 bit hash of the source pixels together with its size and type, the steps and the quality
+ * of the current ExecutionContext. The results kept in memory are bounded by their total size in bytes, and the least
+ * recently used are evicted first into an optional disk tier, where they are kept deflated until it is full too.
+ * When several threads ask for the same result at once the first computes it and the others wait for it
+ *
+ * Chains with a random step (noise, noiseGreyscale, shimmer) are never cached, their seeded versions are. Neither are
+ * chains run in a clipped context or in a context with an output image, as their results are not the whole output
+ *
+ * Results are shared by everyone who asks for them, so they must not be modified
+ */
+public class ResultCache {
+    private final long maxBytes;
+    // Results in memory, least recently used first
+    private final LinkedHashMap<Key, BufferedImage> memory = new LinkedHashMap<>(16, .75f, true);
+    private long bytes;
+
+    // Files of the disk tier, least recently used first, or no disk tier while directory is null
+    private final LinkedHashMap<Key, DiskEntry> disk = new LinkedHashMap<>(16, .75f, true);
+    private Path directory;
+    private long maxDiskBytes;
+    private long diskBytes;
+    private final AtomicLong files = new AtomicLong();
+
+    // Results being computed, so a second request for one waits for it instead of computing it again
+    private final ConcurrentHashMap<Key, CompletableFuture<BufferedImage>> running = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder uncached = new LongAdder();
+
+    /**
+     * Creates a cache kept in memory only
+     * @param maxBytes Total size of the results kept in memory
+     */
+    public ResultCache(long maxBytes) {
+        if(maxBytes < 0) throw new IllegalArgumentException("Invalid parameter for function ResultCache: maxBytes must not be negative");
+
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Keeps results evicted from memory in a directory, deflated, instead of dropping them
+     * The files are only used by this cache and are deleted as they are evicted, results are not kept between runs
+     * @param directory Directory for the files, created if it does not exist
+     * @param maxBytes Total size of the files
+     * @return This cache
+     * @throws IOException If the directory cannot be created
+     */
+    public ResultCache setDiskTier(Path directory, long maxBytes) throws IOException {
+        if(maxBytes < 0) throw new IllegalArgumentException("Invalid parameter for function setDiskTier: maxBytes must not be negative");
+
+        Files.createDirectories(directory);
+
+        synchronized(this) {
+            this.directory = directory;
+            this.maxDiskBytes = maxBytes;
+        }
+
+        return this;
+    }
+
+    /**
+     * Runs a step, or returns its cached result
+     * @param image Input image
+     * @param step Step to run
+     * @return Output of the step, which must not be modified
+     */
+    public BufferedImage apply(BufferedImage image, Operations.Step step) {
+        return apply(image, Collections.singletonList(step));
+    }
+
+    /**
+     * Runs steps with Operations.apply, or returns their cached result
+     * @param image Input image
+     * @param steps Steps in order
+     * @return Output of the last step, which must not be modified
+     * @throws CancellationException If the current ExecutionContext is cancelled, including while waiting for another
+     * thread computing the same result
+     */
+    public BufferedImage apply(BufferedImage image, List<Operations.Step> steps) {
+        ExecutionContext context = ExecutionContext.current();
+
+        if(steps.isEmpty() || !Operations.isDeterministic(steps) || context.getClip() != null || context.hasOutput()) {
+            uncached.increment();
+            return Operations.apply(image, steps);
+        }
+
+        Key key = key(image, steps, context.getQuality());
+
+        while(true) {
+            BufferedImage result = get(key);
+
+            if(result != null) {
+                hits.increment();
+                return result;
+            }
+
+            CompletableFuture<BufferedImage> future = new CompletableFuture<>();
+            CompletableFuture<BufferedImage> other = running.putIfAbsent(key, future);
+
+            if(other == null) {
+                try {
+                    // Another thread may have finished it between get() and putIfAbsent()
+                    result = get(key);
+
+                    if(result != null) hits.increment();
+                    else {
+                        misses.increment();
+                        result = Operations.apply(image, steps);
+                        put(key, result);
+                    }
+
+                    future.complete(result);
+                    return result;
+                }
+                catch(RuntimeException | Error e) {
+                    future.completeExceptionally(e);
+                    throw e;
+                }
+                finally {
+                    running.remove(key, future);
+                }
+            }
+
+            result = await(other, context);
+
+            if(result != null) {
+                hits.increment();
+                return result;
+            }
+
+            // The thread computing it was cancelled, not this one, so try again
+        }
+    }
+
+    // Waits for another thread's result, checking this thread's context while waiting, null if the other was cancelled
+    private static BufferedImage await(CompletableFuture<BufferedImage> future, ExecutionContext context) {
+        while(true) {
+            context.checkpoint();
+
+            try {
+                return future.get(10, TimeUnit.MILLISECONDS);
+            }
+            catch(TimeoutException e) {
+                // Check the context again
+            }
+            catch(CancellationException e) {
+                // A future completed with a CancellationException throws it as it is
+                return null;
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CancellationException("Interrupted waiting for a cached result");
+            }
+            catch(ExecutionException e) {
+                if(e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+                if(e.getCause() instanceof Error) throw (Error) e.getCause();
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+    }
+
+    /**
+     * @return Results returned from the cache, including those computed by another thread for the same request
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * @return Results computed and added to the cache
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * @return Chains run without the cache because they are random, clipped or write into a given output
+     */
+    public long getUncachedCount() {
+        return uncached.sum();
+    }
+
+    /**
+     * @return Total size of the results in memory
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return Total size of the files of the disk tier
+     */
+    public synchronized long getDiskBytes() {
+        return diskBytes;
+    }
+
+    /**
+     * Drops every result, in memory and on disk
+     */
+    public void clear() {
+        List<DiskEntry> deleted;
+
+        synchronized(this) {
+            memory.clear();
+            bytes = 0;
+            deleted = new ArrayList<>(disk.values());
+            disk.clear();
+            diskBytes = 0;
+        }
+
+        for(DiskEntry entry : deleted) entry.delete();
+    }
+
+    // Finds a result in memory, or on disk where it is read back into memory
+    private BufferedImage get(Key key) {
+        DiskEntry entry;
+
+        synchronized(this) {
+            BufferedImage image = memory.get(key);
+            if(image != null) return image;
+
+            entry = disk.get(key);
+            if(entry == null) return null;
+        }
+
+        BufferedImage image;
+
+        try {
+            image = entry.read();
+        }
+        catch(IOException e) {
+            // Evicted from the disk tier while being read, or the file was removed, it is computed again
+            return null;
+        }
+
+        put(key, image);
+        return image;
+    }
+
+    // Adds a result to memory, spilling the least recently used results to the disk tier
+    private void put(Key key, BufferedImage image) {
+        long size = bytes(image);
+        List<Map.Entry<Key, BufferedImage>> evicted = new ArrayList<>();
+        Path spillTo;
+
+        synchronized(this) {
+            if(size <= maxBytes && !memory.containsKey(key)) {
+                memory.put(key, image);
+                bytes += size;
+            }
+            else if(size > maxBytes) {
+                // Too large for memory, straight to disk
+                evicted.add(new AbstractMap.SimpleEntry<>(key, image));
+            }
+
+            Iterator<Map.Entry<Key, BufferedImage>> it = memory.entrySet().iterator();
+
+            while(bytes > maxBytes && it.hasNext()) {
+                Map.Entry<Key, BufferedImage> eldest = it.next();
+                it.remove();
+                bytes -= bytes(eldest.getValue());
+
+                if(!disk.containsKey(eldest.getKey())) evicted.add(eldest);
+            }
+
+            spillTo = directory;
+        }
+
+        if(spillTo == null) return;
+
+        // Written outside the lock so other threads are not held up by the disk
+        for(Map.Entry<Key, BufferedImage> e : evicted) {
+            if(!DiskEntry.canStore(e.getValue())) continue;
+
+            try {
+                spill(e.getKey(), DiskEntry.write(spillTo.resolve("result-" + files.incrementAndGet() + ".bin"), e.getValue()));
+            }
+            catch(IOException ex) {
+                // A full or failing disk only loses the cached copy
+            }
+        }
+    }
+
+    // Adds a file to the disk tier, deleting the least recently used files beyond its size
+    private void spill(Key key, DiskEntry entry) {
+        List<DiskEntry> deleted = new ArrayList<>();
+
+        synchronized(this) {
+            DiskEntry previous = disk.put(key, entry);
+
+            if(previous != null) {
+                diskBytes -= previous.size;
+                deleted.add(previous);
+            }
+
+            diskBytes += entry.size;
+
+            Iterator<DiskEntry> it = disk.values().iterator();
+
+            while(diskBytes > maxDiskBytes && it.hasNext()) {
+                DiskEntry eldest = it.next();
+                it.remove();
+                diskBytes -= eldest.size;
+                deleted.add(eldest);
+            }
+        }
+
+        for(DiskEntry e : deleted) e.delete();
+    }
+
+    // Memory taken by the pixels of an image
+    private static long bytes(BufferedImage image) {
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        return (long) buffer.getSize() * buffer.getNumBanks() * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+    }
+
+    // Hashes the pixels of the source, in parallel bands of rows
+    private static Key key(BufferedImage image, List<Operations.Step> steps, ExecutionContext.Quality quality) {
+        int width = image.getWidth();
+
+        long[] hash = ExecutionPolicy.reduce("resultCache.hash", ExecutionPolicy.CostClass.POINT, width, image.getHeight(),
+                () -> new long[2],
+                (acc, y0, y1) -> {
+                    int[] row = new int[width];
+
+                    for(int y = y0; y < y1; y++) {
+                        Utils.readARGB(image, 0, y, width, 1, row);
+
+                        long h1 = y, h2 = ~y;
+
+                        for(int argb : row) {
+                            h1 = (h1 ^ argb) * 0x100000001B3L;
+                            h2 = Long.rotateLeft(h2 + argb * 0xC2B2AE3D27D4EB4FL, 31) * 0x9E3779B97F4A7C15L;
+                        }
+
+                        // Rows are summed so the bands can be merged in any order, mixed first so that rows do not cancel
+                        acc[0] += mix(h1);
+                        acc[1] += mix(h2 ^ 0x5851F42D4C957F2DL);
+                    }
+                },
+                (a, b) -> {
+                    a[0] += b[0];
+                    a[1] += b[1];
+                    return a;
+                });
+
+        StringBuilder description = new StringBuilder()
+                .append(width).append('x').append(image.getHeight()).append(' ').append(image.getType()).append(' ').append(quality);
+
+        for(Operations.Step step : steps) description.append(';').append(step);
+
+        return new Key(hash[0], hash[1], description.toString());
+    }
+
+    // SplitMix64 finaliser
+    private static long mix(long z) {
+        z = (z ^ z >>> 30) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ z >>> 27) * 0x94D049BB133111EBL;
+        return z ^ z >>> 31;
+    }
+
+    /**
+     * Hash of a source image with the size, type, quality and steps run on it
+     */
+    private static final class Key {
+        private final long hash1, hash2;
+        private final String description;
+
+        Key(long hash1, long hash2, String description) {
+            this.hash1 = hash1;
+            this.hash2 = hash2;
+            this.description = description;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof Key)) return false;
+
+            Key key = (Key) o;
+            return key.hash1 == hash1 && key.hash2 == hash2 && key.description.equals(description);
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(hash1) * 31 + description.hashCode();
+        }
+    }
+
+    /**
+     * A result in the disk tier, stored as its width, height and type followed by its deflated ARGB pixels
+     */
+    private static final class DiskEntry {
+        private final Path path;
+        private final long size;
+
+        private DiskEntry(Path path, long size) {
+            this.path = path;
+            this.size = size;
+        }
+
+        // Only images whose pixels are exactly their ARGB values can be read back the same
+        static boolean canStore(BufferedImage image) {
+            switch(image.getType()) {
+                case BufferedImage.TYPE_INT_ARGB: case BufferedImage.TYPE_INT_RGB: case BufferedImage.TYPE_INT_BGR:
+                case BufferedImage.TYPE_3BYTE_BGR: case BufferedImage.TYPE_4BYTE_ABGR:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        static DiskEntry write(Path path, BufferedImage image) throws IOException {
+            int width = image.getWidth(), height = image.getHeight();
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+            try(DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(new BufferedOutputStream(Files.newOutputStream(path)), deflater, 1 << 16))) {
+                out.writeInt(width);
+                out.writeInt(height);
+                out.writeInt(image.getType());
+
+                int[] row = new int[width];
+                ByteBuffer bytes = ByteBuffer.allocate(width * 4);
+
+                for(int y = 0; y < height; y++) {
+                    Utils.readARGB(image, 0, y, width, 1, row);
+                    bytes.clear();
+                    bytes.asIntBuffer().put(row);
+                    out.write(bytes.array());
+                }
+            }
+            catch(IOException e) {
+                Files.deleteIfExists(path);
+                throw e;
+            }
+            finally {
+                deflater.end();
+            }
+
+            return new DiskEntry(path, Files.size(path));
+        }
+
+        BufferedImage read() throws IOException {
+            Inflater inflater = new Inflater();
+
+            try(DataInputStream in = new DataInputStream(new InflaterInputStream(Files.newInputStream(path), inflater, 1 << 16))) {
+                int width = in.readInt(), height = in.readInt(), type = in.readInt();
+                BufferedImage image = new BufferedImage(width, height, type);
+
+                int[] row = new int[width];
+                byte[] bytes = new byte[width * 4];
+
+                for(int y = 0; y < height; y++) {
+                    in.readFully(bytes);
+                    ByteBuffer.wrap(bytes).asIntBuffer().get(row);
+                    Utils.writeARGB(image, 0, y, width, 1, row);
+                }
+
+                return image;
+            }
+            finally {
+                inflater.end();
+            }
+        }
+
+        void delete() {
+            try {
+                Files.deleteIfExists(path);
+            }
+            catch(IOException e) {
+                // Left behind in the directory, it is never read again
+            }
+        }
+    }
+}
@@ -0,0 +1,1046 @@
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.zip.*;
+
+/**
+ * Row-by-row PNG and BMP decoding and encoding for ScanlinePipeline
+ * Only the current and previous rows are ever held in memory, except when PNG rows are deflated on several threads,
+ * which holds a chunk of rows per thread
+ */
+public class ScanlineCodec {
+    /**
+     * Decoder that pushes rows of ARGB pixels
+     */
+    public interface RowReader {
+        int getWidth();
+
+        int getHeight();
+
+        /**
+         * @return Whether rows are pushed from the bottom of the image up
+         */
+        boolean isBottomUp();
+
+        /**
+         * Decodes every row and pushes it to the sink
+         * @param sink Receives each decoded row
+         */
+        void readRows(ScanlinePipeline.RowSink sink) throws IOException;
+    }
+
+    /**
+     * Encoder that receives rows of ARGB pixels and finishes the file once the last row has been written
+     */
+    public interface RowWriter extends ScanlinePipeline.RowSink {
+        /**
+         * Flushes anything left to the stream, the stream itself is not closed
+         */
+        void finish() throws IOException;
+    }
+
+    /**
+     * Decodes, filters and re-encodes an image without ever holding all of it in memory
+     * @param in PNG or BMP input
+     * @param out Output stream
+     * @param format Output format, either "png" or "bmp"
+     * @param steps Adds the operations to the pipeline
+     */
+    public static void filter(InputStream in, OutputStream out, String format, Consumer<ScanlinePipeline.Builder> steps) throws IOException {
+        // Build the pipeline description before decoding anything so invalid operations are rejected up front
+        ScanlinePipeline.Builder builder = ScanlinePipeline.builder();
+        steps.accept(builder);
+
+        RowReader reader = open(in);
+        RowWriter writer = createWriter(out, format, reader.getWidth(), reader.getHeight(), reader.isBottomUp());
+
+        reader.readRows(builder.build(reader.getWidth(), reader.getHeight(), writer)::row);
+        writer.finish();
+    }
+
+    /**
+     * Opens a PNG or BMP reader, detected from the first bytes of the stream
+     * @param in Input stream
+     * @return Reader positioned at the first row
+     */
+    public static RowReader open(InputStream in) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(in);
+        buffered.mark(2);
+        int b0 = buffered.read(), b1 = buffered.read();
+        buffered.reset();
+
+        if(b0 == 0x89 && b1 == 'P') return new PngReader(buffered);
+        if(b0 == 'B' && b1 == 'M') return new BmpReader(buffered);
+
+        throw new IOException("Unsupported image format, only PNG and BMP can be streamed");
+    }
+
+    /**
+     * Checks whether a stream starts with a PNG or BMP signature, without consuming it
+     * @param in Input stream supporting mark and reset
+     * @return Whether open() can read the stream
+     */
+    public static boolean canOpen(InputStream in) throws IOException {
+        in.mark(2);
+        int b0 = in.read(), b1 = in.read();
+        in.reset();
+
+        return b0 == 0x89 && b1 == 'P' || b0 == 'B' && b1 == 'M';
+    }
+
+    /**
+     * Reads every row of a PNG or BMP into an image
+     * @param reader Reader from open()
+     * @return ARGB image
+     */
+    public static BufferedImage readImage(RowReader reader) throws IOException {
+        BufferedImage image = new BufferedImage(reader.getWidth(), reader.getHeight(), BufferedImage.TYPE_INT_ARGB);
+        reader.readRows((y, argb) -> image.setRGB(0, y, argb.length, 1, argb, 0, argb.length));
+        return image;
+    }
+
+    /**
+     * Encodes an image, writing PNG and BMP row by row so the output starts before the whole file is encoded
+     * Other formats are written with ImageIO, which is only loaded for them
+     * @param image Image to encode
+     * @param format "png", "bmp" or any format ImageIO can write
+     * @param out Output stream
+     */
+    public static void writeImage(BufferedImage image, String format, OutputStream out) throws IOException {
+        writeImage(image, format, out, Deflater.DEFAULT_COMPRESSION, 1);
+    }
+
+    /**
+     * Encodes an image, writing PNG and BMP row by row so the output starts before the whole file is encoded
+     * Other formats are written with ImageIO, which is only loaded for them
+     * @param image Image to encode
+     * @param format "png", "bmp" or any format ImageIO can write
+     * @param out Output stream
+     * @param level Deflate level of PNG from 0 to 9, or -1 for the default
+     * @param threads Threads deflating PNG rows at once, see PngWriter
+     */
+    public static void writeImage(BufferedImage image, String format, OutputStream out, int level, int threads) throws IOException {
+        if(!format.equals("png") && !format.equals("bmp")) {
+            BufferedImage converted = image;
+
+            // Formats without alpha, such as jpg, cannot be written from an ARGB image
+            if(image.getColorModel().hasAlpha() && !ImageIO.getImageWriters(new ImageTypeSpecifier(image), format).hasNext()) {
+                converted = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+                converted.getGraphics().drawImage(image, 0, 0, null);
+            }
+
+            ImageIO.write(converted, format, out);
+            return;
+        }
+
+        int width = image.getWidth();
+        int[] row = new int[width];
+        RowWriter writer = createWriter(out, format, width, image.getHeight(), false, level, threads);
+
+        for(int y = 0; y < image.getHeight(); y++) {
+            Utils.readARGB(image, 0, y, width, 1, row);
+            writer.row(y, row);
+        }
+
+        writer.finish();
+    }
+
+    /**
+     * Creates a writer for the given format
+     * @param out Output stream
+     * @param format "png" or "bmp"
+     * @param width Width of the image
+     * @param height Height of the image
+     * @param bottomUp Whether rows will be written from the bottom up
+     * @return Writer
+     */
+    public static RowWriter createWriter(OutputStream out, String format, int width, int height, boolean bottomUp) throws IOException {
+        return createWriter(out, format, width, height, bottomUp, Deflater.DEFAULT_COMPRESSION, 1);
+    }
+
+    /**
+     * Creates a writer for the given format
+     * @param out Output stream
+     * @param format "png" or "bmp"
+     * @param width Width of the image
+     * @param height Height of the image
+     * @param bottomUp Whether rows will be written from the bottom up
+     * @param level Deflate level of PNG from 0 to 9, or -1 for the default
+     * @param threads Threads deflating PNG rows at once, see PngWriter
+     * @return Writer
+     */
+    public static RowWriter createWriter(OutputStream out, String format, int width, int height, boolean bottomUp, int level, int threads) throws IOException {
+        switch(format.toLowerCase()) {
+            case "png":
+                if(bottomUp) throw new IOException("PNG rows must be written top-down, write bottom-up BMP sources as BMP instead");
+                return new PngWriter(out, width, height, level, threads);
+            case "bmp":
+                return new BmpWriter(out, width, height, bottomUp);
+            default:
+                throw new IllegalArgumentException("Invalid parameter for function createWriter: Unsupported format " + format);
+        }
+    }
+
+    /**
+     * Streaming PNG decoder for non-interlaced images of every colour type
+     */
+    public static class PngReader implements RowReader {
+        private final DataInputStream in;
+        private int width, height, bitDepth, colourType;
+        private int[] palette = new int[0];
+        // Transparent colour for greyscale and truecolour images without an alpha channel, -1 if there is none
+        private int transparentKey = -1;
+        // Length of the IDAT chunk the header reading stopped at
+        private int firstIdatLength;
+
+        public PngReader(InputStream in) throws IOException {
+            this.in = new DataInputStream(in);
+
+            if(this.in.readLong() != 0x89504E470D0A1A0AL) throw new IOException("Invalid PNG signature");
+
+            readHeaderChunks();
+        }
+
+        @Override
+        public int getWidth() {
+            return width;
+        }
+
+        @Override
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public boolean isBottomUp() {
+            return false;
+        }
+
+        // Reads every chunk up to the first IDAT
+        // Lengths come from the client, so only the chunks that are parsed are read into memory and those are limited to
+        // the longest the specification allows, everything else is skipped
+        private void readHeaderChunks() throws IOException {
+            while(true) {
+                int length = checkLength(in.readInt());
+                int type = in.readInt();
+
+                if(type == chunk("IDAT")) {
+                    if(width <= 0 || height <= 0) throw new IOException("Invalid PNG size " + width + "x" + height);
+
+                    firstIdatLength = length;
+                    return;
+                }
+
+                if(type == chunk("IEND")) throw new IOException("PNG has no image data");
+
+                if(type != chunk("IHDR") && type != chunk("PLTE") && type != chunk("tRNS")) {
+                    skip(in, length + 4L); // Data and CRC
+                    continue;
+                }
+
+                int max = type == chunk("IHDR") ? 13 : type == chunk("PLTE") ? 256 * 3 : 256;
+                if(length > max) throw new IOException("Invalid PNG chunk length " + length + ", at most " + max + " expected");
+
+                byte[] data = new byte[length];
+                in.readFully(data);
+                in.readInt(); // CRC
+
+                DataInputStream chunk = new DataInputStream(new ByteArrayInputStream(data));
+
+                if(type == chunk("IHDR")) {
+                    width = chunk.readInt();
+                    height = chunk.readInt();
+                    bitDepth = chunk.readUnsignedByte();
+                    colourType = chunk.readUnsignedByte();
+                    chunk.readUnsignedByte(); // Compression, always deflate
+                    chunk.readUnsignedByte(); // Filter method, always adaptive
+                    if(chunk.readUnsignedByte() != 0) throw new IOException("Interlaced PNG images cannot be streamed");
+                    if(colourType > 6 || colourType == 1 || colourType == 5 || Integer.bitCount(bitDepth) != 1 || bitDepth > 16) {
+                        throw new IOException("Invalid PNG colour type " + colourType + " with bit depth " + bitDepth);
+                    }
+                }
+                else if(type == chunk("PLTE")) {
+                    palette = new int[length / 3];
+                    for(int i = 0; i < palette.length; i++) {
+                        palette[i] = 0xFF000000 | (data[i * 3] & 0xFF) << 16 | (data[i * 3 + 1] & 0xFF) << 8 | data[i * 3 + 2] & 0xFF;
+                    }
+                }
+                else if(type == chunk("tRNS")) {
+                    if(colourType == 3) {
+                        for(int i = 0; i < length && i < palette.length; i++) {
+                            palette[i] = (data[i] & 0xFF) << 24 | palette[i] & 0xFFFFFF;
+                        }
+                    }
+                    else if(colourType == 0) {
+                        transparentKey = chunk.readUnsignedShort();
+                    }
+                    else if(colourType == 2) {
+                        int r = chunk.readUnsignedShort(), g = chunk.readUnsignedShort(), b = chunk.readUnsignedShort();
+                        transparentKey = (r & 0xFF) << 16 | (g & 0xFF) << 8 | b & 0xFF;
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void readRows(ScanlinePipeline.RowSink sink) throws IOException {
+            int channels = colourType == 0 || colourType == 3 ? 1 : colourType == 2 ? 3 : colourType == 4 ? 2 : 4;
+            int bitsPerPixel = channels * bitDepth;
+            int bytesPerPixel = Math.max(1, bitsPerPixel / 8);
+            long rowLength = ((long) width * bitsPerPixel + 7) / 8;
+            if(rowLength > Integer.MAX_VALUE - 8) throw new IOException("PNG rows of " + rowLength + " bytes are too long");
+
+            int rowBytes = (int) rowLength;
+
+            byte[] previous = new byte[rowBytes];
+            byte[] current = new byte[rowBytes];
+            int[] argb = new int[width];
+
+            DataInputStream data = new DataInputStream(new InflaterInputStream(new IdatStream(in, firstIdatLength)));
+
+            for(int y = 0; y < height; y++) {
+                int filter = data.readUnsignedByte();
+                data.readFully(current);
+
+                unfilter(filter, current, previous, bytesPerPixel);
+                toArgb(current, argb);
+                sink.row(y, argb);
+
+                byte[] t = previous;
+                previous = current;
+                current = t;
+            }
+        }
+
+        // Chunk lengths are at most 2^31 - 1, so a negative one means the stream is corrupt
+        private static int checkLength(int length) throws IOException {
+            if(length < 0) throw new IOException("Invalid PNG chunk length " + (length & 0xFFFFFFFFL));
+
+            return length;
+        }
+
+        // Reads past bytes in a fixed size buffer, whatever the count
+        private static void skip(DataInputStream in, long n) throws IOException {
+            byte[] buffer = new byte[8192];
+
+            while(n > 0) {
+                int read = in.read(buffer, 0, (int) Math.min(n, buffer.length));
+                if(read == -1) throw new EOFException("PNG chunk ended early");
+
+                n -= read;
+            }
+        }
+
+        // Reverses the PNG filter for a row in place
+        private static void unfilter(int filter, byte[] row, byte[] previous, int bpp) throws IOException {
+            switch(filter) {
+                case 0:
+                    break;
+                case 1:
+                    for(int i = bpp; i < row.length; i++) row[i] += row[i - bpp];
+                    break;
+                case 2:
+                    for(int i = 0; i < row.length; i++) row[i] += previous[i];
+                    break;
+                case 3:
+                    for(int i = 0; i < row.length; i++) {
+                        int left = i >= bpp ? row[i - bpp] & 0xFF : 0;
+                        row[i] += (left + (previous[i] & 0xFF)) / 2;
+                    }
+                    break;
+                case 4:
+                    for(int i = 0; i < row.length; i++) {
+                        int a = i >= bpp ? row[i - bpp] & 0xFF : 0,
+                            b = previous[i] & 0xFF,
+                            c = i >= bpp ? previous[i - bpp] & 0xFF : 0;
+                        row[i] += paeth(a, b, c);
+                    }
+                    break;
+                default:
+                    throw new IOException("Invalid PNG filter type " + filter);
+            }
+        }
+
+        private static int paeth(int a, int b, int c) {
+            int p = a + b - c,
+                pa = Math.abs(p - a),
+                pb = Math.abs(p - b),
+                pc = Math.abs(p - c);
+
+            if(pa <= pb && pa <= pc) return a;
+            if(pb <= pc) return b;
+            return c;
+        }
+
+        // Converts an unfiltered row to ARGB, 16 bit samples are reduced to their high byte
+        private void toArgb(byte[] row, int[] argb) {
+            int step = bitDepth / 8;
+
+            for(int x = 0; x < width; x++) {
+                switch(colourType) {
+                    case 0: {
+                        int raw = sample(row, x);
+                        int v = scale(raw);
+                        argb[x] = (raw == transparentKey ? 0 : 0xFF000000) | v << 16 | v << 8 | v;
+                        break;
+                    }
+                    case 3:
+                        argb[x] = sample(row, x) < palette.length ? palette[sample(row, x)] : 0xFF000000;
+                        break;
+                    case 2: {
+                        int i = x * 3 * step;
+                        int r = row[i] & 0xFF, g = row[i + step] & 0xFF, b = row[i + 2 * step] & 0xFF;
+                        int rgb = r << 16 | g << 8 | b;
+                        argb[x] = (step == 1 && rgb == transparentKey ? 0 : 0xFF000000) | rgb;
+                        break;
+                    }
+                    case 4: {
+                        int i = x * 2 * step;
+                        int v = row[i] & 0xFF;
+                        argb[x] = (row[i + step] & 0xFF) << 24 | v << 16 | v << 8 | v;
+                        break;
+                    }
+                    default: {
+                        int i = x * 4 * step;
+                        argb[x] = (row[i + 3 * step] & 0xFF) << 24 | (row[i] & 0xFF) << 16 | (row[i + step] & 0xFF) << 8 | row[i + 2 * step] & 0xFF;
+                    }
+                }
+            }
+        }
+
+        // Gets a single channel sample for greyscale and palette images, which can be less than a byte
+        private int sample(byte[] row, int x) {
+            if(bitDepth == 16) return (row[x * 2] & 0xFF) << 8 | row[x * 2 + 1] & 0xFF;
+            if(bitDepth == 8) return row[x] & 0xFF;
+
+            int bit = x * bitDepth;
+            return (row[bit >> 3] & 0xFF) >> (8 - bitDepth - (bit & 7)) & (1 << bitDepth) - 1;
+        }
+
+        // Scales a greyscale sample to 8 bits
+        private int scale(int sample) {
+            if(bitDepth == 16) return sample >> 8;
+            return sample * 255 / ((1 << bitDepth) - 1);
+        }
+    }
+
+    /**
+     * Concatenates the payload of consecutive IDAT chunks
+     */
+    private static class IdatStream extends InputStream {
+        private final DataInputStream in;
+        private int remaining;
+        private boolean finished;
+
+        private IdatStream(DataInputStream in, int firstLength) {
+            this.in = in;
+            this.remaining = firstLength;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            while(remaining == 0) {
+                if(finished) return -1;
+
+                in.readInt(); // CRC of the previous chunk
+
+                int length = PngReader.checkLength(in.readInt());
+                int type = in.readInt();
+
+                if(type != chunk("IDAT")) {
+                    // Image data has ended, the trailing chunks are not needed
+                    finished = true;
+                    return -1;
+                }
+
+                remaining = length;
+            }
+
+            int read = in.read(b, off, Math.min(len, remaining));
+            if(read == -1) throw new EOFException("PNG image data ended early");
+
+            remaining -= read;
+            return read;
+        }
+    }
+
+    /**
+     * Streaming PNG encoder that writes 8 bit RGBA rows, top row first
+     *
+     * With more than one thread, rows are gathered into chunks of 256 KiB that are deflated on the common fork join
+     * pool while later rows are still being written, as pigz does: each chunk starts from the last 32 KiB of the one
+     * before it as its dictionary and ends on a sync flush, so the chunks join into one zlib stream. The output is a
+     * little larger than from a single deflater, and row() only waits when as many chunks as threads are in flight
+     *
+     * Each row is stored with the filter that gives the smallest sum of absolute values of its bytes taken as signed,
+     * the heuristic the PNG specification suggests for picking filters, except at level 0 where rows are not filtered
+     */
+    public static class PngWriter implements RowWriter {
+        private static final int BPP = 4;
+
+        private final DataOutputStream out;
+        private final int width, height;
+        private final OutputStream idat;
+        private final int level;
+        // The filter type followed by the filtered row
+        private final byte[] rowBytes;
+        // Unfiltered bytes of this row and the one above it, which is all zero above the first row
+        private byte[] current, previous;
+        private int nextRow;
+
+        /**
+         * @param out Output stream
+         * @param width Width of the image
+         * @param height Height of the image
+         * @param level Deflate level from 0 to 9, or -1 for the default
+         */
+        public PngWriter(OutputStream out, int width, int height, int level) throws IOException {
+            this(out, width, height, level, 1);
+        }
+
+        /**
+         * @param out Output stream
+         * @param width Width of the image
+         * @param height Height of the image
+         * @param level Deflate level from 0 to 9, or -1 for the default
+         * @param threads Chunks deflated at once, 1 to deflate every row on the calling thread
+         */
+        public PngWriter(OutputStream out, int width, int height, int level, int threads) throws IOException {
+            if(level < -1 || level > 9) throw new IllegalArgumentException("Invalid parameter for function PngWriter: level must be from 0 to 9, or -1");
+            if(threads < 1) throw new IllegalArgumentException("Invalid parameter for function PngWriter: threads must be at least 1");
+
+            this.out = new DataOutputStream(out);
+            this.width = width;
+            this.height = height;
+            this.level = level;
+            this.rowBytes = new byte[1 + width * BPP];
+            this.current = new byte[width * BPP];
+            this.previous = new byte[width * BPP];
+
+            this.out.writeLong(0x89504E470D0A1A0AL);
+
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            DataOutputStream h = new DataOutputStream(header);
+            h.writeInt(width);
+            h.writeInt(height);
+            h.writeByte(8); // Bit depth
+            h.writeByte(6); // Truecolour with alpha
+            h.writeByte(0);
+            h.writeByte(0);
+            h.writeByte(0);
+            writeChunk(this.out, "IHDR", header.toByteArray(), header.size());
+
+            idat = threads == 1
+                    ? new DeflaterOutputStream(new ChunkOutputStream(this.out), new Deflater(level), 1 << 16)
+                    : new ParallelDeflaterOutputStream(new ChunkOutputStream(this.out), level, threads);
+        }
+
+        @Override
+        public void row(int y, int[] argb) throws IOException {
+            if(y != nextRow) throw new IOException("PNG rows must be written in order, expected row " + nextRow + " but got " + y);
+
+            for(int x = 0, i = 0; x < width; x++, i += BPP) {
+                int c = argb[x];
+                current[i] = (byte) (c >> 16);
+                current[i + 1] = (byte) (c >> 8);
+                current[i + 2] = (byte) c;
+                current[i + 3] = (byte) (c >>> 24);
+            }
+
+            // Stored rows are not compressed, so filtering them would only cost time
+            filter(level == 0 ? 0 : chooseFilter());
+            idat.write(rowBytes);
+
+            byte[] t = previous;
+            previous = current;
+            current = t;
+            nextRow++;
+        }
+
+        // Sums the absolute values of the row filtered each way and returns the filter type with the smallest
+        private int chooseFilter() {
+            long none = 0, sub = 0, up = 0, average = 0, paeth = 0;
+
+            for(int i = 0; i < current.length; i++) {
+                int x = current[i] & 0xFF,
+                    a = i >= BPP ? current[i - BPP] & 0xFF : 0,
+                    b = previous[i] & 0xFF,
+                    c = i >= BPP ? previous[i - BPP] & 0xFF : 0;
+
+                none += Math.abs((byte) x);
+                sub += Math.abs((byte) (x - a));
+                up += Math.abs((byte) (x - b));
+                average += Math.abs((byte) (x - (a + b) / 2));
+                paeth += Math.abs((byte) (x - PngReader.paeth(a, b, c)));
+            }
+
+            long[] sums = {none, sub, up, average, paeth};
+            int best = 0;
+
+            for(int f = 1; f < sums.length; f++) {
+                if(sums[f] < sums[best]) best = f;
+            }
+
+            return best;
+        }
+
+        // Writes the filter type and the row filtered with it into rowBytes, the inverse of PngReader.unfilter
+        private void filter(int type) {
+            byte[] row = current;
+            rowBytes[0] = (byte) type;
+
+            switch(type) {
+                case 0:
+                    System.arraycopy(row, 0, rowBytes, 1, row.length);
+                    break;
+                case 1:
+                    for(int i = 0; i < row.length; i++) rowBytes[i + 1] = (byte) (row[i] - (i >= BPP ? row[i - BPP] : 0));
+                    break;
+                case 2:
+                    for(int i = 0; i < row.length; i++) rowBytes[i + 1] = (byte) (row[i] - previous[i]);
+                    break;
+                case 3:
+                    for(int i = 0; i < row.length; i++) {
+                        int left = i >= BPP ? row[i - BPP] & 0xFF : 0;
+                        rowBytes[i + 1] = (byte) (row[i] - (left + (previous[i] & 0xFF)) / 2);
+                    }
+                    break;
+                default:
+                    for(int i = 0; i < row.length; i++) {
+                        int a = i >= BPP ? row[i - BPP] & 0xFF : 0,
+                            b = previous[i] & 0xFF,
+                            c = i >= BPP ? previous[i - BPP] & 0xFF : 0;
+                        rowBytes[i + 1] = (byte) (row[i] - PngReader.paeth(a, b, c));
+                    }
+                    break;
+            }
+        }
+
+        @Override
+        public void finish() throws IOException {
+            if(nextRow != height) throw new IOException("PNG is missing rows, only " + nextRow + " of " + height + " were written");
+
+            if(idat instanceof DeflaterOutputStream) ((DeflaterOutputStream) idat).finish();
+            else ((ParallelDeflaterOutputStream) idat).finish();
+
+            idat.flush();
+            writeChunk(out, "IEND", new byte[0], 0);
+            out.flush();
+        }
+    }
+
+    /**
+     * Zlib stream deflated in chunks on the common fork join pool, written out in order as the chunks complete
+     */
+    private static class ParallelDeflaterOutputStream extends OutputStream {
+        private static final int CHUNK_SIZE = 1 << 18;
+        private static final int DICTIONARY_SIZE = 1 << 15;
+
+        private final OutputStream out;
+        private final int level, threads;
+        private final Adler32 adler = new Adler32();
+        // Deflated chunks in order, the first is written out as soon as it completes
+        private final ArrayDeque<CompletableFuture<byte[]>> pending = new ArrayDeque<>();
+        private byte[] chunk = new byte[CHUNK_SIZE];
+        private int size;
+        private byte[] dictionary;
+
+        private ParallelDeflaterOutputStream(OutputStream out, int level, int threads) throws IOException {
+            this.out = out;
+            this.level = level;
+            this.threads = threads;
+
+            // Zlib header for a 32 KiB window, with the level hint decoders ignore
+            int cmf = 0x78, flg = (level == -1 ? 2 : level < 2 ? 0 : level < 6 ? 1 : level == 6 ? 2 : 3) << 6;
+            flg += 31 - (cmf << 8 | flg) % 31;
+            out.write(cmf);
+            out.write(flg);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while(len > 0) {
+                if(size == chunk.length) submit(false);
+
+                int n = Math.min(len, chunk.length - size);
+                System.arraycopy(b, off, chunk, size, n);
+                size += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        private void finish() throws IOException {
+            submit(true);
+
+            while(!pending.isEmpty()) drain();
+
+            int checksum = (int) adler.getValue();
+            out.write(checksum >>> 24);
+            out.write(checksum >>> 16);
+            out.write(checksum >>> 8);
+            out.write(checksum);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        private void submit(boolean last) throws IOException {
+            byte[] input = chunk, previous = dictionary;
+            int length = size;
+
+            adler.update(input, 0, length);
+            dictionary = Arrays.copyOfRange(input, Math.max(0, length - DICTIONARY_SIZE), length);
+            pending.add(CompletableFuture.supplyAsync(() -> deflate(input, length, previous, level, last), ForkJoinPool.commonPool()));
+
+            chunk = new byte[CHUNK_SIZE];
+            size = 0;
+
+            // Writes out what has completed, and waits for the oldest chunk when more than one per thread are in flight
+            while(!pending.isEmpty() && (pending.peek().isDone() || pending.size() > threads)) drain();
+        }
+
+        private void drain() throws IOException {
+            try {
+                out.write(pending.poll().join());
+            }
+            catch(CompletionException e) {
+                throw new IOException("Deflating PNG rows failed", e.getCause());
+            }
+        }
+
+        private static byte[] deflate(byte[] input, int length, byte[] dictionary, int level, boolean last) {
+            Deflater deflater = new Deflater(level, true);
+
+            try {
+                if(dictionary != null && dictionary.length > 0) deflater.setDictionary(dictionary);
+                deflater.setInput(input, 0, length);
+                if(last) deflater.finish();
+
+                ByteArrayOutputStream deflated = new ByteArrayOutputStream(length / 2 + 64);
+                byte[] buffer = new byte[1 << 16];
+
+                while(true) {
+                    int n = deflater.deflate(buffer, 0, buffer.length, last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+                    deflated.write(buffer, 0, n);
+
+                    // A sync flush is complete once it leaves room in the buffer
+                    if(last ? deflater.finished() : n < buffer.length) break;
+                }
+
+                return deflated.toByteArray();
+            }
+            finally {
+                deflater.end();
+            }
+        }
+    }
+
+    /**
+     * Buffers deflated data and writes it out as IDAT chunks
+     */
+    private static class ChunkOutputStream extends OutputStream {
+        private final DataOutputStream out;
+        private final byte[] buffer = new byte[1 << 16];
+        private int size;
+
+        private ChunkOutputStream(DataOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if(size == buffer.length) flush();
+            buffer[size++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while(len > 0) {
+                if(size == buffer.length) flush();
+
+                int n = Math.min(len, buffer.length - size);
+                System.arraycopy(b, off, buffer, size, n);
+                size += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if(size == 0) return;
+
+            writeChunk(out, "IDAT", buffer, size);
+            size = 0;
+        }
+    }
+
+    /**
+     * Streaming BMP decoder for uncompressed 8, 24 and 32 bit images
+     */
+    public static class BmpReader implements RowReader {
+        private final DataInputStream in;
+        private final int width, height, bitCount;
+        private final boolean bottomUp;
+        private int[] palette = new int[0];
+        private int redMask = 0xFF0000, greenMask = 0xFF00, blueMask = 0xFF, alphaMask = 0;
+
+        public BmpReader(InputStream in) throws IOException {
+            this.in = new DataInputStream(in);
+
+            byte[] fileHeader = new byte[14];
+            this.in.readFully(fileHeader);
+            int dataOffset = le32(fileHeader, 10);
+
+            int infoSize = le32(readBytes(4), 0);
+            // From BITMAPINFOHEADER to BITMAPV5HEADER, the sizes come from the client so nothing larger is allocated
+            if(infoSize < 40 || infoSize > 124) throw new IOException("Unsupported BMP header size " + infoSize);
+
+            byte[] info = readBytes(infoSize - 4);
+
+            int w = le32(info, 0);
+            int h = le32(info, 4);
+            bitCount = le16(info, 10);
+            int compression = le32(info, 12);
+            int coloursUsed = infoSize >= 40 ? le32(info, 28) : 0;
+
+            if(w <= 0 || h == 0 || h == Integer.MIN_VALUE) throw new IOException("Invalid BMP size " + w + "x" + h);
+
+            width = w;
+            height = Math.abs(h);
+            // Positive height means the rows are stored from the bottom up
+            bottomUp = h > 0;
+
+            int consumed = 14 + infoSize;
+
+            if(compression == 3 || compression == 6) {
+                // Bit field masks either follow the header or are part of a V4/V5 header
+                if(infoSize >= 52) {
+                    redMask = le32(info, 36);
+                    greenMask = le32(info, 40);
+                    blueMask = le32(info, 44);
+                    if(infoSize >= 56) alphaMask = le32(info, 48);
+                }
+                else {
+                    byte[] masks = readBytes(compression == 6 ? 16 : 12);
+                    consumed += masks.length;
+                    redMask = le32(masks, 0);
+                    greenMask = le32(masks, 4);
+                    blueMask = le32(masks, 8);
+                    if(compression == 6) alphaMask = le32(masks, 12);
+                }
+            }
+            else if(compression != 0) {
+                throw new IOException("Compressed BMP images cannot be streamed");
+            }
+            else if(bitCount == 32 && infoSize >= 56) {
+                // V4/V5 headers with uncompressed 32 bit data may still carry an alpha mask
+                alphaMask = le32(info, 48);
+            }
+
+            if(bitCount == 8) {
+                int colours = coloursUsed == 0 ? 256 : coloursUsed;
+                if(colours < 0 || colours > 256) throw new IOException("Invalid BMP palette size " + colours);
+
+                byte[] table = readBytes(colours * 4);
+                consumed += table.length;
+                palette = new int[colours];
+                for(int i = 0; i < colours; i++) {
+                    palette[i] = 0xFF000000 | (table[i * 4 + 2] & 0xFF) << 16 | (table[i * 4 + 1] & 0xFF) << 8 | table[i * 4] & 0xFF;
+                }
+            }
+            else if(bitCount != 24 && bitCount != 32) {
+                throw new IOException("Unsupported BMP bit depth " + bitCount);
+            }
+
+            this.in.skipBytes(dataOffset - consumed);
+        }
+
+        @Override
+        public int getWidth() {
+            return width;
+        }
+
+        @Override
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public boolean isBottomUp() {
+            return bottomUp;
+        }
+
+        @Override
+        public void readRows(ScanlinePipeline.RowSink sink) throws IOException {
+            int stride = (width * bitCount + 31) / 32 * 4;
+            byte[] row = new byte[stride];
+            int[] argb = new int[width];
+
+            for(int i = 0; i < height; i++) {
+                in.readFully(row);
+
+                for(int x = 0; x < width; x++) {
+                    if(bitCount == 8) {
+                        int index = row[x] & 0xFF;
+                        argb[x] = index < palette.length ? palette[index] : 0xFF000000;
+                    }
+                    else if(bitCount == 24) {
+                        argb[x] = 0xFF000000 | (row[x * 3 + 2] & 0xFF) << 16 | (row[x * 3 + 1] & 0xFF) << 8 | row[x * 3] & 0xFF;
+                    }
+                    else {
+                        int v = le32(row, x * 4);
+                        int a = alphaMask == 0 ? 0xFF : channel(v, alphaMask);
+                        argb[x] = a << 24 | channel(v, redMask) << 16 | channel(v, greenMask) << 8 | channel(v, blueMask);
+                    }
+                }
+
+                sink.row(bottomUp ? height - 1 - i : i, argb);
+            }
+        }
+
+        // Extracts a channel with a bit field mask, scaled to 8 bits
+        private static int channel(int v, int mask) {
+            if(mask == 0) return 0;
+
+            int shift = Integer.numberOfTrailingZeros(mask);
+            int bits = Integer.bitCount(mask);
+            int value = (v & mask) >>> shift;
+
+            return bits >= 8 ? value >>> (bits - 8) : value * 255 / ((1 << bits) - 1);
+        }
+
+        private byte[] readBytes(int n) throws IOException {
+            byte[] b = new byte[n];
+            in.readFully(b);
+            return b;
+        }
+    }
+
+    /**
+     * Streaming BMP encoder that writes 32 bit BGRA rows with an alpha mask
+     * Rows have to be written in a single direction, either top-down or bottom-up
+     */
+    public static class BmpWriter implements RowWriter {
+        private final OutputStream out;
+        private final int width, height;
+        private final boolean bottomUp;
+        private final byte[] rowBytes;
+        private int written;
+
+        /**
+         * @param out Output stream
+         * @param width Width of the image
+         * @param height Height of the image
+         * @param bottomUp Whether rows will be written from the bottom row up
+         */
+        public BmpWriter(OutputStream out, int width, int height, boolean bottomUp) throws IOException {
+            this.out = out;
+            this.width = width;
+            this.height = height;
+            this.bottomUp = bottomUp;
+            this.rowBytes = new byte[width * 4];
+
+            int headerSize = 14 + 108;
+            long imageSize = (long) width * height * 4;
+
+            byte[] header = new byte[headerSize];
+            header[0] = 'B';
+            header[1] = 'M';
+            putLe32(header, 2, (int) (headerSize + imageSize));
+            putLe32(header, 10, headerSize);
+            // BITMAPV4HEADER so the alpha channel is kept
+            putLe32(header, 14, 108);
+            putLe32(header, 18, width);
+            // Negative height marks top-down rows
+            putLe32(header, 22, bottomUp ? height : -height);
+            header[26] = 1;
+            header[28] = 32;
+            putLe32(header, 30, 3); // BI_BITFIELDS
+            putLe32(header, 34, (int) imageSize);
+            putLe32(header, 38, 2835);
+            putLe32(header, 42, 2835);
+            putLe32(header, 54, 0x00FF0000);
+            putLe32(header, 58, 0x0000FF00);
+            putLe32(header, 62, 0x000000FF);
+            putLe32(header, 66, 0xFF000000);
+            putLe32(header, 70, 0x73524742); // sRGB colour space
+
+            out.write(header);
+        }
+
+        @Override
+        public void row(int y, int[] argb) throws IOException {
+            int expected = bottomUp ? height - 1 - written : written;
+            if(y != expected) throw new IOException("BMP rows must be written in order, expected row " + expected + " but got " + y);
+
+            for(int x = 0; x < width; x++) {
+                putLe32(rowBytes, x * 4, argb[x]);
+            }
+
+            out.write(rowBytes);
+            written++;
+        }
+
+        @Override
+        public void finish() throws IOException {
+            if(written != height) throw new IOException("BMP is missing rows, only " + written + " of " + height + " were written");
+
+            out.flush();
+        }
+    }
+
+    // Writes a PNG chunk with its length and CRC
+    private static void writeChunk(DataOutputStream out, String type, byte[] data, int length) throws IOException {
+        byte[] typeBytes = type.getBytes("US-ASCII");
+
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+
+        out.writeInt(length);
+        out.write(typeBytes);
+        out.write(data, 0, length);
+        out.writeInt((int) crc.getValue());
+    }
+
+    private static int chunk(String type) {
+        return type.charAt(0) << 24 | type.charAt(1) << 16 | type.charAt(2) << 8 | type.charAt(3);
+    }
+
+    private static int le16(byte[] b, int i) {
+        return b[i] & 0xFF | (b[i + 1] & 0xFF) << 8;
+    }
+
+    private static int le32(byte[] b, int i) {
+        return b[i] & 0xFF | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF) << 16 | (b[i + 3] & 0xFF) << 24;
+    }
+
+    private static void putLe32(byte[] b, int i, int v) {
+        b[i] = (byte) v;
+        b[i + 1] = (byte) (v >> 8);
+        b[i + 2] = (byte) (v >> 16);
+        b[i + 3] = (byte) (v >> 24);
+    }
+}
@@ -0,0 +1,471 @@
+import java.awt.*;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Push-based pipeline of row-local operations
+ * Rows are pushed in one at a time (usually by a ScanlineCodec reader), run through every operation and pushed out to a
+ * RowSink, so only O(width) memory is used and no full BufferedImage is ever created
+ *
+ * Only operations whose output row depends on nothing but the same source row and the pixel coordinates can be added,
+ * every other operation is rejected when the pipeline is being built
+ */
+public class ScanlinePipeline {
+    /**
+     * Receives rows of ARGB pixels
+     */
+    public interface RowSink {
+        /**
+         * Receives one row. Rows arrive in the order the source stores them, which is bottom-up for most BMP files
+         * @param y Row index in the image, 0 being the top row
+         * @param argb Row pixels, only valid until this method returns
+         */
+        void row(int y, int[] argb) throws IOException;
+    }
+
+    /**
+     * An operation that only needs the current source row
+     */
+    public interface RowOperation {
+        /**
+         * Filters one row
+         * @param src Source row
+         * @param dst Destination row, never the same array as src
+         * @param y Row index in the image
+         * @param width Width of the image
+         * @param height Height of the image
+         */
+        void apply(int[] src, int[] dst, int y, int width, int height);
+    }
+
+    private final RowOperation[] operations;
+    private final RowSink sink;
+    private final int width, height;
+    private int[] front, back;
+    // Context of the thread that built the pipeline, checked once per row
+    private final ExecutionContext context = ExecutionContext.current();
+    private int rowsDone;
+
+    private ScanlinePipeline(List<RowOperation> operations, int width, int height, RowSink sink) {
+        this.operations = operations.toArray(new RowOperation[0]);
+        this.width = width;
+        this.height = height;
+        this.sink = sink;
+        this.front = new int[width];
+        this.back = new int[width];
+    }
+
+    /**
+     * Creates an empty pipeline builder
+     * @return Builder
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Filters a row and pushes it to the sink
+     * @param y Row index in the image
+     * @param row Source row, left unchanged
+     */
+    public void row(int y, int[] row) throws IOException {
+        if(row.length < width) throw new IllegalArgumentException("Invalid parameter for function row: Row is shorter than the image width");
+
+        context.checkpoint("scanline", rowsDone++, height);
+
+        int[] src = row;
+
+        for(RowOperation operation : operations) {
+            operation.apply(src, back, y, width, height);
+
+            // Swap buffers so the output of this operation is the input of the next
+            int[] t = front;
+            front = back;
+            back = t;
+            src = front;
+        }
+
+        sink.row(y, src);
+    }
+
+    /**
+     * Builds a ScanlinePipeline, rejecting any operation that is not row-local
+     */
+    public static class Builder {
+        private final List<RowOperation> operations = new ArrayList<>();
+
+        private Builder() {}
+
+        /**
+         * Adds an operation by its ImageManipulation method name
+         * @param name Name of the ImageManipulation method
+         * @param args Arguments after the image, in the same order as the method
+         * @return This builder
+         */
+        public Builder add(String name, Object... args) {
+            switch(name) {
+                case "reflectX": return reflectX();
+                case "distortWaveX": return distortWaveX();
+                case "greyScale": return greyScale();
+                case "negative": return negative();
+                case "rainbowWave": return rainbowWave(intArg(name, args, 0), floatArg(name, args, 1));
+                case "rainbowGradient": return rainbowGradient(intArg(name, args, 0), floatArg(name, args, 1));
+                case "red": return red(intArg(name, args, 0));
+                case "green": return green(intArg(name, args, 0));
+                case "blue": return blue(intArg(name, args, 0));
+                case "warm": return warm(intArg(name, args, 0));
+                case "cool": return cool(intArg(name, args, 0));
+                case "brighten": return brighten(intArg(name, args, 0));
+                case "darken": return darken(intArg(name, args, 0));
+                case "saturate": return saturate(intArg(name, args, 0));
+                case "noise": return noise(intArg(name, args, 0));
+                case "noiseGreyscale": return noiseGreyscale(intArg(name, args, 0));
+                case "noiseSeeded": return noise(intArg(name, args, 0), intArg(name, args, 1));
+                case "noiseGreyscaleSeeded": return noiseGreyscale(intArg(name, args, 0), intArg(name, args, 1));
+                case "circleFade": return circleFade(colourArg(name, args, 0), intArg(name, args, 1), intArg(name, args, 2));
+                case "squareFade": return squareFade(colourArg(name, args, 0), intArg(name, args, 1), intArg(name, args, 2));
+                // Known operations that sample pixels from other rows
+                case "reflectY": case "rotateCCW": case "rotateCW": case "rotateAny": case "rotateAnyNoResize":
+                case "blur": case "blurPasses": case "median": case "distortWave": case "distortWaveY": case "shimmer": case "shimmerSeeded":
+                case "pixel": case "circleDisfigure": case "circleDistort": case "concaveDistort": case "sphereDistort":
+                case "ripple": case "scaleOut": case "bulge": case "curveUp": case "curveRight":
+                case "extractWatermarkWhiteBackground": case "removeWatermark": case "addWatermark":
+                case "gaussianBlur": case "autoBrighten": case "autoContrast":
+                    throw new IllegalArgumentException("Invalid operation for ScanlinePipeline: " + name + " is not row-local, it reads pixels from other rows of the source");
+                default:
+                    throw new IllegalArgumentException("Invalid operation for ScanlinePipeline: Unknown operation " + name);
+            }
+        }
+
+        /**
+         * Adds a custom row-local operation
+         * @param operation Operation to add
+         * @return This builder
+         */
+        public Builder add(RowOperation operation) {
+            operations.add(operation);
+            return this;
+        }
+
+        /**
+         * Creates the pipeline for an image of the given size
+         * @param width Width of the image
+         * @param height Height of the image
+         * @param sink Receives the filtered rows
+         * @return Pipeline
+         */
+        public ScanlinePipeline build(int width, int height, RowSink sink) {
+            return new ScanlinePipeline(operations, width, height, sink);
+        }
+
+        /**
+         * @return Whether no operations have been added
+         */
+        public boolean isEmpty() {
+            return operations.isEmpty();
+        }
+
+        /**
+         * Adds ImageManipulation.reflectX
+         * @return This builder
+         */
+        public Builder reflectX() {
+            return add((src, dst, y, width, height) -> {
+                for(int x = 0, xr = width - 1; x < width; x++, xr--) {
+                    dst[xr] = src[x];
+                }
+            });
+        }
+
+        /**
+         * Adds ImageManipulation.distortWaveX
+         * @return This builder
+         */
+        public Builder distortWaveX() {
+            return add((src, dst, y, width, height) -> {
+                for(int x = 0; x < width; x++) {
+                    dst[x] = ImageManipulation.opaque(src[ImageManipulation.distortWaveXSource(x, width)]);
+                }
+            });
+        }
+
+        /**
+         * Adds ImageManipulation.greyScale
+         * @return This builder
+         */
+        public Builder greyScale() {
+            return add((src, dst, y, width, height) -> {
+                for(int x = 0; x < width; x++) {
+                    dst[x] = ImageManipulation.greyScalePixel(src[x]);
+                }
+            });
+        }
+
+        /**
+         * Adds ImageManipulation.negative
+         * @return This builder
+         */
+        public Builder negative() {
+            return add((src, dst, y, width, height) -> {
+                for(int x = 0; x < width; x++) {
+                    dst[x] = ImageManipulation.negativePixel(src[x]);
+                }
+            });
+        }
+
+        /**
+         * Adds ImageManipulation.rainbowWave
+         * @param intensity Same as ImageManipulation.rainbowWave
+         * @param seed Same as ImageManipulation.rainbowWave
+         * @return This builder
+         */
+        public Builder rainbowWave(int intensity, float seed) {
+            float limitedSeed = ImageManipulation.rainbowWaveSeed(seed);
+            float period = ImageManipulation.rainbowWavePeriod(limitedSeed);
+
+            return add((src, dst, y, width, height) -> {
+                for(int x = 0; x < width; x++) {
+                    dst[x] = ImageManipulation.rainbowWavePixel(src[x], x, y, period, limitedSeed, intensity);
+                }
+            });
+        }
+
+        /**
+         * Adds ImageManipulation.rainbowGradient
+         * @param amount Same as ImageManipulation.rainbowGradient
+         * @param seed Same as ImageManipulation.rainbowGradient
+         * @return This builder
+         */
+        public Builder rainbowGradient(int amount, float seed) {
+            float alpha = (float) amount / 255f;
+
+            return add((src, dst, y, width, height) -> {
+                ImageManipulation.RainbowGradient gradient = new ImageManipulation.RainbowGradient(width, height, seed);
+
+                for(int x = 0; x < width; x++) {
+                    dst[x] = ImageManipulation.mix(gradient.pixel(x, y), src[x], alpha);
+                }
+            });
+        }
+
+        /**
+         * Adds ImageManipulation.red
+         * @param amount Same as ImageManipulation.red
+         * @return This builder
+         */
+        public Builder red(int amount) {
+            return mix(amount, ImageManipulation::redPixel);
+        }
+
+        /**
+         * Adds ImageManipulation.green
+         * @param amount Same as ImageManipulation.green
+         * @return This builder
+         */
+        public Builder green(int amount) {
+            return mix(amount, ImageManipulation::greenPixel);
+        }
+
+        /**
+         * Adds ImageManipulation.blue
+         * @param amount Same as ImageManipulation.blue
+         * @return This builder
+         */
+        public Builder blue(int amount) {
+            return mix(amount, ImageManipulation::bluePixel);
+        }
+
+        /**
+         * Adds ImageManipulation.warm
+         * @param amount Same as ImageManipulation.warm
+         * @return This builder
+         */
+        public Builder warm(int amount) {
+            return mix(amount, ImageManipulation::warmPixel);
+        }
+
+        /**
+         * Adds ImageManipulation.cool
+         * @param amount Same as ImageManipulation.cool
+         * @return This builder
+         */
+        public Builder cool(int amount) {
+            return mix(amount, ImageManipulation::coolPixel);
+        }
+
+        /**
+         * Adds ImageManipulation.brighten
+         * @param amount Same as ImageManipulation.brighten
+         * @return This builder
+         */
+        public Builder brighten(int amount) {
+            return add((src, dst, y, width, height) -> {
+                for(int x = 0; x < width; x++) {
+                    dst[x] = ImageManipulation.brightenPixel(src[x], amount);
+                }
+            });
+        }
+
+        /**
+         * Adds ImageManipulation.darken
+         * @param amount Same as ImageManipulation.darken
+         * @return This builder
+         */
+        public Builder darken(int amount) {
+            return add((src, dst, y, width, height) -> {
+                for(int x = 0; x < width; x++) {
+                    dst[x] = ImageManipulation.brightenPixel(src[x], -amount);
+                }
+            });
+        }
+
+        /**
+         * Adds ImageManipulation.saturate
+         * @param amount Same as ImageManipulation.saturate
+         * @return This builder
+         */
+        public Builder saturate(int amount) {
+            return mix(amount, ImageManipulation::saturatePixel);
+        }
+
+        /**
+         * Adds ImageManipulation.noise
+         * @param amount Same as ImageManipulation.noise
+         * @return This builder
+         */
+        public Builder noise(int amount) {
+            float alpha = (float) amount / 255f;
+
+            return add((src, dst, y, width, height) -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+
+                for(int x = 0; x < width; x++) {
+                    dst[x] = ImageManipulation.mix(ImageManipulation.noisePixel(random), src[x], alpha);
+                }
+            });
+        }
+
+        /**
+         * Adds ImageManipulation.noiseGreyscale
+         * @param amount Same as ImageManipulation.noiseGreyscale
+         * @return This builder
+         */
+        public Builder noiseGreyscale(int amount) {
+            float alpha = (float) amount / 255f;
+
+            return add((src, dst, y, width, height) -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+
+                for(int x = 0; x < width; x++) {
+                    dst[x] = ImageManipulation.mix(ImageManipulation.noiseGreyscalePixel(random), src[x], alpha);
+                }
+            });
+        }
+
+        /**
+         * Adds ImageManipulation.noise with a seed
+         * @param amount Same as ImageManipulation.noise
+         * @param seed Same as ImageManipulation.noise
+         * @return This builder
+         */
+        public Builder noise(int amount, long seed) {
+            float alpha = (float) amount / 255f;
+
+            return add((src, dst, y, width, height) -> {
+                for(int x = 0; x < width; x++) {
+                    dst[x] = ImageManipulation.mix(ImageManipulation.noisePixel(seed, x, y), src[x], alpha);
+                }
+            });
+        }
+
+        /**
+         * Adds ImageManipulation.noiseGreyscale with a seed
+         * @param amount Same as ImageManipulation.noiseGreyscale
+         * @param seed Same as ImageManipulation.noiseGreyscale
+         * @return This builder
+         */
+        public Builder noiseGreyscale(int amount, long seed) {
+            float alpha = (float) amount / 255f;
+
+            return add((src, dst, y, width, height) -> {
+                for(int x = 0; x < width; x++) {
+                    dst[x] = ImageManipulation.mix(ImageManipulation.noiseGreyscalePixel(seed, x, y), src[x], alpha);
+                }
+            });
+        }
+
+        /**
+         * Adds ImageManipulation.circleFade
+         * @param colour Same as ImageManipulation.circleFade
+         * @param radius Same as ImageManipulation.circleFade
+         * @param fadeLength Same as ImageManipulation.circleFade
+         * @return This builder
+         */
+        public Builder circleFade(Color colour, int radius, int fadeLength) {
+            return add((src, dst, y, width, height) -> {
+                int centreX = width / 2;
+                int centreY = height / 2;
+
+                for(int x = 0; x < width; x++) {
+                    float dist = ImageManipulation.distance(x, centreX, y, centreY);
+
+                    dst[x] = ImageManipulation.blend(colour, src[x], ImageManipulation.circleFadeAlpha(dist, radius, fadeLength));
+                }
+            });
+        }
+
+        /**
+         * Adds ImageManipulation.squareFade
+         * @param colour Same as ImageManipulation.squareFade
+         * @param width Same as ImageManipulation.squareFade
+         * @param fadeLength Same as ImageManipulation.squareFade
+         * @return This builder
+         */
+        public Builder squareFade(Color colour, int width, int fadeLength) {
+            return add((src, dst, y, w, h) -> {
+                int centreX = w / 2;
+                int centreY = h / 2;
+
+                int distY = ImageManipulation.distance1d(y, centreY);
+
+                for(int x = 0; x < w; x++) {
+                    int dist = Math.max(ImageManipulation.distance1d(x, centreX), distY);
+
+                    dst[x] = ImageManipulation.blend(colour, src[x], ImageManipulation.squareFadeAlpha(dist, width, fadeLength));
+                }
+            });
+        }
+
+        // Adds an operation mixing the pixels of a kernel over the row, the same as ImageManipulation.mixAlpha
+        private Builder mix(int amount, IntUnaryOperator kernel) {
+            float alpha = (float) amount / 255f;
+
+            return add((src, dst, y, width, height) -> {
+                for(int x = 0; x < width; x++) {
+                    dst[x] = ImageManipulation.mix(kernel.applyAsInt(src[x]), src[x], alpha);
+                }
+            });
+        }
+
+        private static int intArg(String name, Object[] args, int i) {
+            return ((Number) arg(name, args, i)).intValue();
+        }
+
+        private static float floatArg(String name, Object[] args, int i) {
+            return ((Number) arg(name, args, i)).floatValue();
+        }
+
+        private static Color colourArg(String name, Object[] args, int i) {
+            return (Color) arg(name, args, i);
+        }
+
+        private static Object arg(String name, Object[] args, int i) {
+            if(i >= args.length) throw new IllegalArgumentException("Invalid parameter for operation " + name + ": Expected at least " + (i + 1) + " arguments");
+
+            return args[i];
+        }
+    }
+}
@@ -0,0 +1,162 @@
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Encodes images and the results of chains as PNG or BMP straight from their rows, with the PNG rows deflated on
+ * several threads, see ScanlineCodec.PngWriter
+ *
+ * When every step of a chain is croppable (see RegionOfInterest), the result is computed in strips of rows from crops
+ * of the input with the halo the steps need, as TileShards computes tiles, and each strip is handed to the encoder as
+ * soon as it is done. The deflating of one strip then overlaps the computing of the next, the output starts before
+ * the whole result exists, and the result is never held whole. Other chains, and chains whose halo would make the
+ * strips more than twice as tall as the image, are computed whole and then encoded
+ *
+ * Strips are computed in the current ExecutionContext, pixels are the same as from Operations.apply on the whole image
+ *
+ * Example:
+ * <pre>
+ * new StreamingEncoder("png").setLevel(1).write(image, Operations.parseChain("blur:range=2;warm:amount=80"), out);
+ * </pre>
+ */
+public class StreamingEncoder {
+    private final String format;
+    private int level = Deflater.DEFAULT_COMPRESSION;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int stripHeight = 256;
+
+    /**
+     * @param format "png", "bmp", or any format ImageIO can write, which is encoded from the whole result
+     */
+    public StreamingEncoder(String format) {
+        this.format = format.toLowerCase();
+    }
+
+    /**
+     * @param level Deflate level of PNG from 0 to 9, or -1 for the default
+     * @return This encoder
+     */
+    public StreamingEncoder setLevel(int level) {
+        if(level < -1 || level > 9) throw new IllegalArgumentException("Invalid parameter for function setLevel: level must be from 0 to 9, or -1");
+
+        this.level = level;
+        return this;
+    }
+
+    /**
+     * @param threads Threads deflating PNG rows at once, 1 to deflate on the calling thread, defaults to one per core
+     * @return This encoder
+     */
+    public StreamingEncoder setThreads(int threads) {
+        if(threads < 1) throw new IllegalArgumentException("Invalid parameter for function setThreads: threads must be at least 1");
+
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * @param stripHeight Rows of the result computed at once, 256 by default
+     * @return This encoder
+     */
+    public StreamingEncoder setStripHeight(int stripHeight) {
+        if(stripHeight < 1) throw new IllegalArgumentException("Invalid parameter for function setStripHeight: stripHeight must be at least 1");
+
+        this.stripHeight = stripHeight;
+        return this;
+    }
+
+    /**
+     * @return Format written, in lower case
+     */
+    public String getFormat() {
+        return format;
+    }
+
+    /**
+     * Creates a row writer with the format, deflate level and threads of this encoder
+     * @param out Output stream
+     * @param width Width of the image
+     * @param height Height of the image
+     * @param bottomUp Whether rows will be written from the bottom up
+     * @return Writer, for "png" or "bmp" only
+     */
+    public ScanlineCodec.RowWriter createWriter(OutputStream out, int width, int height, boolean bottomUp) throws IOException {
+        return ScanlineCodec.createWriter(out, format, width, height, bottomUp, level, threads);
+    }
+
+    /**
+     * Encodes an image
+     * @param image Image to encode
+     * @param out Output stream, not closed
+     */
+    public void write(BufferedImage image, OutputStream out) throws IOException {
+        ScanlineCodec.writeImage(image, format, out, level, threads);
+    }
+
+    /**
+     * Runs steps on an image and encodes the result, in strips when the steps allow it
+     * @param image Input image
+     * @param steps Steps in order
+     * @param out Output stream, not closed
+     */
+    public void write(BufferedImage image, List<Operations.Step> steps, OutputStream out) throws IOException {
+        List<Rectangle> regions = format.equals("png") || format.equals("bmp") ? regions(image.getWidth(), image.getHeight(), steps) : null;
+
+        if(regions == null) {
+            write(Operations.apply(image, steps), out);
+            return;
+        }
+
+        int width = image.getWidth(), height = image.getHeight();
+        ScanlineCodec.RowWriter writer = createWriter(out, width, height, false);
+        int[] row = new int[width];
+
+        for(int i = 0; i < regions.size(); i++) {
+            Rectangle region = regions.get(i);
+            int y0 = i * stripHeight, y1 = Math.min(height, y0 + stripHeight);
+
+            BufferedImage crop = new BufferedImage(region.width, region.height, BufferedImage.TYPE_INT_ARGB);
+            Utils.writeARGB(crop, 0, 0, region.width, region.height, Utils.readARGB(image, region.x, region.y, region.width, region.height, null));
+
+            BufferedImage strip = Operations.apply(crop, steps);
+
+            for(int y = y0; y < y1; y++) {
+                Utils.readARGB(strip, 0, y - region.y, width, 1, row);
+                writer.row(y, row);
+            }
+        }
+
+        writer.finish();
+    }
+
+    // Region of the input each strip needs, always the full width, or null if the chain has to run on the whole image
+    private List<Rectangle> regions(int width, int height, List<Operations.Step> steps) {
+        if(steps.isEmpty() || height <= stripHeight) return null;
+
+        for(Operations.Step step : steps) {
+            if(!RegionOfInterest.isCroppable(step.operation.name)) return null;
+        }
+
+        List<Rectangle> regions = new ArrayList<>();
+        long rows = 0;
+
+        for(int y = 0; y < height; y += stripHeight) {
+            Rectangle region = new Rectangle(0, y, width, Math.min(stripHeight, height - y));
+
+            for(int i = steps.size() - 1; i >= 0; i--) {
+                region = RegionOfInterest.needed(steps.get(i), region, width, height);
+            }
+
+            region = RegionOfInterest.align(region, steps);
+            regions.add(region);
+            rows += region.height;
+        }
+
+        // The halo is computed once per strip, past this it costs more than the overlap saves
+        return rows > 2L * height ? null : regions;
+    }
+}
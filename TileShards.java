@@ -0,0 +1,501 @@
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+/**
+ * Runs a chain over an image too large for one JVM, by splitting it into tiles processed by several local worker
+ * processes that share the image through memory-mapped RasterFiles
+ *
+ * The chain is split into passes, each reading one raster file and writing the next:
+ * - runs of steps that only read the pixels around the ones they write (the colour operations, blur, blurPasses,
+ *   median and pixel), where each tile reads its rectangle grown by the reach of the steps, as RegionOfInterest does
+ * - runs of warps, where each tile reads the bounding box of the source pixels its inverse maps sample, found by
+ *   WarpChain.sourceRegion, which is the tile itself for mixed warps plus wherever the map reads
+ * - reflectX, reflectY, rotateCW and rotateCCW, where each tile reads the rectangle it is reflected or rotated from
+ * Steps that need the whole image at once, or depend on where in the image a pixel is, cannot be sharded:
+ * gaussianBlur, autoBrighten, autoContrast, rotateAny, the distort waves, shimmer, the fades, the rainbows and noise
+ *
+ * Every tile is identical to the same rectangle of Operations.apply on the whole image. Each worker is a JVM started
+ * with the class path of this one, sent one tile at a time over its standard input and replying on its standard
+ * output once the tile is written. A tile whose worker fails, exits or passes the tile timeout is retried, on a new
+ * worker process when the old one is gone, and the pass fails once a tile has used up its attempts
+ *
+ * Intermediate images are written next to the output unless a directory is given, and take 4 bytes per pixel each.
+ * At most two exist at once, and the file system should have room for them; a tmpfs such as /dev/shm keeps them in
+ * memory when it is large enough
+ *
+ * Example:
+ * <pre>
+ * try(TileShards shards = new TileShards(8).setJavaOptions("-Xmx1g")) {
+ *     shards.apply(Paths.get("mosaic.raster"), Paths.get("mosaic.out.raster"), Operations.parseChain("blur:range=4;bulge:alpha=120"));
+ * }
+ * </pre>
+ */
+public class TileShards implements Closeable {
+    private static final String DONE = "done";
+    private static final String FAILED = "failed";
+
+    private final Worker[] workers;
+    private int tileSize = 1024;
+    private int attempts = 3;
+    private long tileTimeout = TimeUnit.MINUTES.toNanos(10);
+    private List<String> javaOptions = Collections.emptyList();
+    private Path directory;
+
+    /**
+     * @param workers Number of worker processes
+     */
+    public TileShards(int workers) {
+        if(workers < 1) throw new IllegalArgumentException("Invalid parameter for function TileShards: Expected at least one worker");
+
+        this.workers = new Worker[workers];
+        for(int i = 0; i < workers; i++) this.workers[i] = new Worker();
+    }
+
+    /**
+     * @param tileSize Width and height of the tiles of the output, 1024 by default
+     * @return This object
+     */
+    public TileShards setTileSize(int tileSize) {
+        if(tileSize < 1) throw new IllegalArgumentException("Invalid parameter for function setTileSize: Tile size must be positive");
+
+        this.tileSize = tileSize;
+        return this;
+    }
+
+    /**
+     * @param attempts Number of times a tile is tried before the pass fails, 3 by default
+     * @return This object
+     */
+    public TileShards setAttempts(int attempts) {
+        if(attempts < 1) throw new IllegalArgumentException("Invalid parameter for function setAttempts: Expected at least one attempt");
+
+        this.attempts = attempts;
+        return this;
+    }
+
+    /**
+     * Sets how long a worker may take over one tile before it is stopped and the tile retried
+     * @param timeout Time allowed per tile, 10 minutes by default
+     * @param unit Unit of the timeout
+     * @return This object
+     */
+    public TileShards setTileTimeout(long timeout, TimeUnit unit) {
+        this.tileTimeout = unit.toNanos(timeout);
+        return this;
+    }
+
+    /**
+     * Sets options for the worker JVMs, used for workers started after this call
+     * Each worker is given an equal share of the processors with -XX:ActiveProcessorCount unless the options set it
+     * @param options Options such as "-Xmx2g"
+     * @return This object
+     */
+    public TileShards setJavaOptions(String... options) {
+        this.javaOptions = Arrays.asList(options.clone());
+        return this;
+    }
+
+    /**
+     * @param directory Directory of the intermediate images between passes, by default the directory of the output
+     * @return This object
+     */
+    public TileShards setDirectory(Path directory) {
+        this.directory = directory;
+        return this;
+    }
+
+    /**
+     * @param name Name of an operation
+     * @return Whether steps of the operation can be sharded
+     */
+    public static boolean isShardable(String name) {
+        return RegionOfInterest.isCroppable(name) || WarpChain.isWarp(name) || isOrientation(name);
+    }
+
+    private static boolean isOrientation(String name) {
+        switch(name) {
+            case "reflectX": case "reflectY": case "rotateCW": case "rotateCCW":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Applies steps to an image in a raster file, writing the result to another
+     * Runs in the current ExecutionContext, which is checked for cancellation and told of the tiles done in each pass
+     * @param input Raster file of the input image, which is not modified
+     * @param output Raster file to write, replaced if it exists
+     * @param steps Steps in order, each of which must be shardable
+     * @throws IOException If a file could not be read or written, or a tile failed on every attempt
+     */
+    public void apply(Path input, Path output, List<Operations.Step> steps) throws IOException {
+        for(Operations.Step step : steps) {
+            if(!isShardable(step.operation.name)) {
+                throw new IllegalArgumentException("Invalid parameter for function apply: " + step.operation.name + " needs the whole image and cannot be sharded");
+            }
+        }
+
+        int width, height;
+
+        try(RasterFile file = RasterFile.open(input, false)) {
+            width = file.getWidth();
+            height = file.getHeight();
+        }
+
+        if(steps.isEmpty()) {
+            Files.copy(input, output, StandardCopyOption.REPLACE_EXISTING);
+            return;
+        }
+
+        List<List<Operations.Step>> passes = passes(steps);
+        Path folder = directory != null ? directory : output.toAbsolutePath().getParent();
+        Path current = input, target = null;
+
+        try {
+            for(int i = 0; i < passes.size(); i++) {
+                List<Operations.Step> pass = passes.get(i);
+                String name = pass.get(0).operation.name;
+
+                // Quarter turns swap the width and height, every other pass keeps the size
+                if(name.equals("rotateCW") || name.equals("rotateCCW")) {
+                    int swap = width;
+                    width = height;
+                    height = swap;
+                }
+
+                target = i == passes.size() - 1 ? output : Files.createTempFile(folder, "shard", ".raster");
+                RasterFile.create(target, width, height).close();
+
+                run(current, target, pass, width, height);
+
+                if(current != input) Files.delete(current);
+                current = target;
+                target = null;
+            }
+        }
+        finally {
+            // Intermediate images left by a failed pass
+            if(target != null && target != output) Files.deleteIfExists(target);
+            if(current != input && current != output) Files.deleteIfExists(current);
+        }
+    }
+
+    /**
+     * Applies steps to an image through raster files in a temporary directory, mostly useful to compare the sharded
+     * result with Operations.apply, as the image and the result are both held in memory
+     * @param image Input image
+     * @param steps Steps in order, each of which must be shardable
+     * @return Output image
+     * @throws IOException If a file could not be read or written, or a tile failed on every attempt
+     */
+    public BufferedImage apply(BufferedImage image, List<Operations.Step> steps) throws IOException {
+        Path folder = directory != null ? directory : Paths.get(System.getProperty("java.io.tmpdir"));
+        Path input = Files.createTempFile(folder, "shard", ".raster"), output = Files.createTempFile(folder, "shard", ".raster");
+
+        try {
+            RasterFile.write(image, input);
+            apply(input, output, steps);
+
+            try(RasterFile file = RasterFile.open(output, false)) {
+                return file.readImage(file.getBounds());
+            }
+        }
+        finally {
+            Files.deleteIfExists(input);
+            Files.deleteIfExists(output);
+        }
+    }
+
+    /**
+     * Stops the worker processes, they are started again if the object is used after this
+     */
+    @Override
+    public void close() {
+        for(Worker worker : workers) worker.stop();
+    }
+
+    // Splits the steps into passes that each read their input once per tile
+    private static List<List<Operations.Step>> passes(List<Operations.Step> steps) {
+        List<List<Operations.Step>> passes = new ArrayList<>();
+
+        for(int i = 0; i < steps.size(); i++) {
+            String name = steps.get(i).operation.name;
+            int end = i + 1;
+
+            if(WarpChain.isWarp(name)) {
+                while(end < steps.size() && WarpChain.isWarp(steps.get(end).operation.name)) end++;
+            }
+            else if(RegionOfInterest.isCroppable(name)) {
+                while(end < steps.size() && RegionOfInterest.isCroppable(steps.get(end).operation.name)) end++;
+            }
+
+            passes.add(steps.subList(i, end));
+            i = end - 1;
+        }
+
+        return passes;
+    }
+
+    // Runs one pass, with a thread per worker taking tiles from a shared queue
+    private void run(Path input, Path output, List<Operations.Step> steps, int width, int height) throws IOException {
+        ExecutionContext context = ExecutionContext.current();
+        String chain = steps.stream().map(Operations.Step::toString).collect(Collectors.joining(";"));
+        // Workers may be started from another directory
+        String files = input.toAbsolutePath() + "\t" + output.toAbsolutePath();
+
+        Queue<Tile> queue = new ConcurrentLinkedQueue<>();
+
+        for(int y = 0; y < height; y += tileSize) {
+            for(int x = 0; x < width; x += tileSize) {
+                queue.add(new Tile(new Rectangle(x, y, Math.min(tileSize, width - x), Math.min(tileSize, height - y))));
+            }
+        }
+
+        int total = queue.size();
+        AtomicInteger done = new AtomicInteger();
+        AtomicReference<IOException> failure = new AtomicReference<>();
+        Thread[] threads = new Thread[workers.length];
+
+        for(int i = 0; i < threads.length; i++) {
+            Worker worker = workers[i];
+
+            threads[i] = new Thread(() -> {
+                Tile tile;
+
+                while(failure.get() == null && !context.isCancelled() && (tile = queue.poll()) != null) {
+                    Rectangle r = tile.bounds;
+
+                    try {
+                        worker.run(files + "\t" + chain + "\t" + r.x + "\t" + r.y + "\t" + r.width + "\t" + r.height);
+                        done.incrementAndGet();
+                    }
+                    catch(IOException e) {
+                        if(++tile.attempts < attempts) queue.add(tile);
+                        else failure.compareAndSet(null, new IOException("Tile at " + r.x + "," + r.y + " of " + chain + " failed after " + tile.attempts + " attempts: " + e.getMessage(), e));
+                    }
+                }
+            }, "TileShards-" + i);
+
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+
+        try {
+            for(Thread thread : threads) {
+                while(thread.isAlive()) {
+                    thread.join(100);
+
+                    for(Worker worker : workers) worker.checkTimeout();
+                    context.checkpoint("tileShards", done.get(), total);
+                }
+            }
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            close();
+            throw new InterruptedIOException("Interrupted while waiting for tiles");
+        }
+        catch(CancellationException e) {
+            // Stopping the workers ends the tiles in progress, the threads then see the cancellation and stop
+            close();
+            throw e;
+        }
+
+        if(failure.get() != null) throw failure.get();
+    }
+
+    /**
+     * A tile of a pass and the attempts made at it
+     */
+    private static class Tile {
+        private final Rectangle bounds;
+        private int attempts;
+
+        private Tile(Rectangle bounds) {
+            this.bounds = bounds;
+        }
+    }
+
+    /**
+     * A worker process, started when it is first sent a tile and again after it exits
+     */
+    private class Worker {
+        private Process process;
+        private BufferedWriter requests;
+        private BufferedReader replies;
+        // Time the tile in progress must be done by, or 0 when the worker is idle
+        private volatile long deadline;
+        private volatile boolean timedOut;
+
+        // Sends a tile and waits for it to be written
+        private void run(String request) throws IOException {
+            if(process == null || !process.isAlive()) start();
+
+            timedOut = false;
+            deadline = System.nanoTime() + tileTimeout;
+            String reply;
+
+            try {
+                requests.write(request);
+                requests.newLine();
+                requests.flush();
+
+                reply = replies.readLine();
+            }
+            catch(IOException e) {
+                stop();
+                throw timedOut ? new IOException("Worker timed out") : e;
+            }
+            finally {
+                deadline = 0;
+            }
+
+            if(reply == null) {
+                stop();
+                throw new IOException(timedOut ? "Worker timed out" : "Worker exited");
+            }
+
+            // The worker is still healthy when the operation itself failed, so it is kept for the next tile
+            if(reply.startsWith(FAILED)) throw new IOException("Worker failed: " + reply.substring(FAILED.length()).trim());
+
+            if(!reply.equals(DONE)) {
+                stop();
+                throw new IOException("Unexpected reply from worker: " + reply);
+            }
+        }
+
+        private synchronized void start() throws IOException {
+            List<String> command = new ArrayList<>();
+            command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add("-Djava.awt.headless=true");
+            command.add("-XX:ActiveProcessorCount=" + Math.max(1, Runtime.getRuntime().availableProcessors() / workers.length));
+            command.addAll(javaOptions);
+            command.add(TileShards.class.getName());
+
+            process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+            requests = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+            replies = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+        }
+
+        // Stops the worker if the tile in progress has passed its deadline, which ends the wait for its reply
+        private void checkTimeout() {
+            long d = deadline;
+
+            if(d != 0 && System.nanoTime() - d > 0) {
+                timedOut = true;
+                stop();
+            }
+        }
+
+        private synchronized void stop() {
+            if(process == null) return;
+
+            process.destroyForcibly();
+            process = null;
+        }
+    }
+
+    /**
+     * Worker process, reading tiles from standard input as tab-separated lines of the input raster file, the output
+     * raster file, the steps in chain syntax and the x, y, width and height of the tile in the output, and replying
+     * with a line of done or failed and the error once the tile is written
+     * @param args Not used
+     * @throws IOException If standard input or output fail
+     */
+    public static void main(String[] args) throws IOException {
+        if(System.getProperty("java.awt.headless") == null) System.setProperty("java.awt.headless", "true");
+
+        // Only replies go to standard output
+        PrintStream replies = new PrintStream(new FileOutputStream(FileDescriptor.out), false, "UTF-8");
+        System.setOut(System.err);
+
+        BufferedReader requests = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        Map<String, List<Operations.Step>> chains = new HashMap<>();
+        String line;
+
+        while((line = requests.readLine()) != null) {
+            try {
+                String[] fields = line.split("\t");
+                if(fields.length != 7) throw new IllegalArgumentException("Expected 7 fields but got " + fields.length);
+
+                List<Operations.Step> steps = chains.computeIfAbsent(fields[2], Operations::parseChain);
+                Rectangle tile = new Rectangle(Integer.parseInt(fields[3]), Integer.parseInt(fields[4]), Integer.parseInt(fields[5]), Integer.parseInt(fields[6]));
+
+                try(RasterFile input = RasterFile.open(Paths.get(fields[0]), false); RasterFile output = RasterFile.open(Paths.get(fields[1]), true)) {
+                    output.write(tile, tile(input, steps, tile));
+                }
+
+                replies.println(DONE);
+            }
+            catch(IOException | RuntimeException e) {
+                replies.println(FAILED + " " + String.valueOf(e).replace('\n', ' '));
+            }
+
+            replies.flush();
+        }
+    }
+
+    // Computes a tile of the output of a pass, reading only the part of the input it needs
+    private static int[] tile(RasterFile input, List<Operations.Step> steps, Rectangle tile) throws IOException {
+        int width = input.getWidth(), height = input.getHeight();
+        String name = steps.get(0).operation.name;
+
+        if(WarpChain.isWarp(name)) {
+            WarpChain chain = new WarpChain();
+            for(Operations.Step step : steps) chain.add(step.operation.name, step.getArgs());
+
+            Rectangle region = chain.sourceRegion(width, height, tile);
+            return chain.apply(input.read(region, null), region, width, height, tile);
+        }
+
+        Rectangle region;
+
+        switch(name) {
+            case "reflectX":
+                region = new Rectangle(width - tile.x - tile.width, tile.y, tile.width, tile.height);
+                break;
+            case "reflectY":
+                region = new Rectangle(tile.x, height - tile.y - tile.height, tile.width, tile.height);
+                break;
+            case "rotateCW":
+                // Output (x, y) is input (y, height - 1 - x)
+                region = new Rectangle(tile.y, height - tile.x - tile.width, tile.height, tile.width);
+                break;
+            case "rotateCCW":
+                // Output (x, y) is input (width - 1 - y, x)
+                region = new Rectangle(width - tile.y - tile.height, tile.x, tile.height, tile.width);
+                break;
+            default:
+                region = tile;
+
+                for(int i = steps.size() - 1; i >= 0; i--) {
+                    region = RegionOfInterest.needed(steps.get(i), region, width, height);
+                }
+
+                region = RegionOfInterest.align(region, steps);
+        }
+
+        BufferedImage result = Operations.apply(input.readImage(region), steps);
+
+        // Reflecting or rotating the region gives the tile itself, the other passes give the tile with its halo
+        int x = isOrientation(name) ? 0 : tile.x - region.x, y = isOrientation(name) ? 0 : tile.y - region.y;
+        return Utils.readARGB(result, x, y, tile.width, tile.height, null);
+    }
+}
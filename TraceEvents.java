@@ -0,0 +1,316 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+
+/**
+ * JDK Flight Recorder events for the operations, their passes, the images they allocate and the decoding and encoding
+ * of ImageService, so a recording shows where the time of a slow request went without a profiler attached
+ *
+ * - imagemanipulation.Operation is emitted by Operations.Operation.apply with the step in chain syntax and the sizes
+ *   of the input and output
+ * - imagemanipulation.Phase is emitted by every ExecutionPolicy pass, such as blur, mixAlpha or the passes of a
+ *   separable filter, with the operation it belongs to and its number within it, so the third blur of
+ *   blurPasses:range=2,passes=4 is the phase blur numbered 3 of the operation blurPasses
+ * - imagemanipulation.Allocation is emitted when deepCopy, createBlankClone or createOutput allocate an image
+ * - imagemanipulation.Codec is emitted by ImageService around decode, encode and the streamed scanline path
+ *
+ * JFR records the thread and start time of every event. The events are disabled unless a recording enables them, for
+ * example with -XX:StartFlightRecording, and then cost a check of the event type each
+ */
+public class TraceEvents {
+    @Name("imagemanipulation.Operation")
+    @Label("Image Operation")
+    @Category("Image Manipulation")
+    @Description("An operation run through Operations, such as a step of a chain")
+    @StackTrace(false)
+    public static class OperationEvent extends Event {
+        @Label("Step")
+        @Description("Operation and parameters in chain syntax")
+        String step;
+
+        @Label("Width")
+        int width;
+
+        @Label("Height")
+        int height;
+
+        @Label("Output Width")
+        int outputWidth;
+
+        @Label("Output Height")
+        int outputHeight;
+
+        @Label("Failed")
+        @Description("Whether the operation threw, for example because it was cancelled")
+        boolean failed;
+    }
+
+    @Name("imagemanipulation.Phase")
+    @Label("Image Operation Phase")
+    @Category("Image Manipulation")
+    @Description("A pass over the pixels of an image run by ExecutionPolicy")
+    @StackTrace(false)
+    public static class PhaseEvent extends Event {
+        @Label("Operation")
+        @Description("Operation the pass belongs to, or the pass itself when an ImageManipulation method is called directly")
+        String operation;
+
+        @Label("Phase")
+        String phase;
+
+        @Label("Index")
+        @Description("Number of the pass within its operation, from 1")
+        int index;
+
+        @Label("Strategy")
+        String strategy;
+
+        @Label("X")
+        int x;
+
+        @Label("Y")
+        int y;
+
+        @Label("Width")
+        int width;
+
+        @Label("Height")
+        int height;
+
+        @Label("Failed")
+        boolean failed;
+    }
+
+    @Name("imagemanipulation.Allocation")
+    @Label("Image Allocation")
+    @Category("Image Manipulation")
+    @Description("An image allocated for the output or an intermediate result of an operation")
+    @StackTrace(false)
+    public static class AllocationEvent extends Event {
+        @Label("Operation")
+        @Description("Operation the image is allocated for, or empty when an ImageManipulation method is called directly")
+        String operation;
+
+        @Label("Kind")
+        @Description("deepCopy, createBlankClone or createOutput")
+        String kind;
+
+        @Label("Width")
+        int width;
+
+        @Label("Height")
+        int height;
+
+        @Label("Size")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("imagemanipulation.Codec")
+    @Label("Image Codec")
+    @Category("Image Manipulation")
+    @Description("Decoding or encoding of an image by ImageService")
+    @StackTrace(false)
+    public static class CodecEvent extends Event {
+        @Label("Phase")
+        @Description("decode, encode, or stream for the scanline path that decodes, processes and encodes row by row")
+        String phase;
+
+        @Label("Format")
+        String format;
+
+        @Label("Width")
+        int width;
+
+        @Label("Height")
+        int height;
+
+        @Label("Failed")
+        boolean failed;
+    }
+
+    /**
+     * An event being timed, committed when it is closed
+     */
+    public static abstract class Span implements AutoCloseable {
+        private boolean completed;
+
+        /**
+         * Marks the span as completed, spans closed without it are recorded as failed
+         * @param output Image produced, or null if there is none
+         */
+        public void completed(BufferedImage output) {
+            completed = true;
+            if(output != null) output(output);
+        }
+
+        void output(BufferedImage output) {}
+
+        abstract void commit(boolean failed);
+
+        @Override
+        public void close() {
+            commit(!completed);
+        }
+    }
+
+    // Operation running on a thread, so passes and allocations know what they belong to
+    private static class Frame {
+        final String operation;
+        final Frame parent;
+        int phases;
+
+        Frame(String operation, Frame parent) {
+            this.operation = operation;
+            this.parent = parent;
+        }
+    }
+
+    private static final ThreadLocal<Frame> FRAME = new ThreadLocal<>();
+
+    private TraceEvents() {}
+
+    /**
+     * Starts an operation event
+     * @param operation Operation being run
+     * @param args Arguments in parameter order
+     * @param image Input image
+     * @return Span to close when the operation returns, or null if the event is not enabled
+     */
+    public static Span operation(Operations.Operation operation, Object[] args, BufferedImage image) {
+        OperationEvent event = new OperationEvent();
+        if(!event.isEnabled()) return null;
+
+        Frame frame = new Frame(operation.name, FRAME.get());
+        FRAME.set(frame);
+
+        event.step = operation.describe(args);
+        event.width = image.getWidth();
+        event.height = image.getHeight();
+        event.begin();
+
+        return new Span() {
+            @Override
+            void output(BufferedImage output) {
+                event.outputWidth = output.getWidth();
+                event.outputHeight = output.getHeight();
+            }
+
+            @Override
+            void commit(boolean failed) {
+                FRAME.set(frame.parent);
+                event.failed = failed;
+                event.commit();
+            }
+        };
+    }
+
+    /**
+     * Starts a phase event
+     * @param phase Name of the pass
+     * @param strategy Strategy the pass runs with
+     * @param x Left of the pixels the pass writes
+     * @param y Top of the pixels the pass writes
+     * @param width Width of the pixels the pass writes
+     * @param height Height of the pixels the pass writes
+     * @return Span to close when the pass returns, or null if the event is not enabled
+     */
+    public static Span phase(String phase, ExecutionPolicy.Strategy strategy, int x, int y, int width, int height) {
+        PhaseEvent event = new PhaseEvent();
+        if(!event.isEnabled()) return null;
+
+        Frame frame = FRAME.get();
+
+        event.operation = frame == null ? phase : frame.operation;
+        event.phase = phase;
+        event.index = frame == null ? 1 : ++frame.phases;
+        event.strategy = strategy.name();
+        event.x = x;
+        event.y = y;
+        event.width = width;
+        event.height = height;
+        event.begin();
+
+        return new Span() {
+            @Override
+            void commit(boolean failed) {
+                event.failed = failed;
+                event.commit();
+            }
+        };
+    }
+
+    /**
+     * Starts a codec event
+     * @param phase decode, encode or stream
+     * @param format Format of the encoded image
+     * @param width Width of the image, or 0 when decoding, where the size comes from the completed span
+     * @param height Height of the image, or 0 when decoding
+     * @return Span to close when the codec returns, or null if the event is not enabled
+     */
+    public static Span codec(String phase, String format, int width, int height) {
+        CodecEvent event = new CodecEvent();
+        if(!event.isEnabled()) return null;
+
+        event.phase = phase;
+        event.format = format;
+        event.width = width;
+        event.height = height;
+        event.begin();
+
+        return new Span() {
+            @Override
+            void output(BufferedImage output) {
+                event.width = output.getWidth();
+                event.height = output.getHeight();
+            }
+
+            @Override
+            void commit(boolean failed) {
+                event.failed = failed;
+                event.commit();
+            }
+        };
+    }
+
+    /**
+     * Starts timing an allocation, the event is committed by allocated()
+     * @return Event
+     */
+    static AllocationEvent allocating() {
+        AllocationEvent event = new AllocationEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Commits an allocation event
+     * @param event Event from allocating()
+     * @param kind deepCopy, createBlankClone or createOutput
+     * @param image Image allocated
+     * @return The image
+     */
+    static BufferedImage allocated(AllocationEvent event, String kind, BufferedImage image) {
+        event.end();
+        if(!event.shouldCommit()) return image;
+
+        Frame frame = FRAME.get();
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+
+        event.operation = frame == null ? null : frame.operation;
+        event.kind = kind;
+        event.width = image.getWidth();
+        event.height = image.getHeight();
+        event.bytes = (long) buffer.getSize() * buffer.getNumBanks() * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+        event.commit();
+
+        return image;
+    }
+}
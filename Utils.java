@@ -12,10 +12,11 @@ public class Utils {
      * @return Copied BufferedImage
      */
     public static BufferedImage deepCopy(BufferedImage bi) {
+        TraceEvents.AllocationEvent event = TraceEvents.allocating();
         ColorModel cm = bi.getColorModel();
         boolean isAlphaPremultiplied = cm.isAlphaPremultiplied();
         WritableRaster raster = bi.copyData(bi.getRaster().createCompatibleWritableRaster());
-        return new BufferedImage(cm, raster, isAlphaPremultiplied, null);
+        return TraceEvents.allocated(event, "deepCopy", new BufferedImage(cm, raster, isAlphaPremultiplied, null));
     }
     
         /**
@@ -41,4 +42,47 @@ public class Utils {
     public static float clamp(float value, float min, float max) {
         return Math.min(Math.max(value, min), max);
     }
+
+    /**
+     * Reads a rectangle of pixels as ARGB ints, the same as BufferedImage.getRGB, but copied straight from the raster
+     * for TYPE_INT_ARGB images instead of converted one pixel at a time
+     *
+     * @param image Image to read from
+     * @param x Left of the rectangle
+     * @param y Top of the rectangle
+     * @param width Width of the rectangle
+     * @param height Height of the rectangle
+     * @param pixels Array of at least width * height pixels, or null to allocate one
+     * @return Pixels row by row
+     */
+    public static int[] readARGB(BufferedImage image, int x, int y, int width, int height, int[] pixels) {
+        if(pixels == null) pixels = new int[width * height];
+
+        if(image.getType() == BufferedImage.TYPE_INT_ARGB) {
+            image.getRaster().getDataElements(x, y, width, height, pixels);
+            return pixels;
+        }
+
+        return image.getRGB(x, y, width, height, pixels, 0, width);
+    }
+
+    /**
+     * Writes a rectangle of ARGB ints, the same as BufferedImage.setRGB, but copied straight into the raster for
+     * TYPE_INT_ARGB images
+     *
+     * @param image Image to write to
+     * @param x Left of the rectangle
+     * @param y Top of the rectangle
+     * @param width Width of the rectangle
+     * @param height Height of the rectangle
+     * @param pixels Pixels row by row
+     */
+    public static void writeARGB(BufferedImage image, int x, int y, int width, int height, int[] pixels) {
+        if(image.getType() == BufferedImage.TYPE_INT_ARGB) {
+            image.getRaster().setDataElements(x, y, width, height, pixels);
+            return;
+        }
+
+        image.setRGB(x, y, width, height, pixels, 0, width);
+    }
 }
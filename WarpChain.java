@@ -0,0 +1,507 @@
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Applies a chain of geometric warps with a single pass over the output, instead of one full image per warp
+ * Each output pixel follows the inverse maps back through the chain and reads the source once, and the alpha mix of
+ * the warps that have one (bulge, ripple and the other distortions) is done in the same pass
+ *
+ * The result is identical to calling the warps one after another: every stage still truncates the position it
+ * samples, pixels mapped outside the image are transparent in the last stage and opaque black when read by a later
+ * stage. A mixed stage reads its input twice, once through its map and once in place, so a chain of n mixed stages
+ * reads up to 2^n source pixels per output pixel
+ *
+ * A chain of warps with no mixed stages is followed back pixel by pixel without recursion, and is faster than running
+ * the warps one after another
+ *
+ * A chain can also be compiled for one image size into index tables, with consecutive unmixed stages merged into one
+ * table, which is faster when the same chain is applied to many images
+ */
+public class WarpChain {
+    /**
+     * Creates the inverse map of a stage for an image size
+     */
+    private interface MapFactory {
+        WarpMap create(int width, int height);
+    }
+
+    /**
+     * Index of the pixel a stage reads from the previous stage, TRANSPARENT or OPAQUE_BLACK when it reads nothing
+     * Stages evaluating a map take the pixel as x and y and leave the x and y they read in scratch, so no index is
+     * divided back into coordinates, compiled stages only use the index
+     */
+    private interface Stage {
+        int source(int x, int y, int index, float[] scratch);
+    }
+
+    private static final int TRANSPARENT = -1;
+    private static final int OPAQUE_BLACK = -2;
+
+    private final List<MapFactory> maps = new ArrayList<>();
+    // Alpha of the mix with the stage input, or -1 for stages that are not mixed
+    private final List<Integer> alphas = new ArrayList<>();
+
+    /**
+     * @param name Name of an ImageManipulation operation
+     * @return Whether the operation can be added to a WarpChain
+     */
+    public static boolean isWarp(String name) {
+        switch(name) {
+            case "rotateAnyNoResize": case "circleDisfigure": case "circleDistort": case "concaveDistort":
+            case "sphereDistort": case "ripple": case "scaleOut": case "bulge": case "curveUp": case "curveRight":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @param name Name of an ImageManipulation operation
+     * @return Whether the operation is a warp without an alpha mix, the warps Operations.apply runs together
+     */
+    public static boolean isUnmixedWarp(String name) {
+        switch(name) {
+            case "rotateAnyNoResize": case "scaleOut": case "curveUp": case "curveRight":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Adds a warp by its ImageManipulation name
+     * @param name Name of the operation
+     * @param args Arguments of the operation, after the image
+     * @return This chain
+     */
+    public WarpChain add(String name, Object... args) {
+        switch(name) {
+            case "rotateAnyNoResize": return rotateAnyNoResize(intArg(name, args));
+            case "circleDisfigure": return circleDisfigure(intArg(name, args));
+            case "circleDistort": return circleDistort(intArg(name, args));
+            case "concaveDistort": return concaveDistort(intArg(name, args));
+            case "sphereDistort": return sphereDistort(intArg(name, args));
+            case "ripple": return ripple(intArg(name, args));
+            case "scaleOut": return scaleOut();
+            case "bulge": return bulge(intArg(name, args));
+            case "curveUp": return curveUp();
+            case "curveRight": return curveRight();
+            default:
+                throw new IllegalArgumentException("Invalid operation for WarpChain: " + name + " is not a warp with an inverse map");
+        }
+    }
+
+    /**
+     * Adds ImageManipulation.rotateAnyNoResize
+     * @param degrees Angle to rotate by
+     * @return This chain
+     */
+    public WarpChain rotateAnyNoResize(int degrees) {
+        return stage((width, height) -> ImageManipulation.rotateAnyNoResizeMap(width, height, degrees), -1);
+    }
+
+    /**
+     * Adds ImageManipulation.circleDisfigure
+     * @param amount Alpha of disfigured image
+     * @return This chain
+     */
+    public WarpChain circleDisfigure(int amount) {
+        return stage(ImageManipulation::circleDisfigureMap, amount);
+    }
+
+    /**
+     * Adds ImageManipulation.circleDistort
+     * @param amount Alpha of distorted image
+     * @return This chain
+     */
+    public WarpChain circleDistort(int amount) {
+        return stage(ImageManipulation::circleDistortMap, amount);
+    }
+
+    /**
+     * Adds ImageManipulation.concaveDistort
+     * @param alpha Alpha of distorted image
+     * @return This chain
+     */
+    public WarpChain concaveDistort(int alpha) {
+        return stage(ImageManipulation::concaveDistortMap, alpha);
+    }
+
+    /**
+     * Adds ImageManipulation.sphereDistort
+     * @param alpha Alpha of distorted image
+     * @return This chain
+     */
+    public WarpChain sphereDistort(int alpha) {
+        return stage(ImageManipulation::sphereDistortMap, alpha);
+    }
+
+    /**
+     * Adds ImageManipulation.ripple
+     * @param alpha Alpha of ripple
+     * @return This chain
+     */
+    public WarpChain ripple(int alpha) {
+        return stage(ImageManipulation::rippleMap, alpha);
+    }
+
+    /**
+     * Adds ImageManipulation.scaleOut
+     * @return This chain
+     */
+    public WarpChain scaleOut() {
+        return stage(ImageManipulation::scaleOutMap, -1);
+    }
+
+    /**
+     * Adds ImageManipulation.bulge
+     * @param alpha Alpha of distorted image
+     * @return This chain
+     */
+    public WarpChain bulge(int alpha) {
+        return stage(ImageManipulation::bulgeMap, alpha);
+    }
+
+    /**
+     * Adds ImageManipulation.curveUp
+     * @return This chain
+     */
+    public WarpChain curveUp() {
+        return stage(ImageManipulation::curveUpMap, -1);
+    }
+
+    /**
+     * Adds ImageManipulation.curveRight
+     * @return This chain
+     */
+    public WarpChain curveRight() {
+        return stage(ImageManipulation::curveRightMap, -1);
+    }
+
+    /**
+     * @return Whether no warps have been added
+     */
+    public boolean isEmpty() {
+        return maps.isEmpty();
+    }
+
+    /**
+     * Applies the chain, evaluating the inverse maps for every output pixel
+     * @param image Input image
+     * @return Warped image, or a copy of the input if the chain is empty
+     */
+    public BufferedImage apply(BufferedImage image) {
+        int width = image.getWidth(), height = image.getHeight();
+
+        if(!alphas.isEmpty() && alphas.stream().allMatch(alpha -> alpha < 0)) {
+            WarpMap[] unmixed = new WarpMap[maps.size()];
+            for(int i = 0; i < unmixed.length; i++) unmixed[i] = maps.get(i).create(width, height);
+
+            return runUnmixed(image, unmixed);
+        }
+
+        Stage[] stages = new Stage[maps.size()];
+
+        for(int i = 0; i < stages.length; i++) {
+            WarpMap map = maps.get(i).create(width, height);
+
+            stages[i] = (x, y, index, source) -> {
+                map.source(x, y, source);
+
+                if(source[0] < 0 || source[0] >= width || source[1] < 0 || source[1] >= height) return TRANSPARENT;
+
+                source[0] = (int) source[0];
+                source[1] = (int) source[1];
+
+                return (int) source[1] * width + (int) source[0];
+            };
+        }
+
+        return run(image, stages, toArray(alphas));
+    }
+
+    /**
+     * Finds the part of the source a rectangle of the output reads, by following every pixel of it back through the
+     * maps, used by TileShards to give a worker only the source its tile needs
+     * @param width Width of the whole image
+     * @param height Height of the whole image
+     * @param tile Rectangle of the output
+     * @return Bounding box of the source pixels read, empty when the rectangle only samples outside the image
+     */
+    public Rectangle sourceRegion(int width, int height, Rectangle tile) {
+        Rectangle needed = tile;
+        float[] source = new float[2];
+
+        for(int i = maps.size() - 1; i >= 0 && !needed.isEmpty(); i--) {
+            WarpMap map = maps.get(i).create(width, height);
+            int x0 = Integer.MAX_VALUE, y0 = Integer.MAX_VALUE, x1 = Integer.MIN_VALUE, y1 = Integer.MIN_VALUE;
+
+            for(int y = needed.y; y < needed.y + needed.height; y++) {
+                for(int x = needed.x; x < needed.x + needed.width; x++) {
+                    map.source(x, y, source);
+
+                    if(source[0] < 0 || source[0] >= width || source[1] < 0 || source[1] >= height) continue;
+
+                    x0 = Math.min(x0, (int) source[0]);
+                    y0 = Math.min(y0, (int) source[1]);
+                    x1 = Math.max(x1, (int) source[0] + 1);
+                    y1 = Math.max(y1, (int) source[1] + 1);
+                }
+            }
+
+            Rectangle read = x1 > x0 ? new Rectangle(x0, y0, x1 - x0, y1 - y0) : new Rectangle();
+
+            // A mixed stage also reads its input at the pixel it writes
+            if(alphas.get(i) >= 0) read = read.isEmpty() ? new Rectangle(needed) : read.union(needed);
+
+            needed = read;
+        }
+
+        return needed;
+    }
+
+    /**
+     * Applies the chain to a rectangle of the output, reading only a region of the source
+     * @param source Pixels of the region in rows of region.width
+     * @param region Region of the source, containing sourceRegion(width, height, tile)
+     * @param width Width of the whole image
+     * @param height Height of the whole image
+     * @param tile Rectangle of the output to compute
+     * @return Pixels of the rectangle in rows of tile.width, identical to the same rectangle of apply on the whole image
+     */
+    public int[] apply(int[] source, Rectangle region, int width, int height, Rectangle tile) {
+        Stage[] stages = new Stage[maps.size()];
+
+        for(int i = 0; i < stages.length; i++) {
+            WarpMap map = maps.get(i).create(width, height);
+
+            // Indices are into the region. Later stages can read positions outside it, whose index is never used to
+            // read the source but must not be mistaken for TRANSPARENT or OPAQUE_BLACK
+            stages[i] = (x, y, index, scratch) -> {
+                map.source(x, y, scratch);
+
+                if(scratch[0] < 0 || scratch[0] >= width || scratch[1] < 0 || scratch[1] >= height) return TRANSPARENT;
+
+                int sx = (int) scratch[0] - region.x, sy = (int) scratch[1] - region.y;
+                scratch[0] = (int) scratch[0];
+                scratch[1] = (int) scratch[1];
+
+                return sx < 0 || sx >= region.width || sy < 0 || sy >= region.height ? 0 : sy * region.width + sx;
+            };
+        }
+
+        int[] alphas = toArray(this.alphas);
+        int[] pixels = new int[tile.width * tile.height];
+        float[] scratch = new float[2];
+
+        for(int y = tile.y; y < tile.y + tile.height; y++) {
+            for(int x = tile.x; x < tile.x + tile.width; x++) {
+                int index = region.contains(x, y) ? (y - region.y) * region.width + x - region.x : 0;
+                pixels[(y - tile.y) * tile.width + x - tile.x] = sample(stages, alphas, stages.length - 1, x, y, index, source, scratch);
+            }
+        }
+
+        return pixels;
+    }
+
+    /**
+     * Compiles the chain into index tables for one image size
+     * @param width Width of the images the chain will be applied to
+     * @param height Height of the images the chain will be applied to
+     * @return Compiled chain
+     */
+    public Compiled compile(int width, int height) {
+        List<int[]> tables = new ArrayList<>();
+        List<Integer> tableAlphas = new ArrayList<>();
+
+        for(int i = 0; i < maps.size(); i++) {
+            WarpMap map = maps.get(i).create(width, height);
+            int[] table = new int[width * height];
+
+            ExecutionPolicy.run("warpChain.compile", ExecutionPolicy.CostClass.WARP, 0, 0, width, height, (x0, y0, x1, y1) -> {
+                float[] source = new float[2];
+
+                for(int y = y0; y < y1; y++) {
+                    for(int x = x0; x < x1; x++) {
+                        map.source(x, y, source);
+
+                        boolean outside = source[0] < 0 || source[0] >= width || source[1] < 0 || source[1] >= height;
+                        table[y * width + x] = outside ? TRANSPARENT : (int) source[1] * width + (int) source[0];
+                    }
+                }
+            });
+
+            int last = tables.size() - 1;
+
+            if(alphas.get(i) < 0 && last >= 0 && tableAlphas.get(last) < 0) {
+                // Two unmixed stages in a row read through each other, so they merge into one table
+                int[] previous = tables.get(last);
+
+                for(int p = 0; p < table.length; p++) {
+                    int q = table[p];
+                    if(q == TRANSPARENT) continue;
+
+                    // The earlier stage was transparent there, which the later stage reads as opaque black
+                    table[p] = previous[q] < 0 ? OPAQUE_BLACK : previous[q];
+                }
+
+                tables.set(last, table);
+            }
+            else {
+                tables.add(table);
+                tableAlphas.add(alphas.get(i));
+            }
+        }
+
+        return new Compiled(width, height, tables, toArray(tableAlphas));
+    }
+
+    /**
+     * A WarpChain compiled into index tables for one image size
+     */
+    public static class Compiled {
+        private final int width, height;
+        private final Stage[] stages;
+        private final int[] alphas;
+
+        private Compiled(int width, int height, List<int[]> tables, int[] alphas) {
+            this.width = width;
+            this.height = height;
+            this.alphas = alphas;
+            this.stages = new Stage[tables.size()];
+
+            for(int i = 0; i < stages.length; i++) {
+                int[] table = tables.get(i);
+                stages[i] = (x, y, index, scratch) -> table[index];
+            }
+        }
+
+        /**
+         * Applies the chain
+         * @param image Input image, the same size the chain was compiled for
+         * @return Warped image
+         */
+        public BufferedImage apply(BufferedImage image) {
+            if(image.getWidth() != width || image.getHeight() != height) {
+                throw new IllegalArgumentException("Invalid parameter for function apply: Chain was compiled for " + width + "x" + height + " images");
+            }
+
+            return run(image, stages, alphas);
+        }
+    }
+
+    private WarpChain stage(MapFactory map, int alpha) {
+        maps.add(map);
+        alphas.add(alpha);
+        return this;
+    }
+
+    // Runs the single output pass
+    private static BufferedImage run(BufferedImage image, Stage[] stages, int[] alphas) {
+        int width = image.getWidth(), height = image.getHeight();
+        int[] source = Utils.readARGB(image, 0, 0, width, height, null);
+
+        BufferedImage output = ExecutionContext.current().takeOutput(width, height);
+        BufferedImage warped = output != null ? output : new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+
+        if(stages.length == 0) {
+            Utils.writeARGB(warped, 0, 0, width, height, source);
+            return warped;
+        }
+
+        ExecutionPolicy.run("warpChain", ExecutionPolicy.CostClass.WARP, warped, (x0, y0, x1, y1) -> {
+            int[] row = new int[x1 - x0];
+            float[] scratch = new float[2];
+
+            for(int y = y0; y < y1; y++) {
+                for(int x = x0; x < x1; x++) {
+                    row[x - x0] = sample(stages, alphas, stages.length - 1, x, y, y * width + x, source, scratch);
+                }
+
+                Utils.writeARGB(warped, x0, y, x1 - x0, 1, row);
+            }
+        });
+
+        return warped;
+    }
+
+    // Runs a chain with no mixed stages, following each output pixel back through the maps without recursion
+    private static BufferedImage runUnmixed(BufferedImage image, WarpMap[] maps) {
+        int width = image.getWidth(), height = image.getHeight();
+        int[] source = Utils.readARGB(image, 0, 0, width, height, null);
+
+        BufferedImage output = ExecutionContext.current().takeOutput(width, height);
+        BufferedImage warped = output != null ? output : new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+
+        ExecutionPolicy.run("warpChain", ExecutionPolicy.CostClass.WARP, warped, (x0, y0, x1, y1) -> {
+            int[] row = new int[x1 - x0];
+            float[] scratch = new float[2];
+
+            for(int y = y0; y < y1; y++) {
+                for(int x = x0; x < x1; x++) {
+                    int sx = x, sy = y, colour = 0;
+                    int stage = maps.length - 1;
+
+                    for(; stage >= 0; stage--) {
+                        maps[stage].source(sx, sy, scratch);
+
+                        if(scratch[0] < 0 || scratch[0] >= width || scratch[1] < 0 || scratch[1] >= height) break;
+
+                        sx = (int) scratch[0];
+                        sy = (int) scratch[1];
+                    }
+
+                    if(stage < 0) colour = source[sy * width + sx] | 0xFF000000;
+                    // Transparent in the last stage, opaque black when an earlier stage was transparent
+                    else if(stage < maps.length - 1) colour = 0xFF000000;
+
+                    row[x - x0] = colour;
+                }
+
+                Utils.writeARGB(warped, x0, y, x1 - x0, 1, row);
+            }
+        });
+
+        return warped;
+    }
+
+    // Colour of a pixel in the output of a stage, as the stage-by-stage chain would have stored it
+    private static int sample(Stage[] stages, int[] alphas, int stage, int x, int y, int index, int[] source, float[] scratch) {
+        if(stage < 0) return source[index];
+
+        int from = stages[stage].source(x, y, index, scratch);
+
+        // Warps copy the colour they sample with alpha dropped, so transparent pixels become opaque black
+        int warped = from == TRANSPARENT ? 0 : from == OPAQUE_BLACK ? 0xFF000000 : sample(stages, alphas, stage - 1, (int) scratch[0], (int) scratch[1], from, source, scratch) | 0xFF000000;
+
+        if(alphas[stage] < 0) return warped;
+
+        // Same as mixAlpha, which also ignores the alpha of both images
+        int base = sample(stages, alphas, stage - 1, x, y, index, source, scratch);
+
+        return 0xFF000000
+                | ImageManipulation.alphaComposite(warped >> 16 & 0xFF, base >> 16 & 0xFF, alphas[stage]) << 16
+                | ImageManipulation.alphaComposite(warped >> 8 & 0xFF, base >> 8 & 0xFF, alphas[stage]) << 8
+                | ImageManipulation.alphaComposite(warped & 0xFF, base & 0xFF, alphas[stage]);
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] array = new int[list.size()];
+
+        for(int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+
+        return array;
+    }
+
+    private static int intArg(String name, Object[] args) {
+        if(args.length != 1 || !(args[0] instanceof Number)) {
+            throw new IllegalArgumentException("Invalid parameter for operation " + name + ": Expected one integer argument");
+        }
+
+        return ((Number) args[0]).intValue();
+    }
+}
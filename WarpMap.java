@@ -0,0 +1,14 @@
+/**
+ * Inverse mapping of a geometric warp, giving the source position that each output pixel samples
+ * The warps in ImageManipulation sample the source pixel at the truncated position, and leave an output pixel
+ * transparent when its position is outside of the source image
+ */
+public interface WarpMap {
+    /**
+     * Finds the source position of an output pixel
+     * @param x X coordinate in the output
+     * @param y Y coordinate in the output
+     * @param source Receives the source position, x in source[0] and y in source[1]
+     */
+    void source(int x, int y, float[] source);
+}
@@ -0,0 +1,210 @@
+import java.awt.image.BufferedImage;
+
+/**
+ * Estimates a transparent watermark from many images carrying it at the same position, for use with
+ * ImageManipulation.removeWatermark when there is no copy of the watermark on a white background
+ *
+ * Every watermarked pixel is C = a * W + (1 - a) * B, with the watermark colour W and alpha a the same in every sample
+ * and the background B different. Over many samples the mean and variance of C are then
+ * E[C] = a * W + (1 - a) * E[B] and Var(C) = (1 - a)^2 * Var(B), so with the statistics of the background taken from a
+ * ring of pixels around the watermark, a = 1 - sqrt(Var(C) / Var(B)) and W = (E[C] - (1 - a) * E[B]) / a
+ *
+ * Samples are added one at a time and only per-pixel sums are kept, so memory depends on the watermark size and not on
+ * the number of samples. Each sample is accumulated in parallel bands of rows, and estimators filled on different
+ * threads can be merged
+ */
+public class WatermarkEstimator {
+    // Alpha below which a pixel is treated as not part of the watermark, as its colour cannot be recovered
+    private static final double MIN_ALPHA = 1 / 255.0;
+
+    private final int x, y, width, height, margin;
+
+    // Sums of each channel and of its square over the samples, three per watermark pixel
+    private final long[] sums, squares;
+    // Count, sums and sums of squares of the ring around the watermark, pooled over pixels and samples
+    private final long[] ring = new long[7];
+    private long samples;
+
+    /**
+     * Creates an estimator for a watermark at a fixed position
+     * @param x Left of the watermark in every sample
+     * @param y Top of the watermark in every sample
+     * @param width Width of the watermark
+     * @param height Height of the watermark
+     * @param margin Width of the ring around the watermark the background statistics are taken from
+     */
+    public WatermarkEstimator(int x, int y, int width, int height, int margin) {
+        if(x < 0 || y < 0 || width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Invalid parameter for function WatermarkEstimator: Watermark must have a positive size at a non-negative position");
+        }
+        if(margin <= 0) throw new IllegalArgumentException("Invalid parameter for function WatermarkEstimator: margin must be positive");
+
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+        this.margin = margin;
+        this.sums = new long[width * height * 3];
+        this.squares = new long[width * height * 3];
+    }
+
+    /**
+     * Adds a watermarked sample
+     * Calls from several threads are run one at a time, use merge to accumulate on several threads at once
+     * @param image Sample containing the whole watermark
+     * @return This estimator
+     */
+    public synchronized WatermarkEstimator add(BufferedImage image) {
+        if(x + width > image.getWidth() || y + height > image.getHeight()) {
+            throw new IllegalArgumentException("Invalid parameter for function add: Watermark does not fit in the " + image.getWidth() + "x" + image.getHeight() + " sample");
+        }
+
+        // Rows of the watermark and the ring around it, clipped to the sample
+        int left = Math.max(0, x - margin), right = Math.min(image.getWidth(), x + width + margin);
+        int top = Math.max(0, y - margin), bottom = Math.min(image.getHeight(), y + height + margin);
+
+        long[] ringSums = ExecutionPolicy.reduce("watermarkEstimator", ExecutionPolicy.CostClass.POINT, right - left, bottom - top,
+                () -> new long[7],
+                (acc, y0, y1) -> {
+                    int[] row = new int[right - left];
+
+                    for(int sy = top + y0; sy < top + y1; sy++) {
+                        image.getRGB(left, sy, row.length, 1, row, 0, row.length);
+
+                        for(int sx = left; sx < right; sx++) {
+                            int argb = row[sx - left];
+                            boolean inside = sx >= x && sx < x + width && sy >= y && sy < y + height;
+                            // Pixels of the watermark have their own sums, the rest pool into the ring
+                            int at = inside ? ((sy - y) * width + sx - x) * 3 : -1;
+
+                            if(!inside) acc[0]++;
+
+                            for(int c = 0; c < 3; c++) {
+                                long value = argb >> 16 - c * 8 & 0xFF;
+
+                                if(inside) {
+                                    sums[at + c] += value;
+                                    squares[at + c] += value * value;
+                                }
+                                else {
+                                    acc[1 + c] += value;
+                                    acc[4 + c] += value * value;
+                                }
+                            }
+                        }
+                    }
+                },
+                (a, b) -> {
+                    for(int i = 0; i < a.length; i++) a[i] += b[i];
+                    return a;
+                });
+
+        for(int i = 0; i < ring.length; i++) ring[i] += ringSums[i];
+        samples++;
+
+        return this;
+    }
+
+    /**
+     * Adds the samples of another estimator of the same watermark
+     * @param other Estimator with the same position, size and margin
+     * @return This estimator
+     */
+    public WatermarkEstimator merge(WatermarkEstimator other) {
+        if(other.x != x || other.y != y || other.width != width || other.height != height || other.margin != margin) {
+            throw new IllegalArgumentException("Invalid parameter for function merge: Estimators are for different watermarks");
+        }
+
+        // Copy the other sums under its lock alone and add them under this one alone, holding both at once would
+        // deadlock a.merge(b) against b.merge(a)
+        long[] otherSums, otherSquares, otherRing;
+        long otherSamples;
+
+        synchronized(other) {
+            otherSums = other.sums.clone();
+            otherSquares = other.squares.clone();
+            otherRing = other.ring.clone();
+            otherSamples = other.samples;
+        }
+
+        synchronized(this) {
+            for(int i = 0; i < sums.length; i++) {
+                sums[i] += otherSums[i];
+                squares[i] += otherSquares[i];
+            }
+            for(int i = 0; i < ring.length; i++) ring[i] += otherRing[i];
+            samples += otherSamples;
+        }
+
+        return this;
+    }
+
+    /**
+     * @return Number of samples added
+     */
+    public synchronized long getSampleCount() {
+        return samples;
+    }
+
+    /**
+     * Estimates the watermark from the samples so far
+     * @return Watermark the size given to the constructor, with pixels too faint to recover left transparent
+     */
+    public synchronized BufferedImage estimate() {
+        if(samples < 2 || ring[0] == 0) {
+            throw new IllegalStateException("Watermark estimate needs at least 2 samples with background around the watermark");
+        }
+
+        double[] backgroundMean = new double[3], backgroundVariance = new double[3];
+
+        for(int c = 0; c < 3; c++) {
+            backgroundMean[c] = (double) ring[1 + c] / ring[0];
+            backgroundVariance[c] = (double) ring[4 + c] / ring[0] - backgroundMean[c] * backgroundMean[c];
+        }
+
+        BufferedImage watermark = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        long n = samples;
+
+        ExecutionPolicy.run("watermarkEstimator", ExecutionPolicy.CostClass.POINT, watermark, (x0, y0, x1, y1) -> {
+            double[] mean = new double[3];
+
+            for(int wy = y0; wy < y1; wy++) {
+                for(int wx = x0; wx < x1; wx++) {
+                    int at = (wy * width + wx) * 3;
+                    double visible = 0;
+                    int channels = 0;
+
+                    for(int c = 0; c < 3; c++) {
+                        mean[c] = (double) sums[at + c] / n;
+
+                        // A flat background channel says nothing about alpha
+                        if(backgroundVariance[c] < 1) continue;
+
+                        double variance = Math.max(0, (double) squares[at + c] / n - mean[c] * mean[c]);
+                        visible += Math.sqrt(variance / backgroundVariance[c]);
+                        channels++;
+                    }
+
+                    // All three channels share the alpha, so their estimates are averaged
+                    double a = channels == 0 ? 0 : Math.min(1, Math.max(0, 1 - visible / channels));
+
+                    if(a < MIN_ALPHA) {
+                        watermark.setRGB(wx, wy, 0);
+                        continue;
+                    }
+
+                    int argb = (int) Math.round(a * 255) << 24;
+
+                    for(int c = 0; c < 3; c++) {
+                        double colour = (mean[c] - (1 - a) * backgroundMean[c]) / a;
+                        argb |= Utils.clamp((int) Math.round(colour), 0, 255) << 16 - c * 8;
+                    }
+
+                    watermark.setRGB(wx, wy, argb);
+                }
+            }
+        });
+
+        return watermark;
+    }
+}
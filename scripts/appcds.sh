@@ -0,0 +1,19 @@
+#!/bin/sh
+# Builds build/imagetool.jar and an AppCDS archive of the classes ImageTool loads, recorded from a training run of
+# every operation (ImageTool --train). Needs JDK 13 or later for -XX:ArchiveClassesAtExit
+#
+# Usage: scripts/appcds.sh
+# Then:  java -XX:SharedArchiveFile=build/imagetool.jsa -cp build/imagetool.jar ImageTool chain input...
+#
+# The archive only matches the jar, class path and JDK it was built with, so run from the repository root with the same
+# -cp and rebuild it after the jar or JDK change. CDS does not archive classes loaded from directories, which is why the
+# classes are put in a jar
+set -e
+cd "$(dirname "$0")/.."
+
+mkdir -p build/classes
+javac -d build/classes *.java
+jar cf build/imagetool.jar -C build/classes .
+
+java -XX:ArchiveClassesAtExit=build/imagetool.jsa -cp build/imagetool.jar ImageTool --train
+echo "Wrote build/imagetool.jsa"
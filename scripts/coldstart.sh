@@ -0,0 +1,49 @@
+#!/bin/sh
+# Measures the cold start of ImageTool on a small image, a fresh JVM per run, and appends the median wall time of each
+# configuration to benchmarks/coldstart.tsv so changes to start-up show up in review
+#
+# Usage: scripts/coldstart.sh [runs]
+# Builds the jar and archive with scripts/appcds.sh first if they are missing
+set -e
+cd "$(dirname "$0")/.."
+
+RUNS=${1:-15}
+[ -f build/imagetool.jsa ] || scripts/appcds.sh
+
+# A 256 by 256 PNG, written by the library itself so no other tool is needed
+cat > build/Sample.java <<'JAVA'
+public class Sample {
+    public static void main(String[] args) throws Exception {
+        java.awt.image.BufferedImage image = new java.awt.image.BufferedImage(256, 256, java.awt.image.BufferedImage.TYPE_INT_ARGB);
+        for(int y = 0; y < 256; y++) for(int x = 0; x < 256; x++) image.setRGB(x, y, 0xFF000000 | x << 16 | y << 8 | (x ^ y));
+        try(java.io.OutputStream out = new java.io.FileOutputStream(args[0])) { ScanlineCodec.writeImage(image, "png", out); }
+    }
+}
+JAVA
+java -cp build/imagetool.jar build/Sample.java build/sample.png
+
+# Median in milliseconds of RUNS runs of a chain, given first, with the java options after it
+measure() {
+    chain=$1
+    shift
+    for i in $(seq "$RUNS"); do
+        start=$(date +%s%N)
+        java "$@" -cp build/imagetool.jar ImageTool -o build/sample.out.png "$chain" build/sample.png
+        end=$(date +%s%N)
+        echo $(( (end - start) / 1000000 ))
+    done | sort -n | awk '{ t[NR] = $1 } END { print t[int((NR + 1) / 2)] }'
+}
+
+VERSION=$(java -version 2>&1 | head -n 1 | tr -d '"' | awk '{ print $3 }')
+DATE=$(date -u +%Y-%m-%d)
+mkdir -p benchmarks
+[ -f benchmarks/coldstart.tsv ] || printf 'date\tjava\tchain\tconfiguration\tmedian_ms\truns\n' > benchmarks/coldstart.tsv
+
+# A row-local chain, streamed row by row, and a warp, which decodes the whole image first
+for chain in "brighten:amount=10;greyScale" "bulge:alpha=100"; do
+    for config in "-Xshare:off" "-Xshare:auto" "-XX:SharedArchiveFile=build/imagetool.jsa" "-XX:SharedArchiveFile=build/imagetool.jsa -XX:TieredStopAtLevel=1"; do
+        # Word splitting of config is intended, it holds one or two options
+        median=$(measure "$chain" $config)
+        printf '%s\t%s\t%s\t%s\t%s\t%s\n' "$DATE" "$VERSION" "$chain" "$config" "$median" "$RUNS" | tee -a benchmarks/coldstart.tsv
+    done
+done
@@ -0,0 +1,18 @@
+#!/bin/sh
+# Checks that FastMath.sin and FastMath.cos are within MAX_ERROR, and that the DRAFT maps of circleDisfigure,
+# circleDistort and concaveDistort are within the bound the FastMath class comment derives from it of their EXACT maps
+# Writes the largest difference of each to build/fastmath.tsv and fails if any of them is over its bound
+#
+# Usage: scripts/fastmath.sh [java options...]
+set -e
+cd "$(dirname "$0")/.."
+
+mkdir -p build/classes
+javac -d build/classes *.java
+
+if java "$@" -cp build/classes -Djava.awt.headless=true FastMath > build/fastmath.tsv; then
+    echo "All $(($(wc -l < build/fastmath.tsv) - 1)) differences within their bounds, see build/fastmath.tsv"
+else
+    awk -F '\t' 'NR == 1 || $7 != "true"' build/fastmath.tsv
+    exit 1
+fi
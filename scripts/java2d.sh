@@ -0,0 +1,20 @@
+#!/bin/sh
+# Runs both implementations of every operation with a Java2D path on every supported image type, and appends the
+# timings, how many pixels differ and by how much, and which implementation EXACT and DRAFT quality would choose to
+# benchmarks/java2d.tsv, so a JDK update that changes the choice shows up in review
+#
+# Usage: scripts/java2d.sh [java options...]
+# For example scripts/java2d.sh -Dsun.java2d.opengl=true to compare another pipeline
+set -e
+cd "$(dirname "$0")/.."
+
+mkdir -p build/classes
+javac -d build/classes *.java
+
+VERSION=$(java -version 2>&1 | head -n 1 | tr -d '"' | awk '{ print $3 }')
+DATE=$(date -u +%Y-%m-%d)
+mkdir -p benchmarks
+
+java "$@" -cp build/classes -Djava.awt.headless=true Java2DOps > build/java2d.tsv
+[ -f benchmarks/java2d.tsv ] || head -n 1 build/java2d.tsv | sed 's/^/date\tjava\t/' > benchmarks/java2d.tsv
+tail -n +2 build/java2d.tsv | sed "s/^/$DATE\t$VERSION\t/" | tee -a benchmarks/java2d.tsv
@@ -0,0 +1,18 @@
+#!/bin/sh
+# Times ImageManipulation.median on a 1920 by 1080 image for radii 1 to 50 and appends the best of three runs of each to
+# benchmarks/median.tsv, so a change that makes the cost grow with the radius shows up in review
+#
+# Usage: scripts/median.sh [java options...]
+set -e
+cd "$(dirname "$0")/.."
+
+mkdir -p build/classes
+javac -d build/classes *.java
+
+VERSION=$(java -version 2>&1 | head -n 1 | tr -d '"' | awk '{ print $3 }')
+DATE=$(date -u +%Y-%m-%d)
+mkdir -p benchmarks
+
+java "$@" -cp build/classes -Djava.awt.headless=true MedianBenchmark > build/median.tsv
+[ -f benchmarks/median.tsv ] || head -n 1 build/median.tsv | sed 's/^/date\tjava\t/' > benchmarks/median.tsv
+tail -n +2 build/median.tsv | sed "s/^/$DATE\t$VERSION\t/" | tee -a benchmarks/median.tsv
@@ -0,0 +1,22 @@
+#!/bin/sh
+# Checks that the plans of PlanOptimiser give the same pixels as running the steps one after another, for the rewrites
+# it makes (reflectX twice, rotateCW and rotateCCW, four rotateCWs, brighten then darken, runs of colour operations)
+# and for random chains of moves and colour operations, on images with and without alpha
+# Writes one line per chain and image to build/planoptimiser.tsv and fails if any of them differ
+#
+# Usage: scripts/planoptimiser.sh [random chains] [java options...]
+set -e
+cd "$(dirname "$0")/.."
+
+CHAINS=${1:-400}
+[ $# -gt 0 ] && shift
+
+mkdir -p build/classes
+javac -d build/classes *.java
+
+if java "$@" -cp build/classes -Djava.awt.headless=true PlanOptimiser "$CHAINS" > build/planoptimiser.tsv; then
+    echo "All $(($(wc -l < build/planoptimiser.tsv) - 1)) plans match, see build/planoptimiser.tsv"
+else
+    awk -F '\t' 'NR == 1 || $4 != 0' build/planoptimiser.tsv
+    exit 1
+fi